@@ -16,17 +16,22 @@
  */
 package spade.analyzer;
 
+import org.json.JSONException;
 import spade.client.QueryMetaData;
+import spade.client.ResultStream;
 import spade.core.AbstractAnalyzer;
 import spade.core.AbstractEdge;
 import spade.core.AbstractQuery;
+import spade.core.AbstractResolver;
 import spade.core.AbstractStorage;
+import spade.core.AbstractTransformer;
 import spade.core.AbstractVertex;
 import spade.core.Graph;
 import spade.core.Kernel;
 import spade.resolver.Recursive;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.ObjectOutputStream;
@@ -35,6 +40,7 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -75,6 +81,7 @@ public class CommandLine extends AbstractAnalyzer
         QUERY_DIRECTION_VALUE("\t a[ncestors] | d[escendants]"),
 
         QUERY_FUNCTION_EXPORT("export > <path_to_file_for_next_query>"),
+        QUERY_STREAM("stream [limit=<rows>] <query>"),
         QUERY_LIST_CONSTRAINTS("list constraints"),
         QUERY_EXIT("exit");
 
@@ -166,6 +173,10 @@ public class CommandLine extends AbstractAnalyzer
 
     public class QueryConnection extends AbstractAnalyzer.QueryConnection
     {
+        // characters that can be read while checking for a cancel command
+        private static final int CANCEL_READ_LIMIT = 8192;
+        private final Map<String, AbstractQuery<?>> queryClasses = new HashMap<>();
+
         QueryConnection(Socket socket)
         {
             super(socket);
@@ -185,11 +196,19 @@ public class CommandLine extends AbstractAnalyzer
                 {
                     // Commands read from the input stream and executed.
                     String line = queryInputStream.readLine();
-                    long start_time = System.currentTimeMillis();
-                    if(line.equalsIgnoreCase(QueryCommands.QUERY_EXIT.value))
+                    if(line == null || line.equalsIgnoreCase(QueryCommands.QUERY_EXIT.value))
                     {
                         break;
                     }
+                    else if(line.equalsIgnoreCase(ResultStream.CANCEL_COMMAND))
+                    {
+                        // the result to cancel had already been sent completely
+                        continue;
+                    }
+                    else if(line.toLowerCase().startsWith(ResultStream.STREAM_COMMAND + " "))
+                    {
+                        streamQuery(line, queryOutputStream, queryInputStream);
+                    }
                     else if(line.toLowerCase().startsWith("set"))
                     {
                         // set storage for querying
@@ -222,92 +241,29 @@ public class CommandLine extends AbstractAnalyzer
                         String output = createConstraint(line);
                         queryOutputStream.writeObject(output);
                     }
+                    else if(line.toLowerCase().startsWith(AbstractResolver.RESOLVE_COMMAND + " "))
+                    {
+                        // the result object itself for the resolver of another host
+                        Object result;
+                        try
+                        {
+                            String query = line.substring(AbstractResolver.RESOLVE_COMMAND.length()).trim();
+                            result = executeQuery(replaceConstraintNames(query), false);
+                        }
+                        catch(Exception ex)
+                        {
+                            logger.log(Level.SEVERE, "Error executing remote resolution request!", ex);
+                            result = "Error";
+                        }
+                        queryOutputStream.writeObject(result);
+                        // the connection is kept open, so the objects written must not be referenced again
+                        queryOutputStream.reset();
+                    }
                     else
                     {
-                        line = replaceConstraintNames(line.trim());
                         try
                         {
-                            boolean success = parseQuery(line);
-                            if(!success)
-                            {
-                                String message = "Function name not valid! Make sure you follow the guidelines";
-                                throw new Exception(message);
-                            }
-                            AbstractQuery queryClass;
-                            Class<?> returnType;
-                            Object result;
-                            String functionClassName = getFunctionClassName(functionName);
-                            if(functionClassName == null)
-                            {
-                                String message = "Required query class not available!";
-                                throw new Exception(message);
-                            }
-                            queryClass = (AbstractQuery) Class.forName(functionClassName).newInstance();
-                            returnType = Class.forName(getReturnType(functionName));
-                            result = queryClass.execute(functionArguments);
-                            if(result != null && returnType.isAssignableFrom(result.getClass()))
-                            {
-                                if(result instanceof Graph)
-                                {
-                                    if(isRemoteResolutionRequired())
-                                    {
-                                        logger.log(Level.INFO, "Performing remote resolution.");
-                                        //TODO: Could use a factory pattern here to get remote resolver
-                                        remoteResolver = new Recursive((Graph) result, functionName,
-                                                Integer.parseInt(maxLength), direction);
-                                        Thread remoteResolverThread = new Thread(remoteResolver, "Recursive-AbstractResolver");
-                                        remoteResolverThread.start();
-                                        // wait for thread to complete to get the final graph
-                                        remoteResolverThread.join();
-                                        // final graph is a set of un-stitched graphs
-                                        Set<Graph> finalGraphSet = remoteResolver.getFinalGraph();
-                                        clearRemoteResolutionRequired();
-                                        discrepancyDetector.setResponseGraph(finalGraphSet);
-                                        int discrepancyCount = discrepancyDetector.findDiscrepancy();
-                                        logger.log(Level.WARNING, "discrepancyCount: " + discrepancyCount);
-                                        if(discrepancyCount == 0)
-                                        {
-                                            discrepancyDetector.update();
-                                        }
-                                        for(Graph graph : finalGraphSet)
-                                        {
-                                            result = Graph.union((Graph) result, graph);
-                                        }
-                                        logger.log(Level.INFO, "Remote resolution completed.");
-                                    }
-                                    if(USE_TRANSFORMER)
-                                    {
-                                        logger.log(Level.INFO, "Applying transformers on the final result.");
-                                        Map<String, Object> queryMetaDataMap = getQueryMetaData((Graph) result);
-                                        QueryMetaData queryMetaData = new QueryMetaData(queryMetaDataMap);
-                                        result = iterateTransformers((Graph) result, queryMetaData);
-                                        logger.log(Level.INFO, "Transformers applied successfully.");
-                                    }
-                                }
-                                // if result output is to be converted into dot file format
-                                if(EXPORT_RESULT)
-                                {
-                                    Graph temp_result = new Graph();
-                                    if(functionName.equalsIgnoreCase("GetEdge"))
-                                    {
-                                        temp_result.edgeSet().addAll((Set<AbstractEdge>) result);
-                                        result = temp_result;
-                                    }
-                                    else if(functionName.equalsIgnoreCase("GetVertex"))
-                                    {
-                                        temp_result.vertexSet().addAll((Set<AbstractVertex>) result);
-                                        result = temp_result;
-                                    }
-                                    result = ((Graph) result).exportGraph();
-                                    EXPORT_RESULT = false;
-                                }
-                            }
-                            else
-                            {
-                                logger.log(Level.SEVERE, "Return type null or mismatch!");
-                            }
-                            long elapsed_time = System.currentTimeMillis() - start_time;
-                            logger.log(Level.INFO, "Time taken for query: " + elapsed_time + " ms");
+                            Object result = executeQuery(replaceConstraintNames(line.trim()), true);
                             if(result != null)
                             {
                                 queryOutputStream.writeObject(result.toString());
@@ -347,6 +303,317 @@ public class CommandLine extends AbstractAnalyzer
             }
         }
 
+        /**
+         * Executes the query and applies the remote resolution, the transformers and
+         * the export to it. Results are taken from the query cache while nothing has
+         * been added to the storage since they were computed.
+         *
+         * @param line the query
+         * @param resolveRemotely false for the queries of the resolvers of other hosts, which
+         *                        resolve the remote parts of the result themselves
+         * @return the result of the query, the exported graph if it was to be exported,
+         * or null if there is no result
+         */
+        private Object executeQuery(String line, boolean resolveRemotely) throws Exception
+        {
+            long start_time = System.currentTimeMillis();
+            boolean success = parseQuery(line);
+            if(!success)
+            {
+                String message = "Function name not valid! Make sure you follow the guidelines";
+                throw new Exception(message);
+            }
+            AbstractQuery<?> queryClass;
+            Class<?> returnType;
+            Object result;
+            String functionClassName = getFunctionClassName(functionName);
+            if(functionClassName == null)
+            {
+                String message = "Required query class not available!";
+                throw new Exception(message);
+            }
+            AbstractStorage storage = AbstractQuery.getCurrentStorage();
+            // read before the query so that anything added during the query makes the result stale
+            long ingestEpoch = storage.getIngestEpoch();
+            String cacheKey = getCacheKey(storage, resolveRemotely);
+            boolean cacheable = false;
+            result = QUERY_CACHE.get(cacheKey, ingestEpoch);
+            if(result != null)
+            {
+                logger.log(Level.INFO, "Query result taken from the cache.");
+            }
+            else
+            {
+                queryClass = getQueryClass(functionClassName);
+                returnType = Class.forName(getReturnType(functionName));
+                result = queryClass.execute(functionArguments);
+                if(result != null && returnType.isAssignableFrom(result.getClass()))
+                {
+                    // results depending on remote hosts are not cached
+                    cacheable = true;
+                    if(result instanceof Graph)
+                    {
+                        if(isRemoteResolutionRequired() && !resolveRemotely)
+                        {
+                            clearRemoteResolutionRequired();
+                        }
+                        else if(isRemoteResolutionRequired())
+                        {
+                            cacheable = false;
+                            logger.log(Level.INFO, "Performing remote resolution.");
+                            //TODO: Could use a factory pattern here to get remote resolver
+                            remoteResolver = new Recursive((Graph) result, functionName,
+                                    Integer.parseInt(maxLength), direction);
+                            Thread remoteResolverThread = new Thread(remoteResolver, "Recursive-AbstractResolver");
+                            remoteResolverThread.start();
+                            // wait for thread to complete to get the final graph
+                            remoteResolverThread.join();
+                            // final graph is a set of un-stitched graphs
+                            Set<Graph> finalGraphSet = remoteResolver.getFinalGraph();
+                            clearRemoteResolutionRequired();
+                            discrepancyDetector.setResponseGraph(finalGraphSet);
+                            int discrepancyCount = discrepancyDetector.findDiscrepancy();
+                            logger.log(Level.WARNING, "discrepancyCount: " + discrepancyCount);
+                            if(discrepancyCount == 0)
+                            {
+                                discrepancyDetector.update();
+                            }
+                            for(Graph graph : finalGraphSet)
+                            {
+                                result = Graph.union((Graph) result, graph);
+                            }
+                            logger.log(Level.INFO, "Remote resolution completed.");
+                        }
+                        if(USE_TRANSFORMER)
+                        {
+                            logger.log(Level.INFO, "Applying transformers on the final result.");
+                            Map<String, Object> queryMetaDataMap = getQueryMetaData((Graph) result);
+                            QueryMetaData queryMetaData = new QueryMetaData(queryMetaDataMap);
+                            result = iterateTransformers((Graph) result, queryMetaData);
+                            logger.log(Level.INFO, "Transformers applied successfully.");
+                        }
+                    }
+                }
+                else
+                {
+                    logger.log(Level.SEVERE, "Return type null or mismatch!");
+                }
+                if(cacheable && result != null)
+                {
+                    QUERY_CACHE.put(cacheKey, ingestEpoch, result);
+                }
+            }
+            // if result output is to be converted into dot file format
+            if(EXPORT_RESULT && result != null)
+            {
+                Graph temp_result = new Graph();
+                if(functionName.equalsIgnoreCase("GetEdge"))
+                {
+                    temp_result.edgeSet().addAll((Set<AbstractEdge>) result);
+                    result = temp_result;
+                }
+                else if(functionName.equalsIgnoreCase("GetVertex"))
+                {
+                    temp_result.vertexSet().addAll((Set<AbstractVertex>) result);
+                    result = temp_result;
+                }
+                result = ((Graph) result).exportGraph();
+                EXPORT_RESULT = false;
+            }
+            long elapsed_time = System.currentTimeMillis() - start_time;
+            logger.log(Level.INFO, "Time taken for query: " + elapsed_time + " ms");
+
+            return result;
+        }
+
+        /**
+         * @return instance of the query class, created once per connection since the
+         * query classes can keep state between the calls of a query
+         */
+        private AbstractQuery<?> getQueryClass(String functionClassName) throws Exception
+        {
+            AbstractQuery<?> queryClass = queryClasses.get(functionClassName);
+            if(queryClass == null)
+            {
+                queryClass = (AbstractQuery<?>) Class.forName(functionClassName).getDeclaredConstructor()
+                        .newInstance();
+                queryClasses.put(functionClassName, queryClass);
+            }
+            return queryClass;
+        }
+
+        /**
+         * @return key of the query in the query cache. The result of a query also
+         * depends on the storage, on the transformers applied to it and on whether
+         * it is resolved remotely.
+         */
+        private String getCacheKey(AbstractStorage storage, boolean resolveRemotely)
+        {
+            StringBuilder key = new StringBuilder(100);
+            key.append(functionName.toLowerCase()).append('(');
+            key.append(functionArguments.trim().replaceAll("\\s+", " ")).append(')');
+            if(!resolveRemotely)
+            {
+                key.append(" local");
+            }
+            key.append(" storage=").append(storage.getClass().getName());
+            key.append('@').append(System.identityHashCode(storage));
+            if(USE_TRANSFORMER)
+            {
+                synchronized (Kernel.transformers)
+                {
+                    for(AbstractTransformer transformer : Kernel.transformers)
+                    {
+                        key.append(" transformer=").append(transformer.getClass().getName());
+                        key.append('@').append(System.identityHashCode(transformer));
+                        if(transformer.arguments != null)
+                        {
+                            key.append(' ').append(transformer.arguments.trim());
+                        }
+                    }
+                }
+            }
+            return key.toString();
+        }
+
+        /**
+         * Executes a query sent as "stream [limit=n] query" and sends the result as
+         * frames of ResultStream, so that the result is never converted to a single
+         * string and the client can show the rows as they arrive.
+         */
+        private void streamQuery(String line, ObjectOutputStream queryOutputStream,
+                                 BufferedReader queryInputStream) throws IOException
+        {
+            String query = line.substring(ResultStream.STREAM_COMMAND.length()).trim();
+            try
+            {
+                int limit = 0;
+                if(query.toLowerCase().startsWith(ResultStream.LIMIT_OPTION))
+                {
+                    String[] tokens = query.split("\\s+", 2);
+                    limit = Integer.parseInt(tokens[0].substring(ResultStream.LIMIT_OPTION.length()));
+                    query = tokens.length > 1 ? tokens[1] : "";
+                }
+                if(AbstractQuery.getCurrentStorage() == null)
+                {
+                    ResultStream.writeFrame(queryOutputStream, ResultStream.FRAME_ERROR,
+                            "No storage set for querying. Use command: 'set storage <storage_name>'");
+                }
+                else
+                {
+                    Object result = executeQuery(replaceConstraintNames(query), true);
+                    if(result != null)
+                    {
+                        streamResult(result, limit, queryOutputStream, queryInputStream);
+                    }
+                    else
+                    {
+                        ResultStream.writeFrame(queryOutputStream, ResultStream.FRAME_END, "Result Empty");
+                    }
+                }
+            }
+            catch(IOException ex)
+            {
+                throw ex;
+            }
+            catch(Exception ex)
+            {
+                logger.log(Level.SEVERE, "Error executing query request!", ex);
+                ResultStream.writeFrame(queryOutputStream, ResultStream.FRAME_ERROR, "Error");
+            }
+            queryOutputStream.flush();
+        }
+
+        private void streamResult(Object result, int limit, ObjectOutputStream queryOutputStream,
+                                  BufferedReader queryInputStream) throws IOException, JSONException
+        {
+            List<Collection<?>> parts = new ArrayList<>();
+            if(result instanceof Graph)
+            {
+                parts.add(((Graph) result).vertexSet());
+                parts.add(((Graph) result).edgeSet());
+            }
+            else if(result instanceof Collection)
+            {
+                parts.add((Collection<?>) result);
+            }
+            else
+            {
+                // exported graph
+                ResultStream.writeFrame(queryOutputStream, ResultStream.FRAME_TEXT, result.toString());
+                ResultStream.writeFrame(queryOutputStream, ResultStream.FRAME_END, "");
+                return;
+            }
+            StringBuilder rows = new StringBuilder();
+            int rowCount = 0;
+            int frameRowCount = 0;
+            String status = null;
+            rowLoop:
+            for(Collection<?> part : parts)
+            {
+                for(Object element : part)
+                {
+                    if(limit > 0 && rowCount >= limit)
+                    {
+                        status = "limit reached";
+                        break rowLoop;
+                    }
+                    if(element instanceof AbstractVertex)
+                    {
+                        rows.append(ResultStream.toJSON((AbstractVertex) element)).append('\n');
+                    }
+                    else if(element instanceof AbstractEdge)
+                    {
+                        rows.append(ResultStream.toJSON((AbstractEdge) element)).append('\n');
+                    }
+                    else
+                    {
+                        continue;
+                    }
+                    rowCount++;
+                    frameRowCount++;
+                    if(frameRowCount == ResultStream.ROWS_PER_FRAME)
+                    {
+                        ResultStream.writeFrame(queryOutputStream, ResultStream.FRAME_ROWS, rows.toString());
+                        queryOutputStream.flush();
+                        rows.setLength(0);
+                        frameRowCount = 0;
+                        if(isCancelled(queryInputStream))
+                        {
+                            status = "cancelled";
+                            break rowLoop;
+                        }
+                    }
+                }
+            }
+            if(rows.length() > 0)
+            {
+                ResultStream.writeFrame(queryOutputStream, ResultStream.FRAME_ROWS, rows.toString());
+            }
+            ResultStream.writeFrame(queryOutputStream, ResultStream.FRAME_END,
+                    rowCount + " rows" + (status != null ? " (" + status + ")" : ""));
+        }
+
+        /**
+         * @return true if the client has sent a cancel command. Any other line is left
+         * to be read as the next command.
+         */
+        private boolean isCancelled(BufferedReader queryInputStream) throws IOException
+        {
+            if(!queryInputStream.ready())
+            {
+                return false;
+            }
+            queryInputStream.mark(CANCEL_READ_LIMIT);
+            String line = queryInputStream.readLine();
+            if(line != null && line.trim().equalsIgnoreCase(ResultStream.CANCEL_COMMAND))
+            {
+                return true;
+            }
+            queryInputStream.reset();
+            return false;
+        }
+
         public boolean parseQuery(String query_line)
         {
             functionName = null;
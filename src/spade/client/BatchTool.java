@@ -26,11 +26,10 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
-import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.security.KeyStore;
@@ -40,8 +39,7 @@ public class BatchTool {
 
     private static PrintStream outputStream;
     private static PrintStream SPADEQueryIn;
-    private static BufferedReader SPADEQueryOut;
-    private static final String nullString = "null";
+    private static ObjectInputStream SPADEQueryOut;
     private static final String SPADE_ROOT = Settings.getProperty("spade_root");
     // Members for creating secure sockets
     private static KeyStore clientKeyStorePrivate;
@@ -83,14 +81,19 @@ public class BatchTool {
 
         outputStream = System.out;
 
+        if (args.length < 3) {
+            System.out.println("Usage: BatchTool <storage> <row limit> <query>");
+            System.exit(-1);
+        }
+
         try {
             String host = "localhost";
-            int port = Integer.parseInt(Settings.getProperty("local_query_port"));
+            int port = Integer.parseInt(Settings.getProperty("commandline_query_port"));
             SSLSocket remoteSocket = (SSLSocket) sslSocketFactory.createSocket(host, port);
 
             OutputStream outStream = remoteSocket.getOutputStream();
             InputStream inStream = remoteSocket.getInputStream();
-            SPADEQueryOut = new BufferedReader(new InputStreamReader(inStream));
+            SPADEQueryOut = new ObjectInputStream(inStream);
             SPADEQueryIn = new PrintStream(outStream);
         } catch (NumberFormatException | IOException exception) {
             System.out.println("Error connecting to SPADE");
@@ -104,18 +107,25 @@ public class BatchTool {
         }
         line = line.trim();
 
-        if (!line.equalsIgnoreCase("exit")) {
-            // The output path is embedded in each query sent to SPADE
-            // as the first token of the query. This is to allow multiple
-            // query clients to work simultaneously with SPADE.
-            SPADEQueryIn.println(nullString + " " + line);
-        }
-
-        String outputLine;
         try {
-            while ((outputLine = SPADEQueryOut.readLine()) != null) {
-                outputStream.println(outputLine);
-            }
+            SPADEQueryIn.println("set storage " + args[0]);
+            outputStream.println(SPADEQueryOut.readObject());
+
+            // The rows are printed as they arrive so that large results
+            // never have to be held in memory.
+            SPADEQueryIn.println(ResultStream.STREAM_COMMAND + " " + ResultStream.LIMIT_OPTION
+                    + Integer.parseInt(args[1]) + " " + line);
+            ResultStream.Frame frame;
+            do {
+                frame = ResultStream.readFrame(SPADEQueryOut);
+                if (frame.type == ResultStream.FRAME_ROWS || frame.type == ResultStream.FRAME_TEXT) {
+                    outputStream.print(frame.payload);
+                } else if (frame.type == ResultStream.FRAME_ERROR) {
+                    System.err.println(frame.payload);
+                }
+            } while (!frame.isLast());
+            outputStream.flush();
+            SPADEQueryIn.println("exit");
         } catch (Exception ex) {
             System.out.println("Error retrieving results from SPADE");
             System.exit(-1);
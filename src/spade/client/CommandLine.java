@@ -51,6 +51,9 @@ public class CommandLine
     private static final String COMMAND_PROMPT = "-> ";
     private static HashMap<String, String> constraints = new HashMap<>();
     private static String RESULT_EXPORT_PATH = null;
+    // maximum number of vertices and edges printed per query. 0 for no limit
+    private static int ROW_LIMIT = 0;
+    private static final String LIMIT_COMMAND = "limit";
 
     // Members for creating secure sockets
     private static KeyStore clientKeyStorePrivate;
@@ -149,6 +152,16 @@ public class CommandLine
                         // save export path for next answer's dot file
                         parseExport(line);
                     }
+                    else if(line.toLowerCase().startsWith(LIMIT_COMMAND))
+                    {
+                        parseLimit(line);
+                    }
+                    else if(RESULT_EXPORT_PATH == null && isQuery(line))
+                    {
+                        clientOutputStream.println(ResultStream.STREAM_COMMAND + " "
+                                + ResultStream.LIMIT_OPTION + ROW_LIMIT + " " + line);
+                        readResultStream();
+                    }
                     else
                     {
                         if(RESULT_EXPORT_PATH != null)
@@ -192,6 +205,69 @@ public class CommandLine
         }
     }
 
+    /**
+     * @return true if the server executes the line as a query
+     */
+    private static boolean isQuery(String line)
+    {
+        return !line.toLowerCase().startsWith("set")
+                && !line.equals(QueryCommands.QUERY_LIST_CONSTRAINTS.value)
+                && !line.contains(":");
+    }
+
+    /**
+     * Prints the rows of a streamed result as they arrive. Pressing enter while
+     * the result is printed cancels the rest of it.
+     */
+    private static void readResultStream() throws IOException
+    {
+        boolean cancelled = false;
+        ResultStream.Frame frame;
+        do
+        {
+            frame = ResultStream.readFrame(clientInputStream);
+            switch(frame.type)
+            {
+                case ResultStream.FRAME_ROWS:
+                case ResultStream.FRAME_TEXT:
+                    System.out.print(frame.payload);
+                    break;
+                case ResultStream.FRAME_END:
+                    System.out.println(frame.payload.isEmpty() ? "" : "[" + frame.payload + "]");
+                    System.out.println();
+                    break;
+                default:
+                    System.out.println(frame.payload);
+                    System.out.println();
+            }
+            if(!cancelled && !frame.isLast() && System.in.available() > 0)
+            {
+                // discard the typed line
+                while(System.in.available() > 0)
+                {
+                    System.in.read();
+                }
+                clientOutputStream.println(ResultStream.CANCEL_COMMAND);
+                cancelled = true;
+            }
+        }
+        while(!frame.isLast());
+    }
+
+    private static void parseLimit(String line)
+    {
+        try
+        {
+            String[] tokens = line.split("\\s+");
+            ROW_LIMIT = Math.max(0, Integer.parseInt(tokens[1].trim()));
+            System.out.println("Row limit set to " + (ROW_LIMIT == 0 ? "none" : ROW_LIMIT) + ".");
+        }
+        catch(Exception ex)
+        {
+            System.err.println(CommandLine.class.getName() + " Usage: " + LIMIT_COMMAND + " <rows>");
+        }
+    }
+
     private static void parseExport(String line)
     {
         try
@@ -0,0 +1,122 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package spade.client;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Protocol of the streaming query results of the CommandLine analyzer.
+ *
+ * A query sent as "stream [limit=n] query" is answered with a sequence of frames
+ * instead of a single string. Every frame is a type byte, a payload length and the
+ * UTF-8 payload. Rows frames hold newline-delimited JSON objects, one per vertex or
+ * edge, in the format read by the JSON reporter. The vertices of a graph are sent
+ * before its edges. The last frame of a result is always an end frame, whose
+ * payload summarizes the result, or an error frame.
+ *
+ * The client can stop a result early by sending "cancel". The server checks for it
+ * after every rows frame and ends the result.
+ */
+public class ResultStream
+{
+    public static final String STREAM_COMMAND = "stream";
+    public static final String LIMIT_OPTION = "limit=";
+    public static final String CANCEL_COMMAND = "cancel";
+
+    public static final byte FRAME_END = 0;
+    public static final byte FRAME_ROWS = 1;
+    public static final byte FRAME_TEXT = 2;
+    public static final byte FRAME_ERROR = 3;
+
+    // number of rows sent per frame
+    public static final int ROWS_PER_FRAME = 1000;
+
+    public static class Frame
+    {
+        public final byte type;
+        public final String payload;
+
+        private Frame(byte type, String payload)
+        {
+            this.type = type;
+            this.payload = payload;
+        }
+
+        public boolean isLast()
+        {
+            return type == FRAME_END || type == FRAME_ERROR;
+        }
+    }
+
+    public static void writeFrame(DataOutput output, byte type, String payload) throws IOException
+    {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        output.writeByte(type);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    public static Frame readFrame(DataInput input) throws IOException
+    {
+        byte type = input.readByte();
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return new Frame(type, new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    public static String toJSON(AbstractVertex vertex) throws JSONException
+    {
+        JSONObject object = new JSONObject();
+        object.put("id", vertex.bigHashCode());
+        object.put("type", vertex.type());
+        object.put("annotations", toJSON(vertex.getAnnotations()));
+        return object.toString();
+    }
+
+    public static String toJSON(AbstractEdge edge) throws JSONException
+    {
+        JSONObject object = new JSONObject();
+        object.put("from", edge.getChildVertex().bigHashCode());
+        object.put("to", edge.getParentVertex().bigHashCode());
+        object.put("type", edge.type());
+        object.put("annotations", toJSON(edge.getAnnotations()));
+        return object.toString();
+    }
+
+    private static JSONObject toJSON(Map<String, String> annotations) throws JSONException
+    {
+        JSONObject object = new JSONObject();
+        for(Map.Entry<String, String> annotation : annotations.entrySet())
+        {
+            object.put(annotation.getKey(), annotation.getValue());
+        }
+        return object;
+    }
+}
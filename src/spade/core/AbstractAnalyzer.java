@@ -57,6 +57,11 @@ public abstract class AbstractAnalyzer
     private static String configFile = CONFIG_PATH + FILE_SEPARATOR + "spade.core.AbstractAnalyzer.config";
     public static boolean USE_SCAFFOLD;
     public static boolean USE_TRANSFORMER;
+    // how GetLineage queries the storage: vertex, frontier or recursive
+    public static String LINEAGE_MODE;
+    // cache of query results shared by all the analyzers
+    public static QueryCache QUERY_CACHE;
+    private static final long DEFAULT_QUERY_CACHE_ELEMENTS = 1000000;
     static
     {
         try
@@ -64,12 +69,17 @@ public abstract class AbstractAnalyzer
             databaseConfigs.load(new FileInputStream(configFile));
             USE_SCAFFOLD = Boolean.parseBoolean(databaseConfigs.getProperty("use_scaffold"));
             USE_TRANSFORMER = Boolean.parseBoolean(Settings.getProperty("use_transformer"));
+            LINEAGE_MODE = databaseConfigs.getProperty("lineage_mode", "frontier").trim().toLowerCase();
+            QUERY_CACHE = new QueryCache(Long.parseLong(databaseConfigs.getProperty("query_cache_max_elements",
+                    String.valueOf(DEFAULT_QUERY_CACHE_ELEMENTS)).trim()));
         }
         catch(Exception ex)
         {
             // default settings
             USE_SCAFFOLD = false;
             USE_TRANSFORMER = false;
+            LINEAGE_MODE = "frontier";
+            QUERY_CACHE = new QueryCache(DEFAULT_QUERY_CACHE_ELEMENTS);
             Logger.getLogger(AbstractAnalyzer.class.getName()).log(Level.WARNING,
                     "Loading configurations from the file unsuccessful! Falling back to default settings" , ex);
         }
@@ -238,29 +248,41 @@ public abstract class AbstractAnalyzer
         {
             synchronized (Kernel.transformers)
             {
-                for(int i = 0; i < Kernel.transformers.size(); i++)
+                int i = 0;
+                while(i < Kernel.transformers.size() && graph != null)
                 {
-                    AbstractTransformer transformer = Kernel.transformers.get(i);
-                    if(graph != null)
+                    // consecutive transformers that look at one element at a time are applied in one pass
+                    int end = i + 1;
+                    if(Kernel.transformers.get(i).getType() != AbstractTransformer.Type.STRUCTURAL)
                     {
-                        try
+                        while(end < Kernel.transformers.size()
+                                && Kernel.transformers.get(end).getType() != AbstractTransformer.Type.STRUCTURAL)
                         {
-                            graph = transformer.putGraph(graph, queryMetaData);
-                            if(graph != null)
-                            {
-                                //commit after every transformer to enable reading without error
-                                graph.commitIndex();
-                            }
+                            end++;
                         }
-                        catch(Exception ex)
+                    }
+                    try
+                    {
+                        if(end - i > 1)
+                        {
+                            graph = AbstractTransformer.transformElements(Kernel.transformers.subList(i, end),
+                                    graph, queryMetaData);
+                        }
+                        else
+                        {
+                            graph = Kernel.transformers.get(i).putGraph(graph, queryMetaData);
+                        }
+                        if(graph != null)
                         {
-                            Logger.getLogger(QueryConnection.class.getName()).log(Level.SEVERE, "Error in applying transformer!", ex);
+                            //commit after every transformer to enable reading without error
+                            graph.commitIndex();
                         }
                     }
-                    else
+                    catch(Exception ex)
                     {
-                        break;
+                        Logger.getLogger(QueryConnection.class.getName()).log(Level.SEVERE, "Error in applying transformer!", ex);
                     }
+                    i = end;
                 }
             }
             return graph;
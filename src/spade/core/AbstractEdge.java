@@ -21,10 +21,8 @@ package spade.core;
 
 import java.io.Serializable;
 import java.util.Map;
-import java.util.TreeMap;
 
 import com.mysql.jdbc.StringUtils;
-import org.apache.commons.codec.digest.DigestUtils;
 import spade.reporter.audit.OPMConstants;
 
 /**
@@ -43,10 +41,47 @@ public abstract class AbstractEdge implements Serializable
 	/**
      * A map containing the annotations for this edge.
      */
-    protected Map<String, String> annotations = new TreeMap<>();
+    protected Map<String, String> annotations = new AnnotationMap();
     private AbstractVertex childVertex;
     private AbstractVertex parentVertex;
 
+    /**
+     * Cached result of bigHashCode along with the version of the annotations, and
+     * the end points and their versions, that it was computed with.
+     */
+    private transient volatile BigHash bigHash;
+
+    private static final class BigHash
+    {
+        private final byte[] bytes;
+        private final String hex;
+        private final int annotationsVersion;
+        private final AbstractVertex childVertex;
+        private final int childVersion;
+        private final AbstractVertex parentVertex;
+        private final int parentVersion;
+
+        private BigHash(AbstractEdge edge, AbstractVertex childVertex, AbstractVertex parentVertex)
+        {
+            // Versions are read before hashing so that a concurrent change makes the result stale
+            this.annotationsVersion = AnnotationMap.versionOf(edge.annotations);
+            this.childVertex = childVertex;
+            this.childVersion = childVertex == null ? 0 : childVertex.getVersion();
+            this.parentVertex = parentVertex;
+            this.parentVersion = parentVertex == null ? 0 : parentVertex.getVersion();
+            this.bytes = IdentityHash.hash(edge);
+            this.hex = IdentityHash.toHex(bytes);
+        }
+
+        private boolean isValidFor(AbstractEdge edge, AbstractVertex childVertex, AbstractVertex parentVertex)
+        {
+            return annotationsVersion == AnnotationMap.versionOf(edge.annotations)
+                    && this.childVertex == childVertex && this.parentVertex == parentVertex
+                    && (childVertex == null || childVersion == childVertex.getVersion())
+                    && (parentVertex == null || parentVersion == parentVertex.getVersion());
+        }
+    }
+
     /**
      * Checks if edge is empty
      *
@@ -60,7 +95,9 @@ public abstract class AbstractEdge implements Serializable
 
 
     /**
-     * Returns the map containing the annotations for this edge.
+     * Returns the map containing the annotations for this edge. The annotations
+     * should be changed through addAnnotation(s) and removeAnnotation, which skip
+     * empty keys. Changes made to the map still reset the cached bigHashCode.
      *
      * @return The map containing the annotations.
      */
@@ -83,6 +120,7 @@ public abstract class AbstractEdge implements Serializable
                 value = "";
             }
             annotations.put(key, value);
+            bigHash = null;
         }
     }
 
@@ -116,7 +154,12 @@ public abstract class AbstractEdge implements Serializable
      * existed.
      */
     public final String removeAnnotation(String key) {
-        return annotations.remove(key);
+        String value = annotations.remove(key);
+        if(value != null)
+        {
+            bigHash = null;
+        }
+        return value;
     }
 
     /**
@@ -180,24 +223,38 @@ public abstract class AbstractEdge implements Serializable
         this.parentVertex = parentVertex;
     }
 
+    private BigHash getCachedBigHash()
+    {
+        BigHash hash = bigHash;
+        AbstractVertex currentChildVertex = childVertex;
+        AbstractVertex currentParentVertex = parentVertex;
+        if(hash == null || !hash.isValidFor(this, currentChildVertex, currentParentVertex))
+        {
+            hash = new BigHash(this, currentChildVertex, currentParentVertex);
+            bigHash = hash;
+        }
+        return hash;
+    }
+
     /**
-     * Computes MD5 hash of annotations in the edge and its end point vertices.
+     * Computes 128-bit hash of annotations in the edge and its end point vertices.
+     * The hash is cached until the edge or its end points are changed.
      *
      @return A 128-bit hash digest.
      */
     public String bigHashCode()
     {
-        return DigestUtils.md5Hex(this.toString());
+        return getCachedBigHash().hex;
     }
 
     /**
-     * Computes MD5 hash of annotations in the vertex.
+     * Computes 128-bit hash of annotations in the edge and its end point vertices.
      *
      @return A 128-bit hash digest.
      */
     public byte[] bigHashCodeBytes()
     {
-        return DigestUtils.md5(this.toString());
+        return getCachedBigHash().bytes.clone();
     }
 
     @Override
@@ -19,6 +19,8 @@
  */
 package spade.core;
 
+import java.util.List;
+
 /**
  * This is the base class for filters.
  *
@@ -51,6 +53,16 @@ public abstract class AbstractFilter {
         return true;
     }
 
+    /**
+     * This method is invoked by the kernel when listing the filters. It may be
+     * called from a thread other than the one passing elements to the filter.
+     *
+     * @return A description of the state kept by the filter, or null if it keeps none.
+     */
+    public String getStats() {
+        return null;
+    }
+
     /**
      * This method is used by the Kernel for configuring the filter list.
      *
@@ -78,6 +90,24 @@ public abstract class AbstractFilter {
         nextFilter.putEdge(edge);
     }
 
+    /**
+     * This method is called by the filters to send a batch of vertices to the next filter.
+     *
+     * @param vertices The vertices to be sent to the next filter.
+     */
+    public final void putVerticesInNextFilter(List<AbstractVertex> vertices) {
+        nextFilter.putVertices(vertices);
+    }
+
+    /**
+     * This method is called by the filters to send a batch of edges to the next filter.
+     *
+     * @param edges The edges to be sent to the next filter.
+     */
+    public final void putEdgesInNextFilter(List<AbstractEdge> edges) {
+        nextFilter.putEdges(edges);
+    }
+
     /**
      * This method is called when the filter receives a vertex.
      *
@@ -91,12 +121,54 @@ public abstract class AbstractFilter {
      * @param incomingEdge The edge received by this filter.
      */
     public abstract void putEdge(AbstractEdge incomingEdge);
+
+    /**
+     * This method is called when the filter receives a batch of consecutive vertices.
+     * By default, each vertex is passed to putVertex in order. Filters that
+     * can process a batch at once should override this method.
+     *
+     * @param incomingVertices The vertices received by this filter.
+     */
+    public void putVertices(List<AbstractVertex> incomingVertices) {
+        for (AbstractVertex incomingVertex : incomingVertices) {
+            putVertex(incomingVertex);
+        }
+    }
+
+    /**
+     * This method is called when the filter receives a batch of consecutive edges.
+     * By default, each edge is passed to putEdge in order. Filters that
+     * can process a batch at once should override this method.
+     *
+     * @param incomingEdges The edges received by this filter.
+     */
+    public void putEdges(List<AbstractEdge> incomingEdges) {
+        for (AbstractEdge incomingEdge : incomingEdges) {
+            putEdge(incomingEdge);
+        }
+    }
     
     public final void incrementStorageVertexCount(AbstractStorage storage){
     	storage.vertexCount++;
+    	storage.incrementIngestEpoch();
     }
     
     public final void incrementStorageEdgeCount(AbstractStorage storage){
     	storage.edgeCount++;
+    	storage.incrementIngestEpoch();
+    }
+    
+    public final void incrementStorageVertexCount(AbstractStorage storage, long count){
+    	storage.vertexCount += count;
+    	if(count > 0){
+    		storage.incrementIngestEpoch();
+    	}
+    }
+    
+    public final void incrementStorageEdgeCount(AbstractStorage storage, long count){
+    	storage.edgeCount += count;
+    	if(count > 0){
+    		storage.incrementIngestEpoch();
+    	}
     }
 }
@@ -21,6 +21,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -52,6 +53,9 @@ public abstract class AbstractQuery<R>
 
     private boolean hasRegistered = false;
 
+    // shared instances of the query classes that keep no state between calls
+    private static final Map<String, AbstractQuery<?>> queryInstances = new ConcurrentHashMap<>();
+
     public abstract R execute(String argument_string);
 
     public abstract R execute(Map<String, List<String>> parameters, Integer limit);
@@ -66,11 +70,34 @@ public abstract class AbstractQuery<R>
         return currentStorage;
     }
 
+    /**
+     * Returns a shared instance of the query class, created on first use. Only meant
+     * for query classes that keep no state between calls, like the storage specific
+     * GetVertex, GetEdge, GetChildren and GetParents.
+     *
+     * @param className fully qualified name of the query class
+     * @return instance of the query class
+     */
+    public static AbstractQuery<?> getQueryInstance(String className) throws Exception
+    {
+        AbstractQuery<?> query = queryInstances.get(className);
+        if(query == null)
+        {
+            query = (AbstractQuery<?>) Class.forName(className).getDeclaredConstructor().newInstance();
+            AbstractQuery<?> existing = queryInstances.putIfAbsent(className, query);
+            if(existing != null)
+            {
+                query = existing;
+            }
+        }
+        return query;
+    }
+
     public void register()
     {
         try
         {
-            Class[] paramTypes = new Class[]{java.util.Map.class, java.lang.Integer.class};
+            Class<?>[] paramTypes = new Class<?>[]{java.util.Map.class, java.lang.Integer.class};
             if(!hasRegistered)
             {
                 AbstractAnalyzer.registerFunction(this.getClass().getSimpleName(),
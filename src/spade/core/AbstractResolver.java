@@ -28,6 +28,11 @@ public abstract class AbstractResolver implements Runnable
     public static final String SOURCE_PORT = "source_port";
     public static final String DESTINATION_HOST = "destination_host";
     public static final String DESTINATION_PORT = "destination_port";
+    /**
+     * Prefix of the queries sent by resolvers to other hosts. The result object of the
+     * query is returned instead of its text, and it is not resolved remotely again.
+     */
+    public static final String RESOLVE_COMMAND = "resolve";
 
     // fields required to fetch and return remote parts of result graph
     protected Set<Graph> finalGraph = new HashSet<>();
@@ -29,6 +29,8 @@ import java.util.Map;
  */
 public abstract class AbstractSketch implements Serializable {
 
+    private static final long serialVersionUID = 4510963943793851446L;
+
     /**
      * The matrix filter belonging to this sketch.
      */
@@ -51,4 +53,14 @@ public abstract class AbstractSketch implements Serializable {
      * @param incomingEdge The edge received by this sketch.
      */
     public abstract void putEdge(AbstractEdge incomingEdge);
+
+    /**
+     * This method is invoked by the kernel when removing the sketch or shutting
+     * down.
+     *
+     * @return True if the sketch was shut down successfully.
+     */
+    public boolean shutdown() {
+        return true;
+    }
 }
@@ -26,10 +26,12 @@ import java.io.FileInputStream;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Properties;
 import java.util.Queue;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -69,6 +71,11 @@ public abstract class AbstractStorage
      * The number of edges that this storage instance has successfully received.
      */
     protected long edgeCount;
+    /**
+     * Incremented whenever elements are added to this storage or become visible
+     * to queries. Query results computed at an older epoch may be stale.
+     */
+    private final AtomicLong ingestEpoch = new AtomicLong(0);
 
     protected static Properties databaseConfigs = new Properties();
 
@@ -208,6 +215,23 @@ public abstract class AbstractStorage
         return vertexCount;
     }
 
+    /**
+     * This method returns the current ingest epoch.
+     *
+     * @return ingest epoch
+     */
+    public long getIngestEpoch(){
+        return ingestEpoch.get();
+    }
+
+    /**
+     * This method is called whenever elements are added to this storage, and by
+     * storages that buffer elements when the buffered elements are committed.
+     */
+    public void incrementIngestEpoch(){
+        ingestEpoch.incrementAndGet();
+    }
+
     /**
      * This method is triggered by the Kernel to flush transactions.
      *
@@ -278,6 +302,48 @@ public abstract class AbstractStorage
      */
     public abstract boolean putVertex(AbstractVertex incomingVertex);
 
+    /**
+     * This function inserts the given edges into the underlying storage(s) in order.
+     * Storages that can write many edges at once should override this function.
+     * By default, each edge is inserted using putEdge.
+     *
+     * @param incomingEdges edges to insert into the storage
+     * @return returns the number of edges for which the insertion was successful
+     */
+    public int putEdges(List<AbstractEdge> incomingEdges)
+    {
+        int count = 0;
+        for(AbstractEdge incomingEdge : incomingEdges)
+        {
+            if(putEdge(incomingEdge))
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * This function inserts the given vertices into the underlying storage(s) in order.
+     * Storages that can write many vertices at once should override this function.
+     * By default, each vertex is inserted using putVertex.
+     *
+     * @param incomingVertices vertices to insert into the storage
+     * @return returns the number of vertices for which the insertion was successful
+     */
+    public int putVertices(List<AbstractVertex> incomingVertices)
+    {
+        int count = 0;
+        for(AbstractVertex incomingVertex : incomingVertices)
+        {
+            if(putVertex(incomingVertex))
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
     /**
      * This function finds the lineage of the graph starting from a source vertex.
      *
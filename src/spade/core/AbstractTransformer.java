@@ -21,7 +21,9 @@ package spade.core;
 
 import spade.client.QueryMetaData;
 
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -43,7 +45,112 @@ public abstract class AbstractTransformer
        	return true;
     }
 	
-	public abstract Graph putGraph(Graph graph, QueryMetaData digQueryParams);
+	/**
+	 * How a transformer changes a graph.
+	 *
+	 * REWRITE transformers keep every vertex and edge and only change their annotations.
+	 * FILTER transformers keep the edges accepted by transformEdge along with their end
+	 * points, and can change annotations too. Both look at one vertex or edge at a time
+	 * so consecutive ones are applied in a single pass over the graph, see transformElements.
+	 * STRUCTURAL transformers need the whole graph and implement putGraph.
+	 */
+	public enum Type
+	{
+		REWRITE, FILTER, STRUCTURAL
+	}
+
+	public Type getType()
+	{
+		return Type.STRUCTURAL;
+	}
+
+	/**
+	 * Changes the annotations of a copy of a vertex. Must not depend on the edges of the vertex.
+	 */
+	public void transformVertex(AbstractVertex vertex, QueryMetaData queryMetaData)
+	{
+	}
+
+	/**
+	 * Changes the annotations of a copy of an edge. The end points of the edge have been
+	 * passed to transformVertex already.
+	 *
+	 * @return false if the edge is to be removed. Only FILTER transformers can remove edges.
+	 */
+	public boolean transformEdge(AbstractEdge edge, QueryMetaData queryMetaData)
+	{
+		return true;
+	}
+
+	/**
+	 * STRUCTURAL transformers must override this. The others are applied through
+	 * transformVertex and transformEdge.
+	 */
+	public Graph putGraph(Graph graph, QueryMetaData queryMetaData)
+	{
+		return transformElements(Collections.singletonList(this), graph, queryMetaData);
+	}
+
+	/**
+	 * Applies REWRITE and FILTER transformers in order with one copy of every element
+	 * instead of one copy per transformer. Every edge is copied along with its end
+	 * points and then passed through the transformers one after the other, so each
+	 * transformer sees the element as changed by the ones before it.
+	 *
+	 * @return new graph with the transformed elements. The input graph is not changed.
+	 */
+	public static Graph transformElements(List<AbstractTransformer> transformers, Graph graph,
+			QueryMetaData queryMetaData)
+	{
+		Graph resultGraph = new Graph();
+		boolean keepAllVertices = true;
+		for(AbstractTransformer transformer : transformers)
+		{
+			if(transformer.getType() != Type.REWRITE)
+			{
+				keepAllVertices = false;
+			}
+		}
+		if(keepAllVertices)
+		{
+			for(AbstractVertex vertex : graph.vertexSet())
+			{
+				AbstractVertex newVertex = createNewWithoutAnnotations(vertex);
+				for(AbstractTransformer transformer : transformers)
+				{
+					transformer.transformVertex(newVertex, queryMetaData);
+				}
+				resultGraph.putVertex(newVertex);
+			}
+		}
+		for(AbstractEdge edge : graph.edgeSet())
+		{
+			if(edge == null || edge.getChildVertex() == null || edge.getParentVertex() == null)
+			{
+				continue;
+			}
+			AbstractEdge newEdge = createNewWithoutAnnotations(edge);
+			boolean accepted = true;
+			for(AbstractTransformer transformer : transformers)
+			{
+				transformer.transformVertex(newEdge.getChildVertex(), queryMetaData);
+				transformer.transformVertex(newEdge.getParentVertex(), queryMetaData);
+				if(!transformer.transformEdge(newEdge, queryMetaData))
+				{
+					accepted = false;
+					break;
+				}
+			}
+			if(accepted)
+			{
+				resultGraph.putVertex(newEdge.getChildVertex());
+				resultGraph.putVertex(newEdge.getParentVertex());
+				resultGraph.putEdge(newEdge);
+			}
+		}
+
+		return resultGraph;
+	}
 	
 	public static String getAnnotationSafe(AbstractVertex vertex, String annotation)
 	{
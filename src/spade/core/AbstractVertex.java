@@ -20,11 +20,9 @@
 package spade.core;
 
 import com.mysql.jdbc.StringUtils;
-import org.apache.commons.codec.digest.DigestUtils;
 
 import java.io.Serializable;
 import java.util.Map;
-import java.util.TreeMap;
 
 import spade.reporter.audit.OPMConstants;
 
@@ -44,7 +42,32 @@ public abstract class AbstractVertex implements Serializable
 	/**
      * A map containing the annotations for this vertex.
      */
-    protected Map<String, String> annotations = new TreeMap<>();
+    protected Map<String, String> annotations = new AnnotationMap();
+
+    /**
+     * Cached result of bigHashCode along with the version of the vertex that it was
+     * computed with.
+     */
+    private transient volatile BigHash bigHash;
+
+    /**
+     * Incremented whenever the annotations are changed through this class. Changes
+     * made to the map from getAnnotations() are counted by the map itself.
+     */
+    private transient volatile int version;
+
+    private static final class BigHash
+    {
+        private final byte[] bytes;
+        private final int version;
+        private volatile String hex;
+
+        private BigHash(byte[] bytes, int version)
+        {
+            this.bytes = bytes;
+            this.version = version;
+        }
+    }
 
     /**
      * An integer indicating the depth of the vertex in the graph
@@ -70,7 +93,9 @@ public abstract class AbstractVertex implements Serializable
     }
 
     /**
-     * Returns the map containing the annotations for this vertex.
+     * Returns the map containing the annotations for this vertex. The annotations
+     * should be changed through addAnnotation(s) and removeAnnotation, which skip
+     * empty keys. Changes made to the map still reset the cached bigHashCode.
      *
      * @return The map containing the annotations.
      */
@@ -93,6 +118,7 @@ public abstract class AbstractVertex implements Serializable
                 value = "";
             }
             annotations.put(key, value);
+            invalidateBigHash();
         }
     }
 
@@ -126,7 +152,12 @@ public abstract class AbstractVertex implements Serializable
      * existed.
      */
     public final String removeAnnotation(String key) {
-        return annotations.remove(key);
+        String value = annotations.remove(key);
+        if(value != null)
+        {
+            invalidateBigHash();
+        }
+        return value;
     }
 
     /**
@@ -148,24 +179,67 @@ public abstract class AbstractVertex implements Serializable
         return annotations.get(OPMConstants.TYPE);
     }
 
+    private void invalidateBigHash()
+    {
+        version++;
+    }
+
     /**
-     * Computes MD5 hash of annotations in the vertex.
+     * Changes whenever the annotations are changed. Used by edges to know if their
+     * cached hash is stale.
+     */
+    final int getVersion()
+    {
+        return version + AnnotationMap.versionOf(annotations);
+    }
+
+    private BigHash getBigHash()
+    {
+        BigHash hash = bigHash;
+        // Read before hashing so that a concurrent change makes the result stale
+        int currentVersion = getVersion();
+        if(hash == null || hash.version != currentVersion)
+        {
+            hash = new BigHash(IdentityHash.hash(this), currentVersion);
+            bigHash = hash;
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the cached hash, computing it if needed. Not to be modified by the caller.
+     */
+    final byte[] getCachedBigHash()
+    {
+        return getBigHash().bytes;
+    }
+
+    /**
+     * Computes 128-bit hash of annotations in the vertex. The hash is cached until
+     * the annotations are changed.
      *
      @return A 128-bit hash digest.
      */
     public String bigHashCode()
     {
-        return DigestUtils.md5Hex(this.toString());
+        BigHash hash = getBigHash();
+        String hex = hash.hex;
+        if(hex == null)
+        {
+            hex = IdentityHash.toHex(hash.bytes);
+            hash.hex = hex;
+        }
+        return hex;
     }
 
 
     /**
-     * Computes MD5 hash of annotations in the vertex
+     * Computes 128-bit hash of annotations in the vertex
      * @return 16 element byte array of the digest.
      */
     public byte[] bigHashCodeBytes()
     {
-        return DigestUtils.md5(this.toString());
+        return getCachedBigHash().clone();
     }
 
     public boolean isCompleteNetworkVertex()
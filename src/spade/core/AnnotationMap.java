@@ -0,0 +1,489 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compact map for the annotations of vertices and edges.
+ *
+ * Keys and values are kept sorted by key in a single array of alternating keys
+ * and values, so iteration order and toString() are the same as a TreeMap.
+ * Keys are interned in a shared dictionary. Values are interned too for the
+ * low-cardinality keys listed in 'interned_annotation_values' in the Kernel
+ * config (e.g. type, operation, subtype).
+ *
+ * @author Dawood Tariq and Raza Ahmad
+ */
+public class AnnotationMap extends AbstractMap<String, String> implements Serializable
+{
+    private static final long serialVersionUID = -3311407265419931405L;
+
+    private static final String[] EMPTY = new String[0];
+
+    // Upper bounds on the dictionaries so that unusual data cannot grow them without limit
+    private static final int MAX_INTERNED_KEYS = 1 << 16;
+    private static final int MAX_INTERNED_VALUES_PER_KEY = 1 << 12;
+
+    private static final Map<String, String> keyDictionary = new ConcurrentHashMap<>();
+    private static final Map<String, Map<String, String>> valueDictionaries = loadValueDictionaries();
+
+    /**
+     * Alternating keys and values, sorted by key.
+     */
+    private transient String[] entries = EMPTY;
+    private transient int size;
+    private transient int modCount;
+
+    /**
+     * Incremented on every change, including a changed value, so that vertices and edges
+     * know when their cached hash is stale.
+     */
+    private transient int version;
+
+    public AnnotationMap()
+    {
+    }
+
+    public AnnotationMap(Map<String, String> map)
+    {
+        putAll(map);
+    }
+
+    private static Map<String, Map<String, String>> loadValueDictionaries()
+    {
+        Map<String, Map<String, String>> dictionaries = new ConcurrentHashMap<>();
+        String keys = Settings.getProperty("interned_annotation_values");
+        if(keys != null)
+        {
+            for(String key : keys.split(","))
+            {
+                key = key.trim();
+                if(!key.isEmpty())
+                {
+                    dictionaries.put(key, new ConcurrentHashMap<String, String>());
+                }
+            }
+        }
+        return dictionaries;
+    }
+
+    private static String intern(Map<String, String> dictionary, String string, int limit)
+    {
+        String interned = dictionary.get(string);
+        if(interned == null)
+        {
+            if(dictionary.size() >= limit)
+            {
+                return string;
+            }
+            interned = dictionary.putIfAbsent(string, string);
+            if(interned == null)
+            {
+                interned = string;
+            }
+        }
+        return interned;
+    }
+
+    private static String internKey(String key)
+    {
+        return intern(keyDictionary, key, MAX_INTERNED_KEYS);
+    }
+
+    private static String internValue(String key, String value)
+    {
+        if(value == null)
+        {
+            return null;
+        }
+        Map<String, String> dictionary = valueDictionaries.get(key);
+        if(dictionary == null)
+        {
+            return value;
+        }
+        return intern(dictionary, value, MAX_INTERNED_VALUES_PER_KEY);
+    }
+
+    /**
+     * @return Index of the key in entries/2 if present, otherwise -(insertion point + 1).
+     */
+    private int indexOf(Object key)
+    {
+        if(key == null)
+        {
+            throw new NullPointerException();
+        }
+        String stringKey = (String) key;
+        int low = 0;
+        int high = size - 1;
+        while(low <= high)
+        {
+            int middle = (low + high) >>> 1;
+            int comparison = entries[2 * middle].compareTo(stringKey);
+            if(comparison < 0)
+            {
+                low = middle + 1;
+            }
+            else if(comparison > 0)
+            {
+                high = middle - 1;
+            }
+            else
+            {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return key instanceof String && indexOf(key) >= 0;
+    }
+
+    @Override
+    public String get(Object key)
+    {
+        if(!(key instanceof String))
+        {
+            return null;
+        }
+        int index = indexOf(key);
+        return index >= 0 ? entries[2 * index + 1] : null;
+    }
+
+    @Override
+    public String put(String key, String value)
+    {
+        int index = indexOf(key);
+        if(index >= 0)
+        {
+            String oldValue = entries[2 * index + 1];
+            entries[2 * index + 1] = internValue(entries[2 * index], value);
+            version++;
+            return oldValue;
+        }
+        index = -(index + 1);
+        if(2 * size == entries.length)
+        {
+            // Annotation maps are small so grow by a few entries at a time
+            entries = Arrays.copyOf(entries, 2 * (size + Math.max(2, size >> 2)));
+        }
+        System.arraycopy(entries, 2 * index, entries, 2 * index + 2, 2 * (size - index));
+        key = internKey(key);
+        entries[2 * index] = key;
+        entries[2 * index + 1] = internValue(key, value);
+        size++;
+        modCount++;
+        version++;
+        return null;
+    }
+
+    @Override
+    public String remove(Object key)
+    {
+        if(!(key instanceof String))
+        {
+            return null;
+        }
+        int index = indexOf(key);
+        if(index < 0)
+        {
+            return null;
+        }
+        String oldValue = entries[2 * index + 1];
+        removeAt(index);
+        return oldValue;
+    }
+
+    private void removeAt(int index)
+    {
+        System.arraycopy(entries, 2 * index + 2, entries, 2 * index, 2 * (size - index - 1));
+        size--;
+        entries[2 * size] = null;
+        entries[2 * size + 1] = null;
+        modCount++;
+        version++;
+    }
+
+    @Override
+    public void clear()
+    {
+        entries = EMPTY;
+        size = 0;
+        modCount++;
+        version++;
+    }
+
+    /**
+     * Returns the number of changes made to the given map if it is an AnnotationMap.
+     *
+     * @param annotations The annotations of a vertex or an edge.
+     * @return The number of changes, or 0 for other maps.
+     */
+    static int versionOf(Map<String, String> annotations)
+    {
+        return annotations instanceof AnnotationMap ? ((AnnotationMap) annotations).version : 0;
+    }
+
+    /**
+     * Releases the unused capacity.
+     */
+    public void trimToSize()
+    {
+        if(entries.length > 2 * size)
+        {
+            entries = size == 0 ? EMPTY : Arrays.copyOf(entries, 2 * size);
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet()
+    {
+        return new EntrySet();
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int hashCode = 0;
+        for(int i = 0; i < size; i++)
+        {
+            String value = entries[2 * i + 1];
+            hashCode += entries[2 * i].hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object object)
+    {
+        if(object instanceof AnnotationMap)
+        {
+            AnnotationMap other = (AnnotationMap) object;
+            if(size != other.size)
+            {
+                return false;
+            }
+            for(int i = 0; i < 2 * size; i++)
+            {
+                String mine = entries[i];
+                String theirs = other.entries[i];
+                if(mine != theirs && (mine == null || !mine.equals(theirs)))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return super.equals(object);
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder(16 * size + 2);
+        builder.append('{');
+        for(int i = 0; i < size; i++)
+        {
+            if(i > 0)
+            {
+                builder.append(", ");
+            }
+            builder.append(entries[2 * i]).append('=').append(entries[2 * i + 1]);
+        }
+        return builder.append('}').toString();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        for(int i = 0; i < 2 * size; i++)
+        {
+            out.writeObject(entries[i]);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        int count = in.readInt();
+        entries = count == 0 ? EMPTY : new String[2 * count];
+        for(int i = 0; i < count; i++)
+        {
+            String key = internKey((String) in.readObject());
+            entries[2 * i] = key;
+            entries[2 * i + 1] = internValue(key, (String) in.readObject());
+        }
+        size = count;
+    }
+
+    /**
+     * @return The keys for which values are interned.
+     */
+    public static Set<String> getInternedValueKeys()
+    {
+        return new HashSet<>(valueDictionaries.keySet());
+    }
+
+    private final class EntrySet extends AbstractSet<Map.Entry<String, String>>
+    {
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator()
+        {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size()
+        {
+            return size;
+        }
+
+        @Override
+        public void clear()
+        {
+            AnnotationMap.this.clear();
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<String, String>>
+    {
+        private int next = 0;
+        private int last = -1;
+        private int expectedModCount = modCount;
+
+        @Override
+        public boolean hasNext()
+        {
+            return next < size;
+        }
+
+        @Override
+        public Map.Entry<String, String> next()
+        {
+            if(modCount != expectedModCount)
+            {
+                throw new ConcurrentModificationException();
+            }
+            if(next >= size)
+            {
+                throw new NoSuchElementException();
+            }
+            last = next++;
+            return new Entry(last);
+        }
+
+        @Override
+        public void remove()
+        {
+            if(last < 0)
+            {
+                throw new IllegalStateException();
+            }
+            if(modCount != expectedModCount)
+            {
+                throw new ConcurrentModificationException();
+            }
+            removeAt(last);
+            next = last;
+            last = -1;
+            expectedModCount = modCount;
+        }
+    }
+
+    private final class Entry implements Map.Entry<String, String>
+    {
+        private final int index;
+        private final String key;
+
+        private Entry(int index)
+        {
+            this.index = index;
+            this.key = entries[2 * index];
+        }
+
+        @Override
+        public String getKey()
+        {
+            return key;
+        }
+
+        @Override
+        public String getValue()
+        {
+            return index < size && entries[2 * index] == key ? entries[2 * index + 1] : get(key);
+        }
+
+        @Override
+        public String setValue(String value)
+        {
+            return put(key, value);
+        }
+
+        @Override
+        public boolean equals(Object object)
+        {
+            if(!(object instanceof Map.Entry))
+            {
+                return false;
+            }
+            Map.Entry<?, ?> other = (Map.Entry<?, ?>) object;
+            String value = getValue();
+            return key.equals(other.getKey())
+                    && (value == null ? other.getValue() == null : value.equals(other.getValue()));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            String value = getValue();
+            return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString()
+        {
+            return key + "=" + getValue();
+        }
+    }
+}
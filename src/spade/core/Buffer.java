@@ -19,25 +19,97 @@
  */
 package spade.core;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * This is the buffer class which is used by reporters to send provenance
  * elements to.
  *
+ * A buffer is unbounded by default. When created with a capacity, the
+ * overflow policy decides what happens to the elements that do not fit:
+ * the reporter is blocked, the elements are dropped (and counted), or the
+ * elements are spilled to a local file and replayed in order once the
+ * in-memory queue has been drained.
+ *
  * @author Dawood Tariq
  */
 public class Buffer {
 
+    public enum OverflowPolicy {
+        BLOCK, DROP, SPILL
+    }
+
+    private static final Logger logger = Logger.getLogger(Buffer.class.getName());
+
     private final Queue<Object> queue;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final String spillDirectory;
+    /**
+     * The thread draining this buffer. It is woken up whenever a new element
+     * is added so that it does not have to poll the buffer periodically.
+     */
+    private volatile Thread consumer;
+
+    private final AtomicLong droppedCount = new AtomicLong(0);
+    /**
+     * Members used for spilling. All of them are guarded by spillLock.
+     * While spilling is true every new element goes to the spill file
+     * so that the order of the elements is preserved.
+     */
+    private final Object spillLock = new Object();
+    private volatile boolean spilling = false;
+    private File spillFile;
+    private DataOutputStream spillWriter;
+    private DataInputStream spillReader;
+    private boolean spillWriterDirty = false;
+    private volatile long spilledElements = 0;
+    private volatile long spilledBytes = 0;
 
     /**
-     * Empty constructor for this class.
+     * Empty constructor for this class. Creates an unbounded buffer.
      *
      */
     public Buffer() {
-        queue = new ConcurrentLinkedQueue<>();
+        this(0, OverflowPolicy.BLOCK, null);
+    }
+
+    /**
+     * Creates a buffer which holds at most the given number of elements in memory.
+     *
+     * @param capacity The maximum number of elements in memory. Unbounded if less than 1.
+     * @param overflowPolicy The policy to apply to the elements that do not fit.
+     * @param spillDirectory The directory to create the spill file in. Only used by the SPILL policy.
+     */
+    public Buffer(int capacity, OverflowPolicy overflowPolicy, String spillDirectory) {
+        if (capacity > 0) {
+            this.capacity = capacity;
+            queue = new LinkedBlockingQueue<>(capacity);
+        } else {
+            this.capacity = 0;
+            queue = new ConcurrentLinkedQueue<>();
+        }
+        this.overflowPolicy = overflowPolicy == null ? OverflowPolicy.BLOCK : overflowPolicy;
+        this.spillDirectory = spillDirectory;
     }
 
     /**
@@ -50,7 +122,7 @@ public class Buffer {
         if (incomingVertex == null) {
             return false;
         } else {
-            return queue.add(incomingVertex);
+            return add(incomingVertex);
         }
     }
 
@@ -66,17 +138,164 @@ public class Buffer {
                 || (incomingEdge.getParentVertex() == null)) {
             return false;
         } else {
-            return queue.add(incomingEdge);
+            return add(incomingEdge);
+        }
+    }
+
+    private boolean add(Object element) {
+        boolean added;
+        if (capacity == 0) {
+            added = queue.add(element);
+        } else {
+            added = addBounded(element);
+        }
+        Thread currentConsumer = consumer;
+        if (added && currentConsumer != null) {
+            LockSupport.unpark(currentConsumer);
+        }
+        return added;
+    }
+
+    private boolean addBounded(Object element) {
+        if (!spilling && queue.offer(element)) {
+            return true;
+        }
+        switch (overflowPolicy) {
+            case DROP:
+                droppedCount.incrementAndGet();
+                return false;
+            case SPILL:
+                synchronized (spillLock) {
+                    // Check again because the spill file might have been drained completely
+                    if (!spilling && queue.offer(element)) {
+                        return true;
+                    }
+                    if (spill(element)) {
+                        return true;
+                    }
+                }
+                droppedCount.incrementAndGet();
+                return false;
+            case BLOCK:
+            default:
+                try {
+                    ((BlockingQueue<Object>) queue).put(element);
+                    return true;
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                    droppedCount.incrementAndGet();
+                    return false;
+                }
         }
     }
 
+    /**
+     * Appends the element to the spill file. Must be called while holding spillLock.
+     *
+     * @param element The element to spill.
+     * @return True if the element was written to the spill file.
+     */
+    private boolean spill(Object element) {
+        try {
+            if (spillFile == null) {
+                File directory = new File(spillDirectory == null ? System.getProperty("java.io.tmpdir") : spillDirectory);
+                directory.mkdirs();
+                spillFile = File.createTempFile("spade-buffer-", ".spill", directory);
+                spillFile.deleteOnExit();
+                spillWriter = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile, true)));
+                spillReader = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+            }
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            ObjectOutputStream objectStream = new ObjectOutputStream(byteStream);
+            objectStream.writeObject(element);
+            objectStream.close();
+            byte[] bytes = byteStream.toByteArray();
+            spillWriter.writeInt(bytes.length);
+            spillWriter.write(bytes);
+            spillWriterDirty = true;
+            spilledBytes += Integer.BYTES + bytes.length;
+            spilledElements++;
+            spilling = true;
+            return true;
+        } catch (IOException exception) {
+            logger.log(Level.SEVERE, "Failed to spill buffer element to file: " + spillFile, exception);
+            return false;
+        }
+    }
+
+    /**
+     * Reads the next element from the spill file. Deletes the file once all the
+     * spilled elements have been read.
+     *
+     * @return The next spilled element or null if there is none.
+     */
+    private Object unspill() {
+        synchronized (spillLock) {
+            if (spilledElements == 0) {
+                return null;
+            }
+            Object element = null;
+            try {
+                if (spillWriterDirty) {
+                    spillWriter.flush();
+                    spillWriterDirty = false;
+                }
+                byte[] bytes = new byte[spillReader.readInt()];
+                spillReader.readFully(bytes);
+                ObjectInputStream objectStream = new ObjectInputStream(new ByteArrayInputStream(bytes));
+                element = objectStream.readObject();
+                objectStream.close();
+                spilledElements--;
+            } catch (IOException | ClassNotFoundException exception) {
+                logger.log(Level.SEVERE, "Failed to read spilled buffer elements. Discarded "
+                        + spilledElements + " element(s) from file: " + spillFile, exception);
+                droppedCount.addAndGet(spilledElements);
+                spilledElements = 0;
+            }
+            if (spilledElements == 0) {
+                closeSpillFile();
+                spilling = false;
+            }
+            return element;
+        }
+    }
+
+    private void closeSpillFile() {
+        try {
+            spillWriter.close();
+            spillReader.close();
+        } catch (IOException exception) {
+            logger.log(Level.WARNING, "Failed to close spill file: " + spillFile, exception);
+        }
+        if (!spillFile.delete()) {
+            logger.log(Level.WARNING, "Failed to delete spill file: " + spillFile);
+        }
+        spillFile = null;
+        spillWriter = null;
+        spillReader = null;
+    }
+
+    /**
+     * This method is used by the Kernel to register the thread which drains
+     * this buffer.
+     *
+     * @param consumer The thread to wake up when an element is added.
+     */
+    public void setConsumer(Thread consumer) {
+        this.consumer = consumer;
+    }
+
     /**
      * This method is used to extract provenance elements from the buffer.
      *
      * @return The provenance element from the head of the queue.
      */
     public Object getBufferElement() {
-        return queue.poll();
+        Object element = queue.poll();
+        if (element == null && spilling) {
+            element = unspill();
+        }
+        return element;
     }
 
     /**
@@ -85,7 +304,7 @@ public class Buffer {
      * @return True if the buffer is empty.
      */
     public boolean isEmpty() {
-        return queue.isEmpty();
+        return queue.isEmpty() && spilledElements == 0;
     }
 
     /**
@@ -95,6 +314,43 @@ public class Buffer {
      * @return the number of elements in the buffer
      */
     public int size() {
-        return queue.size();
+        return (int) Math.min(Integer.MAX_VALUE, queue.size() + spilledElements);
+    }
+
+    /**
+     * @return the number of elements waiting in the spill file
+     */
+    public long getSpilledElements() {
+        return spilledElements;
+    }
+
+    /**
+     * @return the total number of bytes written to spill files by this buffer
+     */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * @return the number of elements dropped by this buffer
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return a one line summary of the state of this buffer
+     */
+    public String getStats() {
+        StringBuilder stats = new StringBuilder();
+        stats.append("depth=").append(size());
+        if (capacity > 0) {
+            stats.append(", capacity=").append(capacity);
+            stats.append(", policy=").append(overflowPolicy.name().toLowerCase());
+            stats.append(", spilled=").append(spilledElements);
+            stats.append(", spilledBytes=").append(spilledBytes);
+            stats.append(", dropped=").append(droppedCount.get());
+        }
+        return stats.toString();
     }
 }
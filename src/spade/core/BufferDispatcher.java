@@ -0,0 +1,174 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A dispatcher drains the buffers of the reporters assigned to it and hands
+ * the provenance elements, in batches, to the commit queue consumed by the main
+ * SPADE thread.
+ *
+ * Each reporter is assigned to exactly one dispatcher so the order of elements
+ * from a reporter is preserved all the way to the filters. A dispatcher blocks
+ * when none of its buffers have elements and is woken up by the buffers, and
+ * blocks on the bounded commit queue when the main thread falls behind.
+ *
+ * @author Dawood Tariq and Raza Ahmad
+ */
+class BufferDispatcher implements Runnable
+{
+    private static final Logger logger = Logger.getLogger(BufferDispatcher.class.getName());
+
+    /**
+     * A batch of elements taken from a single reporter's buffer.
+     */
+    static class CommitBatch
+    {
+        final AbstractReporter reporter;
+        final List<Object> elements;
+        /**
+         * True if the buffer of the reporter was found empty while creating this batch
+         * and the reporter was marked for removal.
+         */
+        final boolean drained;
+
+        CommitBatch(AbstractReporter reporter, List<Object> elements, boolean drained)
+        {
+            this.reporter = reporter;
+            this.elements = elements;
+            this.drained = drained;
+        }
+    }
+
+    private final Set<AbstractReporter> assignedReporters = new CopyOnWriteArraySet<>();
+    private final Set<AbstractReporter> removeReporters;
+    private final BlockingQueue<CommitBatch> commitQueue;
+    private final AtomicInteger inFlightBatches;
+    private final int batchSize;
+    private final long idleWaitNanos;
+    private volatile Thread thread;
+
+    BufferDispatcher(Set<AbstractReporter> removeReporters, BlockingQueue<CommitBatch> commitQueue,
+                     AtomicInteger inFlightBatches, int batchSize, long idleWaitMillis)
+    {
+        this.removeReporters = removeReporters;
+        this.commitQueue = commitQueue;
+        this.inFlightBatches = inFlightBatches;
+        this.batchSize = batchSize;
+        this.idleWaitNanos = TimeUnit.MILLISECONDS.toNanos(idleWaitMillis);
+    }
+
+    void assign(AbstractReporter reporter)
+    {
+        assignedReporters.add(reporter);
+        reporter.getBuffer().setConsumer(thread);
+        // Wake up the dispatcher in case the buffer already has elements
+        Thread currentThread = thread;
+        if(currentThread != null)
+        {
+            LockSupport.unpark(currentThread);
+        }
+    }
+
+    boolean unassign(AbstractReporter reporter)
+    {
+        return assignedReporters.remove(reporter);
+    }
+
+    int getAssignedCount()
+    {
+        return assignedReporters.size();
+    }
+
+    @Override
+    public void run()
+    {
+        thread = Thread.currentThread();
+        for(AbstractReporter reporter : assignedReporters)
+        {
+            reporter.getBuffer().setConsumer(thread);
+        }
+        try
+        {
+            while(true)
+            {
+                boolean dispatchedAny = false;
+                for(AbstractReporter reporter : assignedReporters)
+                {
+                    // Take at most one batch from each reporter per round so that a
+                    // busy reporter does not starve the others assigned to this dispatcher.
+                    dispatchedAny |= dispatch(reporter);
+                }
+                if(!dispatchedAny)
+                {
+                    // Woken up by the buffers on new elements. The timeout bounds the delay
+                    // in noticing reporters marked for removal.
+                    LockSupport.parkNanos(this, idleWaitNanos);
+                }
+            }
+        }
+        catch(InterruptedException exception)
+        {
+            logger.log(Level.WARNING, "Dispatcher interrupted", exception);
+        }
+        catch(Exception exception)
+        {
+            logger.log(Level.SEVERE, "Error in dispatcher thread", exception);
+        }
+    }
+
+    private boolean dispatch(AbstractReporter reporter) throws InterruptedException
+    {
+        Buffer buffer = reporter.getBuffer();
+        // Counted before draining so that the buffer is never seen empty while its
+        // elements are neither in the buffer nor in the commit queue.
+        inFlightBatches.incrementAndGet();
+        List<Object> elements = new ArrayList<>();
+        Object bufferElement = null;
+        while(elements.size() < batchSize && (bufferElement = buffer.getBufferElement()) != null)
+        {
+            elements.add(bufferElement);
+        }
+        boolean drained = bufferElement == null && removeReporters.contains(reporter);
+        if(elements.isEmpty() && !drained)
+        {
+            inFlightBatches.decrementAndGet();
+            return false;
+        }
+        if(drained)
+        {
+            // The main thread removes the reporter from removeReporters after it has
+            // committed this batch, which tells the remove command that it is done.
+            assignedReporters.remove(reporter);
+        }
+        commitQueue.put(new CommitBatch(reporter, elements, drained));
+        return true;
+    }
+}
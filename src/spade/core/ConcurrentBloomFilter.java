@@ -0,0 +1,294 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Bloom filter that can be used by several threads without locks.
+ *
+ * The bits are in a long array updated with compare-and-set. Every element is
+ * hashed once to 128 bits with a non-cryptographic hash: MurmurHash3 x64 128-bit
+ * for bytes, and FNV-1a with the MurmurHash3 finalizer for strings. The k bit
+ * positions are derived from the two halves of the hash with double hashing
+ * (Kirsch and Mitzenmacher). Callers that already have a uniformly distributed
+ * hash, such as the bigHashCode of a vertex or an edge, can pass it directly.
+ *
+ * The filter is saved in a compact binary format: a header followed by the bits
+ * as little-endian longs. The file is memory-mapped to be saved and loaded.
+ *
+ * This is not compatible with BloomFilter, which is still used where the filter
+ * is sent to other hosts.
+ */
+public class ConcurrentBloomFilter
+{
+    private static final int MAGIC = 0x53424631; // "SBF1"
+    private static final int HEADER_SIZE = 32;
+
+    private static final ThreadLocal<MurmurHash3> hashes = new ThreadLocal<MurmurHash3>()
+    {
+        @Override
+        protected MurmurHash3 initialValue()
+        {
+            return new MurmurHash3();
+        }
+    };
+
+    private final long bitCount;
+    private final int hashCount;
+    private final AtomicLongArray bits;
+    // elements that set at least one bit, so an estimate of the distinct elements added
+    private final LongAdder count = new LongAdder();
+
+    /**
+     * @param falsePositiveProbability is the desired false positive probability. Range (0-1)
+     * @param expectedNumberOfElements is the expected number of elements. Must be greater than 0
+     */
+    public ConcurrentBloomFilter(double falsePositiveProbability, long expectedNumberOfElements)
+    {
+        if(falsePositiveProbability <= 0 || falsePositiveProbability >= 1)
+        {
+            throw new IllegalArgumentException("False positive probability must be in the range (0-1): "
+                    + falsePositiveProbability);
+        }
+        if(expectedNumberOfElements < 1)
+        {
+            throw new IllegalArgumentException("Expected number of elements must be greater than 0: "
+                    + expectedNumberOfElements);
+        }
+        double ln2 = Math.log(2);
+        long bits = (long) Math.ceil(-expectedNumberOfElements * Math.log(falsePositiveProbability) / (ln2 * ln2));
+        // rounded up to whole longs, and at most as many longs as an array can hold
+        long words = Math.min((Math.max(64, bits) + 63) / 64, Integer.MAX_VALUE - 8);
+        this.bitCount = words * 64;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedNumberOfElements * ln2));
+        this.bits = new AtomicLongArray((int) words);
+    }
+
+    private ConcurrentBloomFilter(long bitCount, int hashCount, long count, AtomicLongArray bits)
+    {
+        this.bitCount = bitCount;
+        this.hashCount = hashCount;
+        this.bits = bits;
+        this.count.add(count);
+    }
+
+    /**
+     * Adds the element with the given 128-bit hash.
+     *
+     * @return true if a bit changed, i.e. the element was definitely not in the filter before
+     */
+    public boolean add(long hash1, long hash2)
+    {
+        boolean changed = false;
+        long combined = hash1;
+        for(int i = 0; i < hashCount; i++)
+        {
+            long bit = (combined & Long.MAX_VALUE) % bitCount;
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current;
+            while(((current = bits.get(word)) & mask) == 0)
+            {
+                if(bits.compareAndSet(word, current, current | mask))
+                {
+                    changed = true;
+                    break;
+                }
+            }
+            combined += hash2;
+        }
+        if(changed)
+        {
+            count.increment();
+        }
+        return changed;
+    }
+
+    /**
+     * @return false if the element with the given 128-bit hash has definitely not been added
+     */
+    public boolean contains(long hash1, long hash2)
+    {
+        long combined = hash1;
+        for(int i = 0; i < hashCount; i++)
+        {
+            long bit = (combined & Long.MAX_VALUE) % bitCount;
+            if((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+            {
+                return false;
+            }
+            combined += hash2;
+        }
+        return true;
+    }
+
+    /**
+     * Adds the element hashed with MurmurHash3 x64 128-bit (seed 0).
+     */
+    public boolean add(byte[] bytes)
+    {
+        MurmurHash3 hash = murmur3(bytes);
+        return add(hash.getH1(), hash.getH2());
+    }
+
+    public boolean contains(byte[] bytes)
+    {
+        MurmurHash3 hash = murmur3(bytes);
+        return contains(hash.getH1(), hash.getH2());
+    }
+
+    public boolean add(CharSequence string)
+    {
+        long hash = fnv1a(string);
+        return add(MurmurHash3.fmix(hash), MurmurHash3.fmix(hash ^ 0x9e3779b97f4a7c15L));
+    }
+
+    public boolean contains(CharSequence string)
+    {
+        long hash = fnv1a(string);
+        return contains(MurmurHash3.fmix(hash), MurmurHash3.fmix(hash ^ 0x9e3779b97f4a7c15L));
+    }
+
+    /**
+     * @return the number of elements added that were not already in the filter
+     */
+    public long count()
+    {
+        return count.sum();
+    }
+
+    /**
+     * @return the false positive probability estimated from the number of elements added
+     */
+    public double getFalsePositiveProbability()
+    {
+        return Math.pow(1 - Math.exp(-hashCount * (double) count() / bitCount), hashCount);
+    }
+
+    public long getBitCount()
+    {
+        return bitCount;
+    }
+
+    public int getHashCount()
+    {
+        return hashCount;
+    }
+
+    public void clear()
+    {
+        for(int i = 0; i < bits.length(); i++)
+        {
+            bits.set(i, 0);
+        }
+        count.reset();
+    }
+
+    /**
+     * Writes the filter to the file, replacing its content. Adds made at the same time
+     * may or may not be included.
+     */
+    public void save(File file) throws IOException
+    {
+        long size = HEADER_SIZE + 8L * bits.length();
+        try(RandomAccessFile output = new RandomAccessFile(file, "rw"); FileChannel channel = output.getChannel())
+        {
+            output.setLength(0);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC);
+            buffer.putInt(hashCount);
+            buffer.putLong(bitCount);
+            buffer.putLong(count());
+            buffer.putLong(0);
+            LongBuffer words = buffer.asLongBuffer();
+            for(int i = 0; i < bits.length(); i++)
+            {
+                words.put(i, bits.get(i));
+            }
+            buffer.force();
+        }
+    }
+
+    /**
+     * @return the filter saved in the file
+     * @throws IOException if the file cannot be read or was not written by save
+     */
+    public static ConcurrentBloomFilter load(File file) throws IOException
+    {
+        try(RandomAccessFile input = new RandomAccessFile(file, "r"); FileChannel channel = input.getChannel())
+        {
+            long size = channel.size();
+            if(size < HEADER_SIZE)
+            {
+                throw new IOException("Not a Bloom filter file: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if(buffer.getInt() != MAGIC)
+            {
+                throw new IOException("Not a Bloom filter file: " + file);
+            }
+            int hashCount = buffer.getInt();
+            long bitCount = buffer.getLong();
+            long count = buffer.getLong();
+            buffer.getLong();
+            if(hashCount < 1 || bitCount < 64 || bitCount % 64 != 0 || size != HEADER_SIZE + bitCount / 8)
+            {
+                throw new IOException("Corrupt Bloom filter file: " + file);
+            }
+            LongBuffer words = buffer.asLongBuffer();
+            AtomicLongArray bits = new AtomicLongArray((int) (bitCount / 64));
+            for(int i = 0; i < bits.length(); i++)
+            {
+                bits.set(i, words.get(i));
+            }
+            return new ConcurrentBloomFilter(bitCount, hashCount, count, bits);
+        }
+    }
+
+    private static long fnv1a(CharSequence string)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for(int i = 0; i < string.length(); i++)
+        {
+            hash ^= string.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static MurmurHash3 murmur3(byte[] bytes)
+    {
+        MurmurHash3 hash = hashes.get();
+        hash.update(bytes, 0, bytes.length);
+        hash.finish();
+        return hash;
+    }
+}
@@ -19,7 +19,6 @@
  */
 package spade.core;
 
-import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
@@ -51,10 +50,12 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -75,31 +76,35 @@ public class Graph extends AbstractStorage implements Serializable
 	
     private static final Logger logger = Logger.getLogger(Graph.class.getName());
     private static final int MAX_QUERY_HITS = 1000;
-    private static final String SRC_VERTEX_ID = "SRC_VERTEX_ID";
-    private static final String DST_VERTEX_ID = "DST_VERTEX_ID";
 
     private static final Pattern nodePattern = Pattern.compile("\"(.*)\" \\[label=\"(.*)\" shape=\"(\\w*)\" fillcolor=\"(\\w*)\"", Pattern.DOTALL);
     private static final Pattern edgePattern = Pattern.compile("\"(.*)\" -> \"(.*)\" \\[label=\"(.*)\" color=\"(\\w*)\"", Pattern.DOTALL);
 
-    private transient Analyzer analyzer = new KeywordAnalyzer();
-    private transient QueryParser queryParser = new QueryParser(null, analyzer);
     private Set<AbstractVertex> vertexSet = new LinkedHashSet<>();
     private Map<String, AbstractVertex> vertexIdentifiers = new HashMap<>();
     private Map<AbstractVertex, String> reverseVertexIdentifiers = new HashMap<>();
     private Set<AbstractEdge> edgeSet = new LinkedHashSet<>();
     private Map<String, AbstractEdge> edgeIdentifiers = new HashMap<>();
     private Map<AbstractEdge, String> reverseEdgeIdentifiers = new HashMap<>();
+    /**
+     * Adjacency indexes over edgeIdentifiers. parent hash -> child hash -> edge and
+     * child hash -> parent hash -> edge. Rebuilt on demand after deserialization.
+     */
+    private transient Map<String, Map<String, AbstractEdge>> childrenIndex = new HashMap<>();
+    private transient Map<String, Map<String, AbstractEdge>> parentsIndex = new HashMap<>();
     private Map<AbstractVertex, Integer> networkMap = new HashMap<>();
-    private int serial_number = 1;
     /**
      * For query results spanning multiple hosts, this is used to indicate
      * whether the network boundaries have been properly transformed.
      */
     public boolean transformed = false;
-    private Directory vertexIndex;
-    private Directory edgeIndex;
-    private transient IndexWriter vertexIndexWriter;
-    private transient IndexWriter edgeIndexWriter;
+    /**
+     * Lucene index over the vertices. Only built, in one pass over vertexSet, when
+     * listVertices is called and rebuilt there if the vertices have changed since.
+     */
+    private transient Directory vertexIndex;
+    private transient int indexedVertexCount;
+    private transient boolean vertexIndexStale;
 
     /**
      * Fields for discrepancy check and query params
@@ -125,16 +130,6 @@ public class Graph extends AbstractStorage implements Serializable
      * An empty constructor.
      */
     public Graph() {
-        // Lucene initialization
-        try {
-            vertexIndex = new RAMDirectory();
-            edgeIndex = new RAMDirectory();
-            vertexIndexWriter = new IndexWriter(vertexIndex, new IndexWriterConfig(analyzer));
-            edgeIndexWriter = new IndexWriter(edgeIndex, new IndexWriterConfig(analyzer));
-            queryParser.setAllowLeadingWildcard(true);
-        } catch (Exception exception) {
-            logger.log(Level.SEVERE, null, exception);
-        }
     }
 
     public String getHash(AbstractVertex vertex)
@@ -173,25 +168,13 @@ public class Graph extends AbstractStorage implements Serializable
         {
             return false;
         }
-        // Add vertex to Lucene index
         try
         {
-            Document doc = new Document();
-            for (Map.Entry<String, String> currentEntry : incomingVertex.getAnnotations().entrySet())
-            {
-                String key = currentEntry.getKey();
-                String value = currentEntry.getValue();
-                doc.add(new Field(key, value, Field.Store.YES, Field.Index.ANALYZED));
-            }
-            doc.add(new Field(PRIMARY_KEY, Integer.toString(serial_number), Field.Store.YES, Field.Index.ANALYZED));
-            // vertexIndexWriter.addDocument(doc);
-            // vertexIndexWriter.commit();
-
             String hashCode = incomingVertex.bigHashCode();
             vertexIdentifiers.put(hashCode, incomingVertex);
             reverseVertexIdentifiers.put(incomingVertex, hashCode);
             vertexSet.add(incomingVertex);
-            serial_number++;
+            vertexIndexStale = true;
         }
         catch (Exception exception)
         {
@@ -220,27 +203,18 @@ public class Graph extends AbstractStorage implements Serializable
         {
             return false;
         }
-        // Add edge to Lucene index
         try
         {
-            Document doc = new Document();
-            for (Map.Entry<String, String> currentEntry : incomingEdge.getAnnotations().entrySet())
-            {
-                String key = currentEntry.getKey();
-                String value = currentEntry.getValue();
-                doc.add(new Field(key, value, Field.Store.YES, Field.Index.ANALYZED));
-            }
-            doc.add(new Field(PRIMARY_KEY, Integer.toString(serial_number), Field.Store.YES, Field.Index.ANALYZED));
-            doc.add(new Field(SRC_VERTEX_ID, reverseVertexIdentifiers.get(incomingEdge.getChildVertex()), Field.Store.YES, Field.Index.ANALYZED));
-            doc.add(new Field(DST_VERTEX_ID, reverseVertexIdentifiers.get(incomingEdge.getParentVertex()), Field.Store.YES, Field.Index.ANALYZED));
-//            edgeIndexWriter.addDocument(doc);
-//            edgeIndexWriter.commit();
-
-            String hashCode = incomingEdge.getChildVertex().bigHashCode() + incomingEdge.getParentVertex().bigHashCode();
+            String childHash = incomingEdge.getChildVertex().bigHashCode();
+            String parentHash = incomingEdge.getParentVertex().bigHashCode();
+            String hashCode = childHash + parentHash;
             edgeIdentifiers.put(hashCode, incomingEdge);
             reverseEdgeIdentifiers.put(incomingEdge, hashCode);
+            if(childrenIndex != null)
+            {
+                indexEdge(childHash, parentHash, incomingEdge);
+            }
             edgeSet.add(incomingEdge);
-            serial_number++;
         }
         catch (Exception exception)
         {
@@ -249,13 +223,127 @@ public class Graph extends AbstractStorage implements Serializable
         return true;
     }
 
+    private void indexEdge(String childHash, String parentHash, AbstractEdge edge)
+    {
+        Map<String, AbstractEdge> children = childrenIndex.get(parentHash);
+        if(children == null)
+        {
+            children = new LinkedHashMap<>();
+            childrenIndex.put(parentHash, children);
+        }
+        children.put(childHash, edge);
+        Map<String, AbstractEdge> parents = parentsIndex.get(childHash);
+        if(parents == null)
+        {
+            parents = new LinkedHashMap<>();
+            parentsIndex.put(childHash, parents);
+        }
+        parents.put(parentHash, edge);
+    }
+
+    private void unindexEdge(String childHash, String parentHash)
+    {
+        Map<String, AbstractEdge> children = childrenIndex.get(parentHash);
+        if(children != null)
+        {
+            children.remove(childHash);
+            if(children.isEmpty())
+            {
+                childrenIndex.remove(parentHash);
+            }
+        }
+        Map<String, AbstractEdge> parents = parentsIndex.get(childHash);
+        if(parents != null)
+        {
+            parents.remove(parentHash);
+            if(parents.isEmpty())
+            {
+                parentsIndex.remove(childHash);
+            }
+        }
+    }
+
+    /**
+     * Builds the adjacency indexes if they are missing, i.e. after deserialization.
+     */
+    private void ensureAdjacencyIndexes()
+    {
+        if(childrenIndex != null)
+        {
+            return;
+        }
+        childrenIndex = new HashMap<>();
+        parentsIndex = new HashMap<>();
+        for(AbstractEdge edge : edgeIdentifiers.values())
+        {
+            indexEdge(edge.getChildVertex().bigHashCode(), edge.getParentVertex().bigHashCode(), edge);
+        }
+    }
+
+    /**
+     * Returns the edges whose parent vertex has the given hash, keyed by the child
+     * vertex hash.
+     *
+     * @param parentVertexHash hash of the parent vertex
+     * @return Edges to the children of the vertex. Empty if none.
+     */
+    public Map<String, AbstractEdge> getChildEdges(String parentVertexHash)
+    {
+        ensureAdjacencyIndexes();
+        Map<String, AbstractEdge> children = childrenIndex.get(parentVertexHash);
+        return children == null ? Collections.<String, AbstractEdge>emptyMap() : Collections.unmodifiableMap(children);
+    }
+
+    /**
+     * Returns the edges whose child vertex has the given hash, keyed by the parent
+     * vertex hash.
+     *
+     * @param childVertexHash hash of the child vertex
+     * @return Edges to the parents of the vertex. Empty if none.
+     */
+    public Map<String, AbstractEdge> getParentEdges(String childVertexHash)
+    {
+        ensureAdjacencyIndexes();
+        Map<String, AbstractEdge> parents = parentsIndex.get(childVertexHash);
+        return parents == null ? Collections.<String, AbstractEdge>emptyMap() : Collections.unmodifiableMap(parents);
+    }
+
+    /**
+     * Kept for compatibility. The Lucene index is built on demand by listVertices.
+     */
     public void commitIndex() {
-        try {
-            vertexIndexWriter.commit();
-            edgeIndexWriter.commit();
-        } catch (Exception exception) {
-            logger.log(Level.SEVERE, null, exception);
+    }
+
+    /**
+     * Builds the Lucene index over the vertices in one pass. The primary key of a
+     * vertex is its 1-based position in vertexSet.
+     */
+    private void buildVertexIndex() throws IOException
+    {
+        Directory index = new RAMDirectory();
+        IndexWriter indexWriter = new IndexWriter(index, new IndexWriterConfig(new KeywordAnalyzer()));
+        try
+        {
+            int primaryKey = 1;
+            for (AbstractVertex vertex : vertexSet)
+            {
+                Document doc = new Document();
+                for (Map.Entry<String, String> currentEntry : vertex.getAnnotations().entrySet())
+                {
+                    doc.add(new Field(currentEntry.getKey(), currentEntry.getValue(), Field.Store.YES, Field.Index.ANALYZED));
+                }
+                doc.add(new Field(PRIMARY_KEY, Integer.toString(primaryKey++), Field.Store.YES, Field.Index.ANALYZED));
+                indexWriter.addDocument(doc);
+            }
+            indexWriter.commit();
         }
+        finally
+        {
+            indexWriter.close();
+        }
+        vertexIndex = index;
+        indexedVertexCount = vertexSet.size();
+        vertexIndexStale = false;
     }
 
     /**
@@ -447,8 +535,27 @@ public class Graph extends AbstractStorage implements Serializable
 
     public void remove(Graph graph)
     {
+        vertexIndexStale = true;
         vertexSet.removeAll(graph.vertexSet());
         edgeSet.removeAll(graph.edgeSet());
+        ensureAdjacencyIndexes();
+        for(AbstractEdge edge : graph.edgeSet())
+        {
+            String hashCode = reverseEdgeIdentifiers.remove(edge);
+            if(hashCode != null)
+            {
+                edgeIdentifiers.remove(hashCode);
+                unindexEdge(edge.getChildVertex().bigHashCode(), edge.getParentVertex().bigHashCode());
+            }
+        }
+        for(AbstractVertex vertex : graph.vertexSet())
+        {
+            String hashCode = reverseVertexIdentifiers.remove(vertex);
+            if(hashCode != null)
+            {
+                vertexIdentifiers.remove(hashCode);
+            }
+        }
     }
 
     public static Graph importGraph(String path) {
@@ -717,6 +824,12 @@ public class Graph extends AbstractStorage implements Serializable
     public List<Integer> listVertices(String expression) {
         try {
             List<Integer> results = new ArrayList<>();
+            // vertexSet can also be changed directly so its size is checked as well
+            if (vertexIndex == null || vertexIndexStale || indexedVertexCount != vertexSet.size()) {
+                buildVertexIndex();
+            }
+            QueryParser queryParser = new QueryParser(null, new KeywordAnalyzer());
+            queryParser.setAllowLeadingWildcard(true);
             IndexReader reader = DirectoryReader.open(vertexIndex);
             IndexSearcher searcher = new IndexSearcher(reader);
             ScoreDoc[] hits = searcher.search(queryParser.parse(expression), MAX_QUERY_HITS).scoreDocs;
@@ -781,16 +894,11 @@ public class Graph extends AbstractStorage implements Serializable
     public Graph getChildren(String parentVertexHash)
     {
         Graph result = new Graph();
-        for(Map.Entry<String, AbstractEdge> entry: edgeIdentifiers.entrySet())
+        for(AbstractEdge edge : getChildEdges(parentVertexHash).values())
         {
-            AbstractEdge edge = entry.getValue();
-            AbstractVertex parentVertex = edge.getParentVertex();
-            if(parentVertex.bigHashCode().equals(parentVertexHash))
-            {
-                result.putVertex(parentVertex);
-                result.putVertex(edge.getChildVertex());
-                result.putEdge(edge);
-            }
+            result.putVertex(edge.getParentVertex());
+            result.putVertex(edge.getChildVertex());
+            result.putEdge(edge);
         }
 
         return result;
@@ -808,16 +916,11 @@ public class Graph extends AbstractStorage implements Serializable
     public Graph getParents(String childVertexHash)
     {
         Graph result = new Graph();
-        for(Map.Entry<String, AbstractEdge> entry: edgeIdentifiers.entrySet())
+        for(AbstractEdge edge : getParentEdges(childVertexHash).values())
         {
-            AbstractEdge edge = entry.getValue();
-            AbstractVertex childVertex = edge.getChildVertex();
-            if(childVertex.bigHashCode().equals(childVertexHash))
-            {
-                result.putVertex(childVertex);
-                result.putVertex(edge.getParentVertex());
-                result.putEdge(edge);
-            }
+            result.putVertex(edge.getChildVertex());
+            result.putVertex(edge.getParentVertex());
+            result.putEdge(edge);
         }
 
         return result;
@@ -828,46 +931,42 @@ public class Graph extends AbstractStorage implements Serializable
     {
         Graph result = new Graph();
         int current_depth = 0;
-        Set<String> remainingVertices = new HashSet<>();
         AbstractVertex startingVertex = getVertex(hash);
-        remainingVertices.add(startingVertex.bigHashCode());
         startingVertex.setDepth(0);
         result.setRootVertex(startingVertex);
         result.setMaxDepth(maxDepth);
-        Set<String> visitedVertices = new HashSet<>();
+        boolean ancestors = DIRECTION_ANCESTORS.startsWith(direction.toLowerCase());
+        boolean descendants = !ancestors && DIRECTION_DESCENDANTS.startsWith(direction.toLowerCase());
+        if(!ancestors && !descendants)
+        {
+            result.setComputeTime(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z").format(new Date()));
+            return result;
+        }
+        result.putVertex(startingVertex);
+        // Walks the adjacency indexes one level at a time
+        List<String> remainingVertices = new ArrayList<>();
+        remainingVertices.add(startingVertex.bigHashCode());
+        Set<String> visitedVertices = new HashSet<>(remainingVertices);
         while(!remainingVertices.isEmpty() && current_depth < maxDepth)
         {
-            visitedVertices.addAll(remainingVertices);
-            Set<String> currentSet = new HashSet<>();
+            List<String> currentSet = new ArrayList<>();
             for(String vertexHash: remainingVertices)
             {
-                Graph neighbors = null;
-                if(DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()))
-                {
-                    neighbors = getParents(vertexHash);
-                }
-                else if(DIRECTION_DESCENDANTS.startsWith(direction.toLowerCase()))
+                Map<String, AbstractEdge> neighbors = ancestors ? getParentEdges(vertexHash) : getChildEdges(vertexHash);
+                for(Map.Entry<String, AbstractEdge> neighbor : neighbors.entrySet())
                 {
-                    neighbors = getChildren(vertexHash);
-                }
-                if(neighbors != null)
-                {
-                	for(AbstractVertex V: neighbors.vertexSet())
-                		V.setDepth(current_depth+1);
-                    result.vertexSet().addAll(neighbors.vertexSet());
-                    result.edgeSet().addAll(neighbors.edgeSet());
-                    for(AbstractVertex vertex: neighbors.vertexSet())
+                    AbstractEdge edge = neighbor.getValue();
+                    AbstractVertex vertex = ancestors ? edge.getParentVertex() : edge.getChildVertex();
+                    if(visitedVertices.add(neighbor.getKey()))
                     {
-                        String hashCode = vertex.bigHashCode();
-                        if(!visitedVertices.contains(hashCode))
-                        {
-                            currentSet.add(hashCode);
-                        }
+                        vertex.setDepth(current_depth + 1);
+                        result.putVertex(vertex);
+                        currentSet.add(neighbor.getKey());
                     }
+                    result.putEdge(edge);
                 }
             }
-            remainingVertices.clear();
-            remainingVertices.addAll(currentSet);
+            remainingVertices = currentSet;
             current_depth++;
         }
         result.setComputeTime(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z").format(new Date()));
@@ -0,0 +1,338 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Computes the 128-bit identity hash (bigHashCode) of vertices and edges.
+ *
+ * The annotations are streamed into the hash function without building the
+ * string representation of the element. The algorithm is selected with the
+ * 'hash_algorithm' key in the Kernel config:
+ *
+ * md5     - Digest of the toString() representation of the element. Same as the
+ *           hashes stored in existing databases.
+ * murmur3 - MurmurHash3 x64 128-bit. Much faster but not compatible with
+ *           databases populated using md5. Edge hashes are computed over the
+ *           edge annotations and the hashes of the end points.
+ *
+ * @author Dawood Tariq and Raza Ahmad
+ */
+public final class IdentityHash
+{
+    private static final Logger logger = Logger.getLogger(IdentityHash.class.getName());
+
+    public enum Algorithm
+    {
+        MD5, MURMUR3
+    }
+
+    public static final int HASH_LENGTH = 16;
+
+    private static final Algorithm algorithm = loadAlgorithm();
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final byte[] NULL_END_POINT = new byte[HASH_LENGTH];
+
+    private static final ThreadLocal<StreamingHash> hashes = new ThreadLocal<StreamingHash>()
+    {
+        @Override
+        protected StreamingHash initialValue()
+        {
+            return algorithm == Algorithm.MURMUR3 ? new Murmur3Hash() : new MD5Hash();
+        }
+    };
+
+    private IdentityHash()
+    {
+    }
+
+    private static Algorithm loadAlgorithm()
+    {
+        String value = Settings.getProperty("hash_algorithm");
+        if(value == null || value.trim().isEmpty())
+        {
+            return Algorithm.MD5;
+        }
+        try
+        {
+            return Algorithm.valueOf(value.trim().toUpperCase());
+        }
+        catch(IllegalArgumentException exception)
+        {
+            logger.log(Level.WARNING, "Invalid hash_algorithm '" + value + "'. Using md5");
+            return Algorithm.MD5;
+        }
+    }
+
+    public static Algorithm getAlgorithm()
+    {
+        return algorithm;
+    }
+
+    /**
+     * Computes the identity hash of the vertex.
+     *
+     * @param vertex The vertex to hash.
+     * @return 16 element byte array of the hash.
+     */
+    public static byte[] hash(AbstractVertex vertex)
+    {
+        StreamingHash hash = hashes.get();
+        hash.reset();
+        putVertex(hash, vertex);
+        return hash.digest();
+    }
+
+    /**
+     * Computes the identity hash of the edge.
+     *
+     * @param edge The edge to hash.
+     * @return 16 element byte array of the hash.
+     */
+    public static byte[] hash(AbstractEdge edge)
+    {
+        AbstractVertex childVertex = edge.getChildVertex();
+        AbstractVertex parentVertex = edge.getParentVertex();
+        if(algorithm == Algorithm.MURMUR3)
+        {
+            // End point hashes are computed first since they use the same thread-local hash
+            byte[] childHash = childVertex == null ? NULL_END_POINT : childVertex.getCachedBigHash();
+            byte[] parentHash = parentVertex == null ? NULL_END_POINT : parentVertex.getCachedBigHash();
+            StreamingHash hash = hashes.get();
+            hash.reset();
+            hash.update("AbstractEdge{annotations=");
+            putAnnotations(hash, edge.getAnnotations());
+            hash.update("}");
+            hash.update(childHash, 0, childHash.length);
+            hash.update(parentHash, 0, parentHash.length);
+            return hash.digest();
+        }
+        else
+        {
+            // Same bytes as AbstractEdge.toString()
+            StreamingHash hash = hashes.get();
+            hash.reset();
+            hash.update("AbstractEdge{annotations=");
+            putAnnotations(hash, edge.getAnnotations());
+            hash.update(", childVertex=");
+            putVertex(hash, childVertex);
+            hash.update(", parentVertex=");
+            putVertex(hash, parentVertex);
+            hash.update("}");
+            return hash.digest();
+        }
+    }
+
+    public static String toHex(byte[] bytes)
+    {
+        char[] chars = new char[bytes.length * 2];
+        for(int i = 0; i < bytes.length; i++)
+        {
+            chars[2 * i] = HEX_DIGITS[(bytes[i] >>> 4) & 0x0f];
+            chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+
+    // Same bytes as AbstractVertex.toString()
+    private static void putVertex(StreamingHash hash, AbstractVertex vertex)
+    {
+        if(vertex == null)
+        {
+            hash.update("null");
+            return;
+        }
+        hash.update("AbstractVertex{annotations=");
+        putAnnotations(hash, vertex.getAnnotations());
+        hash.update("}");
+    }
+
+    // Same bytes as AbstractMap.toString()
+    private static void putAnnotations(StreamingHash hash, Map<String, String> annotations)
+    {
+        if(annotations == null)
+        {
+            hash.update("null");
+            return;
+        }
+        hash.update("{");
+        boolean first = true;
+        for(Map.Entry<String, String> entry : annotations.entrySet())
+        {
+            if(!first)
+            {
+                hash.update(", ");
+            }
+            first = false;
+            hash.update(String.valueOf(entry.getKey()));
+            hash.update("=");
+            hash.update(String.valueOf(entry.getValue()));
+        }
+        hash.update("}");
+    }
+
+    /**
+     * A hash function that is fed incrementally. Strings are encoded in UTF-8
+     * into a scratch buffer, which gives the same bytes as String.getBytes(UTF-8).
+     */
+    abstract static class StreamingHash
+    {
+        private final byte[] scratch = new byte[1024];
+
+        abstract void reset();
+
+        abstract void update(byte[] bytes, int offset, int length);
+
+        abstract byte[] digest();
+
+        final void update(String string)
+        {
+            int position = 0;
+            int length = string.length();
+            for(int i = 0; i < length; i++)
+            {
+                if(position > scratch.length - 4)
+                {
+                    update(scratch, 0, position);
+                    position = 0;
+                }
+                char c = string.charAt(i);
+                if(c < 0x80)
+                {
+                    scratch[position++] = (byte) c;
+                }
+                else if(c < 0x800)
+                {
+                    scratch[position++] = (byte) (0xc0 | (c >> 6));
+                    scratch[position++] = (byte) (0x80 | (c & 0x3f));
+                }
+                else if(Character.isSurrogate(c))
+                {
+                    char next = i + 1 < length ? string.charAt(i + 1) : 0;
+                    if(Character.isHighSurrogate(c) && Character.isLowSurrogate(next))
+                    {
+                        int codePoint = Character.toCodePoint(c, next);
+                        i++;
+                        scratch[position++] = (byte) (0xf0 | (codePoint >> 18));
+                        scratch[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                        scratch[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                        scratch[position++] = (byte) (0x80 | (codePoint & 0x3f));
+                    }
+                    else
+                    {
+                        // Malformed surrogates are replaced like String.getBytes does
+                        scratch[position++] = (byte) '?';
+                    }
+                }
+                else
+                {
+                    scratch[position++] = (byte) (0xe0 | (c >> 12));
+                    scratch[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    scratch[position++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            if(position > 0)
+            {
+                update(scratch, 0, position);
+            }
+        }
+    }
+
+    static final class MD5Hash extends StreamingHash
+    {
+        private final MessageDigest digest;
+
+        MD5Hash()
+        {
+            try
+            {
+                digest = MessageDigest.getInstance("MD5");
+            }
+            catch(NoSuchAlgorithmException exception)
+            {
+                throw new IllegalStateException(exception);
+            }
+        }
+
+        @Override
+        void reset()
+        {
+            digest.reset();
+        }
+
+        @Override
+        void update(byte[] bytes, int offset, int length)
+        {
+            digest.update(bytes, offset, length);
+        }
+
+        @Override
+        byte[] digest()
+        {
+            return digest.digest();
+        }
+    }
+
+    /**
+     * MurmurHash3 x64 128-bit with seed 0. The output is h1 followed by h2, both
+     * little-endian.
+     */
+    static final class Murmur3Hash extends StreamingHash
+    {
+        private final MurmurHash3 hash = new MurmurHash3();
+
+        @Override
+        void reset()
+        {
+            hash.reset();
+        }
+
+        @Override
+        void update(byte[] bytes, int offset, int length)
+        {
+            hash.update(bytes, offset, length);
+        }
+
+        @Override
+        byte[] digest()
+        {
+            hash.finish();
+            byte[] result = new byte[HASH_LENGTH];
+            putLong(result, 0, hash.getH1());
+            putLong(result, 8, hash.getH2());
+            return result;
+        }
+
+        private static void putLong(byte[] bytes, int offset, long value)
+        {
+            for(int i = 0; i < 8; i++)
+            {
+                bytes[offset + i] = (byte) (value >>> (8 * i));
+            }
+        }
+    }
+}
@@ -38,6 +38,7 @@ import java.nio.file.Paths;
 import java.security.KeyStore;
 import java.security.SecureRandom;
 import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -47,6 +48,11 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.FileHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -61,6 +67,7 @@ import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 
 import spade.filter.FinalCommitFilter;
+import spade.utility.CommonFunctions;
 import spade.utility.LogManager;
 
 /**
@@ -186,8 +193,44 @@ public class Kernel
     private static Set<AbstractStorage> removeStorages;
     private static Set<AbstractAnalyzer> removeAnalyzers;
 
-    private static final int BATCH_BUFFER_ELEMENTS = 1000000;
+    /**
+     * Members of the event pipeline. The dispatchers drain the reporter buffers
+     * into the commit queue which is consumed by the main thread.
+     */
+    private static List<BufferDispatcher> dispatchers;
+    private static BlockingQueue<BufferDispatcher.CommitBatch> commitQueue;
+    private static AtomicInteger inFlightBatches;
+
+    private static final int DISPATCHER_THREAD_COUNT =
+            CommonFunctions.parseInt(Settings.getProperty("dispatcher_thread_count"), 1);
+    private static final int BATCH_BUFFER_ELEMENTS =
+            CommonFunctions.parseInt(Settings.getProperty("dispatcher_batch_size"), 10000);
+    private static final int COMMIT_QUEUE_CAPACITY =
+            CommonFunctions.parseInt(Settings.getProperty("commit_queue_capacity"), 64);
     private static final int MAIN_THREAD_SLEEP_DELAY = 10;
+
+    /**
+     * Settings for the reporter buffers. A capacity of 0 means unbounded.
+     */
+    private static final int BUFFER_CAPACITY =
+            CommonFunctions.parseInt(Settings.getProperty("buffer_capacity"), 0);
+    private static final String BUFFER_OVERFLOW_POLICY = Settings.getProperty("buffer_overflow_policy");
+    private static final String BUFFER_SPILL_DIRECTORY = Settings.getProperty("buffer_spill_directory");
+
+    /**
+     * Settings for the storage writers. When enabled, every storage gets its own
+     * queue and thread so that a slow storage does not hold up the others.
+     */
+    private static final boolean STORAGE_WRITERS =
+            Boolean.parseBoolean(Settings.getProperty("storage_writers"));
+    private static final int STORAGE_QUEUE_CAPACITY =
+            CommonFunctions.parseInt(Settings.getProperty("storage_queue_capacity"), 100000);
+    private static final String STORAGE_OVERFLOW_POLICY = Settings.getProperty("storage_overflow_policy");
+    private static final String STORAGE_SPILL_DIRECTORY = Settings.getProperty("storage_spill_directory");
+    /**
+     * Writers of the storages that have their own queue and thread.
+     */
+    private static Map<AbstractStorage, StorageWriter> storageWriters;
     private static final int REMOVE_WAIT_DELAY = 100;
     private static final int FIRST_FILTER = 0;
     private static final Logger logger = Logger.getLogger(Kernel.class.getName());
@@ -334,6 +377,7 @@ public class Kernel
         reporters = Collections.synchronizedSet(new HashSet<AbstractReporter>());
         analyzers = Collections.synchronizedSet(new HashSet<AbstractAnalyzer>());
         storages = Collections.synchronizedSet(new HashSet<AbstractStorage>());
+        storageWriters = new ConcurrentHashMap<>();
         transformers = Collections.synchronizedList(new LinkedList<AbstractTransformer>());
         filters = Collections.synchronizedList(new LinkedList<AbstractFilter>());
         sketches = Collections.synchronizedSet(new HashSet<AbstractSketch>());
@@ -344,6 +388,15 @@ public class Kernel
         removeStorages = Collections.synchronizedSet(new HashSet<AbstractStorage>());
         removeAnalyzers = Collections.synchronizedSet(new HashSet<AbstractAnalyzer>());
 
+        commitQueue = new ArrayBlockingQueue<>(Math.max(1, COMMIT_QUEUE_CAPACITY));
+        inFlightBatches = new AtomicInteger(0);
+        dispatchers = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, DISPATCHER_THREAD_COUNT); i++)
+        {
+            dispatchers.add(new BufferDispatcher(removeReporters, commitQueue, inFlightBatches,
+                    Math.max(1, BATCH_BUFFER_ELEMENTS), MAIN_THREAD_SLEEP_DELAY));
+        }
+
         shutdown = false;
         flushTransactions = true;
 
@@ -354,6 +407,7 @@ public class Kernel
         FinalCommitFilter commitFilter = new FinalCommitFilter();
         commitFilter.storages = storages;
         commitFilter.sketches = sketches;
+        commitFilter.storageWriters = storageWriters;
         filters.add(commitFilter);
 
         // The final transformer is used to send vertex and edge objects to
@@ -363,12 +417,14 @@ public class Kernel
     }
 
     /**
-     * Initialize the main thread. This thread performs critical
-     * provenance-related work inside SPADE.
-     * It extracts provenance objects (vertices, edges) from the
-     * buffers, adds the source_reporter annotation to each object which is
-     * class name of the reporter, and then sends these objects to the filter list.
-     * This thread is also used for cleanly removing reporters and storages
+     * Initialize the main thread and the dispatcher threads. These threads
+     * perform critical provenance-related work inside SPADE.
+     * The dispatcher threads extract provenance objects (vertices, edges) from the
+     * buffers of the reporters assigned to them and hand them over in batches to
+     * the main thread through a bounded queue. The main thread sends these objects
+     * to the filter list. Since only the main thread calls the filters and the storages,
+     * storages that are sensitive to thread-context keep working as before.
+     * The main thread is also used for cleanly removing reporters and storages
      * through the control commands and also when shutting down. This is done by
      * ensuring that once a reporter is marked for removal, the provenance objects from
      * its buffer are completely flushed.
@@ -390,9 +446,18 @@ public class Kernel
                             // there are no errors/problems when using storages that are sensitive to
                             // thread-context for their transactions.
                             // For example, this is true for the embedded neo4j graph database.
+                            // Storages with a writer are flushed by their writer thread.
                             for (AbstractStorage currentStorage : storages)
                             {
-                                currentStorage.flushTransactions();
+                                StorageWriter writer = storageWriters.get(currentStorage);
+                                if (writer != null)
+                                {
+                                    writer.flushTransactions();
+                                }
+                                else
+                                {
+                                    currentStorage.flushTransactions();
+                                }
                             }
                             flushTransactions = false;
                         }
@@ -405,7 +470,7 @@ public class Kernel
                             while(iterator.hasNext())
                             {
                                 AbstractStorage currentStorage = iterator.next();
-                                currentStorage.shutdown();
+                                shutdownStorage(currentStorage);
                                 iterator.remove();
                             }
                         }
@@ -422,37 +487,27 @@ public class Kernel
                             }
                         }
 
-                        for (AbstractReporter reporter : reporters)
+                        // This performs the actual task of committing provenance data to
+                        // the storages. The batches are taken in the order in which the dispatchers
+                        // added them and the elements are passed to the filter list.
+                        // The timeout bounds the delay in handling the housekeeping above.
+                        BufferDispatcher.CommitBatch batch = commitQueue.poll(MAIN_THREAD_SLEEP_DELAY, TimeUnit.MILLISECONDS);
+                        if (batch == null)
+                        {
+                            continue;
+                        }
+                        try
                         {
-                            // This loop performs the actual task of committing provenance data to
-                            // the storages. Each reporter is selected and the nested loop is used to
-                            // extract buffer elements in a batch manner for increased efficiency.
-                            // The elements are then passed to the filter list.
-                            Buffer buffer = reporter.getBuffer();
-                            for (int i = 0; i < BATCH_BUFFER_ELEMENTS; i++)
+                            commitBatch(batch.elements);
+                            if (batch.drained)
                             {
-                                Object bufferElement = buffer.getBufferElement();
-                                if (bufferElement instanceof AbstractVertex)
-                                {
-                                    AbstractVertex tempVertex = (AbstractVertex) bufferElement;
-                                    filters.get(FIRST_FILTER).putVertex(tempVertex);
-                                }
-                                else if (bufferElement instanceof AbstractEdge)
-                                {
-                                    AbstractEdge tempEdge = (AbstractEdge) bufferElement;
-                                    filters.get(FIRST_FILTER).putEdge(tempEdge);
-                                }
-                                else if (bufferElement == null)
-                                {
-                                    if (removeReporters.contains(reporter))
-                                    {
-                                        removeReporters.remove(reporter);
-                                    }
-                                    break;
-                                }
+                                removeReporters.remove(batch.reporter);
                             }
                         }
-                        Thread.sleep(MAIN_THREAD_SLEEP_DELAY);
+                        finally
+                        {
+                            inFlightBatches.decrementAndGet();
+                        }
                     }
                 }
                 catch (Exception exception)
@@ -463,6 +518,154 @@ public class Kernel
         };
         Thread mainThread = new Thread(mainRunnable, "mainSPADE-Thread");
         mainThread.start();
+
+        for (int i = 0; i < dispatchers.size(); i++)
+        {
+            Thread dispatcherThread = new Thread(dispatchers.get(i), "dispatcherSPADE-Thread-" + i);
+            dispatcherThread.start();
+        }
+    }
+
+    /**
+     * Passes the elements to the filter list. Consecutive vertices and consecutive
+     * edges are passed as batches so that the filters and storages can process
+     * them at once, while the order of the elements is preserved.
+     *
+     * @param elements The vertices and edges to pass in order.
+     */
+    private static void commitBatch(List<Object> elements)
+    {
+        List<AbstractVertex> vertices = new ArrayList<>();
+        List<AbstractEdge> edges = new ArrayList<>();
+        for (Object bufferElement : elements)
+        {
+            if (bufferElement instanceof AbstractVertex)
+            {
+                if (!edges.isEmpty())
+                {
+                    filters.get(FIRST_FILTER).putEdges(edges);
+                    edges = new ArrayList<>();
+                }
+                vertices.add((AbstractVertex) bufferElement);
+            }
+            else if (bufferElement instanceof AbstractEdge)
+            {
+                if (!vertices.isEmpty())
+                {
+                    filters.get(FIRST_FILTER).putVertices(vertices);
+                    vertices = new ArrayList<>();
+                }
+                edges.add((AbstractEdge) bufferElement);
+            }
+        }
+        if (!vertices.isEmpty())
+        {
+            filters.get(FIRST_FILTER).putVertices(vertices);
+        }
+        if (!edges.isEmpty())
+        {
+            filters.get(FIRST_FILTER).putEdges(edges);
+        }
+    }
+
+    /**
+     * Shuts down the storage. If the storage has a writer then the queued elements
+     * are written before the storage is shut down by the writer thread.
+     *
+     * @param storage The storage to shut down.
+     */
+    private static void shutdownStorage(AbstractStorage storage)
+    {
+        // The writer stays in the map until the storage is removed from the storages
+        // set so that the FinalCommitFilter does not call the storage directly.
+        StorageWriter writer = storageWriters.get(storage);
+        if (writer != null)
+        {
+            writer.shutdown();
+            logger.log(Level.INFO, "Writer of storage {0} stopped [queue: {1}]",
+                    new Object[]{storage.getClass().getSimpleName(), writer.getStats()});
+        }
+        else
+        {
+            storage.shutdown();
+        }
+    }
+
+    /**
+     * Creates and starts the writer of a storage as specified in the Kernel settings.
+     *
+     * @param storage The storage to create the writer for.
+     */
+    private static void startStorageWriter(AbstractStorage storage)
+    {
+        Buffer.OverflowPolicy overflowPolicy = parseOverflowPolicy(STORAGE_OVERFLOW_POLICY, "storage_overflow_policy");
+        String spillDirectory = STORAGE_SPILL_DIRECTORY == null ? null : SPADE_ROOT + STORAGE_SPILL_DIRECTORY.trim();
+        Buffer queue = new Buffer(STORAGE_QUEUE_CAPACITY, overflowPolicy, spillDirectory);
+        StorageWriter writer = new StorageWriter(storage, queue,
+                Math.max(1, BATCH_BUFFER_ELEMENTS), MAIN_THREAD_SLEEP_DELAY);
+        storageWriters.put(storage, writer);
+        writer.start();
+    }
+
+    private static Buffer.OverflowPolicy parseOverflowPolicy(String value, String key)
+    {
+        Buffer.OverflowPolicy overflowPolicy = Buffer.OverflowPolicy.BLOCK;
+        if (value != null && !value.trim().isEmpty())
+        {
+            try
+            {
+                overflowPolicy = Buffer.OverflowPolicy.valueOf(value.trim().toUpperCase());
+            }
+            catch (IllegalArgumentException exception)
+            {
+                logger.log(Level.WARNING, "Invalid " + key + " '" + value
+                        + "'. Using '" + overflowPolicy.name().toLowerCase() + "'");
+            }
+        }
+        return overflowPolicy;
+    }
+
+    /**
+     * Creates a reporter buffer as specified in the Kernel settings.
+     *
+     * @return The buffer to allocate to a reporter.
+     */
+    private static Buffer createBuffer()
+    {
+        Buffer.OverflowPolicy overflowPolicy = parseOverflowPolicy(BUFFER_OVERFLOW_POLICY, "buffer_overflow_policy");
+        String spillDirectory = BUFFER_SPILL_DIRECTORY == null ? null : SPADE_ROOT + BUFFER_SPILL_DIRECTORY.trim();
+        return new Buffer(BUFFER_CAPACITY, overflowPolicy, spillDirectory);
+    }
+
+    /**
+     * Assigns the reporter to the dispatcher with the least number of reporters.
+     * A reporter stays with its dispatcher until it is removed so that the order
+     * of the provenance elements from the reporter is preserved.
+     *
+     * @param reporter The reporter to assign.
+     */
+    private static void assignToDispatcher(AbstractReporter reporter)
+    {
+        BufferDispatcher leastLoaded = null;
+        for (BufferDispatcher dispatcher : dispatchers)
+        {
+            if (leastLoaded == null || dispatcher.getAssignedCount() < leastLoaded.getAssignedCount())
+            {
+                leastLoaded = dispatcher;
+            }
+        }
+        leastLoaded.assign(reporter);
+    }
+
+    private static void unassignFromDispatcher(AbstractReporter reporter)
+    {
+        for (BufferDispatcher dispatcher : dispatchers)
+        {
+            if (dispatcher.unassign(reporter))
+            {
+                return;
+            }
+        }
     }
 
     /**
@@ -810,7 +1013,7 @@ public class Kernel
                     return;
                 }
                 // Create a new buffer and allocate it to this reporter.
-                Buffer buffer = new Buffer();
+                Buffer buffer = createBuffer();
                 reporter.setBuffer(buffer);
                 if (reporter.launch(arguments))
                 {
@@ -820,6 +1023,7 @@ public class Kernel
                     // SPADE thread to extract buffer elements.
                     reporter.arguments = arguments;
                     reporters.add(reporter);
+                    assignToDispatcher(reporter);
                     logger.log(Level.INFO, "Reporter added: {0}", className + " " + arguments);
                     outputStream.println("done");
                 }
@@ -886,6 +1090,10 @@ public class Kernel
                         storage.arguments = arguments;
                         storage.vertexCount = 0;
                         storage.edgeCount = 0;
+                        if (STORAGE_WRITERS)
+                        {
+                            startStorageWriter(storage);
+                        }
                         storages.add(storage);
                         logger.log(Level.INFO, "Storage added: {0}", className + " " + arguments);
                         logger.log(Level.INFO, "currentStorage set to "+ storage.getClass().getName());
@@ -1098,6 +1306,7 @@ public class Kernel
                     {
                         outputStream.print(" (" + arguments + ")");
                     }
+                    outputStream.print(" [buffer: " + reporter.getBuffer().getStats() + "]");
                     outputStream.println();
                     count++;
                 }
@@ -1117,6 +1326,7 @@ public class Kernel
                     outputStream.println("\t" + count + ". " + analyzer.getClass().getName().split("\\.")[2]);
                     count++;
                 }
+                outputStream.println("\tQuery cache: " + AbstractAnalyzer.QUERY_CACHE.getStats());
 
                 break;
 
@@ -1136,6 +1346,11 @@ public class Kernel
                     {
                         outputStream.print(" (" + arguments + ")");
                     }
+                    StorageWriter writer = storageWriters.get(storage);
+                    if (writer != null)
+                    {
+                        outputStream.print(" [queue: " + writer.getStats() + "]");
+                    }
                     outputStream.println();
                     count++;
                 }
@@ -1163,6 +1378,11 @@ public class Kernel
                     {
                         outputStream.print(" (" + arguments + ")");
                     }
+                    String stats = filters.get(i).getStats();
+                    if (stats != null)
+                    {
+                        outputStream.print(" [state: " + stats + "]");
+                    }
                     outputStream.println();
                 }
 
@@ -1274,6 +1494,7 @@ public class Kernel
                                 Thread.sleep(REMOVE_WAIT_DELAY);
                             }
                             reporterIterator.remove();
+                            unassignFromDispatcher(reporter);
                             logger.log(Level.INFO, "Reporter shut down: {0}", className);
                             outputStream.println("done");
                             break;
@@ -1345,6 +1566,7 @@ public class Kernel
                                     Thread.sleep(REMOVE_WAIT_DELAY);
                                 }
                                 storageIterator.remove();
+                                storageWriters.remove(storage);
                                 logger.log(Level.INFO, "Storage shut down: {0} ({1} vertices and {2} edges were added)",
                                         new Object[]{className, vertexCount, edgeCount});
                                 outputStream.println("done (" + vertexCount + " vertices and " + edgeCount + " edges added)");
@@ -1437,6 +1659,7 @@ public class Kernel
                             logger.log(Level.INFO, "Removing sketch {0}", className);
                             outputStream.print("Removing sketch: " + className + "... ");
                             sketchIterator.remove();
+                            sketch.shutdown();
                             logger.log(Level.INFO, "Sketch removed: {0}", className);
                             outputStream.println("done");
                             break;
@@ -1485,6 +1708,7 @@ public class Kernel
                 Buffer currentBuffer = currentReporter.getBuffer();
                 if (currentBuffer.isEmpty()) {
                     reporterIterator.remove();
+                    unassignFromDispatcher(currentReporter);
                 }
             }
             try {
@@ -1493,6 +1717,14 @@ public class Kernel
                 logger.log(Level.WARNING, null, ex);
             }
         }
+        // Wait for main thread to commit the batches handed over by the dispatchers.
+        while (inFlightBatches.get() > 0) {
+            try {
+                Thread.sleep(MAIN_THREAD_SLEEP_DELAY);
+            } catch (InterruptedException ex) {
+                logger.log(Level.WARNING, null, ex);
+            }
+        }
 
         // Shut down filters.
         for (int i = 0; i < filters.size() - 1; i++)
@@ -1502,13 +1734,21 @@ public class Kernel
         // Shut down storages.
         for (AbstractStorage storage : storages)
         {
-            storage.shutdown();
+            shutdownStorage(storage);
         }
         // Shut down analzers.
         for(AbstractAnalyzer analyzer: analyzers)
         {
             analyzer.shutdown();
         }
+        // Shut down sketches.
+        synchronized (sketches)
+        {
+            for (AbstractSketch sketch : sketches)
+            {
+                sketch.shutdown();
+            }
+        }
 
         // Shut down server sockets.
         for (ServerSocket socket : serverSockets)
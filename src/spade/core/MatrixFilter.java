@@ -27,12 +27,20 @@
  */
 package spade.core;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Random;
 
 /*
  * @param <E> Object type that is to be inserted into the Bloom filter, e.g.
@@ -40,12 +48,22 @@ import java.util.List;
  */
 public class MatrixFilter implements Serializable {
 
+    // kept at the value before the delta fields were added so that hosts running
+    // the older code can still exchange serialized sketches
+    private static final long serialVersionUID = -6033703304843621546L;
+
     private List<BloomFilter> filterSet;
     private int filterSetSize;
     private double filtersPerElement;
     private int expectedNumberOfElements; // expected (maximum) number of elements to be added
     private int numberOfAddedElements; // number of elements actually added to the Bloom filter
     private int k; // number of hash functions
+    // Identifies the filter across copies. A copy has the id, version and filter versions of the original
+    private long instanceId;
+    private long version; // incremented by every change
+    private long[] filterVersions; // version of the last change to each filter
+    private long clearedVersion; // version of the last clear(). Changes before it cannot be sent as a delta
+    private static final Random instanceIds = new Random();
     static final Charset charset = Charset.forName("UTF-8"); // encoding used for storing hash values as strings
     static final String hashName = "MD5"; // MD5 gives good enough accuracy in most circumstances. Change to SHA1 if it's needed
     static final MessageDigest digestFunction;
@@ -74,10 +92,14 @@ public class MatrixFilter implements Serializable {
         this.filtersPerElement = c;
         this.filterSetSize = (int) Math.ceil(c * n);
         numberOfAddedElements = 0;
-        this.filterSet = new LinkedList<>();
+        this.filterSet = new ArrayList<>(this.filterSetSize);
         for (int i = 0; i < this.filterSetSize; i++) {
             this.filterSet.add(new BloomFilter(c, n, k));
         }
+        synchronized (instanceIds) {
+            this.instanceId = instanceIds.nextLong();
+        }
+        this.filterVersions = new long[this.filterSetSize];
     }
 
     /**
@@ -112,7 +134,7 @@ public class MatrixFilter implements Serializable {
                 (int) Math.ceil(-(Math.log(falsePositiveProbability) / Math.log(2)))); // k = ceil(-log_2(false prob.))
     }
 
-    public BloomFilter getAllBloomFilters() {
+    public synchronized BloomFilter getAllBloomFilters() {
         BloomFilter result = new BloomFilter(filtersPerElement, expectedNumberOfElements, k);
         result.getBitSet().set(0, result.getBitSet().size() - 1, false);
         for (int i = 0; i < filterSet.size(); i++) {
@@ -264,9 +286,13 @@ public class MatrixFilter implements Serializable {
     /**
      * Sets all bits to false in the Bloom filter.
      */
-    public void clear() {
-        filterSet.clear();
+    public synchronized void clear() {
+        for (BloomFilter filter : filterSet) {
+            filter.clear();
+        }
         numberOfAddedElements = 0;
+        version++;
+        clearedVersion = version;
     }
 
     /**
@@ -276,29 +302,35 @@ public class MatrixFilter implements Serializable {
      * @param parentVertex is an element to register in the Bloom filter.
      * @param childVertex
      */
-    public void add(AbstractVertex parentVertex, AbstractVertex childVertex) {
+    public synchronized void add(AbstractVertex parentVertex, AbstractVertex childVertex) {
         long hash;
         String valString = sketchString(parentVertex);
+        version++;
         for (int x = 0; x < k; x++) {
             hash = createHash(valString + Integer.toString(x));
             hash = hash % (long) filterSetSize;
-            filterSet.get(Math.abs((int) hash)).add(childVertex);
+            int index = Math.abs((int) hash);
+            filterSet.get(index).add(childVertex);
+            filterVersions[index] = version;
         }
         numberOfAddedElements++;
     }
 
-    public void updateAncestors(AbstractVertex vertex, BloomFilter ancestorsToAdd) {
+    public synchronized void updateAncestors(AbstractVertex vertex, BloomFilter ancestorsToAdd) {
         long hash;
         String valString = sketchString(vertex);
+        version++;
         for (int x = 0; x < k; x++) {
             hash = createHash(valString + Integer.toString(x));
             hash = hash % (long) filterSetSize;
-            filterSet.get(Math.abs((int) hash)).getBitSet().or(ancestorsToAdd.getBitSet());
+            int index = Math.abs((int) hash);
+            filterSet.get(index).getBitSet().or(ancestorsToAdd.getBitSet());
+            filterVersions[index] = version;
         }
         numberOfAddedElements++;
     }
 
-    public BloomFilter get(AbstractVertex vertex) {
+    public synchronized BloomFilter get(AbstractVertex vertex) {
         BloomFilter result = new BloomFilter(filtersPerElement, expectedNumberOfElements, k);
         result.getBitSet().set(0, result.getBitSet().size() - 1, true);
         long hash;
@@ -321,7 +353,7 @@ public class MatrixFilter implements Serializable {
      * @return true if the element could have been inserted into the Bloom
      * filter.
      */
-    public boolean contains(AbstractVertex vertex) {
+    public synchronized boolean contains(AbstractVertex vertex) {
         long hash;
         String valString = sketchString(vertex);
         for (int x = 0; x < k; x++) {
@@ -386,6 +418,150 @@ public class MatrixFilter implements Serializable {
         return this.filterSetSize / (double) numberOfAddedElements;
     }
 
+    /**
+     * Returns the id that identifies this filter and its copies.
+     *
+     * @return instance id.
+     */
+    public synchronized long getInstanceId() {
+        return instanceId;
+    }
+
+    /**
+     * Returns the number of changes made to the filter, or to the original if
+     * this is a copy.
+     *
+     * @return version.
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Writes the filters changed since the given version of the filter with the
+     * given instance id, or all of them if that is not a version of this
+     * filter. Each filter is written as its index, its version and the words of
+     * its bit set, and filters without any bit set are left out of a full
+     * write.
+     *
+     * @param out is the output to write to.
+     * @param knownInstanceId is the instance id of the copy the reader has, or
+     * 0 if none.
+     * @param knownVersion is the version of the copy the reader has.
+     * @throws IOException if writing fails.
+     */
+    public synchronized void writeDelta(DataOutput out, long knownInstanceId, long knownVersion) throws IOException {
+        boolean full = knownInstanceId != instanceId || knownVersion < clearedVersion;
+        out.writeLong(instanceId);
+        out.writeLong(version);
+        out.writeDouble(filtersPerElement);
+        out.writeInt(expectedNumberOfElements);
+        out.writeInt(k);
+        out.writeInt(numberOfAddedElements);
+        out.writeBoolean(full);
+        int count = 0;
+        for (int i = 0; i < filterSetSize; i++) {
+            if (isInDelta(i, full, knownVersion)) {
+                count++;
+            }
+        }
+        out.writeInt(count);
+        for (int i = 0; i < filterSetSize; i++) {
+            if (isInDelta(i, full, knownVersion)) {
+                long[] words = filterSet.get(i).getBitSet().toLongArray();
+                out.writeInt(i);
+                out.writeLong(filterVersions[i]);
+                out.writeInt(words.length);
+                for (long word : words) {
+                    out.writeLong(word);
+                }
+            }
+        }
+    }
+
+    private boolean isInDelta(int index, boolean full, long knownVersion) {
+        if (full) {
+            return !filterSet.get(index).getBitSet().isEmpty();
+        }
+        return filterVersions[index] > knownVersion;
+    }
+
+    /**
+     * Reads what writeDelta wrote, and applies it to the given copy of the
+     * filter if it is a copy of the same filter, or else to a new copy.
+     *
+     * @param in is the input to read from.
+     * @param copy is the copy to update, or null.
+     * @return the updated copy.
+     * @throws IOException if reading fails or the input is not valid.
+     */
+    public static MatrixFilter readDelta(DataInput in, MatrixFilter copy) throws IOException {
+        long instanceId = in.readLong();
+        long version = in.readLong();
+        double filtersPerElement = in.readDouble();
+        int expectedNumberOfElements = in.readInt();
+        int k = in.readInt();
+        int numberOfAddedElements = in.readInt();
+        boolean full = in.readBoolean();
+        int count = in.readInt();
+        boolean newCopy = copy == null || copy.getInstanceId() != instanceId;
+        if (newCopy) {
+            if (!full) {
+                throw new IOException("Received a delta for a filter that is not known");
+            }
+            copy = new MatrixFilter(filtersPerElement, expectedNumberOfElements, k);
+        }
+        synchronized (copy) {
+            // not applied if it is older than this copy, as one relayed by another host can be
+            boolean apply = newCopy || version > copy.version;
+            if (apply && full) {
+                for (BloomFilter filter : copy.filterSet) {
+                    filter.getBitSet().clear();
+                }
+                Arrays.fill(copy.filterVersions, 0);
+            }
+            for (int i = 0; i < count; i++) {
+                int index = in.readInt();
+                long filterVersion = in.readLong();
+                int length = in.readInt();
+                if (index < 0 || index >= copy.filterSetSize || length < 0 || length > 1 << 20) {
+                    throw new IOException("Invalid filter " + index + " of " + length + " words");
+                }
+                long[] words = new long[length];
+                for (int j = 0; j < length; j++) {
+                    words[j] = in.readLong();
+                }
+                if (apply) {
+                    BitSet bitSet = copy.filterSet.get(index).getBitSet();
+                    bitSet.clear();
+                    bitSet.or(BitSet.valueOf(words));
+                    copy.filterVersions[index] = filterVersion;
+                }
+            }
+            if (apply) {
+                copy.instanceId = instanceId;
+                copy.version = version;
+                copy.numberOfAddedElements = numberOfAddedElements;
+            }
+        }
+        return copy;
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        // sent by a host without the delta fields
+        if (filterVersions == null) {
+            filterVersions = new long[filterSet.size()];
+            synchronized (instanceIds) {
+                instanceId = instanceIds.nextLong();
+            }
+        }
+    }
+
     public String sketchString(AbstractVertex vertex) {
         String result = "";
         if ((vertex.getAnnotation("source host")).compareTo(vertex.getAnnotation("destination host")) < 0) {
@@ -0,0 +1,173 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+/**
+ * MurmurHash3 x64 128-bit with seed 0, fed incrementally. The bytes can be given
+ * in pieces of any length. After finish(), the two halves of the hash are h1 and
+ * h2, and the hash is reset for the next input.
+ *
+ * Not thread-safe.
+ */
+final class MurmurHash3
+{
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final byte[] block = new byte[16];
+    private int blockLength;
+    private long totalLength;
+    private long h1;
+    private long h2;
+    private long hash1;
+    private long hash2;
+
+    void reset()
+    {
+        blockLength = 0;
+        totalLength = 0;
+        h1 = 0;
+        h2 = 0;
+    }
+
+    void update(byte[] bytes, int offset, int length)
+    {
+        totalLength += length;
+        int end = offset + length;
+        if(blockLength > 0)
+        {
+            while(blockLength < 16 && offset < end)
+            {
+                block[blockLength++] = bytes[offset++];
+            }
+            if(blockLength < 16)
+            {
+                return;
+            }
+            processBlock(getLong(block, 0), getLong(block, 8));
+            blockLength = 0;
+        }
+        while(end - offset >= 16)
+        {
+            processBlock(getLong(bytes, offset), getLong(bytes, offset + 8));
+            offset += 16;
+        }
+        while(offset < end)
+        {
+            block[blockLength++] = bytes[offset++];
+        }
+    }
+
+    /**
+     * Hashes the remaining bytes. The result is then returned by getH1() and getH2().
+     */
+    void finish()
+    {
+        long k1 = 0;
+        long k2 = 0;
+        for(int i = blockLength - 1; i >= 8; i--)
+        {
+            k2 = (k2 << 8) | (block[i] & 0xffL);
+        }
+        for(int i = Math.min(blockLength, 8) - 1; i >= 0; i--)
+        {
+            k1 = (k1 << 8) | (block[i] & 0xffL);
+        }
+        if(blockLength > 8)
+        {
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+        }
+        if(blockLength > 0)
+        {
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+        }
+
+        h1 ^= totalLength;
+        h2 ^= totalLength;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        hash1 = h1;
+        hash2 = h2;
+        reset();
+    }
+
+    long getH1()
+    {
+        return hash1;
+    }
+
+    long getH2()
+    {
+        return hash2;
+    }
+
+    /**
+     * The MurmurHash3 64-bit finalizer.
+     */
+    static long fmix(long k)
+    {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private void processBlock(long k1, long k2)
+    {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        h1 ^= k1;
+        h1 = Long.rotateLeft(h1, 27);
+        h1 += h2;
+        h1 = h1 * 5 + 0x52dce729;
+
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        h2 ^= k2;
+        h2 = Long.rotateLeft(h2, 31);
+        h2 += h1;
+        h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    private static long getLong(byte[] bytes, int offset)
+    {
+        long value = 0;
+        for(int i = 7; i >= 0; i--)
+        {
+            value = (value << 8) | (bytes[offset + i] & 0xffL);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Cache of query results used by the analyzers.
+ *
+ * Every result is stored with the ingest epoch of the storage it was computed
+ * from. A result is only returned while the epoch of the storage is the same,
+ * so anything added to the storage after the query makes the result stale.
+ * The size of a result is the number of its vertices and edges, and the least
+ * recently used results are evicted to keep the total size under the maximum.
+ */
+public class QueryCache
+{
+    private static class Entry
+    {
+        private final Object result;
+        private final long epoch;
+        private final long size;
+
+        private Entry(Object result, long epoch, long size)
+        {
+            this.result = result;
+            this.epoch = epoch;
+            this.size = size;
+        }
+    }
+
+    private final long maxElements;
+    // All members below are guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long elements = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long invalidations = 0;
+    private long evictions = 0;
+
+    /**
+     * @param maxElements The maximum number of vertices and edges in all the cached
+     *                    results. The cache is disabled if less than 1.
+     */
+    public QueryCache(long maxElements)
+    {
+        this.maxElements = maxElements;
+    }
+
+    public boolean isEnabled()
+    {
+        return maxElements > 0;
+    }
+
+    /**
+     * @param key The normalized query along with everything else its result depends on.
+     * @param epoch The current ingest epoch of the storage.
+     * @return The cached result or null if there is none for the epoch.
+     */
+    public synchronized Object get(String key, long epoch)
+    {
+        Entry entry = entries.get(key);
+        if (entry == null)
+        {
+            misses++;
+            return null;
+        }
+        if (entry.epoch != epoch)
+        {
+            entries.remove(key);
+            elements -= entry.size;
+            invalidations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.result;
+    }
+
+    /**
+     * Caches the result. Results larger than the cache are not cached.
+     *
+     * @param key The normalized query along with everything else its result depends on.
+     * @param epoch The ingest epoch of the storage when the query was started.
+     * @param result The result, which must not be modified afterwards.
+     */
+    public synchronized void put(String key, long epoch, Object result)
+    {
+        long size = sizeOf(result);
+        if (!isEnabled() || size > maxElements)
+        {
+            return;
+        }
+        Entry previous = entries.put(key, new Entry(result, epoch, size));
+        if (previous != null)
+        {
+            elements -= previous.size;
+        }
+        elements += size;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (elements > maxElements && iterator.hasNext())
+        {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            elements -= eldest.size;
+            evictions++;
+        }
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+        elements = 0;
+    }
+
+    /**
+     * @return a one line summary of the state of the cache
+     */
+    public synchronized String getStats()
+    {
+        if (!isEnabled())
+        {
+            return "disabled";
+        }
+        return "entries=" + entries.size() + ", elements=" + elements + ", maxElements=" + maxElements
+                + ", hits=" + hits + ", misses=" + misses + ", invalidations=" + invalidations
+                + ", evictions=" + evictions;
+    }
+
+    private static long sizeOf(Object result)
+    {
+        if (result instanceof Graph)
+        {
+            Graph graph = (Graph) result;
+            return Math.max(1, graph.vertexSet().size() + graph.edgeSet().size());
+        }
+        else if (result instanceof Collection)
+        {
+            return Math.max(1, ((Collection<?>) result).size());
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A writer owns the queue and the thread of a single storage. The
+ * FinalCommitFilter adds the provenance elements to the queue of every
+ * storage and returns, so a slow storage does not hold up the main thread or
+ * the other storages.
+ *
+ * The queue is a Buffer so the same overflow policies apply when a storage
+ * falls behind: the main thread is blocked, the elements are dropped, or the
+ * elements are spilled to a local file. The elements are written to the
+ * storage by one thread in the order in which they were added.
+ *
+ * All the calls to the storage, including flushTransactions and shutdown,
+ * are made from the writer thread so that storages that are sensitive to
+ * thread-context keep working.
+ */
+public class StorageWriter implements Runnable
+{
+    private static final Logger logger = Logger.getLogger(StorageWriter.class.getName());
+
+    private final AbstractStorage storage;
+    private final Buffer queue;
+    private final int batchSize;
+    private final long idleWaitNanos;
+    private final Thread thread;
+
+    /**
+     * Number of elements added to the queue and number of elements handed to
+     * the storage. The difference is the lag of the storage.
+     */
+    private final AtomicLong enqueued = new AtomicLong(0);
+    private volatile long written = 0;
+
+    private volatile boolean flushRequested = false;
+    private volatile boolean shutdownRequested = false;
+    private volatile boolean closed = false;
+
+    /**
+     * @param storage The storage to write to.
+     * @param queue The queue of the storage.
+     * @param batchSize The maximum number of elements handed to the storage in one call.
+     * @param idleWaitMillis The maximum time to wait for new elements before checking for requests.
+     */
+    public StorageWriter(AbstractStorage storage, Buffer queue, int batchSize, long idleWaitMillis)
+    {
+        this.storage = storage;
+        this.queue = queue;
+        this.batchSize = Math.max(1, batchSize);
+        this.idleWaitNanos = TimeUnit.MILLISECONDS.toNanos(idleWaitMillis);
+        this.thread = new Thread(this, "storageSPADE-Thread-" + storage.getClass().getSimpleName());
+        this.queue.setConsumer(thread);
+    }
+
+    public void start()
+    {
+        thread.start();
+    }
+
+    public AbstractStorage getStorage()
+    {
+        return storage;
+    }
+
+    /**
+     * Adds a vertex to the queue of the storage.
+     *
+     * @param incomingVertex The vertex to write.
+     * @return True if the vertex was queued.
+     */
+    public boolean putVertex(AbstractVertex incomingVertex)
+    {
+        if (closed || !queue.putVertex(incomingVertex))
+        {
+            return false;
+        }
+        enqueued.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Adds an edge to the queue of the storage.
+     *
+     * @param incomingEdge The edge to write.
+     * @return True if the edge was queued.
+     */
+    public boolean putEdge(AbstractEdge incomingEdge)
+    {
+        if (closed || !queue.putEdge(incomingEdge))
+        {
+            return false;
+        }
+        enqueued.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Asks the writer thread to flush the transactions of the storage.
+     */
+    public void flushTransactions()
+    {
+        flushRequested = true;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Writes all the queued elements, shuts down the storage and waits for the
+     * writer thread to finish. Elements added after this call are discarded.
+     */
+    public void shutdown()
+    {
+        closed = true;
+        shutdownRequested = true;
+        LockSupport.unpark(thread);
+        try
+        {
+            thread.join();
+        }
+        catch (InterruptedException exception)
+        {
+            logger.log(Level.WARNING, "Interrupted while waiting for the writer of "
+                    + storage.getClass().getSimpleName(), exception);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of elements queued for the storage but not written yet
+     */
+    public long getLag()
+    {
+        return Math.max(0, enqueued.get() - written);
+    }
+
+    /**
+     * @return a one line summary of the state of the queue
+     */
+    public String getStats()
+    {
+        return "lag=" + getLag() + ", written=" + written + ", " + queue.getStats();
+    }
+
+    @Override
+    public void run()
+    {
+        List<AbstractVertex> vertices = new ArrayList<>();
+        List<AbstractEdge> edges = new ArrayList<>();
+        try
+        {
+            while (true)
+            {
+                if (flushRequested)
+                {
+                    flushRequested = false;
+                    storage.flushTransactions();
+                }
+                int count = write(vertices, edges);
+                if (count == 0)
+                {
+                    if (shutdownRequested && queue.isEmpty())
+                    {
+                        break;
+                    }
+                    // Woken up by the queue on new elements and by the requests
+                    LockSupport.parkNanos(this, idleWaitNanos);
+                }
+            }
+        }
+        catch (Exception exception)
+        {
+            logger.log(Level.SEVERE, "Error in writer thread of storage "
+                    + storage.getClass().getSimpleName(), exception);
+        }
+        finally
+        {
+            closed = true;
+            storage.shutdown();
+        }
+    }
+
+    /**
+     * Takes up to batchSize elements from the queue and writes them to the
+     * storage. Consecutive vertices and consecutive edges are written with
+     * one call each so that the order of the elements is kept.
+     *
+     * @return The number of elements taken from the queue.
+     */
+    private int write(List<AbstractVertex> vertices, List<AbstractEdge> edges)
+    {
+        int count = 0;
+        Object element;
+        while (count < batchSize && (element = queue.getBufferElement()) != null)
+        {
+            count++;
+            if (element instanceof AbstractVertex)
+            {
+                if (!edges.isEmpty())
+                {
+                    writeEdges(edges);
+                }
+                vertices.add((AbstractVertex) element);
+            }
+            else if (element instanceof AbstractEdge)
+            {
+                if (!vertices.isEmpty())
+                {
+                    writeVertices(vertices);
+                }
+                edges.add((AbstractEdge) element);
+            }
+        }
+        if (!vertices.isEmpty())
+        {
+            writeVertices(vertices);
+        }
+        if (!edges.isEmpty())
+        {
+            writeEdges(edges);
+        }
+        return count;
+    }
+
+    private void writeVertices(List<AbstractVertex> vertices)
+    {
+        int count = storage.putVertices(vertices);
+        storage.vertexCount += count;
+        if (count > 0)
+        {
+            storage.incrementIngestEpoch();
+        }
+        written += vertices.size();
+        vertices.clear();
+    }
+
+    private void writeEdges(List<AbstractEdge> edges)
+    {
+        int count = storage.putEdges(edges);
+        storage.edgeCount += count;
+        if (count > 0)
+        {
+            storage.incrementIngestEpoch();
+        }
+        written += edges.size();
+        edges.clear();
+    }
+}
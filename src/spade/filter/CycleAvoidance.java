@@ -24,38 +24,75 @@ import spade.core.AbstractFilter;
 import spade.core.AbstractVertex;
 import spade.core.Edge;
 import spade.core.Vertex;
+import spade.utility.BoundedMap;
+import spade.utility.CommonFunctions;
 
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Objects;
-import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+/**
+ * The state is kept in bounded maps configured in the config file of the filter
+ * or in its arguments (see BoundedMap). A vertex that has been evicted from the
+ * state may be passed to the next filter again.
+ */
 public class CycleAvoidance extends AbstractFilter {
 
-    // 'ancestors' maps a given vertex to its ancestors.
-    private final Map<AbstractVertex, Set<AbstractVertex>> ancestors;
-    // 'passedVertices' maps a given vertex to a boolean indicating whether it has
-    // been passed to the next filter or not.
-    private final Map<AbstractVertex, Boolean> passedVertices;
+    private static final Logger logger = Logger.getLogger(CycleAvoidance.class.getName());
+
+    // 'ancestors' maps the hash of a given vertex to the versions of its ancestors.
+    // The versions are keyed by the hash of the ancestor without its version
+    // annotation so that another version of the same ancestor is found directly.
+    private BoundedMap<HashMap<String, Integer>> ancestors;
+    // 'passedVertices' maps the hash of a given vertex to a boolean indicating whether
+    // it has been passed to the next filter or not.
+    private BoundedMap<Boolean> passedVertices;
     private final int initialVersion = 0;
     private final String versionAnnotation = "Version";
 
     public CycleAvoidance() {
-        ancestors = new HashMap<>();
-        passedVertices = new HashMap<>();
+        ancestors = new BoundedMap<>("CycleAvoidanceAncestors", 0, 0, null);
+        passedVertices = new BoundedMap<>("CycleAvoidanceVertices", 0, 0, null);
     }
 
     @Override
-    public void putVertex(AbstractVertex incomingVertex) {
-        if (passedVertices.containsKey(incomingVertex)) {
-            // We've already seen this vertex.
-            return;
+    public boolean initialize(String arguments) {
+        try {
+            Map<String, String> settings = CommonFunctions.getGlobalsMapFromConfigAndArguments(getClass(), arguments);
+            ancestors = BoundedMap.create("CycleAvoidanceAncestors", settings);
+            passedVertices = BoundedMap.create("CycleAvoidanceVertices", settings);
+            return true;
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to create the state maps", e);
+            shutdown();
+            return false;
         }
+    }
+
+    @Override
+    public boolean shutdown() {
+        ancestors.close();
+        passedVertices.close();
+        return true;
+    }
+
+    @Override
+    public String getStats() {
+        return ancestors.getStats() + "; " + passedVertices.getStats();
+    }
+
+    @Override
+    public void putVertex(AbstractVertex incomingVertex) {
         if (!incomingVertex.getAnnotations().containsKey(versionAnnotation)) {
             incomingVertex.addAnnotation(versionAnnotation, Integer.toString(initialVersion));
         }
-        passedVertices.put(incomingVertex, Boolean.FALSE);
+        String hash = incomingVertex.bigHashCode();
+        if (passedVertices.containsKey(hash)) {
+            // We've already seen this vertex.
+            return;
+        }
+        passedVertices.put(hash, Boolean.FALSE);
     }
 
     // Given an incoming edge A->B(i), CA uses the following rules:
@@ -71,31 +108,28 @@ public class CycleAvoidance extends AbstractFilter {
         copyEdge.setChildVertex(source);
         copyEdge.setParentVertex(destination);
 
-        if (!ancestors.containsKey(source)) {
-            HashSet<AbstractVertex> vertexAncestors = new HashSet<>();
-            ancestors.put(source, vertexAncestors);
+        String sourceHash = source.bigHashCode();
+        HashMap<String, Integer> sourceAncestors = ancestors.get(sourceHash);
+        if (sourceAncestors == null) {
+            sourceAncestors = new HashMap<>();
+            ancestors.put(sourceHash, sourceAncestors);
         }
 
-        Map<String, String> currentAnnotations = new HashMap<>();
-        currentAnnotations.putAll(destination.getAnnotations());
-        int currentVersion = Integer.parseInt(currentAnnotations.remove(versionAnnotation));
+        String destinationKey = unversionedHash(destination);
+        int currentVersion = CommonFunctions.parseInt(destination.getAnnotation(versionAnnotation), initialVersion);
         // Look for ancestor vertex.
-        for (AbstractVertex ancestor : ancestors.get(source)) {
-            Map<String, String> annotations = new HashMap<>();
-            annotations.putAll(ancestor.getAnnotations());
-            int existingVersion = Integer.parseInt(annotations.remove(versionAnnotation));
-            if (currentAnnotations.equals(annotations)) {
-                if (currentVersion == existingVersion || currentVersion < existingVersion) {
-                    return;
-                } else {
-                    currentVersion++;
-                    destination = copyVertex(destination);
-                    destination.addAnnotation(versionAnnotation, Integer.toString(currentVersion));
-                    copyEdge.setParentVertex(destination);
-                }
-                break;
+        Integer existingVersion = sourceAncestors.get(destinationKey);
+        if (existingVersion != null) {
+            if (currentVersion == existingVersion || currentVersion < existingVersion) {
+                return;
+            } else {
+                currentVersion++;
+                destination = copyVertex(destination);
+                destination.addAnnotation(versionAnnotation, Integer.toString(currentVersion));
+                copyEdge.setParentVertex(destination);
             }
         }
+        sourceAncestors.put(destinationKey, currentVersion);
 
         checkVertexCache(source);
         checkVertexCache(destination);
@@ -103,22 +137,30 @@ public class CycleAvoidance extends AbstractFilter {
     }
 
     private void checkVertexCache(AbstractVertex vertex) {
-        if (Objects.equals(passedVertices.get(vertex), Boolean.FALSE)) {
+        String hash = vertex.bigHashCode();
+        if (!Boolean.TRUE.equals(passedVertices.get(hash))) {
             putInNextFilter(vertex);
-            passedVertices.put(vertex, Boolean.TRUE);
+            passedVertices.put(hash, Boolean.TRUE);
+        }
+    }
+
+    private String unversionedHash(AbstractVertex vertex) {
+        if (vertex.getAnnotation(versionAnnotation) == null) {
+            return vertex.bigHashCode();
         }
+        AbstractVertex copy = copyVertex(vertex);
+        copy.removeAnnotation(versionAnnotation);
+        return copy.bigHashCode();
     }
 
     private AbstractVertex copyVertex(AbstractVertex vertex) {
         AbstractVertex copy = new Vertex();
-        copy.getAnnotations().clear();
         copy.addAnnotations(vertex.getAnnotations());
         return copy;
     }
 
     private AbstractEdge copyEdge(AbstractEdge edge) {
         AbstractEdge copy = new Edge(edge.getChildVertex(), edge.getParentVertex());
-        copy.getAnnotations().clear();
         copy.addAnnotations(edge.getAnnotations());
         return copy;
     }
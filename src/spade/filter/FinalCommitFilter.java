@@ -24,8 +24,12 @@ import spade.core.AbstractFilter;
 import spade.core.AbstractSketch;
 import spade.core.AbstractStorage;
 import spade.core.AbstractVertex;
+import spade.core.StorageWriter;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class FinalCommitFilter extends AbstractFilter {
@@ -33,6 +37,9 @@ public class FinalCommitFilter extends AbstractFilter {
     // Reference to the set of storages maintained by the Kernel.
     public Set<AbstractStorage> storages = new HashSet<>();
     public Set<AbstractSketch> sketches = new HashSet<>();
+    // Reference to the writers of the storages that have their own queue and
+    // thread. Elements for these storages are only queued here.
+    public Map<AbstractStorage, StorageWriter> storageWriters = new HashMap<>();
 
     // This filter is the last filter in the list so any vertices or edges
     // received by it need to be passed to the storages. On receiving any
@@ -40,7 +47,10 @@ public class FinalCommitFilter extends AbstractFilter {
     @Override
     public void putVertex(AbstractVertex incomingVertex) {
         for (AbstractStorage storage : storages) {
-            if (storage.putVertex(incomingVertex)) {
+            StorageWriter writer = storageWriters.get(storage);
+            if (writer != null) {
+                writer.putVertex(incomingVertex);
+            } else if (storage.putVertex(incomingVertex)) {
                 incrementStorageVertexCount(storage);
             }
         }
@@ -52,7 +62,10 @@ public class FinalCommitFilter extends AbstractFilter {
     @Override
     public void putEdge(AbstractEdge incomingEdge) {
         for (AbstractStorage storage : storages) {
-            if (storage.putEdge(incomingEdge)) {
+            StorageWriter writer = storageWriters.get(storage);
+            if (writer != null) {
+                writer.putEdge(incomingEdge);
+            } else if (storage.putEdge(incomingEdge)) {
                 incrementStorageEdgeCount(storage);
             }
         }
@@ -60,4 +73,44 @@ public class FinalCommitFilter extends AbstractFilter {
             sketch.putEdge(incomingEdge);
         }
     }
+
+    // Batches are handed to the storages as a whole so that they can
+    // write them with a single call or transaction.
+    @Override
+    public void putVertices(List<AbstractVertex> incomingVertices) {
+        for (AbstractStorage storage : storages) {
+            StorageWriter writer = storageWriters.get(storage);
+            if (writer != null) {
+                for (AbstractVertex incomingVertex : incomingVertices) {
+                    writer.putVertex(incomingVertex);
+                }
+            } else {
+                incrementStorageVertexCount(storage, storage.putVertices(incomingVertices));
+            }
+        }
+        for (AbstractSketch sketch : sketches) {
+            for (AbstractVertex incomingVertex : incomingVertices) {
+                sketch.putVertex(incomingVertex);
+            }
+        }
+    }
+
+    @Override
+    public void putEdges(List<AbstractEdge> incomingEdges) {
+        for (AbstractStorage storage : storages) {
+            StorageWriter writer = storageWriters.get(storage);
+            if (writer != null) {
+                for (AbstractEdge incomingEdge : incomingEdges) {
+                    writer.putEdge(incomingEdge);
+                }
+            } else {
+                incrementStorageEdgeCount(storage, storage.putEdges(incomingEdges));
+            }
+        }
+        for (AbstractSketch sketch : sketches) {
+            for (AbstractEdge incomingEdge : incomingEdges) {
+                sketch.putEdge(incomingEdge);
+            }
+        }
+    }
 }
@@ -204,8 +204,8 @@ public class Fusion extends AbstractFilter {
         // vertices. The 'source reporter' annotation is changed to reflect that
         // this vertex is now fused
         AbstractVertex fusedVertex = new Vertex();
-        fusedVertex.getAnnotations().putAll(firstVertex.getAnnotations());
-        fusedVertex.getAnnotations().putAll(secondVertex.getAnnotations());
+        fusedVertex.addAnnotations(firstVertex.getAnnotations());
+        fusedVertex.addAnnotations(secondVertex.getAnnotations());
         fusedVertex.addAnnotation(SOURCE_REPORTER, FUSED_SOURCE_REPORTER);
 
         // Create references to the two lists which are assigned by evaluating
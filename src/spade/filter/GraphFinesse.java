@@ -24,55 +24,93 @@ import spade.core.AbstractFilter;
 import spade.core.AbstractVertex;
 import spade.core.Edge;
 import spade.core.Vertex;
+import spade.utility.BoundedMap;
+import spade.utility.CommonFunctions;
 
-import java.util.HashMap;
+import java.io.Serializable;
+import java.util.ArrayDeque;
 import java.util.HashSet;
 import java.util.Map;
-import java.util.Objects;
+import java.util.Queue;
 import java.util.Set;
-
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The state is kept in bounded maps configured in the config file of the filter
+ * or in its arguments (see BoundedMap). Instead of the ancestors and the descendants
+ * of every vertex, only the parents are kept, and the ancestors are searched when
+ * an edge arrives, visiting at most 'maxSearch' vertices. A cycle through vertices
+ * that have been evicted from the state, or that is longer than the search, is not
+ * detected.
+ */
 public class GraphFinesse extends AbstractFilter {
 
-    // 'ancestors' maps a given vertex to its ancestors.
-    private final Map<AbstractVertex, Set<AbstractVertex>> ancestors;
-    // 'descendants' maps a given vertex to its descendants. We use this to update
-    // the ancestors map when an edge is added.
-    private final Map<AbstractVertex, Set<AbstractVertex>> descendants;
-    // 'passedVertices' maps a given vertex to a boolean indicating whether it has
-    // been passed to the next filter or not.
-    private final Map<AbstractVertex, Boolean> passedVertices;
-    // 'passedEdges' maps a given edge to a boolean indicating whether it has been 
-    // passed to the next filter or not.
-    private final Map<AbstractEdge, Boolean> passedEdges;
-    // 'vertexVersions' maps a given vertex to it's version number.
-    private final Map<AbstractVertex, Integer> vertexVersions;
-    // 'vertexStrings' maps a string representation of a vertex to the actual vertex.
-    private final Map<String, AbstractVertex> vertexStrings;
+    private static final Logger logger = Logger.getLogger(GraphFinesse.class.getName());
+
+    private static final String KEY_MAX_SEARCH = "maxSearch";
+
+    private static class VertexState implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private int version;
+        private boolean passed;
+
+        private VertexState(int version) {
+            this.version = version;
+        }
+    }
+
+    // 'vertices' maps the hash of a given incoming vertex to its version number and to
+    // whether that version has been passed to the next filter or not. For comparison
+    // purposes, the hash is of the original vertex since the filter may change the version.
+    private BoundedMap<VertexState> vertices;
+    // 'parents' maps the hash of a given versioned vertex to the hashes of its parents.
+    private BoundedMap<HashSet<String>> parents;
+    // 'passedEdges' contains the hashes of the edges passed to the next filter.
+    private BoundedMap<Boolean> passedEdges;
+    private int maxSearch = 100000;
     private final int initialVersion = 0;
     private final String versionAnnotation = "GFVersion";
 
     public GraphFinesse() {
-        ancestors = new HashMap<>();
-        descendants = new HashMap<>();
-        passedVertices = new HashMap<>();
-        passedEdges = new HashMap<>();
-        vertexVersions = new HashMap<>();
-        vertexStrings = new HashMap<>();
+        vertices = new BoundedMap<>("GraphFinesseVertices", 0, 0, null);
+        parents = new BoundedMap<>("GraphFinesseParents", 0, 0, null);
+        passedEdges = new BoundedMap<>("GraphFinesseEdges", 0, 0, null);
     }
 
     @Override
-    public void putVertex(AbstractVertex incomingVertex) {
-        if (vertexStrings.containsKey(incomingVertex.toString())) {
-            // We've already seen this vertex.
-            return;
+    public boolean initialize(String arguments) {
+        try {
+            Map<String, String> settings = CommonFunctions.getGlobalsMapFromConfigAndArguments(getClass(), arguments);
+            maxSearch = CommonFunctions.parseInt(settings.get(KEY_MAX_SEARCH), maxSearch);
+            vertices = BoundedMap.create("GraphFinesseVertices", settings);
+            parents = BoundedMap.create("GraphFinesseParents", settings);
+            passedEdges = BoundedMap.create("GraphFinesseEdges", settings);
+            logger.log(Level.INFO, "Arguments: " + KEY_MAX_SEARCH + "=" + maxSearch);
+            return true;
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to create the state maps", e);
+            shutdown();
+            return false;
         }
-        AbstractVertex copy = copyVertex(incomingVertex);
-        copy.addAnnotation(versionAnnotation, Integer.toString(initialVersion));
-        // For comparison purposes, we store the string representation of the 
-        // original vertex since the filter may change the version.
-        vertexStrings.put(incomingVertex.toString(), copy);
-        passedVertices.put(copy, Boolean.FALSE);
-        vertexVersions.put(copy, initialVersion);
+    }
+
+    @Override
+    public boolean shutdown() {
+        vertices.close();
+        parents.close();
+        passedEdges.close();
+        return true;
+    }
+
+    @Override
+    public String getStats() {
+        return vertices.getStats() + "; " + parents.getStats() + "; " + passedEdges.getStats();
+    }
+
+    @Override
+    public void putVertex(AbstractVertex incomingVertex) {
+        getState(incomingVertex.bigHashCode());
     }
 
     // Given an incoming edge A->B, GF uses the following rules:
@@ -82,93 +120,98 @@ public class GraphFinesse extends AbstractFilter {
     // 3) If rules (1) and (2) are not met, then add the edge as a normal edge.
     @Override
     public void putEdge(AbstractEdge edge) {
-        AbstractVertex source = vertexStrings.get(edge.getChildVertex().toString());
-        AbstractVertex destination = vertexStrings.get(edge.getParentVertex().toString());
+        String sourceKey = edge.getChildVertex().bigHashCode();
+        String destinationKey = edge.getParentVertex().bigHashCode();
+        VertexState sourceState = getState(sourceKey);
+        VertexState destinationState = getState(destinationKey);
+        AbstractVertex source = copyVertex(edge.getChildVertex(), sourceState.version);
+        AbstractVertex destination = copyVertex(edge.getParentVertex(), destinationState.version);
         AbstractEdge copyEdge = copyEdge(edge);
         copyEdge.setChildVertex(source);
         copyEdge.setParentVertex(destination);
 
         // Check for rule 1
-        if (passedEdges.containsKey(copyEdge)) // Check for rule 2
-        {
+        if (passedEdges.containsKey(copyEdge.bigHashCode())) {
             return;
         }
 
         // Check for rule 2
-        if (ancestors.containsKey(destination) && ancestors.get(destination).contains(source)) {
+        if (isAncestor(source.bigHashCode(), destination.bigHashCode())) {
             // Rule 2 is hit, update the vertex number.
-            int newVersion = vertexVersions.get(source) + 1;
+            sourceState.version++;
+            sourceState.passed = false;
             source.removeAnnotation(versionAnnotation);
-            source.addAnnotation(versionAnnotation, Integer.toString(newVersion));
-            vertexVersions.put(source, newVersion);
+            source.addAnnotation(versionAnnotation, Integer.toString(sourceState.version));
         }
 
-        updateAncestors(source, destination);
-        updateDescendants(source, destination);
+        String sourceHash = source.bigHashCode();
+        HashSet<String> sourceParents = parents.get(sourceHash);
+        if (sourceParents == null) {
+            sourceParents = new HashSet<>();
+        }
+        sourceParents.add(destination.bigHashCode());
+        parents.put(sourceHash, sourceParents);
 
         // Pass the edges and vertices.
-        checkVertexCache(source);
-        checkVertexCache(destination);
+        checkVertexCache(source, sourceState);
+        checkVertexCache(destination, destinationState);
         putInNextFilter(copyEdge);
+        passedEdges.put(copyEdge.bigHashCode(), Boolean.TRUE);
+        // Put back in case the states have been evicted in the meantime.
+        vertices.put(sourceKey, sourceState);
+        vertices.put(destinationKey, destinationState);
     }
 
-    private void updateAncestors(AbstractVertex source, AbstractVertex destination) {
-        // Update the ancestors for this vertex and its descendants.
-        if (!ancestors.containsKey(source)) {
-            HashSet<AbstractVertex> vertexAncestors = new HashSet<>();
-            vertexAncestors.add(destination);
-            ancestors.put(source, vertexAncestors);
-        }
-        // Update the ancestors for this vertex by adding all the ancestors
-        // of the destination vertex.
-        ancestors.get(source).addAll(ancestors.get(destination));
-        // Update the ancestors of the descendants of this vertex since this
-        // edge may have created new descendants.
-        for (AbstractVertex descendant : descendants.get(source)) {
-            if (ancestors.containsKey(descendant)) {
-                ancestors.get(descendant).add(source);
-                ancestors.get(descendant).addAll(ancestors.get(source));
-            }
+    private VertexState getState(String hash) {
+        VertexState state = vertices.get(hash);
+        if (state == null) {
+            state = new VertexState(initialVersion);
+            vertices.put(hash, state);
         }
+        return state;
     }
 
-    private void updateDescendants(AbstractVertex source, AbstractVertex destination) {
-        // Update the descendants for this vertex and its ancestors.
-        if (!descendants.containsKey(destination)) {
-            HashSet<AbstractVertex> vertexDescendants = new HashSet<>();
-            vertexDescendants.add(source);
-            descendants.put(destination, vertexDescendants);
-        }
-        // Update the descendants for this vertex by adding all the descendants
-        // of the source vertex.
-        descendants.get(destination).addAll(descendants.get(source));
-        // Update the descendants of the ancestors of this vertex since this
-        // edge may have created new ancestors.
-        for (AbstractVertex ancestor : ancestors.get(source)) {
-            if (descendants.containsKey(ancestor)) {
-                descendants.get(ancestor).add(source);
-                descendants.get(ancestor).addAll(descendants.get(source));
+    /**
+     * Searches the ancestors of 'vertex' for 'ancestor', visiting at most maxSearch vertices.
+     */
+    private boolean isAncestor(String ancestor, String vertex) {
+        Set<String> visited = new HashSet<>();
+        Queue<String> queue = new ArrayDeque<>();
+        queue.add(vertex);
+        visited.add(vertex);
+        while (!queue.isEmpty() && visited.size() <= maxSearch) {
+            Set<String> vertexParents = parents.get(queue.poll());
+            if (vertexParents == null) {
+                continue;
+            }
+            for (String parent : vertexParents) {
+                if (parent.equals(ancestor)) {
+                    return true;
+                }
+                if (visited.add(parent)) {
+                    queue.add(parent);
+                }
             }
         }
+        return false;
     }
 
-    private void checkVertexCache(AbstractVertex vertex) {
-        if (Objects.equals(passedVertices.get(vertex), Boolean.FALSE)) {
+    private void checkVertexCache(AbstractVertex vertex, VertexState state) {
+        if (!state.passed) {
             putInNextFilter(vertex);
-            passedVertices.put(vertex, Boolean.TRUE);
+            state.passed = true;
         }
     }
 
-    private AbstractVertex copyVertex(AbstractVertex vertex) {
+    private AbstractVertex copyVertex(AbstractVertex vertex, int version) {
         AbstractVertex copy = new Vertex();
-        copy.getAnnotations().clear();
         copy.addAnnotations(vertex.getAnnotations());
+        copy.addAnnotation(versionAnnotation, Integer.toString(version));
         return copy;
     }
 
     private AbstractEdge copyEdge(AbstractEdge edge) {
         AbstractEdge copy = new Edge(edge.getChildVertex(), edge.getParentVertex());
-        copy.getAnnotations().clear();
         copy.addAnnotations(edge.getAnnotations());
         return copy;
     }
@@ -22,9 +22,7 @@ package spade.filter;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.Map;
-import java.util.Queue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,6 +31,7 @@ import spade.core.AbstractFilter;
 import spade.core.AbstractVertex;
 import spade.edge.opm.Used;
 import spade.edge.opm.WasGeneratedBy;
+import spade.utility.BoundedMap;
 import spade.utility.CommonFunctions;
 import spade.utility.LoadableField;
 import spade.utility.LoadableFieldHelper;
@@ -53,6 +52,9 @@ import spade.vertex.opm.Artifact;
  * 
  * The filter is applied to only those artifacts which contain all the above-mentioned annotations specified in arguments
  * as 'key'.
+ * 
+ * The reads and writes are kept in bounded maps configured with the keys described in BoundedMap. A read or a write
+ * to an artifact evicted from the maps starts a new run.
  */
 public class IORuns extends AbstractFilter {
 
@@ -63,14 +65,12 @@ public class IORuns extends AbstractFilter {
 	@LoadableField(name=argNameArtifactKey, optional=false, splitBy=",")
 	private final String[] artifactsKeysArray = null;
 	
-    private final Map<String, HashSet<String>> writes;
-    private final Map<String, HashSet<String>> reads;
-    private final Queue<AbstractVertex> vertexBuffer;
+    private BoundedMap<HashSet<String>> writes;
+    private BoundedMap<HashSet<String>> reads;
 
     public IORuns() {
-        writes = new HashMap<>();
-        reads = new HashMap<>();
-        vertexBuffer = new LinkedList<>();
+        writes = new BoundedMap<>("IORunsWrites", 0, 0, null);
+        reads = new BoundedMap<>("IORunsReads", 0, 0, null);
     }
     
     private boolean printGlobals(){
@@ -93,6 +93,9 @@ public class IORuns extends AbstractFilter {
 			return false;
 		}
 		
+		Map<String, String> stateSettings = new HashMap<String, String>(globalsMap);
+		globalsMap.keySet().removeAll(BoundedMap.SETTING_KEYS);
+		
 		try{
 			LoadableFieldHelper.loadAllLoadableFieldsFromMap(this, globalsMap);
 		}catch(Exception e){
@@ -100,6 +103,15 @@ public class IORuns extends AbstractFilter {
 			return false;
 		}
 		
+		try{
+			writes = BoundedMap.create("IORunsWrites", stateSettings);
+			reads = BoundedMap.create("IORunsReads", stateSettings);
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Failed to create the state maps", e);
+			shutdown();
+			return false;
+		}
+		
 		for(String artifactsKey : artifactsKeysArray){
 			if(artifactsKey.trim().isEmpty()){
 				logger.log(Level.SEVERE, "Empty value for argument '"+argNameArtifactKey+"' in array: " +
@@ -143,9 +155,8 @@ public class IORuns extends AbstractFilter {
     
     @Override
     public void putVertex(AbstractVertex incomingVertex) {
-        if ((incomingVertex instanceof Artifact) && artifactContainsAllArtifactKeys(incomingVertex)) {
-            vertexBuffer.add(incomingVertex);
-        } else {
+        // Artifacts are passed with the first edge of a run, and dropped if it has none.
+        if (!(incomingVertex instanceof Artifact) || !artifactContainsAllArtifactKeys(incomingVertex)) {
             putInNextFilter(incomingVertex);
         }
     }
@@ -156,49 +167,45 @@ public class IORuns extends AbstractFilter {
             Used usedEdge = (Used) incomingEdge;
             String fileVertexHash = getArtifactKeysValues(usedEdge.getParentVertex());
             String processVertexHash = Integer.toString(usedEdge.getChildVertex().hashCode());
-            if (!reads.containsKey(fileVertexHash)) {
+            HashSet<String> readers = reads.get(fileVertexHash);
+            if (readers == null) {
                 HashSet<String> tempSet = new HashSet<>();
                 tempSet.add(processVertexHash);
                 reads.put(fileVertexHash, tempSet);
             } else {
-                HashSet<String> tempSet = reads.get(fileVertexHash);
-                if (tempSet.contains(processVertexHash)) {
-                    vertexBuffer.remove(usedEdge.getParentVertex());
+                if (readers.contains(processVertexHash)) {
                     return;
                 } else {
-                    tempSet.add(processVertexHash);
+                    readers.add(processVertexHash);
                 }
             }
-            vertexBuffer.remove(usedEdge.getParentVertex());
             putInNextFilter(usedEdge.getParentVertex());
             putInNextFilter(usedEdge);
-            if (writes.containsKey(fileVertexHash)) {
-                HashSet<String> tempSet = writes.get(fileVertexHash);
-                tempSet.remove(processVertexHash);
+            HashSet<String> writers = writes.get(fileVertexHash);
+            if (writers != null) {
+                writers.remove(processVertexHash);
             }
         } else if ((incomingEdge instanceof WasGeneratedBy) && artifactContainsAllArtifactKeys(incomingEdge.getChildVertex())){
             WasGeneratedBy wgb = (WasGeneratedBy) incomingEdge;
             String fileVertexHash = getArtifactKeysValues(wgb.getChildVertex());
             String processVertexHash = Integer.toString(wgb.getParentVertex().hashCode());
-            if (!writes.containsKey(fileVertexHash)) {
+            HashSet<String> writers = writes.get(fileVertexHash);
+            if (writers == null) {
                 HashSet<String> tempSet = new HashSet<>();
                 tempSet.add(processVertexHash);
                 writes.put(fileVertexHash, tempSet);
             } else {
-                HashSet<String> tempSet = writes.get(fileVertexHash);
-                if (tempSet.contains(processVertexHash)) {
-                    vertexBuffer.remove(wgb.getChildVertex());
+                if (writers.contains(processVertexHash)) {
                     return;
                 } else {
-                    tempSet.add(processVertexHash);
+                    writers.add(processVertexHash);
                 }
             }
-            vertexBuffer.remove(wgb.getChildVertex());
             putInNextFilter(wgb.getChildVertex());
             putInNextFilter(wgb);
-            if (reads.containsKey(fileVertexHash)) {
-                HashSet<String> tempSet = reads.get(fileVertexHash);
-                tempSet.remove(processVertexHash);
+            HashSet<String> readers = reads.get(fileVertexHash);
+            if (readers != null) {
+                readers.remove(processVertexHash);
             }
         } else {
             putInNextFilter(incomingEdge);
@@ -207,6 +214,13 @@ public class IORuns extends AbstractFilter {
 
     @Override
     public boolean shutdown() {
+        writes.close();
+        reads.close();
         return true;
     }
+
+    @Override
+    public String getStats() {
+        return reads.getStats() + "; " + writes.getStats();
+    }
 }
@@ -0,0 +1,34 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.query.common;
+
+import spade.core.Graph;
+
+import java.util.Set;
+
+/**
+ * Implemented by the GetParents and GetChildren queries that can get the
+ * neighbors of a whole set of vertices at once.
+ */
+public interface BatchedNeighborQuery
+{
+    /**
+     * @param vertexHashes hashes of the vertices to get the neighbors of
+     * @return the neighbors of all the vertices along with the edges to them
+     */
+    Graph execute(Set<String> vertexHashes);
+}
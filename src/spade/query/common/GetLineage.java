@@ -35,6 +35,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
+import static spade.core.AbstractAnalyzer.LINEAGE_MODE;
 import static spade.core.AbstractAnalyzer.USE_SCAFFOLD;
 import static spade.core.AbstractAnalyzer.setRemoteResolutionRequired;
 import static spade.core.AbstractStorage.BUILD_SCAFFOLD;
@@ -52,11 +53,13 @@ import static spade.core.AbstractStorage.scaffold;
  */
 public class GetLineage extends AbstractQuery<Graph>
 {
-    private AbstractQuery getVertex = null;
-    private AbstractQuery getEdge = null;
-    private AbstractQuery getChildren = null;
-    private AbstractQuery getParents = null;
+    private AbstractQuery<?> getVertex = null;
+    private AbstractQuery<?> getEdge = null;
+    private AbstractQuery<?> getChildren = null;
+    private AbstractQuery<?> getParents = null;
     private static final Logger logger = Logger.getLogger(GetLineage.class.getName());
+    private static final String LINEAGE_MODE_VERTEX = "vertex";
+    private static final String LINEAGE_MODE_RECURSIVE = "recursive";
 
     public GetLineage()
     {
@@ -86,10 +89,10 @@ public class GetLineage extends AbstractQuery<Graph>
             String class_prefix = "spade.query." + storage;
             result.setMaxDepth(maxDepth);
 
-            getVertex = (AbstractQuery) Class.forName(class_prefix + ".GetVertex").newInstance();
-            getEdge = (AbstractQuery) Class.forName(class_prefix + ".GetEdge").newInstance();
-            getChildren = (AbstractQuery) Class.forName(class_prefix + ".GetChildren").newInstance();
-            getParents = (AbstractQuery) Class.forName(class_prefix + ".GetParents").newInstance();
+            getVertex = getQueryInstance(class_prefix + ".GetVertex");
+            getEdge = getQueryInstance(class_prefix + ".GetEdge");
+            getChildren = getQueryInstance(class_prefix + ".GetChildren");
+            getParents = getQueryInstance(class_prefix + ".GetParents");
 
             if(DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()) ||
                     DIRECTION_DESCENDANTS.startsWith(direction.toLowerCase()))
@@ -154,60 +157,89 @@ public class GetLineage extends AbstractQuery<Graph>
                 return null;
             }
 
-            while(!remainingVertices.isEmpty() && current_depth < maxDepth)
+            boolean ancestors = DIRECTION_ANCESTORS.startsWith(direction.toLowerCase());
+            AbstractQuery<?> neighborQuery = ancestors ? getParents : getChildren;
+            if(LINEAGE_MODE_RECURSIVE.equals(LINEAGE_MODE) && currentStorage instanceof spade.storage.PostgreSQL)
             {
-                current_depth++;
-                visitedVertices.addAll(remainingVertices);
-                Set<String> currentSet = new HashSet<>();
-                for(String vertexHash: remainingVertices)
+                // the whole lineage is computed by the database
+                Graph lineage = spade.query.postgresql.PostgreSQL.getLineage(
+                        result.getRootVertex().bigHashCode(), direction, maxDepth);
+                if(lineage == null)
                 {
-                    Graph neighbors;
-                    Map<String, List<String>> params = new HashMap<>();
-                    if(DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()))
-                    {
-                        params.put(CHILD_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, vertexHash, null));
-                        neighbors = (Graph) getParents.execute(params, limit);
-                    }
-                    else
+                    return null;
+                }
+                result.vertexSet().addAll(lineage.vertexSet());
+                result.edgeSet().addAll(lineage.edgeSet());
+                for(Map.Entry<AbstractVertex, Integer> networkVertex : lineage.networkMap().entrySet())
+                {
+                    result.putNetworkVertex(networkVertex.getKey(), networkVertex.getValue());
+                }
+            }
+            else if(!LINEAGE_MODE_VERTEX.equals(LINEAGE_MODE) && neighborQuery instanceof BatchedNeighborQuery)
+            {
+                // one query for all the vertices at the same depth
+                while(!remainingVertices.isEmpty() && current_depth < maxDepth)
+                {
+                    current_depth++;
+                    visitedVertices.addAll(remainingVertices);
+                    Graph neighbors = ((BatchedNeighborQuery) neighborQuery).execute(remainingVertices);
+                    if(neighbors == null)
                     {
-                        params.put(PARENT_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, vertexHash, null));
-                        neighbors = (Graph) getChildren.execute(params, limit);
+                        return null;
                     }
                     result.vertexSet().addAll(neighbors.vertexSet());
-                    // empty right now. TODO: make getParents and getChildren return edges too
                     result.edgeSet().addAll(neighbors.edgeSet());
+                    Set<String> currentSet = new HashSet<>();
                     for(AbstractVertex vertex : neighbors.vertexSet())
                     {
-                        // for discrepancy check
-                        vertex.setDepth(current_depth+1);
-                        String neighborHash = vertex.bigHashCode();
-//                        String neighborHash = vertex.getAnnotation(PRIMARY_KEY);
-                        if(!visitedVertices.contains(neighborHash))
-                        {
-                            currentSet.add(neighborHash);
-                        }
-                        if(vertex.isCompleteNetworkVertex())
+                        addNeighbor(result, vertex, current_depth, visitedVertices, currentSet);
+                    }
+                    remainingVertices = currentSet;
+                }
+            }
+            else
+            {
+                while(!remainingVertices.isEmpty() && current_depth < maxDepth)
+                {
+                    current_depth++;
+                    visitedVertices.addAll(remainingVertices);
+                    Set<String> currentSet = new HashSet<>();
+                    for(String vertexHash: remainingVertices)
+                    {
+                        Graph neighbors;
+                        Map<String, List<String>> params = new HashMap<>();
+                        if(ancestors)
                         {
-                            setRemoteResolutionRequired();
-                            result.putNetworkVertex(vertex, current_depth);
+                            params.put(CHILD_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, vertexHash, null));
                         }
-                        Map<String, List<String>> edgeParams = new LinkedHashMap<>();
-                        if(DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()))
+                        else
                         {
-                            edgeParams.put(CHILD_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, vertexHash, "AND"));
-                            edgeParams.put(PARENT_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, neighborHash, null));
+                            params.put(PARENT_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, vertexHash, null));
                         }
-                        else
+                        neighbors = (Graph) neighborQuery.execute(params, limit);
+                        result.vertexSet().addAll(neighbors.vertexSet());
+                        // empty right now. TODO: make getParents and getChildren return edges too
+                        result.edgeSet().addAll(neighbors.edgeSet());
+                        for(AbstractVertex vertex : neighbors.vertexSet())
                         {
-                            edgeParams.put(PARENT_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, vertexHash, "AND"));
-                            edgeParams.put(CHILD_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, neighborHash, null));
+                            String neighborHash = addNeighbor(result, vertex, current_depth, visitedVertices, currentSet);
+                            Map<String, List<String>> edgeParams = new LinkedHashMap<>();
+                            if(ancestors)
+                            {
+                                edgeParams.put(CHILD_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, vertexHash, "AND"));
+                                edgeParams.put(PARENT_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, neighborHash, null));
+                            }
+                            else
+                            {
+                                edgeParams.put(PARENT_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, vertexHash, "AND"));
+                                edgeParams.put(CHILD_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, neighborHash, null));
+                            }
+                            Set<AbstractEdge> edgeSet = (Set<AbstractEdge>) getEdge.execute(edgeParams, limit);
+                            result.edgeSet().addAll(edgeSet);
                         }
-                        Set<AbstractEdge> edgeSet = (Set<AbstractEdge>) getEdge.execute(edgeParams, limit);
-                        result.edgeSet().addAll(edgeSet);
                     }
+                    remainingVertices = currentSet;
                 }
-                remainingVertices.clear();
-                remainingVertices.addAll(currentSet);
             }
             result.setComputeTime(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z").format(new Date()));
 
@@ -219,4 +251,28 @@ public class GetLineage extends AbstractQuery<Graph>
             return null;
         }
     }
+
+    /**
+     * Sets the depth of a vertex found at the given depth and queues it for the next
+     * level if it has not been visited yet.
+     *
+     * @return hash of the vertex
+     */
+    private String addNeighbor(Graph result, AbstractVertex vertex, int current_depth,
+                               Set<String> visitedVertices, Set<String> nextVertices)
+    {
+        // for discrepancy check
+        vertex.setDepth(current_depth+1);
+        String neighborHash = vertex.bigHashCode();
+        if(!visitedVertices.contains(neighborHash))
+        {
+            nextVertices.add(neighborHash);
+        }
+        if(vertex.isCompleteNetworkVertex())
+        {
+            setRemoteResolutionRequired();
+            result.putNetworkVertex(vertex, current_depth);
+        }
+        return neighborHash;
+    }
 }
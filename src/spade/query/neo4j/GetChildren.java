@@ -17,9 +17,11 @@
 package spade.query.neo4j;
 
 import spade.core.Graph;
+import spade.query.common.BatchedNeighborQuery;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -30,7 +32,7 @@ import static spade.core.AbstractStorage.PRIMARY_KEY;
 /**
  * @author raza
  */
-public class GetChildren extends Neo4j<Graph>
+public class GetChildren extends Neo4j<Graph> implements BatchedNeighborQuery
 {
     private static final Logger logger = Logger.getLogger(GetChildren.class.getName());
 
@@ -68,4 +70,10 @@ public class GetChildren extends Neo4j<Graph>
             return null;
         }
     }
+
+    @Override
+    public Graph execute(Set<String> vertexHashes)
+    {
+        return getNeighbors(vertexHashes, false);
+    }
 }
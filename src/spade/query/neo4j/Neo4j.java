@@ -22,6 +22,7 @@ import org.neo4j.graphdb.Result;
 import spade.core.AbstractEdge;
 import spade.core.AbstractQuery;
 import spade.core.AbstractVertex;
+import spade.core.Graph;
 
 import java.util.HashSet;
 import java.util.Iterator;
@@ -31,6 +32,7 @@ import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static spade.core.AbstractStorage.PRIMARY_KEY;
 import static spade.storage.Neo4j.NodeTypes;
 import static spade.storage.Neo4j.convertNodeToVertex;
 import static spade.storage.Neo4j.convertRelationshipToEdge;
@@ -117,4 +119,43 @@ public abstract class Neo4j<R> extends AbstractQuery<R>
 
         return edgeSet;
     }
+
+    /**
+     * Returns the neighbors of all the given vertices along with the edges to them
+     * with a single query.
+     *
+     * @param vertexHashes hashes of the vertices to get the neighbors of
+     * @param parents true for the parents, false for the children
+     * @return graph with the neighbor vertices and the edges to them
+     */
+    protected Graph getNeighbors(Set<String> vertexHashes, boolean parents)
+    {
+        Graph neighbors = new Graph();
+        if(vertexHashes.isEmpty())
+        {
+            return neighbors;
+        }
+        // edges go from the child to the parent
+        String vertexAlias = parents ? "c" : "p";
+        StringBuilder query = new StringBuilder(100 + vertexHashes.size() * 36);
+        query.append("MATCH (c:").append(NodeTypes.VERTEX).append(")-[").append(EDGE_ALIAS).append("]->(p:")
+                .append(NodeTypes.VERTEX).append(")");
+        query.append(" WHERE ").append(vertexAlias).append(".").append(PRIMARY_KEY).append(" IN [");
+        boolean first = true;
+        for(String vertexHash : vertexHashes)
+        {
+            if(!first)
+                query.append(", ");
+            query.append("'").append(vertexHash).append("'");
+            first = false;
+        }
+        query.append("] RETURN ").append(EDGE_ALIAS);
+        for(AbstractEdge edge : prepareEdgeSetFromNeo4jResult(query.toString()))
+        {
+            neighbors.vertexSet().add(parents ? edge.getParentVertex() : edge.getChildVertex());
+            neighbors.edgeSet().add(edge);
+        }
+
+        return neighbors;
+    }
 }
@@ -1,21 +1,24 @@
 package spade.query.postgresql;
 
 import spade.core.Graph;
+import spade.query.common.BatchedNeighborQuery;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
 import static spade.core.AbstractStorage.CHILD_VERTEX_KEY;
+import static spade.core.AbstractStorage.DIRECTION_DESCENDANTS;
 import static spade.core.AbstractStorage.PARENT_VERTEX_KEY;
 import static spade.core.AbstractStorage.PRIMARY_KEY;
 
 /**
  * @author raza
  */
-public class GetChildren extends PostgreSQL<Graph>
+public class GetChildren extends PostgreSQL<Graph> implements BatchedNeighborQuery
 {
     public GetChildren()
     {
@@ -79,4 +82,9 @@ public class GetChildren extends PostgreSQL<Graph>
         return children;
     }
 
+    @Override
+    public Graph execute(Set<String> vertexHashes)
+    {
+        return getNeighbors(vertexHashes, DIRECTION_DESCENDANTS);
+    }
 }
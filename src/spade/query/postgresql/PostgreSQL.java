@@ -30,6 +30,7 @@ import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -38,6 +39,7 @@ import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static spade.core.AbstractAnalyzer.setRemoteResolutionRequired;
 import static spade.core.AbstractStorage.CHILD_VERTEX_KEY;
 import static spade.core.AbstractStorage.DIRECTION_ANCESTORS;
 import static spade.core.AbstractStorage.PARENT_VERTEX_KEY;
@@ -51,6 +53,8 @@ public abstract class PostgreSQL<R> extends AbstractQuery<R>
 {
     public static final String VERTEX_TABLE = "vertex";
     public static final String EDGE_TABLE = "edge";
+    // column with the depth of the vertices returned by getLineage
+    private static final String LINEAGE_DEPTH = "lineage_depth";
 
     public static Set<AbstractVertex> prepareVertexSetFromSQLResult(String query)
     {
@@ -240,4 +244,195 @@ public abstract class PostgreSQL<R> extends AbstractQuery<R>
         return result;
     }
 
+    /**
+     * Returns the neighbors of all the given vertices along with the edges to them.
+     * Unlike GetParents and GetChildren, the whole set is looked up with one query for
+     * the edges and one for the vertices.
+     *
+     * @param vertexHashes hashes of the vertices to get the neighbors of
+     * @param direction ancestors for the parents, descendants for the children
+     * @return graph with the neighbor vertices and the edges to them, or null on error
+     */
+    public static Graph getNeighbors(Collection<String> vertexHashes, String direction)
+    {
+        Graph neighbors = new Graph();
+        if(vertexHashes.isEmpty())
+        {
+            return neighbors;
+        }
+        String vertexKey = DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()) ? CHILD_VERTEX_KEY : PARENT_VERTEX_KEY;
+        String neighborKey = vertexKey.equals(CHILD_VERTEX_KEY) ? PARENT_VERTEX_KEY : CHILD_VERTEX_KEY;
+        String edgeQuery = "SELECT * FROM " + EDGE_TABLE + " WHERE \"" + vertexKey + "\" = ANY(?::uuid[]);";
+        try
+        {
+            spade.storage.PostgreSQL storage = (spade.storage.PostgreSQL) currentStorage;
+            List<Map<String, String>> edgeRows = readRows(storage.executeQuery(edgeQuery, vertexHashes));
+            Set<String> neighborHashes = new HashSet<>();
+            for(Map<String, String> edgeRow : edgeRows)
+            {
+                neighborHashes.add(edgeRow.get(neighborKey));
+            }
+            Set<String> endpointHashes = new HashSet<>(neighborHashes);
+            endpointHashes.addAll(vertexHashes);
+            String vertexQuery = "SELECT * FROM " + VERTEX_TABLE + " WHERE \"" + PRIMARY_KEY + "\" = ANY(?::uuid[]);";
+            Map<String, AbstractVertex> vertices = new HashMap<>();
+            for(Map<String, String> vertexRow : readRows(storage.executeQuery(vertexQuery, endpointHashes)))
+            {
+                vertices.put(vertexRow.remove(PRIMARY_KEY), createVertex(vertexRow));
+            }
+            for(String neighborHash : neighborHashes)
+            {
+                AbstractVertex neighbor = vertices.get(neighborHash);
+                if(neighbor != null)
+                {
+                    neighbors.vertexSet().add(neighbor);
+                }
+            }
+            neighbors.edgeSet().addAll(createEdges(edgeRows, vertices));
+        }
+        catch(Exception ex)
+        {
+            Logger.getLogger(PostgreSQL.class.getName()).log(Level.SEVERE, "Error getting neighbors!", ex);
+            return null;
+        }
+
+        return neighbors;
+    }
+
+    /**
+     * Computes the lineage of a vertex in the database with a recursive query, so that
+     * only two round trips are needed whatever the depth. The depth of the vertices
+     * and the network vertices are set as by the level by level traversal.
+     *
+     * @param vertexHash hash of the root vertex
+     * @param direction ancestors or descendants
+     * @param maxDepth maximum depth of the lineage
+     * @return lineage graph without the root vertex, or null on error
+     */
+    public static Graph getLineage(String vertexHash, String direction, int maxDepth)
+    {
+        Graph result = new Graph();
+        String vertexKey = DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()) ? CHILD_VERTEX_KEY : PARENT_VERTEX_KEY;
+        String neighborKey = vertexKey.equals(CHILD_VERTEX_KEY) ? PARENT_VERTEX_KEY : CHILD_VERTEX_KEY;
+        // lineage has a row for every depth at which a vertex is reached and
+        // reached keeps the smallest one
+        String lineage = "WITH RECURSIVE lineage(hash, depth) AS ("
+                + "SELECT CAST(? AS uuid), 0 "
+                + "UNION SELECT e.\"" + neighborKey + "\", l.depth + 1 FROM " + EDGE_TABLE + " e, lineage l"
+                + " WHERE e.\"" + vertexKey + "\" = l.hash AND l.depth < ?), "
+                + "reached AS (SELECT hash, MIN(depth) AS depth FROM lineage GROUP BY hash) ";
+        String vertexQuery = lineage + "SELECT v.*, r.depth AS " + LINEAGE_DEPTH + " FROM " + VERTEX_TABLE + " v"
+                + " JOIN reached r ON v.\"" + PRIMARY_KEY + "\" = r.hash;";
+        String edgeQuery = lineage + "SELECT e.* FROM " + EDGE_TABLE + " e"
+                + " JOIN reached r ON e.\"" + vertexKey + "\" = r.hash WHERE r.depth < ?;";
+        try
+        {
+            spade.storage.PostgreSQL storage = (spade.storage.PostgreSQL) currentStorage;
+            Map<String, AbstractVertex> vertices = new HashMap<>();
+            for(Map<String, String> vertexRow : readRows(storage.executeQuery(vertexQuery, vertexHash, maxDepth)))
+            {
+                int depth = Integer.parseInt(vertexRow.remove(LINEAGE_DEPTH));
+                AbstractVertex vertex = createVertex(vertexRow);
+                vertices.put(vertexRow.get(PRIMARY_KEY), vertex);
+                if(depth == 0)
+                {
+                    continue;
+                }
+                vertex.setDepth(depth + 1);
+                if(vertex.isCompleteNetworkVertex())
+                {
+                    setRemoteResolutionRequired();
+                    result.putNetworkVertex(vertex, depth);
+                }
+                result.vertexSet().add(vertex);
+            }
+            List<Map<String, String>> edgeRows = readRows(storage.executeQuery(edgeQuery, vertexHash, maxDepth, maxDepth));
+            result.edgeSet().addAll(createEdges(edgeRows, vertices));
+        }
+        catch(Exception ex)
+        {
+            Logger.getLogger(PostgreSQL.class.getName()).log(Level.SEVERE, "Error getting lineage!", ex);
+            return null;
+        }
+
+        return result;
+    }
+
+    /**
+     * Reads all the rows of the result and closes it. The hash columns are returned
+     * without dashes so that they match bigHashCode.
+     */
+    private static List<Map<String, String>> readRows(ResultSet result) throws SQLException
+    {
+        if(result == null)
+        {
+            throw new SQLException("Query execution not successful");
+        }
+        List<Map<String, String>> rows = new ArrayList<>();
+        try
+        {
+            ResultSetMetaData metadata = result.getMetaData();
+            int columnCount = metadata.getColumnCount();
+            String[] columnLabels = new String[columnCount + 1];
+            for(int i = 1; i <= columnCount; i++)
+            {
+                columnLabels[i] = metadata.getColumnName(i);
+            }
+            while(result.next())
+            {
+                Map<String, String> row = new HashMap<>();
+                for(int i = 1; i <= columnCount; i++)
+                {
+                    String value = result.getString(i);
+                    if(value != null && columnLabels[i] != null)
+                    {
+                        if(columnLabels[i].equals(PRIMARY_KEY) || columnLabels[i].equals(CHILD_VERTEX_KEY)
+                                || columnLabels[i].equals(PARENT_VERTEX_KEY))
+                        {
+                            value = stripDashes(value);
+                        }
+                        row.put(columnLabels[i], value);
+                    }
+                }
+                rows.add(row);
+            }
+        }
+        finally
+        {
+            result.close();
+        }
+        return rows;
+    }
+
+    private static AbstractVertex createVertex(Map<String, String> vertexRow)
+    {
+        AbstractVertex vertex = new Vertex();
+        for(Map.Entry<String, String> column : vertexRow.entrySet())
+        {
+            if(!column.getKey().equals(PRIMARY_KEY))
+            {
+                vertex.addAnnotation(column.getKey(), column.getValue());
+            }
+        }
+        return vertex;
+    }
+
+    private static Set<AbstractEdge> createEdges(List<Map<String, String>> edgeRows, Map<String, AbstractVertex> vertices)
+    {
+        Set<AbstractEdge> edgeSet = new HashSet<>();
+        for(Map<String, String> edgeRow : edgeRows)
+        {
+            AbstractVertex childVertex = vertices.get(edgeRow.remove(CHILD_VERTEX_KEY));
+            AbstractVertex parentVertex = vertices.get(edgeRow.remove(PARENT_VERTEX_KEY));
+            if(childVertex == null || parentVertex == null)
+            {
+                continue;
+            }
+            edgeRow.remove(PRIMARY_KEY);
+            AbstractEdge edge = new Edge(childVertex, parentVertex);
+            edge.addAnnotations(edgeRow);
+            edgeSet.add(edge);
+        }
+        return edgeSet;
+    }
 }
@@ -0,0 +1,116 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.query.scaffold;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An int array backed by a memory-mapped file. The file is mapped in fixed size
+ * segments as the array grows, so the array can be larger than a single mapping
+ * and the ints are written to the page cache without copies or serialization.
+ * The ints are in the native byte order so the files are not portable.
+ *
+ * Not thread-safe. Segments are only added by set, so concurrent gets are safe
+ * as long as no set runs at the same time.
+ */
+class MappedIntArray
+{
+    // 2^24 ints = 64 MB per segment
+    private static final int SEGMENT_BITS = 24;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final List<MappedByteBuffer> mappings = new ArrayList<>();
+    private IntBuffer[] segments = new IntBuffer[0];
+
+    MappedIntArray(File path) throws IOException
+    {
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+        // map the existing content
+        long existingSegments = (channel.size() / 4 + SEGMENT_MASK) >>> SEGMENT_BITS;
+        for(long i = 0; i < existingSegments; i++)
+        {
+            addSegment();
+        }
+    }
+
+    /**
+     * @return the value at the index, or 0 if it has never been set
+     */
+    int get(long index)
+    {
+        int segment = (int) (index >>> SEGMENT_BITS);
+        if(segment >= segments.length)
+        {
+            return 0;
+        }
+        return segments[segment].get((int) (index & SEGMENT_MASK));
+    }
+
+    void set(long index, int value) throws IOException
+    {
+        int segment = (int) (index >>> SEGMENT_BITS);
+        while(segment >= segments.length)
+        {
+            addSegment();
+        }
+        segments[segment].put((int) (index & SEGMENT_MASK), value);
+    }
+
+    /**
+     * Writes the modified pages to the disk.
+     */
+    void force()
+    {
+        for(MappedByteBuffer mapping : mappings)
+        {
+            mapping.force();
+        }
+    }
+
+    void close() throws IOException
+    {
+        force();
+        mappings.clear();
+        segments = new IntBuffer[0];
+        channel.close();
+        file.close();
+    }
+
+    private void addSegment() throws IOException
+    {
+        long position = (long) segments.length * SEGMENT_SIZE * 4;
+        // mapping past the end of the file extends it
+        MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_WRITE, position, (long) SEGMENT_SIZE * 4);
+        IntBuffer[] newSegments = new IntBuffer[segments.length + 1];
+        System.arraycopy(segments, 0, newSegments, 0, segments.length);
+        newSegments[segments.length] = mapping.order(ByteOrder.nativeOrder()).asIntBuffer();
+        mappings.add(mapping);
+        segments = newSegments;
+    }
+}
@@ -0,0 +1,797 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.query.scaffold;
+
+import spade.core.AbstractEdge;
+import spade.core.Graph;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static spade.core.AbstractQuery.COL_VALUE;
+import static spade.core.AbstractQuery.getCurrentStorage;
+import static spade.core.AbstractStorage.CHILD_VERTEX_KEY;
+import static spade.core.AbstractStorage.DIRECTION;
+import static spade.core.AbstractStorage.DIRECTION_ANCESTORS;
+import static spade.core.AbstractStorage.DIRECTION_DESCENDANTS;
+import static spade.core.AbstractStorage.MAX_DEPTH;
+import static spade.core.AbstractStorage.PARENT_VERTEX_KEY;
+import static spade.core.AbstractStorage.PRIMARY_KEY;
+
+/**
+ * Scaffold that keeps the parents and the children of every vertex in
+ * memory-mapped int arrays.
+ *
+ * Every 128-bit vertex hash is given a dense int id in the order in which the
+ * vertices are first seen. The hashes are stored by id in the 'vertices' file
+ * and the index from hash to id is rebuilt from it when the scaffold is opened.
+ *
+ * The neighbors of a vertex in each direction are stored as ids in a chain of
+ * append-only blocks. A block holds the offset of the previous block of the
+ * vertex, the number of ids in it, its capacity and the ids. The capacity of
+ * the blocks of a vertex doubles up to MAX_BLOCK_CAPACITY, so the neighbors of
+ * a vertex are a few contiguous runs however many there are, and an edge is
+ * inserted without reading or rewriting the existing neighbors. The queries
+ * walk the blocks with primitive breadth-first loops and only turn the ids
+ * into hashes for the result.
+ */
+public class MemoryMapped extends Scaffold
+{
+    private static final Logger logger = Logger.getLogger(MemoryMapped.class.getName());
+
+    private static final int HASH_INTS = 4;
+    private static final int INITIAL_INDEX_CAPACITY = 1 << 16;
+
+    // previous block, count and capacity
+    private static final int BLOCK_HEADER = 3;
+    private static final int INITIAL_BLOCK_CAPACITY = 4;
+    private static final int MAX_BLOCK_CAPACITY = 1024;
+    // offset 0 means that a vertex has no block
+    private static final int FIRST_BLOCK_OFFSET = 1;
+
+    // entries of the header file
+    private static final int HEADER_VERTEX_COUNT = 0;
+    private static final int HEADER_PARENTS_END = 1;
+    private static final int HEADER_CHILDREN_END = 2;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private MappedIntArray header;
+    private MappedIntArray vertices;
+    private Adjacency parents;
+    private Adjacency children;
+    private int vertexCount;
+    private long edgeCount = 0;
+
+    /**
+     * Open addressing index from hash to id. A slot holds id + 1 and the hash
+     * is compared against the vertices file.
+     */
+    private int[] indexSlots;
+    private int indexMask;
+
+    /**
+     * This method is invoked by the kernel to initialize the storage.
+     *
+     * @param arguments The directory path of the scaffold storage.
+     * @return True if the storage was initialized successfully.
+     */
+    @Override
+    public boolean initialize(String arguments)
+    {
+        directoryPath = arguments;
+        try
+        {
+            File directory = new File(directoryPath);
+            if(!directory.exists() && !directory.mkdirs())
+            {
+                logger.log(Level.SEVERE, "Unable to create scaffold directory: " + directoryPath);
+                return false;
+            }
+            header = new MappedIntArray(new File(directory, "header"));
+            vertices = new MappedIntArray(new File(directory, "vertices"));
+            parents = new Adjacency(new File(directory, "parents.heads"), new File(directory, "parents.blocks"),
+                    HEADER_PARENTS_END);
+            children = new Adjacency(new File(directory, "children.heads"), new File(directory, "children.blocks"),
+                    HEADER_CHILDREN_END);
+            vertexCount = header.get(HEADER_VERTEX_COUNT);
+            int capacity = INITIAL_INDEX_CAPACITY;
+            while(capacity < vertexCount * 2L)
+            {
+                capacity <<= 1;
+            }
+            indexSlots = new int[capacity];
+            indexMask = capacity - 1;
+            for(int id = 0; id < vertexCount; id++)
+            {
+                indexSlots[findSlot(vertices.get(id * HASH_INTS), vertices.get(id * HASH_INTS + 1),
+                        vertices.get(id * HASH_INTS + 2), vertices.get(id * HASH_INTS + 3))] = id + 1;
+            }
+            logger.log(Level.INFO, "Scaffold initialized with " + vertexCount + " vertices");
+            return true;
+        }
+        catch(IOException ex)
+        {
+            logger.log(Level.SEVERE, "Unable to open scaffold files!", ex);
+        }
+
+        return false;
+    }
+
+    /**
+     * The arrays are written to the page cache as the edges are inserted, so
+     * they survive a crash of the process. A forced flush writes them to disk.
+     */
+    @Override
+    protected void globalTxCheckin(boolean forcedFlush)
+    {
+        if(forcedFlush)
+        {
+            header.force();
+            vertices.force();
+            parents.force();
+            children.force();
+        }
+    }
+
+    /**
+     * This method is invoked by the AbstractStorage to shut down the storage.
+     *
+     * @return True if scaffold was shut down successfully.
+     */
+    @Override
+    public boolean shutdown()
+    {
+        lock.writeLock().lock();
+        try
+        {
+            if(header != null)
+            {
+                header.close();
+                vertices.close();
+                parents.close();
+                children.close();
+                header = null;
+                logger.log(Level.INFO, "Scaffold closed with " + vertexCount + " vertices. Edges inserted: " + edgeCount);
+            }
+            return true;
+        }
+        catch(IOException ex)
+        {
+            logger.log(Level.SEVERE, "Unable to close scaffold files!", ex);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+
+        return false;
+    }
+
+    @Override
+    public Set<String> getChildren(String parentHash)
+    {
+        return getNeighbors(parentHash, children);
+    }
+
+    @Override
+    public Set<String> getParents(String childHash)
+    {
+        return getNeighbors(childHash, parents);
+    }
+
+    @Override
+    public Set<String> getNeighbors(String hash)
+    {
+        Set<String> neighbors = getChildren(hash);
+        Set<String> parentHashes = getParents(hash);
+        if(neighbors != null && parentHashes != null)
+        {
+            neighbors.addAll(parentHashes);
+        }
+
+        return neighbors;
+    }
+
+    private Set<String> getNeighbors(String hash, Adjacency adjacency)
+    {
+        lock.readLock().lock();
+        try
+        {
+            int id = getId(hash);
+            if(id < 0)
+            {
+                return null;
+            }
+            IntList neighbors = new IntList();
+            adjacency.getNeighbors(id, neighbors);
+            Set<String> neighborHashes = new HashSet<>();
+            for(int i = 0; i < neighbors.size; i++)
+            {
+                neighborHashes.add(getHash(neighbors.values[i]));
+            }
+            return neighborHashes;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Set<String>> getLineage(String hash, String direction, int maxDepth)
+    {
+        Adjacency adjacency = getAdjacency(direction);
+        if(adjacency == null)
+        {
+            return null;
+        }
+        lock.readLock().lock();
+        try
+        {
+            int id = getId(hash);
+            if(id < 0)
+            {
+                return null;
+            }
+            Map<String, Set<String>> lineageMap = new HashMap<>();
+            IntIntMap visited = new IntIntMap();
+            visited.putIfAbsent(id, 0);
+            IntList frontier = new IntList();
+            IntList nextFrontier = new IntList();
+            IntList neighbors = new IntList();
+            frontier.add(id);
+            for(int depth = 0; depth < maxDepth && frontier.size > 0; depth++)
+            {
+                nextFrontier.size = 0;
+                for(int i = 0; i < frontier.size; i++)
+                {
+                    int vertex = frontier.values[i];
+                    neighbors.size = 0;
+                    adjacency.getNeighbors(vertex, neighbors);
+                    if(neighbors.size == 0)
+                    {
+                        continue;
+                    }
+                    Set<String> neighborHashes = new HashSet<>();
+                    for(int j = 0; j < neighbors.size; j++)
+                    {
+                        int neighbor = neighbors.values[j];
+                        neighborHashes.add(getHash(neighbor));
+                        if(visited.putIfAbsent(neighbor, depth + 1))
+                        {
+                            nextFrontier.add(neighbor);
+                        }
+                    }
+                    lineageMap.put(getHash(vertex), neighborHashes);
+                }
+                IntList swap = frontier;
+                frontier = nextFrontier;
+                nextFrontier = swap;
+            }
+
+            return lineageMap;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return map from every vertex on a path of at most maxLength edges from the
+     * source up to the destination to its parents on such paths, or null if either
+     * vertex is not in the scaffold
+     */
+    @Override
+    public Map<String, Set<String>> getPaths(String source_hash, String destination_hash, int maxLength)
+    {
+        lock.readLock().lock();
+        try
+        {
+            int sourceId = getId(source_hash);
+            int destinationId = getId(destination_hash);
+            if(sourceId < 0 || destinationId < 0)
+            {
+                return null;
+            }
+            IntIntMap fromSource = getDistances(sourceId, parents, maxLength);
+            IntIntMap toDestination = getDistances(destinationId, children, maxLength);
+            Map<String, Set<String>> paths = new HashMap<>();
+            IntList vertexParents = new IntList();
+            for(int slot = 0; slot < fromSource.keys.length; slot++)
+            {
+                int vertex = fromSource.keys[slot];
+                if(vertex == IntIntMap.EMPTY)
+                {
+                    continue;
+                }
+                int distance = fromSource.values[slot];
+                int remaining = toDestination.get(vertex);
+                if(remaining <= 0 || distance + remaining > maxLength)
+                {
+                    continue;
+                }
+                vertexParents.size = 0;
+                parents.getNeighbors(vertex, vertexParents);
+                Set<String> pathParents = null;
+                for(int i = 0; i < vertexParents.size; i++)
+                {
+                    int parent = vertexParents.values[i];
+                    int parentRemaining = toDestination.get(parent);
+                    if(parentRemaining >= 0 && distance + 1 + parentRemaining <= maxLength)
+                    {
+                        if(pathParents == null)
+                        {
+                            pathParents = new HashSet<>();
+                            paths.put(getHash(vertex), pathParents);
+                        }
+                        pathParents.add(getHash(parent));
+                    }
+                }
+            }
+
+            return paths;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the vertices reachable from the id in at most maxDepth steps, mapped
+     * to their distance from it
+     */
+    private IntIntMap getDistances(int id, Adjacency adjacency, int maxDepth)
+    {
+        IntIntMap distances = new IntIntMap();
+        distances.putIfAbsent(id, 0);
+        IntList frontier = new IntList();
+        IntList nextFrontier = new IntList();
+        frontier.add(id);
+        for(int depth = 0; depth < maxDepth && frontier.size > 0; depth++)
+        {
+            nextFrontier.size = 0;
+            for(int i = 0; i < frontier.size; i++)
+            {
+                adjacency.getNeighbors(frontier.values[i], nextFrontier, distances, depth + 1);
+            }
+            IntList swap = frontier;
+            frontier = nextFrontier;
+            nextFrontier = swap;
+        }
+
+        return distances;
+    }
+
+    /**
+     * This function inserts hashes of the end vertices of given edge
+     * into the scaffold storage.
+     *
+     * @param incomingEdge edge whose end points to insert into the storage
+     * @return returns true if the insertion is successful.
+     */
+    @Override
+    public boolean insertEntry(AbstractEdge incomingEdge)
+    {
+        String childHash = incomingEdge.getAnnotations().containsKey(CHILD_VERTEX_KEY) ?
+                incomingEdge.getAnnotation(CHILD_VERTEX_KEY) : incomingEdge.getChildVertex().bigHashCode();
+        String parentHash = incomingEdge.getAnnotations().containsKey(PARENT_VERTEX_KEY) ?
+                incomingEdge.getAnnotation(PARENT_VERTEX_KEY) : incomingEdge.getParentVertex().bigHashCode();
+        lock.writeLock().lock();
+        try
+        {
+            int childId = getOrAddId(childHash);
+            int parentId = getOrAddId(parentHash);
+            if(childId < 0 || parentId < 0)
+            {
+                logger.log(Level.WARNING, "Invalid vertex hash in edge: " + childHash + " -> " + parentHash);
+                return false;
+            }
+            parents.add(childId, parentId);
+            children.add(parentId, childId);
+            edgeCount++;
+            return true;
+        }
+        catch(IOException ex)
+        {
+            logger.log(Level.SEVERE, "Scaffold entry insertion error!", ex);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+
+        return false;
+    }
+
+    @Override
+    public Graph queryManager(Map<String, List<String>> params)
+    {
+        try
+        {
+            String hash = params.get(PRIMARY_KEY).get(COL_VALUE);
+            String direction = params.get(DIRECTION).get(0);
+            int maxDepth = Integer.parseInt(params.get(MAX_DEPTH).get(0));
+            Map<String, Set<String>> lineageMap = getLineage(hash, direction, maxDepth);
+            if(lineageMap != null)
+            {
+                String storageName = getCurrentStorage().getClass().getSimpleName();
+                String className = "spade.query." + storageName.toLowerCase() + "." + storageName;
+                Class<?> queryClass = Class.forName(className);
+                Method method = queryClass.getMethod("constructGraphFromLineageMap", Map.class, String.class);
+
+                return (Graph) method.invoke(null, lineageMap, direction);
+            }
+        }
+        catch(Exception ex)
+        {
+            logger.log(Level.SEVERE, "Error in query manager!", ex);
+        }
+
+        return null;
+    }
+
+    private Adjacency getAdjacency(String direction)
+    {
+        if(DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()))
+        {
+            return parents;
+        }
+        else if(DIRECTION_DESCENDANTS.startsWith(direction.toLowerCase()))
+        {
+            return children;
+        }
+        return null;
+    }
+
+    /**
+     * @return id of the hash or -1 if it is not in the scaffold or is not a 128-bit hex hash
+     */
+    private int getId(String hash)
+    {
+        int[] parts = parseHash(hash);
+        if(parts == null)
+        {
+            return -1;
+        }
+        return indexSlots[findSlot(parts[0], parts[1], parts[2], parts[3])] - 1;
+    }
+
+    private int getOrAddId(String hash) throws IOException
+    {
+        int[] parts = parseHash(hash);
+        if(parts == null)
+        {
+            return -1;
+        }
+        int slot = findSlot(parts[0], parts[1], parts[2], parts[3]);
+        if(indexSlots[slot] != 0)
+        {
+            return indexSlots[slot] - 1;
+        }
+        int id = vertexCount;
+        for(int i = 0; i < HASH_INTS; i++)
+        {
+            vertices.set((long) id * HASH_INTS + i, parts[i]);
+        }
+        indexSlots[slot] = id + 1;
+        vertexCount++;
+        header.set(HEADER_VERTEX_COUNT, vertexCount);
+        if(vertexCount * 2L > indexSlots.length)
+        {
+            growIndex();
+        }
+        return id;
+    }
+
+    /**
+     * @return the slot of the hash, or the empty slot where it would go
+     */
+    private int findSlot(int part0, int part1, int part2, int part3)
+    {
+        // the hashes are uniformly distributed already
+        int slot = (part0 ^ part3) & indexMask;
+        while(true)
+        {
+            int entry = indexSlots[slot];
+            if(entry == 0)
+            {
+                return slot;
+            }
+            long offset = (long) (entry - 1) * HASH_INTS;
+            if(vertices.get(offset) == part0 && vertices.get(offset + 1) == part1
+                    && vertices.get(offset + 2) == part2 && vertices.get(offset + 3) == part3)
+            {
+                return slot;
+            }
+            slot = (slot + 1) & indexMask;
+        }
+    }
+
+    private void growIndex()
+    {
+        int[] oldSlots = indexSlots;
+        indexSlots = new int[oldSlots.length * 2];
+        indexMask = indexSlots.length - 1;
+        for(int entry : oldSlots)
+        {
+            if(entry != 0)
+            {
+                long offset = (long) (entry - 1) * HASH_INTS;
+                int slot = (vertices.get(offset) ^ vertices.get(offset + 3)) & indexMask;
+                while(indexSlots[slot] != 0)
+                {
+                    slot = (slot + 1) & indexMask;
+                }
+                indexSlots[slot] = entry;
+            }
+        }
+    }
+
+    private static int[] parseHash(String hash)
+    {
+        if(hash == null || hash.length() != HASH_INTS * 8)
+        {
+            return null;
+        }
+        int[] parts = new int[HASH_INTS];
+        for(int i = 0; i < hash.length(); i++)
+        {
+            int digit = Character.digit(hash.charAt(i), 16);
+            if(digit < 0)
+            {
+                return null;
+            }
+            parts[i >> 3] = (parts[i >> 3] << 4) | digit;
+        }
+        return parts;
+    }
+
+    private String getHash(int id)
+    {
+        char[] hex = new char[HASH_INTS * 8];
+        for(int i = 0; i < HASH_INTS; i++)
+        {
+            int part = vertices.get((long) id * HASH_INTS + i);
+            for(int j = 7; j >= 0; j--)
+            {
+                hex[i * 8 + j] = HEX_DIGITS[part & 0xf];
+                part >>>= 4;
+            }
+        }
+        return new String(hex);
+    }
+
+    /**
+     * The neighbors of all the vertices in one direction.
+     */
+    private class Adjacency
+    {
+        // id to the offset of the newest block of the vertex
+        private final MappedIntArray heads;
+        private final MappedIntArray blocks;
+        private final int headerEntry;
+        private int end;
+
+        private Adjacency(File headsFile, File blocksFile, int headerEntry) throws IOException
+        {
+            this.heads = new MappedIntArray(headsFile);
+            this.blocks = new MappedIntArray(blocksFile);
+            this.headerEntry = headerEntry;
+            this.end = Math.max(FIRST_BLOCK_OFFSET, header.get(headerEntry));
+        }
+
+        private void add(int id, int neighbor) throws IOException
+        {
+            int block = heads.get(id);
+            int capacity = INITIAL_BLOCK_CAPACITY;
+            if(block != 0)
+            {
+                int count = blocks.get(block + 1);
+                // repeated edges between the same vertices usually come together
+                if(blocks.get((long) block + BLOCK_HEADER + count - 1) == neighbor)
+                {
+                    return;
+                }
+                int blockCapacity = blocks.get(block + 2);
+                if(count < blockCapacity)
+                {
+                    blocks.set((long) block + BLOCK_HEADER + count, neighbor);
+                    blocks.set(block + 1, count + 1);
+                    return;
+                }
+                capacity = Math.min(blockCapacity * 2, MAX_BLOCK_CAPACITY);
+            }
+            if((long) end + BLOCK_HEADER + capacity > Integer.MAX_VALUE)
+            {
+                throw new IOException("Scaffold adjacency file is full");
+            }
+            int newBlock = end;
+            blocks.set(newBlock, block);
+            blocks.set(newBlock + 1, 1);
+            blocks.set(newBlock + 2, capacity);
+            blocks.set(newBlock + BLOCK_HEADER, neighbor);
+            end = newBlock + BLOCK_HEADER + capacity;
+            header.set(headerEntry, end);
+            heads.set(id, newBlock);
+        }
+
+        private void getNeighbors(int id, IntList output)
+        {
+            for(int block = heads.get(id); block != 0; block = blocks.get(block))
+            {
+                int count = blocks.get(block + 1);
+                long start = (long) block + BLOCK_HEADER;
+                for(int i = 0; i < count; i++)
+                {
+                    output.add(blocks.get(start + i));
+                }
+            }
+        }
+
+        /**
+         * Adds the neighbors of the id that are not in visited yet to the output and
+         * to visited with the given depth.
+         */
+        private void getNeighbors(int id, IntList output, IntIntMap visited, int depth)
+        {
+            for(int block = heads.get(id); block != 0; block = blocks.get(block))
+            {
+                int count = blocks.get(block + 1);
+                long start = (long) block + BLOCK_HEADER;
+                for(int i = 0; i < count; i++)
+                {
+                    int neighbor = blocks.get(start + i);
+                    if(visited.putIfAbsent(neighbor, depth))
+                    {
+                        output.add(neighbor);
+                    }
+                }
+            }
+        }
+
+        private void force()
+        {
+            heads.force();
+            blocks.force();
+        }
+
+        private void close() throws IOException
+        {
+            heads.close();
+            blocks.close();
+        }
+    }
+
+    private static class IntList
+    {
+        private int[] values = new int[16];
+        private int size = 0;
+
+        private void add(int value)
+        {
+            if(size == values.length)
+            {
+                int[] newValues = new int[size * 2];
+                System.arraycopy(values, 0, newValues, 0, size);
+                values = newValues;
+            }
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * Open addressing map from non-negative int to int.
+     */
+    private static class IntIntMap
+    {
+        private static final int EMPTY = -1;
+
+        private int[] keys = newKeys(16);
+        private int[] values = new int[16];
+        private int size = 0;
+
+        private static int[] newKeys(int capacity)
+        {
+            int[] keys = new int[capacity];
+            Arrays.fill(keys, EMPTY);
+            return keys;
+        }
+
+        private static int slot(int key, int mask)
+        {
+            // ids are dense so they are spread before masking
+            int hash = key * 0x9E3779B9;
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+
+        /**
+         * @return the value of the key or -1 if it is not in the map
+         */
+        private int get(int key)
+        {
+            int mask = keys.length - 1;
+            for(int slot = slot(key, mask); keys[slot] != EMPTY; slot = (slot + 1) & mask)
+            {
+                if(keys[slot] == key)
+                {
+                    return values[slot];
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return true if the key was added, false if it was in the map already
+         */
+        private boolean putIfAbsent(int key, int value)
+        {
+            int mask = keys.length - 1;
+            int slot = slot(key, mask);
+            while(keys[slot] != EMPTY)
+            {
+                if(keys[slot] == key)
+                {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+            if(++size * 2 > keys.length)
+            {
+                grow();
+            }
+            return true;
+        }
+
+        private void grow()
+        {
+            int[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = newKeys(oldKeys.length * 2);
+            values = new int[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for(int i = 0; i < oldKeys.length; i++)
+            {
+                if(oldKeys[i] != EMPTY)
+                {
+                    int slot = slot(oldKeys[i], mask);
+                    while(keys[slot] != EMPTY)
+                    {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+    }
+}
@@ -235,6 +235,11 @@ public class Audit extends AbstractReporter {
 	private boolean HARDEN = false;
 	private String REPORT_KILL_KEY = "reportKill";
 	private boolean REPORT_KILL = true;
+	private String PLAYBACK_SHARDS_KEY = "playbackShards";
+	private int PLAYBACK_SHARDS = 1; // Number of threads parsing the events in case of log playback
+	private final int PLAYBACK_BATCH_SIZE = 256; // Number of events handed to a parsing thread at a time
+	private String REORDER_WINDOW_KEY = "reorderWindow";
+	private int REORDER_WINDOW = 0; // Number of records kept to put an out of order log in order in case of log playback
 	
 	private String deleteModuleBinaryPath = null;
 	/********************** BEHAVIOR FLAGS - END *************************/
@@ -568,6 +573,34 @@ public class Audit extends AbstractReporter {
 			}
 		}
 		
+		String playbackShardsValue = args.get(PLAYBACK_SHARDS_KEY);
+		if(playbackShardsValue != null){
+			Integer playbackShards = CommonFunctions.parseInt(playbackShardsValue, null);
+			if(playbackShards == null || playbackShards < 1){
+				logger.log(Level.SEVERE, "'"+PLAYBACK_SHARDS_KEY+"' must be a positive integer: '" + playbackShardsValue+"'");
+				return false;
+			}else if(!logPlayback && playbackShards > 1){
+				logger.log(Level.SEVERE, "'"+PLAYBACK_SHARDS_KEY+"' can only be used with log playback");
+				return false;
+			}else{
+				PLAYBACK_SHARDS = playbackShards;
+			}
+		}
+		
+		String reorderWindowValue = args.get(REORDER_WINDOW_KEY);
+		if(reorderWindowValue != null){
+			Integer reorderWindow = CommonFunctions.parseInt(reorderWindowValue, null);
+			if(reorderWindow == null || reorderWindow < 0){
+				logger.log(Level.SEVERE, "'"+REORDER_WINDOW_KEY+"' must be a non-negative integer: '" + reorderWindowValue+"'");
+				return false;
+			}else if(!logPlayback && reorderWindow > 0){
+				logger.log(Level.SEVERE, "'"+REORDER_WINDOW_KEY+"' can only be used with log playback");
+				return false;
+			}else{
+				REORDER_WINDOW = reorderWindow;
+			}
+		}
+		
 		if((ADD_KM && NETFILTER_RULES) // both can't be true
 				|| ((HANDLE_KM_RECORDS != null && HANDLE_KM_RECORDS) && REFINE_NET)){ // both can't be true
 			logger.log(Level.SEVERE, "Incompatible flags value (Can only handle data from either module or iptables): "
@@ -582,12 +615,13 @@ public class Audit extends AbstractReporter {
 			}else{
 				// Logging only relevant flags now for debugging
 				logger.log(Level.INFO, "Audit flags: {0}={1}, {2}={3}, {4}={5}, {6}={7}, {8}={9}, {10}={11}, {12}={13}, "
-                           + "{14}={15}, {16}={17}, {18}={19}, {20}={21}, {22}={23}, {24}={25}",
+                           + "{14}={15}, {16}={17}, {18}={19}, {20}={21}, {22}={23}, {24}={25}, {26}={27}, {28}={29}",
 						new Object[]{"syscall", args.get("syscall"), "fileIO", USE_READ_WRITE, "netIO", USE_SOCK_SEND_RCV, 
 								"units", CREATE_BEEP_UNITS, "waitForLog", WAIT_FOR_LOG_END, "netfilter", NETFILTER_RULES, 
 								"refineNet", REFINE_NET, ADD_KM_KEY, ADD_KM, 
 								HANDLE_KM_RECORDS_KEY, HANDLE_KM_RECORDS, "failfast", FAIL_FAST,
-								mergeUnitKey, mergeUnit, HARDEN_KEY, HARDEN, REPORT_KILL_KEY, REPORT_KILL});
+								mergeUnitKey, mergeUnit, HARDEN_KEY, HARDEN, REPORT_KILL_KEY, REPORT_KILL,
+								PLAYBACK_SHARDS_KEY, PLAYBACK_SHARDS, REORDER_WINDOW_KEY, REORDER_WINDOW});
 				logger.log(Level.INFO, globals.toString());
 				return true;
 			}
@@ -1109,6 +1143,14 @@ public class Audit extends AbstractReporter {
 			if(outputLogFilePath != null){
 				auditEventReader.setOutputLog(outputLogFilePath, recordsToRotateOutputLogAfter);
 			}
+			if(!isLiveAudit && REORDER_WINDOW > 0){
+				// Records are put in order as they are read instead of sorting the log before
+				auditEventReader.setReorderWindow(REORDER_WINDOW);
+			}
+			if(!isLiveAudit && PLAYBACK_SHARDS > 1){
+				// Events are still handled in the order read. Only the parsing is split across threads.
+				auditEventReader.setParserThreads(PLAYBACK_SHARDS, PLAYBACK_BATCH_SIZE);
+			}
 			return auditEventReader;
 		}catch(Exception e){
 			logger.log(Level.SEVERE, "Failed to create audit event reader", e);
@@ -38,17 +38,32 @@ import spade.vertex.opm.Process;
 import spade.vertex.prov.Activity;
 import spade.vertex.prov.Entity;
 
+import spade.utility.CommonFunctions;
+import spade.utility.CountingInputStream;
+import spade.utility.ForwardReferences;
+
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.util.HashMap;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Pipe reporter for Linux.
  *
+ * Every line written to the pipe is a vertex or an edge, reported as soon as it has
+ * been read. Edges can come before their vertices: they are kept until the vertices
+ * have been read.
+ *
+ * Settings in the config file:
+ *
+ * maxPendingEdges: maximum number of edges kept waiting for their vertices. 0 for no limit
+ * reportingIntervalSeconds: interval at which the progress is logged. 0 to not log it
+ *
  * @author Dawood Tariq
  */
 public class DSL extends AbstractReporter {
@@ -56,10 +71,24 @@ public class DSL extends AbstractReporter {
     private String pipePath;
     private BufferedReader eventReader;
     private volatile boolean shutdown;
-    private HashMap<String, AbstractVertex> vertices;
+    private ForwardReferences<AbstractVertex, EdgeLine> vertices;
+    private CountingInputStream inputCounter;
+    private long reportingIntervalMillis;
+    private long lastReportedMillis, lastReportedBytes, lineCount;
     private final int THREAD_SLEEP_DELAY = 5;
     private Logger logger = Logger.getLogger(DSL.class.getName());
 
+    // An edge as read, until both of its vertices have been read
+    private static class EdgeLine {
+        private final String type;
+        private final Map<String, String> annotations;
+
+        private EdgeLine(String type, Map<String, String> annotations) {
+            this.type = type;
+            this.annotations = annotations;
+        }
+    }
+
     @Override
     public boolean launch(String arguments) {
         if (arguments == null) {
@@ -68,7 +97,33 @@ public class DSL extends AbstractReporter {
         // The Pipe reporter creates a simple named pipe to which provenance events
         // can be written. The argument to the launch method is the location of the
         // pipe.
-        vertices = new HashMap<String, AbstractVertex>();
+        Integer maxPendingEdges;
+        Long reportingIntervalSeconds;
+        try {
+            Map<String, String> settings = CommonFunctions.getGlobalsMapFromConfigAndArguments(DSL.class, null);
+            maxPendingEdges = CommonFunctions.parseInt(settings.get("maxPendingEdges"), 0);
+            reportingIntervalSeconds = CommonFunctions.parseLong(settings.get("reportingIntervalSeconds"), 0L);
+        } catch (Exception exception) {
+            logger.log(Level.SEVERE, "Failed to read the config file", exception);
+            return false;
+        }
+        if (maxPendingEdges == null || maxPendingEdges < 0
+                || reportingIntervalSeconds == null || reportingIntervalSeconds < 0) {
+            logger.log(Level.SEVERE, "Invalid 'maxPendingEdges' or 'reportingIntervalSeconds' in the config file");
+            return false;
+        }
+        reportingIntervalMillis = reportingIntervalSeconds * 1000;
+        vertices = new ForwardReferences<AbstractVertex, EdgeLine>(maxPendingEdges,
+                new ForwardReferences.Resolver<AbstractVertex, EdgeLine>() {
+                    @Override
+                    public void resolved(EdgeLine edgeLine, AbstractVertex from, AbstractVertex to) {
+                        AbstractEdge edge = createEdge(edgeLine.type, from, to);
+                        if (edge != null) {
+                            edge.addAnnotations(edgeLine.annotations);
+                            putEdge(edge);
+                        }
+                    }
+                });
         pipePath = arguments;
         File checkpipe = new File(pipePath);
         if (checkpipe.exists()) {
@@ -83,17 +138,30 @@ public class DSL extends AbstractReporter {
 
                     public void run() {
                         try {
-                            eventReader = new BufferedReader(new FileReader(pipePath));
+                            inputCounter = new CountingInputStream(new FileInputStream(pipePath));
+                            eventReader = new BufferedReader(
+                                    new InputStreamReader(inputCounter, StandardCharsets.UTF_8), 1 << 16);
+                            lastReportedMillis = System.currentTimeMillis();
                             while (!shutdown) {
+                                // Only wait when nothing has been written to the pipe
                                 if (eventReader.ready()) {
                                     String line = eventReader.readLine();
                                     if (line != null) {
                                         parseEvent(line);
+                                        lineCount++;
                                     }
+                                } else {
+                                    Thread.sleep(THREAD_SLEEP_DELAY);
                                 }
-                                Thread.sleep(THREAD_SLEEP_DELAY);
+                                printProgress();
                             }
                             eventReader.close();
+                            if (vertices.getPendingCount() > 0 || vertices.getDroppedCount() > 0) {
+                                logger.log(Level.WARNING, "Edges never reported because a vertex was not read: {0} "
+                                        + "waiting, {1} dropped", new Object[]{vertices.getPendingCount(),
+                                        vertices.getDroppedCount()});
+                            }
+                            vertices.clear();
                         } catch (Exception exception) {
                             Logger.getLogger(DSL.class.getName()).log(Level.SEVERE, null, exception);
                         }
@@ -108,36 +176,77 @@ public class DSL extends AbstractReporter {
         }
     }
 
+    private void printProgress() {
+        if (reportingIntervalMillis <= 0) {
+            return;
+        }
+        long currentMillis = System.currentTimeMillis();
+        if (currentMillis - lastReportedMillis >= reportingIntervalMillis) {
+            long bytes = inputCounter.getCount();
+            double seconds = (currentMillis - lastReportedMillis) / 1000.0;
+            logger.log(Level.INFO, String.format("Read %d bytes (%.0f bytes/sec), %d lines, %d edges before their "
+                    + "vertices, %d pending, %d dropped", bytes, (bytes - lastReportedBytes) / seconds, lineCount,
+                    vertices.getForwardEdgeCount(), vertices.getPendingCount(), vertices.getDroppedCount()));
+            lastReportedMillis = currentMillis;
+            lastReportedBytes = bytes;
+        }
+    }
+
     private void parseEvent(String line) {
         try {
 
-            // Tokens are split on spaces not preceded by a backslash using
-            // a negative lookbehind in the regex.
-            String[] tokens = line.split("(?<!\\\\) ");
+            // Tokens are 'key:value' separated by spaces. A backslash before a space
+            // or a colon makes it part of the key or the value.
             String id = null;
             String type = null;
             String from = null;
             String to = null;
             AbstractVertex vertex = null;
-            AbstractEdge edge = null;
             // Create an empty HashMap for annotations. We use a LinkedHashMap
             // to preserve order of annotations.
             LinkedHashMap<String, String> annotations = new LinkedHashMap<String, String>();
-            for (int i = 0; i < tokens.length; i++) {
-                // Check if the key is one of the keywords, otherwise treat it as
-                // an annotation.
-                if (getKey(tokens[i]).equalsIgnoreCase("id")) {
-                    id = getValue(tokens[i]);
-                } else if (getKey(tokens[i]).equalsIgnoreCase("type")) {
-                    type = getValue(tokens[i]);
-                } else if (getKey(tokens[i]).equalsIgnoreCase("from")) {
-                    from = getValue(tokens[i]);
-                } else if (getKey(tokens[i]).equalsIgnoreCase("to")) {
-                    to = getValue(tokens[i]);
+            StringBuilder token = new StringBuilder();
+            String key = null;
+            int length = line.length();
+            for (int i = 0; i <= length; i++) {
+                char c = i < length ? line.charAt(i) : ' ';
+                if (c == '\\' && i + 1 < length && (line.charAt(i + 1) == ':' || line.charAt(i + 1) == ' ')) {
+                    token.append(line.charAt(++i));
+                } else if (c == ':' && key == null) {
+                    key = token.toString();
+                    token.setLength(0);
+                } else if (c == ' ') {
+                    if (key == null) {
+                        if (token.length() > 0) {
+                            logger.log(Level.WARNING, "Missing ':' in '" + token + "', ignoring line: " + line);
+                            return;
+                        }
+                        continue;
+                    }
+                    String value = token.toString();
+                    token.setLength(0);
+                    // Check if the key is one of the keywords, otherwise treat it as
+                    // an annotation.
+                    if (key.equalsIgnoreCase("id")) {
+                        id = value;
+                    } else if (key.equalsIgnoreCase("type")) {
+                        type = value;
+                    } else if (key.equalsIgnoreCase("from")) {
+                        from = value;
+                    } else if (key.equalsIgnoreCase("to")) {
+                        to = value;
+                    } else {
+                        annotations.put(key, value);
+                    }
+                    key = null;
                 } else {
-                    annotations.put(getKey(tokens[i]), getValue(tokens[i]));
+                    token.append(c);
                 }
             }
+            if (type == null) {
+                logger.log(Level.WARNING, "Missing 'type', ignoring line: " + line);
+                return;
+            }
             // Instantiate object based on the type and associate annotations to it.
             
             if(type.equalsIgnoreCase("event")){
@@ -154,74 +263,80 @@ public class DSL extends AbstractReporter {
                 vertex = new Artifact();
             } else if (type.equalsIgnoreCase("agent")) {
                 vertex = new Agent();
-                // Create edges and also check if the 'from' and 'to' values are valid.
-            } else if ((type.equalsIgnoreCase("used")) && (from != null) && (to != null)) {
-                if ((vertices.get(from) instanceof Process) && (vertices.get(to) instanceof Artifact)) {
-                    edge = new Used((Process) vertices.get(from), (Artifact) vertices.get(to));
-                } else if(vertices.get(from) instanceof Activity && vertices.get(to) instanceof Entity){
-                	edge = new spade.edge.prov.Used((Activity) vertices.get(from), (Entity) vertices.get(to));
-                }else {
-                    logger.log(Level.WARNING, "Used edge must be from a Process/Activity to an Artifact/Entity");
-                }
-            } else if ((type.equalsIgnoreCase("wasgeneratedby")) && (from != null) && (to != null)) {
-                if ((vertices.get(from) instanceof Artifact) && (vertices.get(to) instanceof Process)) {
-                    edge = new WasGeneratedBy((Artifact) vertices.get(from), (Process) vertices.get(to));
-                }else if(vertices.get(from) instanceof Entity && vertices.get(to) instanceof Activity){
-                	edge = new spade.edge.prov.WasGeneratedBy((Entity) vertices.get(from), (Activity) vertices.get(to));
-                }else{
-                	logger.log(Level.WARNING, "WasGeneratedBy edge must be from a Artifact/Entity to an Process/Activity");
-                }
-            } else if ((type.equalsIgnoreCase("wastriggeredby")) && (from != null) && (to != null)) {
-                if ((vertices.get((from)) instanceof Process) && (vertices.get((to)) instanceof Process)) {
-                    edge = new WasTriggeredBy((Process) vertices.get(from), (Process) vertices.get(to));
-                } else {
-                    logger.log(Level.WARNING, "WasTriggeredBy edge must be from a Process to a Process");
-                }
-            } else if ((type.equalsIgnoreCase("wasinformedby")) && (from != null) && (to != null)) {
-                if ((vertices.get((from)) instanceof Activity) && (vertices.get((to)) instanceof Activity)) {
-                    edge = new WasInformedBy((Activity) vertices.get(from), (Activity) vertices.get(to));
-                } else {
-                    logger.log(Level.WARNING, "WasInformedBy edge must be from an Activity to a Activity");
-                }
-            } else if ((type.equalsIgnoreCase("wascontrolledby")) && (from != null) && (to != null)) {
-                if ((vertices.get((from)) instanceof Process) && (vertices.get((to)) instanceof Agent)) {
-                    edge = new WasControlledBy((Process) vertices.get(from), (Agent) vertices.get(to));
-                } else {
-                    logger.log(Level.WARNING, "WasControlledBy edge must be from a Process to an Agent");
-                }
-            } else if ((type.equalsIgnoreCase("wasassociatedwith")) && (from != null) && (to != null)) {
-                if ((vertices.get((from)) instanceof Activity) && (vertices.get((to)) instanceof Agent)) {
-                	spade.vertex.prov.Agent agent = new spade.vertex.prov.Agent();
-                	agent.addAnnotations(((Agent) vertices.get(to)).getAnnotations());
-                    edge = new WasAssociatedWith((Activity) vertices.get(from), agent);
-                } else {
-                    logger.log(Level.WARNING, "WasAssociatedWith edge must be from an Acivity to an Agent");
-                }
-            } else if ((type.equalsIgnoreCase("wasderivedfrom")) && (from != null) && (to != null)) {
-                if ((vertices.get((from)) instanceof Artifact) && (vertices.get((to)) instanceof Artifact)) {
-                    edge = new WasDerivedFrom((Artifact) vertices.get(from), (Artifact) vertices.get(to));
-                } else if((vertices.get((from)) instanceof Entity) && (vertices.get((to)) instanceof Entity)){
-                	edge = new spade.edge.prov.WasDerivedFrom((Entity) vertices.get(from), (Entity) vertices.get(to));
-                }else {
-                    logger.log(Level.WARNING, "WasDerivedFrom edge must be from an Artifact/Entity to an Artifact/Entity");
-                }
-            } else if (type.equalsIgnoreCase("simpleedge") && (from != null) && (to != null)) {
-            	edge = new SimpleEdge(vertices.get(from), vertices.get(to));
+            } else if ((from != null) && (to != null)) {
+                // Created when both vertices have been read
+                vertices.putEdge(from, to, new EdgeLine(type, annotations));
             }
-            // Finally, pass vertex or edge to buffer.
+            // Finally, pass vertex to buffer.
             if ((id != null) && (vertex != null)) {
-                vertex.getAnnotations().putAll(annotations);
-                vertices.put(id, vertex);
+                vertex.addAnnotations(annotations);
                 putVertex(vertex);
-            } else if (edge != null) {
-                edge.getAnnotations().putAll(annotations);
-                putEdge(edge);
+                vertices.putVertex(id, vertex);
             }
         } catch (Exception exception) {
             logger.log(Level.SEVERE, null, exception);
         }
     }
 
+    // Returns null if the type is unknown or the vertices are not of the types of the edge
+    private AbstractEdge createEdge(String type, AbstractVertex fromVertex, AbstractVertex toVertex) {
+        AbstractEdge edge = null;
+        if (type.equalsIgnoreCase("used")) {
+            if ((fromVertex instanceof Process) && (toVertex instanceof Artifact)) {
+                edge = new Used((Process) fromVertex, (Artifact) toVertex);
+            } else if(fromVertex instanceof Activity && toVertex instanceof Entity){
+            	edge = new spade.edge.prov.Used((Activity) fromVertex, (Entity) toVertex);
+            }else {
+                logger.log(Level.WARNING, "Used edge must be from a Process/Activity to an Artifact/Entity");
+            }
+        } else if (type.equalsIgnoreCase("wasgeneratedby")) {
+            if ((fromVertex instanceof Artifact) && (toVertex instanceof Process)) {
+                edge = new WasGeneratedBy((Artifact) fromVertex, (Process) toVertex);
+            }else if(fromVertex instanceof Entity && toVertex instanceof Activity){
+            	edge = new spade.edge.prov.WasGeneratedBy((Entity) fromVertex, (Activity) toVertex);
+            }else{
+            	logger.log(Level.WARNING, "WasGeneratedBy edge must be from a Artifact/Entity to an Process/Activity");
+            }
+        } else if (type.equalsIgnoreCase("wastriggeredby")) {
+            if ((fromVertex instanceof Process) && (toVertex instanceof Process)) {
+                edge = new WasTriggeredBy((Process) fromVertex, (Process) toVertex);
+            } else {
+                logger.log(Level.WARNING, "WasTriggeredBy edge must be from a Process to a Process");
+            }
+        } else if (type.equalsIgnoreCase("wasinformedby")) {
+            if ((fromVertex instanceof Activity) && (toVertex instanceof Activity)) {
+                edge = new WasInformedBy((Activity) fromVertex, (Activity) toVertex);
+            } else {
+                logger.log(Level.WARNING, "WasInformedBy edge must be from an Activity to a Activity");
+            }
+        } else if (type.equalsIgnoreCase("wascontrolledby")) {
+            if ((fromVertex instanceof Process) && (toVertex instanceof Agent)) {
+                edge = new WasControlledBy((Process) fromVertex, (Agent) toVertex);
+            } else {
+                logger.log(Level.WARNING, "WasControlledBy edge must be from a Process to an Agent");
+            }
+        } else if (type.equalsIgnoreCase("wasassociatedwith")) {
+            if ((fromVertex instanceof Activity) && (toVertex instanceof Agent)) {
+            	spade.vertex.prov.Agent agent = new spade.vertex.prov.Agent();
+            	agent.addAnnotations(((Agent) toVertex).getAnnotations());
+                edge = new WasAssociatedWith((Activity) fromVertex, agent);
+            } else {
+                logger.log(Level.WARNING, "WasAssociatedWith edge must be from an Acivity to an Agent");
+            }
+        } else if (type.equalsIgnoreCase("wasderivedfrom")) {
+            if ((fromVertex instanceof Artifact) && (toVertex instanceof Artifact)) {
+                edge = new WasDerivedFrom((Artifact) fromVertex, (Artifact) toVertex);
+            } else if((fromVertex instanceof Entity) && (toVertex instanceof Entity)){
+            	edge = new spade.edge.prov.WasDerivedFrom((Entity) fromVertex, (Entity) toVertex);
+            }else {
+                logger.log(Level.WARNING, "WasDerivedFrom edge must be from an Artifact/Entity to an Artifact/Entity");
+            }
+        } else if (type.equalsIgnoreCase("simpleedge")) {
+        	edge = new SimpleEdge(fromVertex, toVertex);
+        }
+        return edge;
+    }
+
 	private String getKey(String token) {
         // Return the key after removing escaping backslashes. The backslashes
         // are detected using positive lookbehind.
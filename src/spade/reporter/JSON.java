@@ -21,16 +21,16 @@
 
 import java.io.BufferedReader;
 import java.io.FileInputStream;
-import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import spade.core.AbstractEdge;
 import spade.core.AbstractReporter;
@@ -42,6 +42,9 @@ import spade.edge.prov.WasAttributedTo;
 import spade.edge.prov.WasDerivedFrom;
 import spade.edge.prov.WasGeneratedBy;
 import spade.edge.prov.WasInformedBy;
+import spade.utility.CommonFunctions;
+import spade.utility.CountingInputStream;
+import spade.utility.ForwardReferences;
 import spade.vertex.prov.Activity;
 import spade.vertex.prov.Agent;
 import spade.vertex.prov.Entity;
@@ -49,52 +52,88 @@ import spade.vertex.prov.Entity;
 /**
  * JSON reporter for SPADE
  *
+ * Reads a JSON array of vertices and edges, or JSON objects one after the other,
+ * and reports every object as soon as it has been parsed. Edges can come before
+ * their vertices: they are kept until the vertices have been read.
+ *
+ * Arguments: the path of the JSON file, or 'input=<path>' followed by settings
+ * that replace the ones in the config file:
+ *
+ * maxPendingEdges: maximum number of edges kept waiting for their vertices. 0 for no limit
+ * reportingIntervalSeconds: interval at which the progress is logged. 0 to not log it
+ *
  * @author Hasanat Kazmi
  */
 public class JSON extends AbstractReporter {
 
-    private boolean shutdown = false;
+    private static final String ARGUMENT_INPUT = "input",
+        ARGUMENT_MAX_PENDING_EDGES = "maxPendingEdges",
+        ARGUMENT_REPORTING_INTERVAL_SECONDS = "reportingIntervalSeconds";
+
+    private volatile boolean shutdown = false;
     private boolean PRINT_DEBUG = true;
-    private HashMap<String, AbstractVertex> vertices;
+    private ForwardReferences<AbstractVertex, JSONObject> vertices;
+    private CountingInputStream inputCounter;
+    private long reportingIntervalMillis;
+    private long startMillis, lastReportedMillis, lastReportedBytes, objectCount;
 
     @Override
     public boolean launch(final String arguments) {
         /*
         * argument is path to json file
         */
-        vertices = new HashMap<String, AbstractVertex>();
+        final String file_path;
+        Integer maxPendingEdges;
+        Long reportingIntervalSeconds;
+        try {
+          Map<String, String> argumentsMap = CommonFunctions.parseKeyValPairs(arguments);
+          Map<String, String> settings = CommonFunctions.getGlobalsMapFromConfigAndArguments(JSON.class,
+              argumentsMap.isEmpty() ? null : arguments);
+          file_path = argumentsMap.isEmpty() ? String.valueOf(arguments).trim() : argumentsMap.get(ARGUMENT_INPUT);
+          maxPendingEdges = CommonFunctions.parseInt(settings.get(ARGUMENT_MAX_PENDING_EDGES), 0);
+          reportingIntervalSeconds = CommonFunctions.parseLong(settings.get(ARGUMENT_REPORTING_INTERVAL_SECONDS), 0L);
+        } catch (Exception e) {
+          JSON.log(Level.SEVERE, "Failed to read the arguments and the config file", e);
+          return false;
+        }
+        if (CommonFunctions.isNullOrEmpty(file_path)) {
+          JSON.log(Level.SEVERE, "Missing path of the json file", null);
+          return false;
+        }
+        if (maxPendingEdges == null || maxPendingEdges < 0) {
+          JSON.log(Level.SEVERE, "Invalid '" + ARGUMENT_MAX_PENDING_EDGES + "'", null);
+          return false;
+        }
+        if (reportingIntervalSeconds == null || reportingIntervalSeconds < 0) {
+          JSON.log(Level.SEVERE, "Invalid '" + ARGUMENT_REPORTING_INTERVAL_SECONDS + "'", null);
+          return false;
+        }
+        reportingIntervalMillis = reportingIntervalSeconds * 1000;
+
+        vertices = new ForwardReferences<AbstractVertex, JSONObject>(maxPendingEdges,
+            new ForwardReferences.Resolver<AbstractVertex, JSONObject>() {
+              @Override
+              public void resolved(JSONObject edgeObject, AbstractVertex fromVertex, AbstractVertex toVertex) {
+                processResolvedEdge(edgeObject, fromVertex, toVertex);
+              }
+            });
 
         Runnable eventThread = new Runnable() {
             public void run() {
-
-                String file_path = arguments.trim();
-                String line;
-                StringBuffer jsonString = new StringBuffer();
-                BufferedReader br;
-                JSONArray jsonArray;
                 try {
                   debugLog("Starting to read json file");
-                  br = new BufferedReader(new InputStreamReader(new FileInputStream(file_path)));
-                  while ((line = br.readLine()) != null) {
-                      jsonString.append(line);
-                  }
-                  br.close();
-                  debugLog("Sucessfully read json file");
-
-                } catch (IOException e) {
-                    JSON.log(Level.SEVERE, "Can't open and read json file.", e);
-                }
-
-                debugLog("Starting to objectify JSON content");
-                try {
-                  jsonArray = new JSONArray(jsonString.toString());
-                } catch (JSONException e){
-                  JSON.log(Level.SEVERE, "Failed to create JSON Array object", e);
+                  inputCounter = new CountingInputStream(new FileInputStream(file_path));
+                } catch (Exception e) {
+                  JSON.log(Level.SEVERE, "Can't open and read json file.", e);
                   return;
                 }
-                debugLog("Sucessfully objectified JSON content");
-
-                processJsonArray(jsonArray);
+                try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(inputCounter, StandardCharsets.UTF_8), 1 << 16)) {
+                  readObjects(new JSONTokener(reader));
+                } catch (Exception e) {
+                  JSON.log(Level.SEVERE, "Failed to read json file at byte " + inputCounter.getCount(), e);
+                }
+                finishReading();
               }
         };
         new Thread(eventThread, "JsonReporter-Thread").start();
@@ -107,23 +146,79 @@ public class JSON extends AbstractReporter {
         return true;
     }
 
-    private void processJsonArray(JSONArray jsonArray) {
-      debugLog("Size of JSON Array: " + jsonArray.length());
-      for (int i=0; i<jsonArray.length();i++) {
-        JSONObject jsonObject;
-        try {
-          jsonObject = jsonArray.getJSONObject(i);
-        } catch (JSONException e) {
-          JSON.log(Level.SEVERE, "Can not read object in JSON Array", e);
+    // Each object is processed as soon as it has been parsed
+    private void readObjects(JSONTokener tokener) throws JSONException {
+      startMillis = lastReportedMillis = System.currentTimeMillis();
+      char c = tokener.nextClean();
+      boolean array = c == '[';
+      if (!array) {
+        tokener.back();
+      }
+      while (!shutdown) {
+        c = tokener.nextClean();
+        if (c == 0 || (array && c == ']')) {
+          break;
+        }
+        if (c == ',') {
           continue;
         }
+        tokener.back();
+        Object value = tokener.nextValue();
+        if (value instanceof JSONObject) {
+          processJsonObject((JSONObject) value);
+        } else {
+          JSON.log(Level.SEVERE, "Not an object, ignoring value : " + value, null);
+        }
+        objectCount++;
+        printProgress(false);
+      }
+    }
+
+    private void finishReading() {
+      printProgress(true);
+      if (vertices.getPendingCount() > 0 || vertices.getDroppedCount() > 0) {
+        JSON.log(Level.SEVERE, "Ignored edges whose starting and/or ending vertex was not in the file: "
+            + vertices.getPendingCount() + ", and dropped because too many were waiting for their vertices: "
+            + vertices.getDroppedCount(), null);
+      }
+      vertices.clear();
+      debugLog("All provenance reported through JSON file has been retrived. Wait for buffers to clear....");
 
+      try {
+        while (this.getBuffer().size()!=0) {
+          Thread.sleep(1000);
+          debugLog("Size of buffer: " + this.getBuffer().size());
+        }
+      } catch (Exception e){}
+
+      debugLog("All buffers cleared. You may remove JSON reporter");
+    }
+
+    private void printProgress(boolean force) {
+      if (reportingIntervalMillis <= 0 && !force) {
+        return;
+      }
+      long currentMillis = System.currentTimeMillis();
+      if (force || currentMillis - lastReportedMillis >= reportingIntervalMillis) {
+        long bytes = inputCounter == null ? 0 : inputCounter.getCount();
+        double intervalSeconds = Math.max(1, currentMillis - lastReportedMillis) / 1000.0;
+        double totalSeconds = Math.max(1, currentMillis - startMillis) / 1000.0;
+        debugLog(String.format("Read %d bytes (%.0f bytes/sec, %.0f bytes/sec overall), %d objects, "
+            + "%d edges before their vertices, %d pending, %d dropped", bytes,
+            (bytes - lastReportedBytes) / intervalSeconds, bytes / totalSeconds, objectCount,
+            vertices.getForwardEdgeCount(), vertices.getPendingCount(), vertices.getDroppedCount()));
+        lastReportedMillis = currentMillis;
+        lastReportedBytes = bytes;
+      }
+    }
+
+    private void processJsonObject(JSONObject jsonObject) {
         String objectType;
         try {
           objectType = jsonObject.getString("type");
         } catch (JSONException e) {
           JSON.log(Level.SEVERE, "Missing type in object, can not access if its node or edge, ignoring object", null);
-          continue;
+          return;
         }
 
         if (objectType.equalsIgnoreCase("Activity") ||
@@ -143,18 +238,6 @@ public class JSON extends AbstractReporter {
         } else {
           JSON.log(Level.SEVERE, "Unknown object type: '" + objectType + "', ignoring object", null);
         }
-      }
-      debugLog("All provenance reported through JSON file has been retrived. Wait for buffers to clear....");
-
-      try {
-        while (this.getBuffer().size()!=0) {
-          Thread.sleep(1000);
-          debugLog("Size of buffer: " + this.getBuffer().size());
-        }
-      } catch (Exception e){}
-
-      debugLog("All buffers cleared. You may remove JSON reporter");
-
     }
 
     private void processVertex(JSONObject vertexObject) {
@@ -203,8 +286,8 @@ public class JSON extends AbstractReporter {
         // no annotations
       }
 
-      vertices.put(id, vertex);
       putVertex(vertex);
+      vertices.putVertex(id, vertex);
     }
 
     private void processEdge(JSONObject edgeObject) {
@@ -232,14 +315,11 @@ public class JSON extends AbstractReporter {
         return;
       }
 
-      AbstractVertex fromVertex = vertices.get(from);
-      AbstractVertex toVertex = vertices.get(to);
-
-      if (fromVertex == null || toVertex == null) {
-        JSON.log(Level.SEVERE, "Starting and/or ending vertex of edge hasn't been seen before, ignoring edge : " + edgeObject.toString() , null);
-        return;
-      }
+      vertices.putEdge(from, to, edgeObject);
+    }
 
+    // Called when both vertices of the edge have been read
+    private void processResolvedEdge(JSONObject edgeObject, AbstractVertex fromVertex, AbstractVertex toVertex) {
       String edgeType;
       try {
         edgeType = edgeObject.getString("type");
@@ -249,20 +329,25 @@ public class JSON extends AbstractReporter {
       }
 
       AbstractEdge edge = null;
-      if (edgeType.equalsIgnoreCase("ActedOnBehalfOf")) {
-        edge = new ActedOnBehalfOf((Agent) fromVertex, (Agent) toVertex);
-      } else if (edgeType.equalsIgnoreCase("WasAttributedTo")) {
-        edge = new WasAttributedTo((Entity) fromVertex, (Agent) toVertex);
-      } else if (edgeType.equalsIgnoreCase("WasDerivedFrom")) {
-        edge = new WasDerivedFrom((Entity) fromVertex, (Entity) toVertex);
-      } else if (edgeType.equalsIgnoreCase("WasGeneratedBy")) {
-        edge = new WasGeneratedBy((Entity) fromVertex, (Activity) toVertex);
-      } else if (edgeType.equalsIgnoreCase("WasInformedBy")) {
-        edge = new WasInformedBy((Activity) fromVertex, (Activity) toVertex);
-      } else if (edgeType.equalsIgnoreCase("Used")) {
-        edge = new Used((Activity) fromVertex, (Entity) toVertex);
-      } else if (edgeType.equalsIgnoreCase("WasAssociatedWith")) {
-        edge = new WasAssociatedWith((Activity) fromVertex, (Agent) toVertex);
+      try {
+        if (edgeType.equalsIgnoreCase("ActedOnBehalfOf")) {
+          edge = new ActedOnBehalfOf((Agent) fromVertex, (Agent) toVertex);
+        } else if (edgeType.equalsIgnoreCase("WasAttributedTo")) {
+          edge = new WasAttributedTo((Entity) fromVertex, (Agent) toVertex);
+        } else if (edgeType.equalsIgnoreCase("WasDerivedFrom")) {
+          edge = new WasDerivedFrom((Entity) fromVertex, (Entity) toVertex);
+        } else if (edgeType.equalsIgnoreCase("WasGeneratedBy")) {
+          edge = new WasGeneratedBy((Entity) fromVertex, (Activity) toVertex);
+        } else if (edgeType.equalsIgnoreCase("WasInformedBy")) {
+          edge = new WasInformedBy((Activity) fromVertex, (Activity) toVertex);
+        } else if (edgeType.equalsIgnoreCase("Used")) {
+          edge = new Used((Activity) fromVertex, (Entity) toVertex);
+        } else if (edgeType.equalsIgnoreCase("WasAssociatedWith")) {
+          edge = new WasAssociatedWith((Activity) fromVertex, (Agent) toVertex);
+        }
+      } catch (ClassCastException e) {
+        JSON.log(Level.SEVERE, "Wrong type of starting and/or ending vertex of edge, ignoring edge : " + edgeObject.toString() , null);
+        return;
       }
 
       JSONObject annotationsObject;
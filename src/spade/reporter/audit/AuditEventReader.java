@@ -26,18 +26,15 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.apache.commons.lang.exception.ExceptionUtils;
 
 import spade.core.Settings;
+import spade.utility.AuditLogReorderer;
 import spade.utility.CommonFunctions;
 import spade.utility.FileUtility;
 
@@ -45,7 +42,7 @@ import spade.utility.FileUtility;
  * This class reads and parses the audit logs one event at a time.
  * 
  * Assumes that the all of the records for an event are received 
- * contiguously and are not spread out.
+ * contiguously and are not spread out unless a reorder window is set.
  * 
  */
 public class AuditEventReader {
@@ -137,39 +134,30 @@ public class AuditEventReader {
 	private long startTime, lastReportedTime;
 	private long lastReportedRecordCount, recordCount;
 
-	// Group 1: pid
-	// Group 2: unitid
-	// Group 3: iteration
-	// Group 4: time
-	// Group 5: count
-	private final Pattern pattern_unit = 
-			Pattern.compile("\\(pid=(\\d+) thread_time=(\\d+\\.\\d+) unitid=(\\d+) iteration=(\\d+) time=(\\d+\\.\\d+) count=(\\d+)\\)");
+	/**
+	 * Parses the records. Replaces the regular expressions that were used before
+	 */
+	private final AuditRecordParser parser = new AuditRecordParser();
 	
-	// Group 1: key
-	// Group 2: value
-	private final Pattern pattern_key_value = Pattern.compile("(\\w+)=\"*((?<=\")[^\"]+(?=\")|([^\\s]+))\"*");
-
-	// Group 1: node
-	// Group 2: type
-	// Group 3: time
-	// Group 4: recordid
-	private final Pattern pattern_message_start = Pattern.compile("(?:node=(\\S+) )?type=(.+) msg=audit\\(([0-9\\.]+)\\:([0-9]+)\\):\\s*");
+	/**
+	 * Set when the events are parsed by multiple threads. NULL otherwise
+	 */
+	private ParallelEventParser parallelParser = null;
 	
-	// Group 1: cwd
-	//cwd is either a quoted string or an unquoted string in which case it is in hex format
-	private final Pattern pattern_cwd = Pattern.compile("cwd=(\".+\"|[a-zA-Z0-9]+)");
-
-	// Group 1: item number
-	// Group 2: name
-	// Group 3: mode
-	// Group 4: nametype
-	//name is either a quoted string or an unquoted string in which case it is in hex format
-//	private static final Pattern pattern_path = Pattern.compile("item=([0-9]*) name=(\".+\"|[a-zA-Z0-9]+|\\(null\\)) .*(?:mode=([0-9]+) ).*nametype=([a-zA-Z]*)");
+	/**
+	 * Puts the records read from the stream in order by time and event id. NULL if not set
+	 */
+	private AuditLogReorderer reorderer = null;
 
 	/**
-	 * Buffers all the records for the current event being read
+	 * Buffers all the records for the current event being read in the order they were read
 	 */
-	private final Set<String> currentEventRecords = new HashSet<String>();
+	private List<String> currentEventRecords = new ArrayList<String>();
+	
+	/**
+	 * Records of the last event returned. Swapped with the current one to avoid copying
+	 */
+	private List<String> takenEventRecords = new ArrayList<String>();
 	
 	/**
 	 * Keeps track of the current event id being buffered
@@ -226,6 +214,7 @@ public class AuditEventReader {
 
 		stream = new BufferedReader(new InputStreamReader(streamToReadFrom));
 
+		this.streamId = streamId;
 		this.failfast = failfast;
 		
 		setGlobalsFromConfig();
@@ -303,56 +292,87 @@ public class AuditEventReader {
 	}
 	
 	/**
-	 * Returns the event id from the audit record.
+	 * Returns a map of key values for the event that is read from the stream
+	 * 
+	 * Null return value means EOF
 	 * 
-	 * Expected format of line -> "type='TYPE' msg=audit('time':'eventid'):"
+	 * Reads on the assumption that all records for an event are contiguously placed
 	 * 
-	 * @param line audit record
-	 * @return event id. NULL if not found
+	 * @return map of key values of the read audit event
+	 * @throws Exception IOException
 	 */
-	private Long getEventId(String line){
-		try{
-			int firstIndexOfColon = line.indexOf(':');
-			int firstIndexOfClosingBracket = line.indexOf(')');
-			return Long.parseLong(line.substring(firstIndexOfColon+1, firstIndexOfClosingBracket));
-		}catch(Exception e){
-			logger.log(Level.WARNING, "Failed to get event id from line: " + line, e);
+	public Map<String, String> readEventData() throws Exception{
+		if(parallelParser != null){
+			return parallelParser.readEventData();
+		}
+		List<String> records = readEventRecords();
+		if(records == null){
 			return null;
+		}else{
+			return getEventMap(records, parser);
 		}
 	}
 	
 	/**
-	 * Returns the time from the audit record.
+	 * Parses the events with the given number of threads for the rest of the stream.
+	 * 
+	 * The events are read by a separate thread and handed out to the parser threads
+	 * in batches, round-robin. The parsed events are returned by {@link #readEventData() readEventData}
+	 * in the same order as they were read.
 	 * 
-	 * Expected format of line -> "type='TYPE' msg=audit('time':'eventid'):"
+	 * Must be called before the first event is read.
 	 * 
-	 * @param line audit record
-	 * @return time. NULL if not found
+	 * @param threads number of parser threads
+	 * @param batchSize number of events handed to a parser thread at a time
 	 */
-	private String getEventTime(String line){
-		try{
-			int firstIndexOfOpeningBracket = line.indexOf('(');
-			int firstIndexOfColon = line.indexOf(':');
-			String timeStr = line.substring(firstIndexOfOpeningBracket+1, firstIndexOfColon);
-			Double.parseDouble(timeStr); // if valid double then continues
-			return timeStr;
-		}catch(Exception e){
-			logger.log(Level.WARNING, "Failed to get time from line: " + line, e);
-			return null;
+	public void setParserThreads(int threads, int batchSize){
+		if(threads > 1 && parallelParser == null){
+			parallelParser = new ParallelEventParser(this, streamId, threads, batchSize);
+			parallelParser.start();
 		}
 	}
 	
 	/**
-	 * Returns a map of key values for the event that is read from the stream
+	 * Puts the records read from the stream in order by time and event id, keeping at most the given 
+	 * number of records in memory, for a log that is not in order. Replaces sorting the log with
+	 * {@link spade.utility.SortAuditLog SortAuditLog} if the records are out of order by less than the window.
+	 * 
+	 * Must be called before the first event is read.
+	 * 
+	 * @param records number of records to keep before passing on the first one in order
+	 */
+	public void setReorderWindow(int records){
+		if(records > 0 && reorderer == null){
+			reorderer = new AuditLogReorderer(records);
+		}
+	}
+	
+	private String readLine() throws Exception{
+		if(reorderer == null){
+			return stream.readLine();
+		}
+		String line = null;
+		while((line = reorderer.poll()) == null){
+			String readLine = stream.readLine();
+			if(readLine == null){
+				return reorderer.drain();
+			}
+			reorderer.add(readLine);
+		}
+		return line;
+	}
+	
+	/**
+	 * Returns the records of the next event in the stream
 	 * 
 	 * Null return value means EOF
 	 * 
-	 * Reads on the assumption that all records for an event are contiguously placed
+	 * The returned list is reused by the next call
 	 * 
-	 * @return map of key values of the read audit event
+	 * @return records of the next audit event
 	 * @throws Exception IOException
 	 */
-	public Map<String, String> readEventData() throws Exception{
+	List<String> readEventRecords() throws Exception{
 
 		if(reportingEnabled){
 			long currentTime = System.currentTimeMillis();
@@ -384,21 +404,18 @@ public class AuditEventReader {
 		if(EOF){
 			return null;
 		}else{
-			Map<String, String> eventData = null;
+			List<String> eventRecords = null;
 			
 			if(pendingUBSIEvent){
-				Set<String> copy = new HashSet<String>();
-				copy.addAll(currentEventRecords);
-				currentEventRecords.clear();
+				eventRecords = takeCurrentEventRecords();
 				currentEventId = -1L;
 				pendingUBSIEvent = false;
-				eventData = getEventMap(copy);
 			}else{
 				String line = null;
 				
-				while((line = stream.readLine()) != null){
-					Long eventId = getEventId(line);
-					String eventTime = getEventTime(line);
+				while((line = readLine()) != null){
+					Long eventId = parser.getEventId(line);
+					String eventTime = parser.getEventTime(line);
 					
 					if(eventId == null || eventTime == null){
 						if(failfast){
@@ -412,15 +429,19 @@ public class AuditEventReader {
 					if(reportingEnabled){
 						recordCount++;
 					}
-					if(line.contains(RECORD_TYPE_KEY+"="+RECORD_TYPE_PROCTITLE) || 
-							line.contains(RECORD_TYPE_KEY+"="+RECORD_TYPE_UNKNOWN_PREFIX) || 
-							line.contains(RECORD_TYPE_KEY+"="+RECORD_TYPE_EOE)){
+					String recordType = parser.getRecordType(line);
+					if(recordType == null){
+						recordType = "";
+					}
+					if(recordType.equals(RECORD_TYPE_PROCTITLE) || 
+							recordType.startsWith(RECORD_TYPE_UNKNOWN_PREFIX) || 
+							recordType.equals(RECORD_TYPE_EOE)){
 						continue; // ignore these records
 					}else{
 						String UBSIRecord = null;
-						if(line.contains(RECORD_TYPE_KEY+"=" + RECORD_TYPE_UBSI_EXIT) ||
-								line.contains(RECORD_TYPE_KEY+"=" + RECORD_TYPE_UBSI_DEP) || 
-								line.contains(RECORD_TYPE_KEY+"=" + RECORD_TYPE_UBSI_ENTRY)){
+						if(recordType.equals(RECORD_TYPE_UBSI_EXIT) ||
+								recordType.equals(RECORD_TYPE_UBSI_DEP) || 
+								recordType.equals(RECORD_TYPE_UBSI_ENTRY)){
 							UBSIRecord = line;
 						}
 						
@@ -433,10 +454,8 @@ public class AuditEventReader {
 							}else{
 								if(!currentEventId.equals(eventId)){// event id changed hence publish the things in buffer
 									currentEventId = eventId;
-									Set<String> records = new HashSet<String>(currentEventRecords);
-									currentEventRecords.clear();
+									eventRecords = takeCurrentEventRecords();
 									currentEventRecords.add(line); //add the next event record
-									eventData = getEventMap(records);
 									break;
 								}else{ //if they are equal
 									currentEventRecords.add(line);
@@ -446,20 +465,17 @@ public class AuditEventReader {
 							
 						}else if(UBSIRecord != null && currentEventRecords.isEmpty()){
 							// No pending event and only UBSI event then return that
-							Set<String> records = new HashSet<String>();
-							records.add(UBSIRecord);
+							currentEventRecords.add(UBSIRecord);
+							eventRecords = takeCurrentEventRecords();
 							currentEventId = -1L;
 							pendingUBSIEvent = false;
-							eventData = getEventMap(records);
 							break;
 						}else if(UBSIRecord != null && !currentEventRecords.isEmpty()){
 							// Has a pending event. add the UBSI record to pending and return the existing event
-							Set<String> records = new HashSet<String>(currentEventRecords);
-							currentEventRecords.clear();
+							eventRecords = takeCurrentEventRecords();
 							currentEventRecords.add(UBSIRecord);
 							currentEventId = -1L;
 							pendingUBSIEvent = true;
-							eventData = getEventMap(records);
 							break;
 						}
 					}
@@ -470,30 +486,44 @@ public class AuditEventReader {
 					if(currentEventRecords.isEmpty()){
 						return null;
 					}else{
-						Set<String> records = new HashSet<String>(currentEventRecords);
-						currentEventRecords.clear();
+						eventRecords = takeCurrentEventRecords();
 						currentEventId = -1L;
 						pendingUBSIEvent = false;
-						return getEventMap(records);
 					}
 				}
 			}
-			return eventData;
+			return eventRecords;
 		}
 	}
 	
 	/**
-	 * Passes all the records through the function {@link #parseEventLine(String) parseEventLine}
+	 * Returns the buffered records and empties the buffer for the next event
+	 * 
+	 * @return records of the current event
+	 */
+	private List<String> takeCurrentEventRecords(){
+		List<String> records = currentEventRecords;
+		currentEventRecords = takenEventRecords;
+		currentEventRecords.clear();
+		takenEventRecords = records;
+		return records;
+	}
+	
+	/**
+	 * Passes all the records through the function {@link AuditRecordParser#parseRecord(String, Map) parseRecord}
 	 * and returns a map which contains keys and values for all the records
 	 * 
+	 * The records are parsed directly into the returned map in the order they were read
+	 * 
 	 * @param records records of a single event
+	 * @param parser parser to use. One per thread
 	 * @return map of key values
 	 */
-	private Map<String, String> getEventMap(Set<String> records) throws Exception{
+	static Map<String, String> getEventMap(List<String> records, AuditRecordParser parser) throws MalformedAuditDataException{
 		try{
 			Map<String, String> eventMap = new HashMap<String, String>();
-			for(String record : records){
-				eventMap.putAll(parseEventLine(record));
+			for(int i = 0; i < records.size(); i++){
+				parser.parseRecord(records.get(i), eventMap);
 			}
 			return eventMap;
 		}catch(Exception e){
@@ -503,9 +533,15 @@ public class AuditEventReader {
 	}
 
 	public void close(){
+		if(parallelParser != null){
+			parallelParser.close();
+		}
 		if(reportingEnabled){
 			printStats();
 		}
+		if(reorderer != null && reorderer.getLateRecordCount() > 0){
+			logger.log(Level.WARNING, "{0} record(s) out of order by more than the reorder window", reorderer.getLateRecordCount());
+		}
 		if(outputLogWriter != null){
 			try{
 				outputLogWriter.close();
@@ -521,264 +557,4 @@ public class AuditEventReader {
 			}
 		}
 	}
-
-	/**
-	 * Parses the line to get unit information out of it.
-	 * 
-	 * Expected format for unit information ...'(pid=1 unitid=2 iteration=3 time=4 count=5)'...
-	 * 
-	 * Returns a map which contains the keys in the above-given format but the keys are
-	 * defined as constants in this class.
-	 * 
-	 * @param line audit record with unit information
-	 * @return map of key values for a unit
-	 */
-	private List<Map<String, String>> parseUnitsKeyValues(String line){
-		List<Map<String, String>> unitsKeyValues = new ArrayList<Map<String, String>>();
-		Matcher matcher2 = pattern_unit.matcher(line);
-		while(matcher2.find()){
-			String pid = matcher2.group(1);
-			String thread_start_time = matcher2.group(2);
-			String unitid = matcher2.group(3);
-			String iteration = matcher2.group(4);
-			String time = matcher2.group(5);
-			String count = matcher2.group(6);
-			
-			Map<String, String> unitKeyValues = new HashMap<String, String>();
-			unitKeyValues.put(UNIT_PID, pid);
-			unitKeyValues.put(UNIT_THREAD_START_TIME, thread_start_time);
-			unitKeyValues.put(UNIT_UNITID, unitid);
-			unitKeyValues.put(UNIT_ITERATION, iteration);
-			unitKeyValues.put(UNIT_TIME, time);
-			unitKeyValues.put(UNIT_COUNT, count);
-			unitsKeyValues.add(unitKeyValues);
-		}
-		return unitsKeyValues;
-	}
-	
-	private String _parseAuditString(String originalRecord, String key){
-		int keyStartIndex = originalRecord.indexOf(key);
-		if(keyStartIndex < 0){
-			return null;
-		}else{
-			int valueStartIndex = keyStartIndex + key.length();
-			if(valueStartIndex >= originalRecord.length()){
-				return null;
-			}else{
-				char valueFirstChar = originalRecord.charAt(valueStartIndex);
-				if(valueFirstChar == '"'){
-					// is quoted string
-					int valueEndIndex = originalRecord.indexOf('"', valueStartIndex + 1);
-					if(valueEndIndex < 0){
-						return null;
-					}else{
-						return originalRecord.substring(valueStartIndex+1, valueEndIndex);
-					}
-				}else{
-					// is hex string
-					int valueEndIndex = originalRecord.indexOf(' ', valueStartIndex + 1);
-					if(valueEndIndex < 0){
-						valueEndIndex = originalRecord.length();
-					}
-					String hexValue = originalRecord.substring(valueStartIndex, valueEndIndex);
-					return CommonFunctions.decodeHex(hexValue);
-				}
-			}
-		}
-	}
-	
-	/**
-	 * Creates a map with key values as needed by the Audit reporter from audit records of an event
-	 * 
-	 * @param line event record to parse
-	 * @return map of key values for the argument record
-	 */
-	private Map<String, String> parseEventLine(String line) {
-
-		Map<String, String> auditRecordKeyValues = new HashMap<String, String>();
-		
-		if(line.contains(RECORD_TYPE_KEY+"="+RECORD_TYPE_DAEMON_START)){
-			auditRecordKeyValues.put(RECORD_TYPE_KEY, RECORD_TYPE_DAEMON_START);
-			return auditRecordKeyValues;
-		}
-
-		boolean isUBSIEvent = false;
-		
-		// There will be time and eventid in this one
-		if(line.contains(RECORD_TYPE_KEY+"="+RECORD_TYPE_UBSI_ENTRY)){
-			
-			List<Map<String, String>> unitsKeyValues = parseUnitsKeyValues(line);
-			if(unitsKeyValues.size() != 1){ // there should be only one unit's information
-				logger.log(Level.WARNING, "Malformed record '"+line+"'");
-			}else{
-				// Add all the units key values
-				auditRecordKeyValues.putAll(unitsKeyValues.get(0));
-			}
-						
-			auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, RECORD_TYPE_UBSI_ENTRY);
-						
-			isUBSIEvent = true;
-			
-		}else if(line.contains(RECORD_TYPE_KEY+"="+RECORD_TYPE_UBSI_EXIT)){
-			// no time and event id
-			auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, RECORD_TYPE_UBSI_EXIT);
-						
-			isUBSIEvent = true;
-			
-		}else if(line.contains(RECORD_TYPE_KEY+"="+RECORD_TYPE_UBSI_DEP)){
-			// no time and event id
-			List<Map<String, String>> unitsKeyValues = parseUnitsKeyValues(line);
-			if(unitsKeyValues.size() == 0){ // there should be only one or more unit's information
-				logger.log(Level.WARNING, "Malformed record '"+line+"'");
-			}else{
-				// Add all the units key values
-				
-				// Last one is the acting unit
-				Map<String, String> actingUnitKeyValues = unitsKeyValues.remove(unitsKeyValues.size() - 1);
-				auditRecordKeyValues.putAll(actingUnitKeyValues);
-				
-				for(int a = 0; a<unitsKeyValues.size(); a++){
-					Map<String, String> unitKeyValues = unitsKeyValues.get(a);
-					for(Map.Entry<String, String> entry : unitKeyValues.entrySet()){
-						auditRecordKeyValues.put(entry.getKey() + a, entry.getValue());
-					}
-				}
-				
-				auditRecordKeyValues.put(UNIT_DEPS_COUNT, String.valueOf(unitsKeyValues.size()));
-								
-			}
-			
-			auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, RECORD_TYPE_UBSI_DEP);
-			isUBSIEvent = true;
-			
-		}
-		
-		if(isUBSIEvent){
-			
-			Long UBSIEntryEventId = getEventId(line);
-			String UBSIEntryTime = getEventTime(line);
-			
-			auditRecordKeyValues.put(TIME, UBSIEntryTime);
-			auditRecordKeyValues.put(EVENT_ID, String.valueOf(UBSIEntryEventId));
-			
-			String msgData = line.substring(line.indexOf(" ppid="));
-			auditRecordKeyValues.putAll(CommonFunctions.parseKeyValPairs(msgData));
-			
-			String comm = _parseAuditString(line, " comm=");
-			auditRecordKeyValues.put(COMM, comm);
-		}else{
-		
-			Matcher event_start_matcher = pattern_message_start.matcher(line);
-			if (event_start_matcher.find()) {
-				String type = event_start_matcher.group(2);
-				String time = event_start_matcher.group(3);
-				String eventId = event_start_matcher.group(4);
-				String messageData = line.substring(event_start_matcher.end());
-	
-				auditRecordKeyValues.put(EVENT_ID, eventId);
-				auditRecordKeyValues.put(RECORD_TYPE_KEY, type);
-	
-				if(type.equals(RECORD_TYPE_USER)){
-					int indexOfData = messageData.indexOf(KMODULE_DATA_KEY);
-					if(indexOfData != -1){
-						String data = messageData.substring(indexOfData + KMODULE_DATA_KEY.length() + 1);
-						data = data.substring(1, data.length() - 1);// remove quotes
-						Map<String, String> eventData = CommonFunctions.parseKeyValPairs(data);
-						eventData.put(RECORD_TYPE_KEY, KMODULE_RECORD_TYPE);
-						eventData.put(COMM, CommonFunctions.decodeHex(eventData.get(COMM)));
-						eventData.put(TIME, time);
-						auditRecordKeyValues.putAll(eventData);
-					}else{
-						indexOfData = messageData.indexOf(UBSI_INTERCEPTED_DATA_KEY);
-						if(indexOfData != -1){
-							String data = messageData.substring(indexOfData + UBSI_INTERCEPTED_DATA_KEY.length() + 1);
-							data = data.substring(1, data.length() - 1);// remove quotes
-							Map<String, String> eventData = CommonFunctions.parseKeyValPairs(data);
-							eventData.put(RECORD_TYPE_KEY, RECORD_TYPE_SYSCALL);
-							eventData.put(COMM, CommonFunctions.decodeHex(eventData.get(COMM)));
-							eventData.put(TIME, time);
-							auditRecordKeyValues.putAll(eventData);
-						}else{
-							indexOfData = messageData.indexOf(" syscall=62 ");
-							Map<String, String> eventData = CommonFunctions.parseKeyValPairs(messageData);
-							eventData.put(RECORD_TYPE_KEY, RECORD_TYPE_SYSCALL);
-							eventData.put(COMM, CommonFunctions.decodeHex(eventData.get(COMM)));
-							eventData.put(TIME, time);
-							auditRecordKeyValues.putAll(eventData);
-						}
-					}
-				}else if (type.equals(RECORD_TYPE_SYSCALL)) {
-					Map<String, String> eventData = CommonFunctions.parseKeyValPairs(messageData);
-					String commValue = _parseAuditString(line, " comm=");
-					eventData.put(COMM, commValue);
-					eventData.put(TIME, time);
-					auditRecordKeyValues.putAll(eventData);
-				} else if (type.equals(RECORD_TYPE_CWD)) {
-					String cwd = _parseAuditString(line, " cwd=");
-					auditRecordKeyValues.put(CWD, cwd);
-				} else if (type.equals(RECORD_TYPE_PATH)) {
-					Map<String, String> pathKeyValues = CommonFunctions.parseKeyValPairs(messageData);
-					String itemNumber = pathKeyValues.get("item");
-					String mode = pathKeyValues.get("mode");
-					mode = mode == null ? "0" : mode;
-					String nametype = pathKeyValues.get("nametype");
-					
-					String name = _parseAuditString(line, " name=");
-					
-					auditRecordKeyValues.put(PATH_PREFIX + itemNumber, name);
-					auditRecordKeyValues.put(NAMETYPE_PREFIX + itemNumber, nametype);
-					auditRecordKeyValues.put(MODE_PREFIX + itemNumber, mode);
-				} else if (type.equals(RECORD_TYPE_EXECVE)) {
-					Map<String, String> tempKeyValues = CommonFunctions.parseKeyValPairs(line);
-					String argcString = tempKeyValues.get("argc");
-					auditRecordKeyValues.put(EXECVE_ARGC, argcString);
-					Integer argc = CommonFunctions.parseInt(argcString, null);
-					if(argc != null){
-						for(int i = 0; i < argc; i++){
-							String key = "a"+i;
-							String keyForGettingValue = " " + key + "=";
-							String value = _parseAuditString(line, keyForGettingValue);
-							String prefixedKey = EXECVE_PREFIX + key;
-							auditRecordKeyValues.put(prefixedKey, value);
-						}
-					}
-				} else if (type.equals(RECORD_TYPE_FD_PAIR)) {
-					Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-					while (key_value_matcher.find()) {
-						auditRecordKeyValues.put(key_value_matcher.group(1), key_value_matcher.group(2));
-					}
-				} else if (type.equals(RECORD_TYPE_SOCKETCALL)) {
-					Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-					while (key_value_matcher.find()) {
-						auditRecordKeyValues.put("socketcall_" + key_value_matcher.group(1), key_value_matcher.group(2));
-					}
-				} else if (type.equals(RECORD_TYPE_SOCKADDR)) {
-					Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-					while (key_value_matcher.find()) {
-						auditRecordKeyValues.put(key_value_matcher.group(1), key_value_matcher.group(2));
-					}
-				} else if(type.equals(RECORD_TYPE_NETFILTER_PKT)){
-					auditRecordKeyValues.put(TIME, time); // add time
-					auditRecordKeyValues.put(RECORD_TYPE_KEY, RECORD_TYPE_NETFILTER_PKT); // type
-					// rest of the keys as is below
-					Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-					while (key_value_matcher.find()) {
-						auditRecordKeyValues.put(key_value_matcher.group(1), key_value_matcher.group(2));
-					}
-				} else if (type.equals(RECORD_TYPE_MMAP)){
-					Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-					while (key_value_matcher.find()) {
-						auditRecordKeyValues.put(key_value_matcher.group(1), key_value_matcher.group(2));
-					}
-				} else{
-					             
-				}
-	
-			} else {
-	
-			}
-		}
-
-		return auditRecordKeyValues;
-	}
 }
@@ -0,0 +1,595 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.reporter.audit;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import spade.utility.CommonFunctions;
+
+/**
+ * Single-pass parser for audit records.
+ *
+ * Replaces the regular expressions that were used to parse the records. The output
+ * is the same as that of the following patterns:
+ *
+ * Message start: (?:node=(\S+) )?type=(.+) msg=audit\(([0-9\.]+)\:([0-9]+)\):\s*
+ * Key value: (\w+)="*((?&lt;=")[^"]+(?=")|([^\s]+))"*
+ * Unit: \(pid=(\d+) thread_time=(\d+\.\d+) unitid=(\d+) iteration=(\d+) time=(\d+\.\d+) count=(\d+)\)
+ *
+ * Keys and record types are taken from a small cache so that the repeated ones are
+ * not allocated for every record.
+ *
+ * Not thread-safe. Each reader uses its own instance.
+ */
+public class AuditRecordParser {
+
+	private static final Logger logger = Logger.getLogger(AuditRecordParser.class.getName());
+
+	private static final String TYPE_PREFIX = "type=",
+			MESSAGE_PREFIX = " msg=audit(",
+			UNIT_PREFIX = "(pid=",
+			SOCKETCALL_KEY_PREFIX = "socketcall_";
+
+	private static final int KEY_CACHE_SIZE = 512;
+
+	private final String[] keyCache = new String[KEY_CACHE_SIZE];
+
+	/**
+	 * Reused for the records that only need a few of their key values
+	 */
+	private final Map<String, String> scratch = new HashMap<String, String>();
+
+	/**
+	 * Result of the last successful call to {@link #parseHeader(String) parseHeader}
+	 */
+	private String recordType, time, eventId;
+	private int dataStart;
+
+	/**
+	 * Returns the event id from the audit record.
+	 *
+	 * Expected format of line -> "type='TYPE' msg=audit('time':'eventid'):"
+	 *
+	 * @param line audit record
+	 * @return event id. NULL if not found
+	 */
+	public Long getEventId(String line){
+		try{
+			int firstIndexOfColon = line.indexOf(':');
+			int firstIndexOfClosingBracket = line.indexOf(')');
+			return Long.parseLong(line.substring(firstIndexOfColon+1, firstIndexOfClosingBracket));
+		}catch(Exception e){
+			logger.log(Level.WARNING, "Failed to get event id from line: " + line, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the time from the audit record.
+	 *
+	 * Expected format of line -> "type='TYPE' msg=audit('time':'eventid'):"
+	 *
+	 * @param line audit record
+	 * @return time. NULL if not found
+	 */
+	public String getEventTime(String line){
+		try{
+			int firstIndexOfOpeningBracket = line.indexOf('(');
+			int firstIndexOfColon = line.indexOf(':');
+			String timeStr = line.substring(firstIndexOfOpeningBracket+1, firstIndexOfColon);
+			Double.parseDouble(timeStr); // if valid double then continues
+			return timeStr;
+		}catch(Exception e){
+			logger.log(Level.WARNING, "Failed to get time from line: " + line, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the value of the first 'type=' in the line without parsing the rest of it.
+	 *
+	 * Used to filter records before they are buffered.
+	 *
+	 * @param line audit record
+	 * @return record type. NULL if not found
+	 */
+	public String getRecordType(String line){
+		int typeIndex = line.indexOf(TYPE_PREFIX);
+		if(typeIndex < 0){
+			return null;
+		}
+		int start = typeIndex + TYPE_PREFIX.length();
+		int end = line.indexOf(' ', start);
+		if(end < 0){
+			end = line.length();
+		}
+		return cached(line, start, end);
+	}
+
+	/**
+	 * Parses the header of the record i.e. everything up to and including 'msg=audit(time:eventid): '.
+	 *
+	 * If true is returned then the parts are available with {@link #getParsedType() getParsedType},
+	 * {@link #getParsedTime() getParsedTime}, {@link #getParsedEventId() getParsedEventId}, and
+	 * {@link #getDataStart() getDataStart}.
+	 *
+	 * @param line audit record
+	 * @return true if the header was found
+	 */
+	public boolean parseHeader(String line){
+		int typeIndex = line.indexOf(TYPE_PREFIX);
+		while(typeIndex >= 0){
+			int typeStart = typeIndex + TYPE_PREFIX.length();
+			// The type is greedy so the last valid message start is the one that matches
+			int messageIndex = line.lastIndexOf(MESSAGE_PREFIX);
+			while(messageIndex > typeStart){
+				if(parseMessageStart(line, messageIndex + MESSAGE_PREFIX.length())){
+					recordType = cached(line, typeStart, messageIndex);
+					return true;
+				}
+				messageIndex = line.lastIndexOf(MESSAGE_PREFIX, messageIndex - 1);
+			}
+			typeIndex = line.indexOf(TYPE_PREFIX, typeIndex + 1);
+		}
+		return false;
+	}
+
+	// 'time:eventid):' followed by optional whitespace
+	private boolean parseMessageStart(String line, int index){
+		int timeEnd = index;
+		while(timeEnd < line.length() && (isDigit(line.charAt(timeEnd)) || line.charAt(timeEnd) == '.')){
+			timeEnd++;
+		}
+		if(timeEnd == index || !charAt(line, timeEnd, ':')){
+			return false;
+		}
+		int eventIdEnd = digits(line, timeEnd + 1);
+		if(eventIdEnd < 0 || !charAt(line, eventIdEnd, ')') || !charAt(line, eventIdEnd + 1, ':')){
+			return false;
+		}
+		int end = eventIdEnd + 2;
+		while(end < line.length() && isWhitespace(line.charAt(end))){
+			end++;
+		}
+		time = line.substring(index, timeEnd);
+		eventId = line.substring(timeEnd + 1, eventIdEnd);
+		dataStart = end;
+		return true;
+	}
+
+	public String getParsedType(){
+		return recordType;
+	}
+
+	public String getParsedTime(){
+		return time;
+	}
+
+	public String getParsedEventId(){
+		return eventId;
+	}
+
+	public int getDataStart(){
+		return dataStart;
+	}
+
+	/**
+	 * Adds all the key values in the data to the map. Same as {@link CommonFunctions#parseKeyValPairs(String)
+	 * CommonFunctions.parseKeyValPairs} when trim is true.
+	 *
+	 * Values can be unquoted, quoted (with spaces), or hex strings (returned as is).
+	 *
+	 * @param data string of the format [a="b c" d=e]
+	 * @param start index in the data to start from
+	 * @param map map to add the key values to
+	 * @param keyPrefix prefix to add to each key. NULL if none
+	 * @param trim whether to trim the keys and the values
+	 */
+	public void parseKeyValues(String data, int start, Map<String, String> map, String keyPrefix, boolean trim){
+		int length = data.length();
+		int index = start;
+		while(index < length){
+			// Find the next word followed by '='
+			while(index < length && !isWordChar(data.charAt(index))){
+				index++;
+			}
+			int keyStart = index;
+			while(index < length && isWordChar(data.charAt(index))){
+				index++;
+			}
+			if(index >= length){
+				return;
+			}
+			if(data.charAt(index) != '='){
+				continue;
+			}
+			int keyEnd = index;
+			int valueStart = keyEnd + 1;
+			int quotesEnd = valueStart;
+			while(quotesEnd < length && data.charAt(quotesEnd) == '"'){
+				quotesEnd++;
+			}
+			// Backtracks over the leading quotes like the pattern does
+			int matchEnd = -1;
+			String value = null;
+			for(int position = quotesEnd; position >= valueStart; position--){
+				if(position > valueStart){
+					// Quoted value. At least one character before the next quote
+					int closingQuote = data.indexOf('"', position);
+					if(closingQuote > position){
+						value = data.substring(position, closingQuote);
+						matchEnd = closingQuote;
+						while(matchEnd < length && data.charAt(matchEnd) == '"'){
+							matchEnd++;
+						}
+						break;
+					}
+				}
+				// Unquoted value
+				int valueEnd = position;
+				while(valueEnd < length && !isWhitespace(data.charAt(valueEnd))){
+					valueEnd++;
+				}
+				if(valueEnd > position){
+					value = data.substring(position, valueEnd);
+					matchEnd = valueEnd;
+					break;
+				}
+			}
+			if(value == null){
+				// No value. Resume after the '='
+				index = valueStart;
+				continue;
+			}
+			String key;
+			if(keyPrefix == null){
+				key = cached(data, keyStart, keyEnd);
+			}else{
+				key = keyPrefix + cached(data, keyStart, keyEnd);
+			}
+			map.put(key, trim ? value.trim() : value);
+			index = matchEnd;
+		}
+	}
+
+	/**
+	 * Returns the value of the key in the record. Value is either a quoted string or a
+	 * hex string which is decoded.
+	 *
+	 * @param originalRecord audit record
+	 * @param key key with the separators i.e. ' name='
+	 * @return the value. NULL if not found or invalid
+	 */
+	public String parseAuditString(String originalRecord, String key){
+		int keyStartIndex = originalRecord.indexOf(key);
+		if(keyStartIndex < 0){
+			return null;
+		}else{
+			int valueStartIndex = keyStartIndex + key.length();
+			if(valueStartIndex >= originalRecord.length()){
+				return null;
+			}else{
+				char valueFirstChar = originalRecord.charAt(valueStartIndex);
+				if(valueFirstChar == '"'){
+					// is quoted string
+					int valueEndIndex = originalRecord.indexOf('"', valueStartIndex + 1);
+					if(valueEndIndex < 0){
+						return null;
+					}else{
+						return originalRecord.substring(valueStartIndex+1, valueEndIndex);
+					}
+				}else{
+					// is hex string
+					int valueEndIndex = originalRecord.indexOf(' ', valueStartIndex + 1);
+					if(valueEndIndex < 0){
+						valueEndIndex = originalRecord.length();
+					}
+					String hexValue = originalRecord.substring(valueStartIndex, valueEndIndex);
+					return CommonFunctions.decodeHex(hexValue);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parses the unit information in the line and adds it to the map.
+	 *
+	 * Expected format for unit information ...'(pid=1 thread_time=2.0 unitid=3 iteration=4 time=5.0 count=6)'...
+	 *
+	 * The last unit in the line is added with keys as is. The units before it are added with
+	 * their index appended to the keys if indexUnits is true.
+	 *
+	 * @param line audit record with unit information
+	 * @param map map to add the unit key values to
+	 * @param indexUnits if false then the first unit is added with keys as is and the rest are ignored
+	 * @return number of units found
+	 */
+	public int parseUnits(String line, Map<String, String> map, boolean indexUnits){
+		int count = 0;
+		int previousStart = -1, previousEnd = -1;
+		int unitIndex = line.indexOf(UNIT_PREFIX);
+		while(unitIndex >= 0){
+			int unitEnd = matchUnit(line, unitIndex);
+			if(unitEnd < 0){
+				unitIndex = line.indexOf(UNIT_PREFIX, unitIndex + 1);
+			}else{
+				if(previousStart >= 0 && indexUnits){
+					// Not the last one
+					putUnit(line, previousStart, map, String.valueOf(count - 1));
+				}
+				if(count == 0 || indexUnits){
+					previousStart = unitIndex;
+					previousEnd = unitEnd;
+				}
+				count++;
+				unitIndex = line.indexOf(UNIT_PREFIX, unitEnd);
+			}
+		}
+		if(previousEnd >= 0){
+			putUnit(line, previousStart, map, "");
+		}
+		return count;
+	}
+
+	// Returns the end of the unit information starting at index or -1 if not valid
+	private int matchUnit(String line, int index){
+		int i = index + UNIT_PREFIX.length();
+		i = digits(line, i);
+		i = literal(line, i, " thread_time=");
+		i = decimal(line, i);
+		i = literal(line, i, " unitid=");
+		i = digits(line, i);
+		i = literal(line, i, " iteration=");
+		i = digits(line, i);
+		i = literal(line, i, " time=");
+		i = decimal(line, i);
+		i = literal(line, i, " count=");
+		i = digits(line, i);
+		i = literal(line, i, ")");
+		return i;
+	}
+
+	// Unit at index is known to be valid
+	private void putUnit(String line, int index, Map<String, String> map, String keySuffix){
+		int start = index + UNIT_PREFIX.length();
+		int end = digits(line, start);
+		map.put(AuditEventReader.UNIT_PID + keySuffix, line.substring(start, end));
+		start = end + " thread_time=".length();
+		end = decimal(line, start);
+		map.put(AuditEventReader.UNIT_THREAD_START_TIME + keySuffix, line.substring(start, end));
+		start = end + " unitid=".length();
+		end = digits(line, start);
+		map.put(AuditEventReader.UNIT_UNITID + keySuffix, line.substring(start, end));
+		start = end + " iteration=".length();
+		end = digits(line, start);
+		map.put(AuditEventReader.UNIT_ITERATION + keySuffix, line.substring(start, end));
+		start = end + " time=".length();
+		end = decimal(line, start);
+		map.put(AuditEventReader.UNIT_TIME + keySuffix, line.substring(start, end));
+		start = end + " count=".length();
+		end = digits(line, start);
+		map.put(AuditEventReader.UNIT_COUNT + keySuffix, line.substring(start, end));
+	}
+
+	/**
+	 * Adds the key values as needed by the Audit reporter from the audit record to the map
+	 *
+	 * @param line event record to parse
+	 * @param auditRecordKeyValues map of key values of the event
+	 */
+	public void parseRecord(String line, Map<String, String> auditRecordKeyValues){
+		String type = getRecordType(line);
+
+		if(AuditEventReader.RECORD_TYPE_DAEMON_START.equals(type)){
+			auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, AuditEventReader.RECORD_TYPE_DAEMON_START);
+			return;
+		}
+
+		boolean isUBSIEvent = false;
+
+		// There will be time and eventid in this one
+		if(AuditEventReader.RECORD_TYPE_UBSI_ENTRY.equals(type)){
+			scratch.clear();
+			if(parseUnits(line, scratch, false) != 1){ // there should be only one unit's information
+				logger.log(Level.WARNING, "Malformed record '"+line+"'");
+			}else{
+				// Add all the units key values
+				auditRecordKeyValues.putAll(scratch);
+			}
+			auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, AuditEventReader.RECORD_TYPE_UBSI_ENTRY);
+			isUBSIEvent = true;
+		}else if(AuditEventReader.RECORD_TYPE_UBSI_EXIT.equals(type)){
+			// no time and event id
+			auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, AuditEventReader.RECORD_TYPE_UBSI_EXIT);
+			isUBSIEvent = true;
+		}else if(AuditEventReader.RECORD_TYPE_UBSI_DEP.equals(type)){
+			// no time and event id
+			// Last one is the acting unit
+			int units = parseUnits(line, auditRecordKeyValues, true);
+			if(units == 0){ // there should be only one or more unit's information
+				logger.log(Level.WARNING, "Malformed record '"+line+"'");
+			}else{
+				auditRecordKeyValues.put(AuditEventReader.UNIT_DEPS_COUNT, String.valueOf(units - 1));
+			}
+			auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, AuditEventReader.RECORD_TYPE_UBSI_DEP);
+			isUBSIEvent = true;
+		}
+
+		if(isUBSIEvent){
+			Long UBSIEntryEventId = getEventId(line);
+			String UBSIEntryTime = getEventTime(line);
+
+			auditRecordKeyValues.put(AuditEventReader.TIME, UBSIEntryTime);
+			auditRecordKeyValues.put(AuditEventReader.EVENT_ID, String.valueOf(UBSIEntryEventId));
+
+			int msgDataIndex = line.indexOf(" ppid=");
+			if(msgDataIndex < 0){
+				throw new StringIndexOutOfBoundsException("No ppid in UBSI record");
+			}
+			parseKeyValues(line, msgDataIndex, auditRecordKeyValues, null, true);
+
+			String comm = parseAuditString(line, " comm=");
+			auditRecordKeyValues.put(AuditEventReader.COMM, comm);
+		}else if(parseHeader(line)){
+			type = recordType;
+
+			auditRecordKeyValues.put(AuditEventReader.EVENT_ID, eventId);
+			auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, type);
+
+			if(type.equals(AuditEventReader.RECORD_TYPE_USER)){
+				String messageData = line.substring(dataStart);
+				int indexOfData = messageData.indexOf(AuditEventReader.KMODULE_DATA_KEY);
+				String eventType = AuditEventReader.KMODULE_RECORD_TYPE;
+				String data;
+				if(indexOfData != -1){
+					data = messageData.substring(indexOfData + AuditEventReader.KMODULE_DATA_KEY.length() + 1);
+					data = data.substring(1, data.length() - 1);// remove quotes
+				}else{
+					eventType = AuditEventReader.RECORD_TYPE_SYSCALL;
+					indexOfData = messageData.indexOf(AuditEventReader.UBSI_INTERCEPTED_DATA_KEY);
+					if(indexOfData != -1){
+						data = messageData.substring(indexOfData + AuditEventReader.UBSI_INTERCEPTED_DATA_KEY.length() + 1);
+						data = data.substring(1, data.length() - 1);// remove quotes
+					}else{
+						data = messageData;
+					}
+				}
+				scratch.clear();
+				parseKeyValues(data, 0, scratch, null, true);
+				scratch.put(AuditEventReader.RECORD_TYPE_KEY, eventType);
+				scratch.put(AuditEventReader.COMM, CommonFunctions.decodeHex(scratch.get(AuditEventReader.COMM)));
+				scratch.put(AuditEventReader.TIME, time);
+				auditRecordKeyValues.putAll(scratch);
+			}else if(type.equals(AuditEventReader.RECORD_TYPE_SYSCALL)){
+				parseKeyValues(line, dataStart, auditRecordKeyValues, null, true);
+				auditRecordKeyValues.put(AuditEventReader.COMM, parseAuditString(line, " comm="));
+				auditRecordKeyValues.put(AuditEventReader.TIME, time);
+			}else if(type.equals(AuditEventReader.RECORD_TYPE_CWD)){
+				String cwd = parseAuditString(line, " cwd=");
+				auditRecordKeyValues.put(AuditEventReader.CWD, cwd);
+			}else if(type.equals(AuditEventReader.RECORD_TYPE_PATH)){
+				scratch.clear();
+				parseKeyValues(line, dataStart, scratch, null, true);
+				String itemNumber = scratch.get("item");
+				String mode = scratch.get("mode");
+				mode = mode == null ? "0" : mode;
+				String nametype = scratch.get("nametype");
+
+				String name = parseAuditString(line, " name=");
+
+				auditRecordKeyValues.put(AuditEventReader.PATH_PREFIX + itemNumber, name);
+				auditRecordKeyValues.put(AuditEventReader.NAMETYPE_PREFIX + itemNumber, nametype);
+				auditRecordKeyValues.put(AuditEventReader.MODE_PREFIX + itemNumber, mode);
+			}else if(type.equals(AuditEventReader.RECORD_TYPE_EXECVE)){
+				scratch.clear();
+				parseKeyValues(line, 0, scratch, null, true);
+				String argcString = scratch.get("argc");
+				auditRecordKeyValues.put(AuditEventReader.EXECVE_ARGC, argcString);
+				Integer argc = CommonFunctions.parseInt(argcString, null);
+				if(argc != null){
+					for(int i = 0; i < argc; i++){
+						String key = "a"+i;
+						String value = parseAuditString(line, " " + key + "=");
+						auditRecordKeyValues.put(AuditEventReader.EXECVE_PREFIX + key, value);
+					}
+				}
+			}else if(type.equals(AuditEventReader.RECORD_TYPE_SOCKETCALL)){
+				parseKeyValues(line, dataStart, auditRecordKeyValues, SOCKETCALL_KEY_PREFIX, false);
+			}else if(type.equals(AuditEventReader.RECORD_TYPE_NETFILTER_PKT)){
+				auditRecordKeyValues.put(AuditEventReader.TIME, time); // add time
+				// rest of the keys as is below
+				parseKeyValues(line, dataStart, auditRecordKeyValues, null, false);
+			}else if(type.equals(AuditEventReader.RECORD_TYPE_FD_PAIR)
+					|| type.equals(AuditEventReader.RECORD_TYPE_SOCKADDR)
+					|| type.equals(AuditEventReader.RECORD_TYPE_MMAP)){
+				parseKeyValues(line, dataStart, auditRecordKeyValues, null, false);
+			}
+		}
+	}
+
+	/**
+	 * Returns the substring from the cache if the same one was seen before
+	 */
+	private String cached(String string, int start, int end){
+		int length = end - start;
+		int hash = 0;
+		for(int i = start; i < end; i++){
+			hash = 31 * hash + string.charAt(i);
+		}
+		int slot = (hash ^ (hash >>> 16)) & (KEY_CACHE_SIZE - 1);
+		String cached = keyCache[slot];
+		if(cached != null && cached.length() == length && string.regionMatches(start, cached, 0, length)){
+			return cached;
+		}
+		cached = string.substring(start, end);
+		keyCache[slot] = cached;
+		return cached;
+	}
+
+	private static boolean charAt(String string, int index, char c){
+		return index >= 0 && index < string.length() && string.charAt(index) == c;
+	}
+
+	// Returns the end of the digits at index or -1 if none
+	private static int digits(String string, int index){
+		if(index < 0){
+			return -1;
+		}
+		int end = index;
+		while(end < string.length() && isDigit(string.charAt(end))){
+			end++;
+		}
+		return end == index ? -1 : end;
+	}
+
+	// Returns the end of 'digits.digits' at index or -1 if not found
+	private static int decimal(String string, int index){
+		index = digits(string, index);
+		if(!charAt(string, index, '.')){
+			return -1;
+		}
+		return digits(string, index + 1);
+	}
+
+	// Returns the index after the literal or -1 if not found
+	private static int literal(String string, int index, String literal){
+		if(index < 0 || !string.startsWith(literal, index)){
+			return -1;
+		}
+		return index + literal.length();
+	}
+
+	private static boolean isDigit(char c){
+		return c >= '0' && c <= '9';
+	}
+
+	// Same as \w
+	private static boolean isWordChar(char c){
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+	}
+
+	// Same as \s
+	private static boolean isWhitespace(char c){
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+}
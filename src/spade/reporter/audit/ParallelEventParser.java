@@ -0,0 +1,244 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.reporter.audit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Parses the events of an AuditEventReader with multiple threads.
+ *
+ * A reader thread splits the stream into events and groups them into batches. Batch 'n'
+ * goes to shard 'n % shards' which parses all the events in it. The parsed batches are
+ * taken from the shards in the same round-robin order so the events are returned in
+ * exactly the order they were read. Since all the events are handled by the caller in
+ * that order, the per-process ordering that the process and artifact managers depend on
+ * is kept.
+ */
+class ParallelEventParser{
+
+	private static final Logger logger = Logger.getLogger(ParallelEventParser.class.getName());
+
+	/**
+	 * Batches queued per shard before the reader thread blocks
+	 */
+	private static final int QUEUED_BATCHES_PER_SHARD = 4;
+
+	private final AuditEventReader reader;
+	private final String streamId;
+	private final int batchSize;
+	private final Shard[] shards;
+	private final Thread readerThread;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * State of the thread calling readEventData
+	 */
+	private long nextBatchNumber = 0;
+	private Batch currentBatch = null;
+	private int currentIndex = 0;
+	private boolean finished = false;
+	private long startTime;
+
+	ParallelEventParser(AuditEventReader reader, String streamId, int shardCount, int batchSize){
+		this.reader = reader;
+		this.streamId = streamId;
+		this.batchSize = batchSize < 1 ? 1 : batchSize;
+		this.shards = new Shard[shardCount];
+		for(int i = 0; i < shardCount; i++){
+			shards[i] = new Shard(i);
+		}
+		this.readerThread = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				readEvents();
+			}
+		}, "audit-event-reader-" + streamId);
+		this.readerThread.setDaemon(true);
+	}
+
+	void start(){
+		startTime = System.currentTimeMillis();
+		for(Shard shard : shards){
+			shard.thread.start();
+		}
+		readerThread.start();
+		logger.log(Level.INFO, "Parsing events of stream ''{0}'' with {1} shard(s) and batch size {2}",
+				new Object[]{streamId, shards.length, batchSize});
+	}
+
+	private void readEvents(){
+		long batchNumber = 0;
+		boolean last = false;
+		while(!last && !closed){
+			Batch batch = new Batch(batchSize);
+			try{
+				while(batch.events.size() < batchSize){
+					List<String> records = reader.readEventRecords();
+					if(records == null){
+						batch.last = true;
+						break;
+					}
+					// Copied because the reader reuses the list
+					batch.events.add(new ArrayList<String>(records));
+				}
+			}catch(Exception e){
+				batch.readException = e;
+				batch.last = true;
+			}
+			last = batch.last;
+			try{
+				shards[(int)(batchNumber % shards.length)].input.put(batch);
+			}catch(InterruptedException e){
+				break;
+			}
+			batchNumber++;
+		}
+	}
+
+	/**
+	 * Returns the next parsed event in the order read from the stream
+	 *
+	 * @return map of key values of the event. NULL means EOF
+	 * @throws Exception MalformedAuditDataException for the events that failed to parse, otherwise
+	 * the exception with which the reading of the stream failed
+	 */
+	Map<String, String> readEventData() throws Exception{
+		while(!finished){
+			if(currentBatch != null){
+				if(currentIndex < currentBatch.results.length){
+					Object result = currentBatch.results[currentIndex];
+					currentBatch.results[currentIndex++] = null;
+					if(result instanceof MalformedAuditDataException){
+						throw (MalformedAuditDataException)result;
+					}
+					@SuppressWarnings("unchecked")
+					Map<String, String> eventData = (Map<String, String>)result;
+					return eventData;
+				}else if(currentBatch.last){
+					finished = true;
+					logStats();
+					if(currentBatch.readException != null){
+						throw currentBatch.readException;
+					}
+					return null;
+				}
+			}
+			currentBatch = shards[(int)(nextBatchNumber % shards.length)].output.take();
+			currentIndex = 0;
+			nextBatchNumber++;
+		}
+		return null;
+	}
+
+	void close(){
+		closed = true;
+		readerThread.interrupt();
+		for(Shard shard : shards){
+			shard.thread.interrupt();
+		}
+		if(!finished){
+			finished = true;
+			logStats();
+		}
+	}
+
+	private void logStats(){
+		long totalEvents = 0;
+		for(Shard shard : shards){
+			float parseSeconds = (float)shard.parseNanos / 1000000000;
+			float rate = parseSeconds > 0 ? shard.events / parseSeconds : 0;
+			logger.log(Level.INFO, "Shard {0}: {1} events parsed in {2} seconds. Rate: {3} events/sec",
+					new Object[]{shard.index, shard.events, parseSeconds, rate});
+			totalEvents += shard.events;
+		}
+		float overallSeconds = (float)(System.currentTimeMillis() - startTime) / 1000;
+		if(overallSeconds > 0){
+			logger.log(Level.INFO, "All shards: {0} events in {1} seconds. Rate: {2} events/sec",
+					new Object[]{totalEvents, overallSeconds, totalEvents / overallSeconds});
+		}
+	}
+
+	private static class Batch{
+		private final List<List<String>> events;
+		/**
+		 * Either the map of key values or the MalformedAuditDataException for each event
+		 */
+		private Object[] results;
+		private boolean last = false;
+		private Exception readException = null;
+
+		private Batch(int size){
+			this.events = new ArrayList<List<String>>(size);
+		}
+	}
+
+	private class Shard implements Runnable{
+		private final int index;
+		private final AuditRecordParser parser = new AuditRecordParser();
+		private final BlockingQueue<Batch> input = new ArrayBlockingQueue<Batch>(QUEUED_BATCHES_PER_SHARD);
+		private final BlockingQueue<Batch> output = new ArrayBlockingQueue<Batch>(QUEUED_BATCHES_PER_SHARD);
+		private final Thread thread;
+
+		// Written by the shard thread only
+		private volatile long events = 0;
+		private volatile long parseNanos = 0;
+
+		private Shard(int index){
+			this.index = index;
+			this.thread = new Thread(this, "audit-event-parser-" + index + "-" + streamId);
+			this.thread.setDaemon(true);
+		}
+
+		@Override
+		public void run(){
+			try{
+				while(!closed){
+					Batch batch = input.take();
+					long start = System.nanoTime();
+					Object[] results = new Object[batch.events.size()];
+					for(int i = 0; i < results.length; i++){
+						try{
+							results[i] = AuditEventReader.getEventMap(batch.events.get(i), parser);
+						}catch(MalformedAuditDataException made){
+							results[i] = made;
+						}
+					}
+					batch.results = results;
+					batch.events.clear();
+					parseNanos += System.nanoTime() - start;
+					events += results.length;
+					output.put(batch);
+					if(batch.last){
+						break;
+					}
+				}
+			}catch(InterruptedException e){
+				// closed
+			}
+		}
+	}
+}
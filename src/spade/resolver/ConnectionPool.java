@@ -0,0 +1,229 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.resolver;
+
+import spade.core.AbstractResolver;
+import spade.core.Kernel;
+
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent TLS connections to the query servers of other hosts.
+ *
+ * A connection is returned to the pool after use so that the following requests
+ * to the same host skip the connect and the handshake. The number of connections
+ * in use per host is limited, and connections that have been idle for too long
+ * are closed instead of being reused.
+ */
+class ConnectionPool
+{
+    private static final Logger logger = Logger.getLogger(ConnectionPool.class.getName());
+
+    private final int port;
+    private final int connectionsPerHost;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final long idleTimeout;
+    private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<>();
+
+    private static class Host
+    {
+        private final Semaphore permits;
+        // guarded by this
+        private final Deque<RemoteConnection> idleConnections = new ArrayDeque<>();
+
+        private Host(int connections)
+        {
+            permits = new Semaphore(connections);
+        }
+    }
+
+    /**
+     * @param port query port of the other hosts
+     * @param connectionsPerHost maximum number of connections in use per host
+     * @param connectTimeout milliseconds to wait for a connection to be established
+     * @param readTimeout milliseconds to wait for a response, and for a free connection
+     * @param idleTimeout milliseconds after which an idle connection is not reused
+     */
+    ConnectionPool(int port, int connectionsPerHost, int connectTimeout, int readTimeout, long idleTimeout)
+    {
+        this.port = port;
+        this.connectionsPerHost = Math.max(1, connectionsPerHost);
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Returns an idle connection to the host or opens a new one. Blocks while the
+     * maximum number of connections to the host are in use. Every connection must
+     * be given back with release.
+     */
+    RemoteConnection borrow(String host) throws IOException, InterruptedException
+    {
+        Host entry = hosts.get(host);
+        if(entry == null)
+        {
+            Host newEntry = new Host(connectionsPerHost);
+            entry = hosts.putIfAbsent(host, newEntry);
+            if(entry == null)
+            {
+                entry = newEntry;
+            }
+        }
+        if(!entry.permits.tryAcquire(readTimeout, TimeUnit.MILLISECONDS))
+        {
+            throw new IOException("Timed out waiting for a connection to " + host);
+        }
+        try
+        {
+            synchronized(entry)
+            {
+                RemoteConnection connection;
+                while((connection = entry.idleConnections.pollFirst()) != null)
+                {
+                    if(System.currentTimeMillis() - connection.lastUsed < idleTimeout)
+                    {
+                        return connection;
+                    }
+                    connection.close();
+                }
+            }
+            return new RemoteConnection(host, port, connectTimeout, readTimeout);
+        }
+        catch(IOException | RuntimeException ex)
+        {
+            entry.permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * @param connection connection taken with borrow
+     * @param reusable false if the connection failed and must be closed
+     */
+    void release(RemoteConnection connection, boolean reusable)
+    {
+        Host entry = hosts.get(connection.host);
+        if(reusable)
+        {
+            connection.lastUsed = System.currentTimeMillis();
+            connection.reused = true;
+            synchronized(entry)
+            {
+                entry.idleConnections.addFirst(connection);
+            }
+        }
+        else
+        {
+            connection.close();
+        }
+        entry.permits.release();
+    }
+
+    /**
+     * A connection to the query server of a host. Queries are sent with the
+     * resolve prefix so that the server answers with the result objects.
+     */
+    static class RemoteConnection
+    {
+        private final String host;
+        private final SSLSocket socket;
+        private final PrintWriter output;
+        private final ObjectInputStream input;
+        private volatile long lastUsed;
+        private volatile boolean reused = false;
+
+        private RemoteConnection(String host, int port, int connectTimeout, int readTimeout) throws IOException
+        {
+            this.host = host;
+            socket = (SSLSocket) Kernel.sslSocketFactory.createSocket();
+            try
+            {
+                socket.connect(new InetSocketAddress(host, port), connectTimeout);
+                socket.setSoTimeout(readTimeout);
+                output = new PrintWriter(socket.getOutputStream(), false);
+                input = new ObjectInputStream(socket.getInputStream());
+            }
+            catch(IOException ex)
+            {
+                socket.close();
+                throw ex;
+            }
+        }
+
+        /**
+         * @return true if the connection has been used before, in which case the server
+         * may have closed it in the meantime
+         */
+        boolean isReused()
+        {
+            return reused;
+        }
+
+        /**
+         * Sends all the queries at once and then reads their results in the same order.
+         *
+         * @return the result object of each query
+         */
+        List<Object> execute(List<String> queries) throws IOException, ClassNotFoundException
+        {
+            for(String query : queries)
+            {
+                output.println(AbstractResolver.RESOLVE_COMMAND + " " + query);
+            }
+            output.flush();
+            if(output.checkError())
+            {
+                throw new IOException("Unable to send queries to " + host);
+            }
+            List<Object> results = new ArrayList<>(queries.size());
+            for(int i = 0; i < queries.size(); i++)
+            {
+                results.add(input.readObject());
+            }
+            return results;
+        }
+
+        private void close()
+        {
+            try
+            {
+                output.println("exit");
+                output.flush();
+                socket.close();
+            }
+            catch(IOException ex)
+            {
+                logger.log(Level.FINE, "Error closing connection to " + host, ex);
+            }
+        }
+    }
+}
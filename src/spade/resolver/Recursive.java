@@ -16,45 +16,71 @@
  */
 package spade.resolver;
 
-import org.apache.commons.collections.CollectionUtils;
 import spade.core.AbstractEdge;
 import spade.core.AbstractQuery;
 import spade.core.AbstractResolver;
 import spade.core.AbstractVertex;
 import spade.core.Edge;
 import spade.core.Graph;
-import spade.core.Kernel;
 import spade.core.Settings;
 import spade.reporter.audit.OPMConstants;
+import spade.utility.CommonFunctions;
 
-import javax.net.ssl.SSLSocket;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import static spade.core.AbstractStorage.PRIMARY_KEY;
 
 /**
+ * Resolves the remote parts of a lineage across as many hosts as needed.
+ *
+ * The network vertices of the partial graph are grouped by remote host, and the
+ * lookups for one host are sent together over a pooled connection. The graphs are
+ * handled as soon as any host answers, and the network vertices in them are
+ * resolved in turn with the depth that is left. Every network connection and every
+ * remote vertex is only resolved once per query, so the hosts are not asked again
+ * for connections that lead back to hosts already visited.
+ *
  * @author raza
  */
 public class Recursive extends AbstractResolver
 {
-    private static final int NTHREADS = 10;
     private static final Logger logger = Logger.getLogger(Recursive.class.getName());
 
+    private static final int NTHREADS =
+            CommonFunctions.parseInt(Settings.getProperty("remote_resolver_threads"), 10);
+    private static final int BATCH_SIZE =
+            CommonFunctions.parseInt(Settings.getProperty("remote_resolver_batch_size"), 50);
+    private static final ConnectionPool connectionPool = new ConnectionPool(
+            CommonFunctions.parseInt(Settings.getProperty("commandline_query_port"), 19998),
+            CommonFunctions.parseInt(Settings.getProperty("remote_resolver_connections_per_host"), 2),
+            CommonFunctions.parseInt(Settings.getProperty("remote_resolver_connect_timeout"), 5000),
+            CommonFunctions.parseInt(Settings.getProperty("remote_resolver_read_timeout"), 60000),
+            CommonFunctions.parseInt(Settings.getProperty("remote_resolver_idle_timeout"), 60000));
+
+    /**
+     * Network connections queued for resolution, in both directions
+     */
+    private final Set<String> visitedConnections = new HashSet<>();
+    /**
+     * Greatest depth up to which the lineage of every remote vertex has been fetched
+     */
+    private final ConcurrentHashMap<String, Integer> fetchedVertices = new ConcurrentHashMap<>();
+
     public Recursive(Graph partialGraph, String function, int depth, String direction)
     {
         super(partialGraph, function, depth, direction);
@@ -63,180 +89,324 @@ public class Recursive extends AbstractResolver
     @Override
     public void run()
     {
-        Map<AbstractVertex, Integer> currentNetworkMap = partialGraph.networkMap();
-        logger.log(Level.INFO, "network Map" + currentNetworkMap.toString());
+        logger.log(Level.INFO, "network Map" + partialGraph.networkMap().toString());
+        ExecutorService executor = Executors.newFixedThreadPool(NTHREADS);
+        CompletionService<HostBatch> completionService = new ExecutorCompletionService<>(executor);
         try
         {
-            // Perform remote query on network vertices.
-            ExecutorService  executor = Executors.newFixedThreadPool(NTHREADS);
-            List<Future<Graph>> futures = new ArrayList<>();
-            for (Map.Entry<AbstractVertex, Integer> currentEntry : currentNetworkMap.entrySet())
-            {
-                AbstractVertex networkVertex = currentEntry.getKey();
-                if(!networkVertex.getAnnotation(OPMConstants.SOURCE).equals(OPMConstants.SOURCE_AUDIT_NETFILTER))
-                    continue;
-                int currentDepth = currentEntry.getValue();
-
-                // Execute remote query
-                Callable<Graph> worker = new ContactRemote(networkVertex, depth - currentDepth, direction);
-                Future<Graph> submit = executor.submit(worker);
-                futures.add(submit);
-            }
-            for(Future<Graph> future: futures)
+            Map<String, List<RemoteRequest>> pendingRequests = new HashMap<>();
+            addRequests(partialGraph, depth, pendingRequests);
+            int runningBatches = submit(pendingRequests, completionService);
+            while(runningBatches > 0)
             {
+                HostBatch batch;
                 try
                 {
-                    Graph remoteGraph = future.get();
-                    if(remoteGraph != null)
-                    {
-                        finalGraph.add(remoteGraph);
-                    }
+                    batch = completionService.take().get();
                 }
-                catch(Exception ex)
+                catch(ExecutionException ex)
                 {
                     logger.log(Level.SEVERE, "Error in fetching the result from callable future", ex);
+                    continue;
+                }
+                finally
+                {
+                    runningBatches--;
+                }
+                for(RemoteRequest request : batch.requests)
+                {
+                    if(request.result != null)
+                    {
+                        finalGraph.add(request.result);
+                        addRequests(request.result, request.depth, pendingRequests);
+                    }
                 }
+                runningBatches += submit(pendingRequests, completionService);
             }
-            executor.shutdown();
+        }
+        catch(InterruptedException ex)
+        {
+            logger.log(Level.WARNING, "Interrupted while contacting remote hosts for query resolution", ex);
+            Thread.currentThread().interrupt();
         }
         catch(Exception ex)
         {
             logger.log(Level.SEVERE, "Error in contacting remote hosts for query resolution", ex);
         }
+        finally
+        {
+            executor.shutdownNow();
+        }
     }
-}
 
-class ContactRemote implements Callable<Graph>
-{
-    private AbstractVertex networkVertex;
-    private int depth;
-    private String direction;
-    private static final Logger logger = Logger.getLogger(ContactRemote.class.getName());
-
-    ContactRemote(AbstractVertex networkVertex, int depth, String direction)
+    /**
+     * Queues the network vertices of the graph that have not been resolved yet.
+     *
+     * @param graph graph with network vertices mapped to their depth in it
+     * @param remainingDepth depth of the lineage that is left at the root of the graph
+     */
+    private void addRequests(Graph graph, int remainingDepth, Map<String, List<RemoteRequest>> pendingRequests)
     {
-        this.networkVertex = networkVertex;
-        this.depth = depth;
-        this.direction = direction;
+        for(Map.Entry<AbstractVertex, Integer> currentEntry : graph.networkMap().entrySet())
+        {
+            AbstractVertex networkVertex = currentEntry.getKey();
+            if(!OPMConstants.SOURCE_AUDIT_NETFILTER.equals(networkVertex.getAnnotation(OPMConstants.SOURCE)))
+                continue;
+            String host = networkVertex.getAnnotation(OPMConstants.ARTIFACT_REMOTE_ADDRESS);
+            int vertexDepth = remainingDepth - currentEntry.getValue();
+            if(host == null || vertexDepth < 0 || !visitedConnections.add(getConnectionKey(networkVertex)))
+                continue;
+            List<RemoteRequest> hostRequests = pendingRequests.get(host);
+            if(hostRequests == null)
+            {
+                hostRequests = new ArrayList<>();
+                pendingRequests.put(host, hostRequests);
+            }
+            hostRequests.add(new RemoteRequest(networkVertex, vertexDepth));
+        }
     }
 
     /**
-     * Computes a result, or throws an exception if unable to do so.
+     * Submits the queued requests in batches of at most BATCH_SIZE per host.
      *
-     * @return computed result
-     * @throws Exception if unable to compute a result
+     * @return number of batches submitted
      */
-    @Override
-    public Graph call() throws Exception
+    private int submit(Map<String, List<RemoteRequest>> pendingRequests,
+                       CompletionService<HostBatch> completionService)
     {
-        Graph resultGraph = null;
-        try
+        int batches = 0;
+        for(Map.Entry<String, List<RemoteRequest>> hostRequests : pendingRequests.entrySet())
         {
-            // Establish a connection to the remote host
-            String host = networkVertex.getAnnotation(OPMConstants.ARTIFACT_REMOTE_ADDRESS);
-            int port = Integer.parseInt(Settings.getProperty("commandline_query_port"));
-            logger.log(Level.INFO, "network Vertex: " + networkVertex);
-            SSLSocket remoteSocket = (SSLSocket) Kernel.sslSocketFactory.createSocket();
-            int connectTimeOut = 5000; // 5 sec
-            remoteSocket.connect(new InetSocketAddress(host, port), connectTimeOut);
-//            SSLSocket remoteSocket = (SSLSocket) Kernel.sslSocketFactory.createSocket(host, port);
-
-            OutputStream outStream = remoteSocket.getOutputStream();
-            InputStream inStream = remoteSocket.getInputStream();
-            ObjectInputStream graphInputStream = new ObjectInputStream(inStream);
-            PrintWriter remoteSocketOut = new PrintWriter(outStream, true);
-
-            String networkVertexQuery = "GetVertex(" +
-                    OPMConstants.ARTIFACT_LOCAL_ADDRESS +
-                    AbstractQuery.OPERATORS.EQUALS +
-                    networkVertex.getAnnotation(OPMConstants.ARTIFACT_REMOTE_ADDRESS) +
-                    " AND " +
-                    OPMConstants.ARTIFACT_LOCAL_PORT +
-                    AbstractQuery.OPERATORS.EQUALS +
-                    networkVertex.getAnnotation(OPMConstants.ARTIFACT_REMOTE_PORT) +
-                    " AND " +
-                    OPMConstants.ARTIFACT_REMOTE_ADDRESS +
-                    AbstractQuery.OPERATORS.EQUALS +
-                    networkVertex.getAnnotation(OPMConstants.ARTIFACT_LOCAL_ADDRESS) +
-                    " AND " +
-                    OPMConstants.ARTIFACT_REMOTE_PORT +
-                    AbstractQuery.OPERATORS.EQUALS +
-                    networkVertex.getAnnotation(OPMConstants.ARTIFACT_LOCAL_PORT) +
-                    " AND " +
-                    OPMConstants.SOURCE +
-                    AbstractQuery.OPERATORS.EQUALS +
-                    OPMConstants.SOURCE_AUDIT_NETFILTER +
-                    ")";
-
-            remoteSocketOut.println(networkVertexQuery);
-            logger.log(Level.INFO, "remote vertex query: " + networkVertexQuery);
-            String returnType = (String) graphInputStream.readObject();
-            // Check whether the remote query server returned a vertex set in response
-            Set<AbstractVertex> vertexSet;
-            if(returnType.equals(Set.class.getName()))
+            List<RemoteRequest> requests = hostRequests.getValue();
+            for(int start = 0; start < requests.size(); start += BATCH_SIZE)
+            {
+                List<RemoteRequest> batchRequests =
+                        new ArrayList<>(requests.subList(start, Math.min(requests.size(), start + BATCH_SIZE)));
+                completionService.submit(new HostBatch(hostRequests.getKey(), batchRequests));
+                batches++;
+            }
+        }
+        pendingRequests.clear();
+        return batches;
+    }
+
+    /**
+     * @return the same key for the network vertices at both ends of a connection
+     */
+    private static String getConnectionKey(AbstractVertex networkVertex)
+    {
+        String local = networkVertex.getAnnotation(OPMConstants.ARTIFACT_LOCAL_ADDRESS) + ":"
+                + networkVertex.getAnnotation(OPMConstants.ARTIFACT_LOCAL_PORT);
+        String remote = networkVertex.getAnnotation(OPMConstants.ARTIFACT_REMOTE_ADDRESS) + ":"
+                + networkVertex.getAnnotation(OPMConstants.ARTIFACT_REMOTE_PORT);
+        return local.compareTo(remote) < 0 ? local + "|" + remote : remote + "|" + local;
+    }
+
+    /**
+     * @return true if the lineage of the vertex has not been fetched up to the depth yet
+     */
+    private boolean claimLineage(String vertexHash, int depth)
+    {
+        while(true)
+        {
+            Integer fetchedDepth = fetchedVertices.putIfAbsent(vertexHash, depth);
+            if(fetchedDepth == null)
             {
-                vertexSet = (Set<AbstractVertex>) graphInputStream.readObject();
+                return true;
             }
-            else
+            if(fetchedDepth >= depth)
             {
-                logger.log(Level.INFO, "Return type not Set!");
-                return null;
+                return false;
             }
-            AbstractVertex targetNetworkVertex;
-            if(!CollectionUtils.isEmpty(vertexSet))
+            if(fetchedVertices.replace(vertexHash, fetchedDepth, depth))
             {
-                targetNetworkVertex = vertexSet.iterator().next();
+                return true;
             }
-            else
+        }
+    }
+
+    private static class RemoteRequest
+    {
+        private final AbstractVertex networkVertex;
+        private final int depth;
+        private Graph result;
+
+        private RemoteRequest(AbstractVertex networkVertex, int depth)
+        {
+            this.networkVertex = networkVertex;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Resolves a batch of network vertices of one host over one connection: the
+     * vertices at the other end of the connections are looked up with one round
+     * trip, and then their lineages with another.
+     */
+    private class HostBatch implements Callable<HostBatch>
+    {
+        private final String host;
+        private final List<RemoteRequest> requests;
+        // lineages claimed by this batch, given up if the connection fails
+        private final Map<String, Integer> claimedLineages = new HashMap<>();
+
+        private HostBatch(String host, List<RemoteRequest> requests)
+        {
+            this.host = host;
+            this.requests = requests;
+        }
+
+        @Override
+        public HostBatch call() throws Exception
+        {
+            ConnectionPool.RemoteConnection connection = null;
+            boolean reusable = false;
+            try
             {
-                logger.log(Level.INFO, "TargetNetworkVertex empty!");
-                return null;
+                connection = connectionPool.borrow(host);
+                try
+                {
+                    resolve(connection);
+                }
+                catch(IOException ex)
+                {
+                    if(!connection.isReused())
+                    {
+                        throw ex;
+                    }
+                    // the other host may have closed the idle connection
+                    logger.log(Level.FINE, "Retrying with a new connection to " + host, ex);
+                    for(Map.Entry<String, Integer> claimedLineage : claimedLineages.entrySet())
+                    {
+                        fetchedVertices.remove(claimedLineage.getKey(), claimedLineage.getValue());
+                    }
+                    claimedLineages.clear();
+                    connectionPool.release(connection, false);
+                    connection = null;
+                    connection = connectionPool.borrow(host);
+                    resolve(connection);
+                }
+                reusable = true;
+                logger.log(Level.INFO, "Remote resolution with " + host + " successful for "
+                        + requests.size() + " network vertices");
             }
-            String targetNetworkVertexHash = targetNetworkVertex.bigHashCode();
-
-            String lineageQuery = "GetLineage(" +
-                    PRIMARY_KEY +
-                    AbstractQuery.OPERATORS.EQUALS +
-                    targetNetworkVertexHash +
-                    ", " +
-                    depth +
-                    ", " +
-                    direction +
-                    ")";
-            remoteSocketOut.println(lineageQuery);
-            logger.log(Level.INFO, "remote lineage query: " + lineageQuery);
-
-            returnType = (String) graphInputStream.readObject();
-            if(returnType.equals(Graph.class.getName()))
+            catch(Exception ex)
             {
-                AbstractEdge localToRemoteEdge = new Edge(networkVertex, targetNetworkVertex);
-                localToRemoteEdge.addAnnotation("type", "WasDerivedFrom");
-                AbstractEdge remoteToLocalEdge = new Edge(targetNetworkVertex, networkVertex);
-                remoteToLocalEdge.addAnnotation("type", "WasDerivedFrom");
-                resultGraph = (Graph) graphInputStream.readObject();
-                resultGraph.putVertex(networkVertex);
-                resultGraph.putEdge(localToRemoteEdge);
-                resultGraph.putEdge(remoteToLocalEdge);
+                logger.log(Level.SEVERE, "Remote resolution with " + host + " unsuccessful!", ex);
             }
-            else
+            finally
             {
-                logger.log(Level.INFO, "Return type not Graph!");
+                if(connection != null)
+                {
+                    connectionPool.release(connection, reusable);
+                }
             }
-
-            remoteSocketOut.println("exit");
-            remoteSocketOut.close();
-            graphInputStream.close();
-            inStream.close();
-            outStream.close();
-            remoteSocket.close();
+            return this;
         }
-        catch (NumberFormatException | IOException | ClassNotFoundException exception)
+
+        private void resolve(ConnectionPool.RemoteConnection connection) throws Exception
         {
-            logger.log(Level.SEVERE, "Remote resolution unsuccessful!", exception);
-            return null;
+            List<String> vertexQueries = new ArrayList<>(requests.size());
+            for(RemoteRequest request : requests)
+            {
+                request.result = null;
+                vertexQueries.add(getVertexQuery(request.networkVertex));
+            }
+            List<Object> vertexResults = connection.execute(vertexQueries);
+
+            List<String> lineageQueries = new ArrayList<>();
+            List<RemoteRequest> lineageRequests = new ArrayList<>();
+            List<AbstractVertex> lineageVertices = new ArrayList<>();
+            for(int i = 0; i < requests.size(); i++)
+            {
+                RemoteRequest request = requests.get(i);
+                Object vertexResult = vertexResults.get(i);
+                if(!(vertexResult instanceof Set) || ((Set<?>) vertexResult).isEmpty())
+                {
+                    logger.log(Level.INFO, "TargetNetworkVertex not found for: " + request.networkVertex);
+                    continue;
+                }
+                AbstractVertex targetNetworkVertex = (AbstractVertex) ((Set<?>) vertexResult).iterator().next();
+                String targetNetworkVertexHash = targetNetworkVertex.bigHashCode();
+                if(claimLineage(targetNetworkVertexHash, request.depth))
+                {
+                    claimedLineages.put(targetNetworkVertexHash, request.depth);
+                    lineageQueries.add("GetLineage(" + PRIMARY_KEY + AbstractQuery.OPERATORS.EQUALS
+                            + targetNetworkVertexHash + ", " + request.depth + ", " + direction + ")");
+                    lineageRequests.add(request);
+                    lineageVertices.add(targetNetworkVertex);
+                }
+                else
+                {
+                    // the lineage is part of the result already, only the connection is added
+                    request.result = connect(new Graph(), request.networkVertex, targetNetworkVertex);
+                }
+            }
+            if(lineageQueries.isEmpty())
+            {
+                return;
+            }
+            List<Object> lineageResults = connection.execute(lineageQueries);
+            for(int i = 0; i < lineageRequests.size(); i++)
+            {
+                Object lineageResult = lineageResults.get(i);
+                Graph resultGraph;
+                if(lineageResult instanceof Graph)
+                {
+                    resultGraph = (Graph) lineageResult;
+                }
+                else
+                {
+                    logger.log(Level.INFO, "Return type not Graph!");
+                    resultGraph = new Graph();
+                }
+                lineageRequests.get(i).result = connect(resultGraph, lineageRequests.get(i).networkVertex,
+                        lineageVertices.get(i));
+            }
         }
+    }
+
+    /**
+     * Adds the local network vertex and the edges between it and the remote one to the graph.
+     */
+    private static Graph connect(Graph graph, AbstractVertex networkVertex, AbstractVertex targetNetworkVertex)
+    {
+        AbstractEdge localToRemoteEdge = new Edge(networkVertex, targetNetworkVertex);
+        localToRemoteEdge.addAnnotation("type", "WasDerivedFrom");
+        AbstractEdge remoteToLocalEdge = new Edge(targetNetworkVertex, networkVertex);
+        remoteToLocalEdge.addAnnotation("type", "WasDerivedFrom");
+        graph.putVertex(networkVertex);
+        graph.putVertex(targetNetworkVertex);
+        graph.putEdge(localToRemoteEdge);
+        graph.putEdge(remoteToLocalEdge);
+        return graph;
+    }
 
-        logger.log(Level.INFO, "Remote resolution successful!");
-        return resultGraph;
+    /**
+     * @return query for the vertex at the other end of the connection of the network vertex
+     */
+    private static String getVertexQuery(AbstractVertex networkVertex)
+    {
+        return "GetVertex(" +
+                OPMConstants.ARTIFACT_LOCAL_ADDRESS +
+                AbstractQuery.OPERATORS.EQUALS +
+                networkVertex.getAnnotation(OPMConstants.ARTIFACT_REMOTE_ADDRESS) +
+                " AND " +
+                OPMConstants.ARTIFACT_LOCAL_PORT +
+                AbstractQuery.OPERATORS.EQUALS +
+                networkVertex.getAnnotation(OPMConstants.ARTIFACT_REMOTE_PORT) +
+                " AND " +
+                OPMConstants.ARTIFACT_REMOTE_ADDRESS +
+                AbstractQuery.OPERATORS.EQUALS +
+                networkVertex.getAnnotation(OPMConstants.ARTIFACT_LOCAL_ADDRESS) +
+                " AND " +
+                OPMConstants.ARTIFACT_REMOTE_PORT +
+                AbstractQuery.OPERATORS.EQUALS +
+                networkVertex.getAnnotation(OPMConstants.ARTIFACT_LOCAL_PORT) +
+                " AND " +
+                OPMConstants.SOURCE +
+                AbstractQuery.OPERATORS.EQUALS +
+                OPMConstants.SOURCE_AUDIT_NETFILTER +
+                ")";
     }
 }
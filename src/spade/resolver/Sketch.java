@@ -29,6 +29,7 @@ import spade.core.Settings;
 import spade.core.Vertex;
 import spade.query.common.GetPaths;
 import spade.query.postgresql.GetVertex;
+import spade.sketch.RemoteSketches;
 
 import javax.net.ssl.SSLSocket;
 import java.io.IOException;
@@ -88,10 +89,19 @@ public class Sketch extends AbstractResolver
                     clientObjectOutputStream.writeObject(Kernel.sketches.iterator().next());
                     clientObjectOutputStream.flush();
                     clientObjectOutputStream.writeObject(Kernel.remoteSketches);
+                    // the client keeps the connection to ask again, and must not get back references
+                    // to the sketches sent before
+                    clientObjectOutputStream.reset();
                     clientObjectOutputStream.flush();
 
                     Logger.getLogger(Sketch.class.getName()).log(Level.INFO, "Sent sketches");
                 }
+                else if (sketchLine.equals(RemoteSketches.COMMAND_GIVE_SKETCH_DELTA))
+                {
+                    // Send the changes to the sketches since the versions the client has
+                    RemoteSketches.writeDelta(clientObjectInputStream, clientObjectOutputStream);
+                    clientObjectOutputStream.flush();
+                }
                 else if (sketchLine.equals("pathFragment_mid"))
                 {
                     // Get a non-terminal path fragment
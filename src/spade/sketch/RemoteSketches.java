@@ -0,0 +1,577 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.sketch;
+
+import spade.core.AbstractSketch;
+import spade.core.Kernel;
+import spade.core.MatrixFilter;
+
+import javax.net.SocketFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps copies of the sketches of remote hosts and exchanges them with the hosts that
+ * the local sketch has seen network artifacts of, on threads of its own.
+ *
+ * Every host that was asked for in the last peerIdle milliseconds is asked for the
+ * changes to its sketch and to the copies it has every exchangeInterval milliseconds,
+ * over one connection per host that is kept open between exchanges. A copy that is
+ * older than maxStaleness milliseconds is refreshed before it is used, unless the last
+ * exchange with the host failed less than exchangeInterval milliseconds ago.
+ *
+ * The copies are also put in Kernel.remoteSketches.
+ */
+public class RemoteSketches
+{
+
+    public static final String COMMAND_GIVE_SKETCH = "giveSketch";
+    public static final String COMMAND_GIVE_SKETCH_DELTA = "giveSketchDelta";
+    public static final String COMMAND_CLOSE = "close";
+    // the key of the sketch of the host that is asked, which does not know its own name
+    private static final String OWN_SKETCH_KEY = "";
+    private static final int MAX_SKETCHES = 1 << 16;
+
+    private static final Logger logger = Logger.getLogger(RemoteSketches.class.getName());
+
+    private static final class Copy
+    {
+
+        private final AbstractSketch sketch;
+        private volatile long fetchedAt;
+
+        private Copy(AbstractSketch sketch, long fetchedAt)
+        {
+            this.sketch = sketch;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private static final class Peer
+    {
+
+        private final String host;
+        private volatile String localHost;
+        private volatile long usedAt;
+        private volatile long failedAt;
+        // set by the thread that exchanges with the host, or closes the connection
+        private final AtomicBoolean busy = new AtomicBoolean(false);
+        // tasks to run after the exchange in progress. Guarded by this
+        private final List<Runnable> waiting = new ArrayList<>();
+
+        // the pooled connection. Only used by the thread that set busy
+        private Socket socket;
+        private ObjectOutputStream out;
+        private ObjectInputStream in;
+
+        private Peer(String host)
+        {
+            this.host = host;
+        }
+    }
+
+    private final int port;
+    private final SocketFactory socketFactory;
+    private final boolean delta;
+    private final long exchangeIntervalMillis;
+    private final long maxStalenessMillis;
+    private final long peerIdleMillis;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final int maxWaitingTasks;
+    private final Executor taskExecutor;
+
+    private final Map<String, Copy> copies = new ConcurrentHashMap<>();
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService exchanger;
+    private final AtomicInteger waitingTasks = new AtomicInteger();
+    private final AtomicLong exchanges = new AtomicLong(), failures = new AtomicLong(),
+            droppedTasks = new AtomicLong();
+
+    /**
+     * @param port port of the sketch servers of the remote hosts
+     * @param socketFactory factory of the connections to the remote hosts
+     * @param delta true to ask for the changes in the binary encoding, false to ask for
+     * the serialized sketches as hosts without it expect
+     * @param exchangeIntervalMillis interval between exchanges with a host
+     * @param maxStalenessMillis age after which a copy is refreshed before it is used
+     * @param peerIdleMillis time after which a host that was not asked for is no longer
+     * exchanged with, and its connection is closed
+     * @param connectTimeoutMillis timeout of connecting to a host
+     * @param readTimeoutMillis timeout of reading from a host
+     * @param threads number of threads doing exchanges
+     * @param maxWaitingTasks maximum number of tasks waiting for exchanges
+     * @param taskExecutor executor of the tasks that waited for an exchange
+     */
+    public RemoteSketches(int port, SocketFactory socketFactory, boolean delta, long exchangeIntervalMillis,
+                          long maxStalenessMillis, long peerIdleMillis, int connectTimeoutMillis,
+                          int readTimeoutMillis, int threads, int maxWaitingTasks, Executor taskExecutor)
+    {
+        this.port = port;
+        this.socketFactory = socketFactory;
+        this.delta = delta;
+        this.exchangeIntervalMillis = exchangeIntervalMillis;
+        this.maxStalenessMillis = maxStalenessMillis;
+        this.peerIdleMillis = peerIdleMillis;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.maxWaitingTasks = maxWaitingTasks;
+        this.taskExecutor = taskExecutor;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        exchanger = new ScheduledThreadPoolExecutor(threads, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "RemoteSketches-exchange-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        exchanger.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                exchangeWithPeers();
+            }
+        }, exchangeIntervalMillis, exchangeIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the copy of the sketch of the host, or null if none has been received
+     */
+    public AbstractSketch get(String host)
+    {
+        Copy copy = copies.get(host);
+        return copy == null ? null : copy.sketch;
+    }
+
+    /**
+     * Runs the task when the copy of the sketch of the host is at most maxStaleness old,
+     * or when the host could not be asked for it. Runs it on the calling thread if that
+     * is now, or else on the task executor after an exchange with the host. The task is
+     * dropped if maxWaitingTasks are waiting.
+     *
+     * @param host the remote host
+     * @param localHost the name of the local host on the connection to the remote host
+     * @param task the task
+     */
+    public void whenFresh(String host, String localHost, Runnable task)
+    {
+        long now = System.currentTimeMillis();
+        Peer peer = peers.get(host);
+        if (peer == null)
+        {
+            Peer newPeer = new Peer(host);
+            peer = peers.putIfAbsent(host, newPeer);
+            peer = peer == null ? newPeer : peer;
+        }
+        peer.localHost = localHost;
+        peer.usedAt = now;
+
+        Copy copy = copies.get(host);
+        if ((copy != null && now - copy.fetchedAt <= maxStalenessMillis)
+                || now - peer.failedAt < exchangeIntervalMillis)
+        {
+            task.run();
+            return;
+        }
+        if (waitingTasks.incrementAndGet() > maxWaitingTasks)
+        {
+            waitingTasks.decrementAndGet();
+            droppedTasks.incrementAndGet();
+            return;
+        }
+        synchronized (peer)
+        {
+            peer.waiting.add(task);
+        }
+        // if an exchange is in progress, it runs the task when it finishes
+        requestExchange(peer);
+    }
+
+    /**
+     * @return number of exchanges done
+     */
+    public long getExchangeCount()
+    {
+        return exchanges.get();
+    }
+
+    /**
+     * @return number of exchanges that failed
+     */
+    public long getFailureCount()
+    {
+        return failures.get();
+    }
+
+    /**
+     * @return number of tasks dropped because maxWaitingTasks were waiting
+     */
+    public long getDroppedTaskCount()
+    {
+        return droppedTasks.get();
+    }
+
+    /**
+     * Stops exchanging, waiting for the exchanges in progress, and closes the connections.
+     */
+    public void shutdown()
+    {
+        exchanger.shutdown();
+        try
+        {
+            exchanger.awaitTermination(connectTimeoutMillis + 2L * readTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException exception)
+        {
+            Thread.currentThread().interrupt();
+        }
+        for (Peer peer : peers.values())
+        {
+            if (peer.busy.compareAndSet(false, true))
+            {
+                closeConnection(peer);
+            }
+        }
+        peers.clear();
+    }
+
+    private void exchangeWithPeers()
+    {
+        long now = System.currentTimeMillis();
+        for (Iterator<Peer> iterator = peers.values().iterator(); iterator.hasNext();)
+        {
+            Peer peer = iterator.next();
+            if (now - peer.usedAt > peerIdleMillis)
+            {
+                if (peer.busy.compareAndSet(false, true))
+                {
+                    iterator.remove();
+                    closeConnection(peer);
+                    runWaiting(peer);
+                }
+            }
+            else
+            {
+                requestExchange(peer);
+            }
+        }
+    }
+
+    private void requestExchange(final Peer peer)
+    {
+        if (!peer.busy.compareAndSet(false, true))
+        {
+            return;
+        }
+        try
+        {
+            exchanger.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    exchange(peer);
+                }
+            });
+        }
+        catch (RejectedExecutionException exception)
+        {
+            // shutting down
+            peer.busy.set(false);
+            runWaiting(peer);
+        }
+    }
+
+    private void exchange(Peer peer)
+    {
+        try
+        {
+            if (peer.socket == null)
+            {
+                connect(peer);
+            }
+            if (delta)
+            {
+                receiveDelta(peer);
+            }
+            else
+            {
+                receiveSketches(peer);
+            }
+            exchanges.incrementAndGet();
+            peer.failedAt = 0;
+        }
+        catch (Exception exception)
+        {
+            if (peer.failedAt == 0 || failures.get() % 100 == 0)
+            {
+                logger.log(Level.WARNING, "Unable to exchange sketches with " + peer.host, exception);
+            }
+            failures.incrementAndGet();
+            peer.failedAt = System.currentTimeMillis();
+            closeConnection(peer);
+        }
+        finally
+        {
+            // after clearing busy, a task that is added starts another exchange
+            peer.busy.set(false);
+            runWaiting(peer);
+        }
+    }
+
+    private void runWaiting(Peer peer)
+    {
+        List<Runnable> tasks;
+        synchronized (peer)
+        {
+            if (peer.waiting.isEmpty())
+            {
+                return;
+            }
+            tasks = new ArrayList<>(peer.waiting);
+            peer.waiting.clear();
+        }
+        waitingTasks.addAndGet(-tasks.size());
+        for (Runnable task : tasks)
+        {
+            try
+            {
+                taskExecutor.execute(task);
+            }
+            catch (RejectedExecutionException exception)
+            {
+                droppedTasks.incrementAndGet();
+            }
+        }
+    }
+
+    private void connect(Peer peer) throws IOException
+    {
+        Socket socket = socketFactory.createSocket();
+        try
+        {
+            socket.connect(new InetSocketAddress(peer.host, port), connectTimeoutMillis);
+            socket.setSoTimeout(readTimeoutMillis);
+            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            // the server reads the stream header before it writes its own
+            out.flush();
+            peer.in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+            peer.out = out;
+            peer.socket = socket;
+        }
+        catch (IOException exception)
+        {
+            socket.close();
+            throw exception;
+        }
+    }
+
+    private void closeConnection(Peer peer)
+    {
+        if (peer.socket == null)
+        {
+            return;
+        }
+        try
+        {
+            peer.out.writeObject(COMMAND_CLOSE);
+            peer.out.flush();
+        }
+        catch (IOException exception)
+        {
+            // the connection is closed anyway
+        }
+        try
+        {
+            peer.socket.close();
+        }
+        catch (IOException exception)
+        {
+            logger.log(Level.FINE, null, exception);
+        }
+        peer.socket = null;
+        peer.out = null;
+        peer.in = null;
+    }
+
+    private void receiveDelta(Peer peer) throws IOException
+    {
+        ObjectOutputStream out = peer.out;
+        ObjectInputStream in = peer.in;
+        out.writeObject(COMMAND_GIVE_SKETCH_DELTA);
+        Map<String, Copy> known = new HashMap<>(copies);
+        Copy own = known.remove(peer.host);
+        known.remove(peer.localHost);
+        out.writeInt(known.size() + (own == null ? 0 : 1));
+        if (own != null)
+        {
+            writeKnown(out, OWN_SKETCH_KEY, own.sketch.matrixFilter);
+        }
+        for (Map.Entry<String, Copy> entry : known.entrySet())
+        {
+            writeKnown(out, entry.getKey(), entry.getValue().sketch.matrixFilter);
+        }
+        out.flush();
+
+        int count = readCount(in);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++)
+        {
+            String key = in.readUTF();
+            String host = OWN_SKETCH_KEY.equals(key) ? peer.host : key;
+            Copy copy = copies.get(host);
+            MatrixFilter matrixFilter = MatrixFilter.readDelta(in, copy == null ? null : copy.sketch.matrixFilter);
+            if (host.equals(peer.localHost) || (host.equals(peer.host) && !OWN_SKETCH_KEY.equals(key)))
+            {
+                // the copy of the local sketch that the remote host has, or a copy of its own
+                // sketch relayed back to it
+                continue;
+            }
+            if (copy == null || copy.sketch.matrixFilter != matrixFilter)
+            {
+                put(host, Sketch.remoteCopy(matrixFilter), now);
+            }
+            else
+            {
+                copy.fetchedAt = now;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void receiveSketches(Peer peer) throws IOException, ClassNotFoundException
+    {
+        peer.out.writeObject(COMMAND_GIVE_SKETCH);
+        peer.out.flush();
+        AbstractSketch sketch = (AbstractSketch) peer.in.readObject();
+        Map<String, AbstractSketch> receivedSketches = (Map<String, AbstractSketch>) peer.in.readObject();
+        long now = System.currentTimeMillis();
+        put(peer.host, sketch, now);
+        receivedSketches.remove(peer.localHost);
+        // a copy of the sketch of the remote host, relayed back to it, is older than the sketch
+        receivedSketches.remove(peer.host);
+        for (Map.Entry<String, AbstractSketch> entry : receivedSketches.entrySet())
+        {
+            put(entry.getKey(), entry.getValue(), now);
+        }
+    }
+
+    private void put(String host, AbstractSketch sketch, long fetchedAt)
+    {
+        copies.put(host, new Copy(sketch, fetchedAt));
+        if (Kernel.remoteSketches != null)
+        {
+            Kernel.remoteSketches.put(host, sketch);
+        }
+    }
+
+    private static void writeKnown(DataOutput out, String key, MatrixFilter matrixFilter) throws IOException
+    {
+        out.writeUTF(key);
+        out.writeLong(matrixFilter.getInstanceId());
+        out.writeLong(matrixFilter.getVersion());
+    }
+
+    private static int readCount(DataInput in) throws IOException
+    {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_SKETCHES)
+        {
+            throw new IOException("Invalid number of sketches: " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Answers a giveSketchDelta command on the sketch server. Reads the instance ids and
+     * versions of the copies that the remote host has, and writes the changes to the
+     * local sketch and to the copies of the sketches of other hosts since those versions.
+     *
+     * @param in the input from the remote host, after the command
+     * @param out the output to the remote host
+     * @throws IOException if reading or writing fails
+     */
+    public static void writeDelta(DataInput in, DataOutput out) throws IOException
+    {
+        int count = readCount(in);
+        Map<String, long[]> known = new HashMap<>();
+        for (int i = 0; i < count; i++)
+        {
+            String key = in.readUTF();
+            known.put(key, new long[]{in.readLong(), in.readLong()});
+        }
+
+        Map<String, AbstractSketch> sketches = new HashMap<>();
+        synchronized (Kernel.sketches)
+        {
+            if (!Kernel.sketches.isEmpty())
+            {
+                sketches.put(OWN_SKETCH_KEY, Kernel.sketches.iterator().next());
+            }
+        }
+        synchronized (Kernel.remoteSketches)
+        {
+            sketches.putAll(Kernel.remoteSketches);
+        }
+        out.writeInt(sketches.size());
+        for (Map.Entry<String, AbstractSketch> entry : sketches.entrySet())
+        {
+            long[] knownVersion = known.get(entry.getKey());
+            out.writeUTF(entry.getKey());
+            if (knownVersion == null)
+            {
+                entry.getValue().matrixFilter.writeDelta(out, 0, 0);
+            }
+            else
+            {
+                entry.getValue().matrixFilter.writeDelta(out, knownVersion[0], knownVersion[1]);
+            }
+        }
+    }
+}
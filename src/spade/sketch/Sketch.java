@@ -29,19 +29,21 @@ import spade.core.MatrixFilter;
 import spade.core.Settings;
 import spade.query.common.GetLineage;
 import spade.query.postgresql.GetVertex;
+import spade.utility.CommonFunctions;
 
-import javax.net.ssl.SSLSocket;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -56,15 +58,99 @@ import static spade.core.AbstractStorage.PRIMARY_KEY;
 public class Sketch extends AbstractSketch
 {
 
+    // kept at the value before the updater fields were added so that hosts running
+    // the older code can still exchange serialized sketches
+    private static final long serialVersionUID = -9099366691554492483L;
     private static final double falsePositiveProbability = 0.1;
     private static final int expectedSize = 20;
     private static final Logger logger = Logger.getLogger(Sketch.class.getName());
-    private static final boolean USE_CACHE = false;
+    private static final int DEFAULT_REMOTE_SKETCH_PORT = 29998;
+
+    // The matrix filter is updated on the updater thread, and the sketches of remote
+    // hosts are received on the threads of remoteSketches, so that putEdge never waits
+    // for storage queries or for remote hosts. Not serialized with the sketch, and
+    // NULL in copies of the sketches of remote hosts
+    private transient ThreadPoolExecutor updater;
+    private transient RemoteSketches remoteSketches;
+    // the updates in the queue of the updater, by vertex and edge type
+    private transient Set<String> queuedUpdates;
+    private transient AtomicLong queuedCount, coalescedCount, droppedCount;
 
     public Sketch()
     {
         matrixFilter = new MatrixFilter(falsePositiveProbability, expectedSize);
         objects = new HashMap<>();
+
+        Map<String, String> settings;
+        try
+        {
+            settings = CommonFunctions.getGlobalsMapFromConfigAndArguments(Sketch.class, null);
+        }
+        catch (Exception exception)
+        {
+            logger.log(Level.WARNING, "Unable to read the config file. Using the defaults", exception);
+            settings = new HashMap<>();
+        }
+        int updateQueueSize = getSetting(settings, "updateQueueSize", 10000);
+        long exchangeIntervalMillis = getSetting(settings, "exchangeIntervalSeconds", 30) * 1000L;
+        long maxStalenessMillis = getSetting(settings, "maxStalenessSeconds", 60) * 1000L;
+        long peerIdleMillis = getSetting(settings, "peerIdleSeconds", 600) * 1000L;
+        int connectTimeoutMillis = getSetting(settings, "connectTimeoutMillis", 5000);
+        int readTimeoutMillis = getSetting(settings, "readTimeoutMillis", 10000);
+        int exchangeThreads = getSetting(settings, "exchangeThreads", 2);
+        boolean delta = !"full".equalsIgnoreCase(settings.get("exchange"));
+        int port = CommonFunctions.parseInt(Settings.getProperty("remote_sketch_port"), DEFAULT_REMOTE_SKETCH_PORT);
+
+        queuedUpdates = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        queuedCount = new AtomicLong();
+        coalescedCount = new AtomicLong();
+        droppedCount = new AtomicLong();
+        updater = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(updateQueueSize), new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "Sketch-updater");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        remoteSketches = new RemoteSketches(port, Kernel.sslSocketFactory, delta, exchangeIntervalMillis,
+                maxStalenessMillis, peerIdleMillis, connectTimeoutMillis, readTimeoutMillis, exchangeThreads,
+                updateQueueSize, updater);
+    }
+
+    private Sketch(MatrixFilter matrixFilter)
+    {
+        this.matrixFilter = matrixFilter;
+        this.objects = new HashMap<>();
+    }
+
+    /**
+     * Returns a copy of the sketch of a remote host with the given matrix filter. The copy
+     * is not updated by putEdge, and is serialized as a sketch that any host can read.
+     *
+     * @param matrixFilter the matrix filter of the remote host
+     * @return the copy
+     */
+    public static Sketch remoteCopy(MatrixFilter matrixFilter)
+    {
+        return new Sketch(matrixFilter);
+    }
+
+    private static int getSetting(Map<String, String> settings, String key, int defaultValue)
+    {
+        Integer value = CommonFunctions.parseInt(settings.get(key), null);
+        if (value == null || value <= 0)
+        {
+            if (settings.get(key) != null)
+            {
+                logger.log(Level.WARNING, "Invalid ''{0}'': {1}. Using {2}", new Object[]{key, settings.get(key), defaultValue});
+            }
+            return defaultValue;
+        }
+        return value;
     }
 
     @Override
@@ -73,92 +159,139 @@ public class Sketch extends AbstractSketch
     @Override
     public void putEdge(AbstractEdge incomingEdge)
     {
+        if (updater == null)
+        {
+            // a copy of the sketch of a remote host
+            return;
+        }
+        if (incomingEdge.type().equalsIgnoreCase("Used")
+                && "true".equalsIgnoreCase(incomingEdge.getParentVertex().getAnnotation("network")))
+        {
+            // Connection was created to this host
+            queueUpdate(incomingEdge.getParentVertex(), incomingEdge.type());
+        }
+        else if (incomingEdge.type().equalsIgnoreCase("WasGeneratedBy")
+                && "true".equalsIgnoreCase(incomingEdge.getChildVertex().getAnnotation("network")))
+        {
+            queueUpdate(incomingEdge.getChildVertex(), incomingEdge.type());
+        }
+    }
+
+    private void queueUpdate(AbstractVertex networkVertex, String type)
+    {
+        // an update that is in the queue reads the lineage when it runs, so another one
+        // for the same vertex and type would do the same
+        final String key = type + " " + matrixFilter.sketchString(networkVertex);
+        if (!queuedUpdates.add(key))
+        {
+            coalescedCount.incrementAndGet();
+            return;
+        }
+        final UpdateMatrixTask update = new UpdateMatrixTask(this, remoteSketches, networkVertex, type);
         try
         {
-            if (incomingEdge.type().equalsIgnoreCase("Used")
-                    && incomingEdge.getParentVertex().getAnnotation("network").equalsIgnoreCase("true"))
+            updater.execute(new Runnable()
             {
-                // Connection was created to this host
-                AbstractVertex networkVertex = incomingEdge.getParentVertex();
-                String remoteHost = networkVertex.getAnnotation("destination host");
-                String localHost = networkVertex.getAnnotation("source host");
-                if (!USE_CACHE || (USE_CACHE && !Kernel.remoteSketches.containsKey(remoteHost)))
+                @Override
+                public void run()
                 {
-                    logger.log(Level.INFO, "concreteSketch - Attempting to receive sketches from {0}", remoteHost);
-                    int port = Integer.parseInt(Settings.getProperty("remote_sketch_port"));
-                    SSLSocket remoteSocket = (SSLSocket) Kernel.sslSocketFactory.createSocket(remoteHost, port);
-
-                    OutputStream outStream = remoteSocket.getOutputStream();
-                    InputStream inStream = remoteSocket.getInputStream();
-                    ObjectOutputStream clientObjectOutputStream = new ObjectOutputStream(outStream);
-                    ObjectInputStream clientObjectInputStream = new ObjectInputStream(inStream);
-
-                    clientObjectOutputStream.writeObject("giveSketch");
-                    clientObjectOutputStream.flush();
-                    AbstractSketch tmpSketch = (AbstractSketch) clientObjectInputStream.readObject();
-                    Map<String, AbstractSketch> receivedSketches = (Map<String, AbstractSketch>) clientObjectInputStream.readObject();
-                    Kernel.remoteSketches.put(remoteHost, tmpSketch);
-                    receivedSketches.remove(localHost);
-                    Kernel.remoteSketches.putAll(receivedSketches);
-
-                    logger.log(Level.INFO, "concreteSketch - Received sketches from {0}", remoteHost);
-                    clientObjectOutputStream.writeObject("close");
-                    clientObjectOutputStream.flush();
-                    clientObjectOutputStream.close();
-                    clientObjectInputStream.close();
-                    outStream.close();
-                    inStream.close();
-                    remoteSocket.close();
+                    queuedUpdates.remove(key);
+                    update.run();
                 }
-                // Update sketch bloom filters
-                BloomFilter newAncestors = Kernel.remoteSketches.get(remoteHost).matrixFilter.get(networkVertex);
-                if (newAncestors != null)
-                {
-                    logger.log(Level.INFO, "concreteSketch - Found Bloom filter for networkVertex");
-                    Runnable update = new updateMatrixThread(this, networkVertex, incomingEdge.type());
-                    new Thread(update).start();
-                }
-            }
-            else if (incomingEdge.type().equalsIgnoreCase("WasGeneratedBy")
-                    && incomingEdge.getChildVertex().getAnnotation("network").equalsIgnoreCase("true"))
+            });
+            queuedCount.incrementAndGet();
+        }
+        catch (RejectedExecutionException exception)
+        {
+            queuedUpdates.remove(key);
+            if (droppedCount.getAndIncrement() % 1000 == 0)
             {
-                AbstractVertex networkVertex = incomingEdge.getChildVertex();
-                Runnable update = new updateMatrixThread(this, networkVertex, incomingEdge.type());
-                new Thread(update).start();
+                logger.log(Level.WARNING, "Sketch update queue full or shut down. Dropped {0} update(s)",
+                        droppedCount.get());
             }
         }
-        catch (NumberFormatException | IOException | ClassNotFoundException exception)
+    }
+
+    @Override
+    public boolean shutdown()
+    {
+        if (updater == null)
         {
-            Logger.getLogger(Sketch.class.getName()).log(Level.SEVERE, null, exception);
+            return true;
+        }
+        remoteSketches.shutdown();
+        updater.shutdown();
+        try
+        {
+            updater.awaitTermination(60, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException exception)
+        {
+            Thread.currentThread().interrupt();
         }
+        logger.log(Level.INFO, "Sketch: {0} update(s) queued, {1} coalesced, {2} dropped. {3} exchange(s), "
+                + "{4} failed, {5} update(s) dropped waiting for an exchange", new Object[]{queuedCount.get(),
+                coalescedCount.get(), droppedCount.get(), remoteSketches.getExchangeCount(),
+                remoteSketches.getFailureCount(), remoteSketches.getDroppedTaskCount()});
+        return true;
     }
 }
 
-class updateMatrixThread implements Runnable
+class UpdateMatrixTask implements Runnable
 {
 
     private final AbstractSketch sketch;
+    private final RemoteSketches remoteSketches;
     private final AbstractVertex vertex;
     private final String type;
-    private static final Logger logger = Logger.getLogger(updateMatrixThread.class.getName());
+    private static final Logger logger = Logger.getLogger(UpdateMatrixTask.class.getName());
     private static final String ID_STRING = Settings.getProperty("storage_identifier");
 
-    public updateMatrixThread(AbstractSketch workingSketch, AbstractVertex networkVertex, String edgeType)
+    public UpdateMatrixTask(AbstractSketch workingSketch, RemoteSketches remoteSketches, AbstractVertex networkVertex,
+                            String edgeType)
     {
         sketch = workingSketch;
+        this.remoteSketches = remoteSketches;
         vertex = networkVertex;
         type = edgeType;
     }
 
     @Override
     public void run()
+    {
+        if (type.equalsIgnoreCase("Used"))
+        {
+            // Update with the sketch of the remote host once it is fresh enough
+            remoteSketches.whenFresh(vertex.getAnnotation("destination host"), vertex.getAnnotation("source host"),
+                    new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    update();
+                }
+            });
+        }
+        else
+        {
+            update();
+        }
+    }
+
+    private void update()
     {
         String storageId = getStorageId(vertex);
         if (type.equalsIgnoreCase("Used"))
         {
             logger.log(Level.INFO, "concreteSketch - Updating matrixfilter for USED edge for storageId: {0}", storageId);
             String remoteHost = vertex.getAnnotation("destination host");
-            BloomFilter newAncestors = Kernel.remoteSketches.get(remoteHost).matrixFilter.get(vertex);
+            AbstractSketch remoteSketch = remoteSketches.get(remoteHost);
+            if (remoteSketch == null)
+            {
+                logger.log(Level.WARNING, "concreteSketch - No sketch received from {0}", remoteHost);
+                return;
+            }
+            BloomFilter newAncestors = remoteSketch.matrixFilter.get(vertex);
             GetLineage getLineage = new GetLineage();
             Map<String, List<String>> lineageParams = new HashMap<>();
             lineageParams.put(PRIMARY_KEY, Arrays.asList(OPERATORS.EQUALS, storageId));
@@ -34,6 +34,7 @@ import spade.core.Graph;
 import java.io.File;
 import java.io.UnsupportedEncodingException;
 import java.sql.ResultSet;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -280,6 +281,71 @@ public class BerkeleyDB extends AbstractStorage
         return false;
     }
 
+    /**
+     * This function inserts the given edges into the underlying storage.
+     * The class catalog and the binding are created once for the whole batch.
+     *
+     * @param incomingEdges edges to insert into the storage
+     * @return returns the number of edges inserted successfully
+     */
+    @Override
+    public int putEdges(List<AbstractEdge> incomingEdges)
+    {
+        int count = 0;
+        StoredClassCatalog edgeCatalog = new StoredClassCatalog(edgeDatabase);
+        EntryBinding<AbstractEdge> edgeBinding = new SerialBinding<>(edgeCatalog, AbstractEdge.class);
+        DatabaseEntry data = new DatabaseEntry();
+        for(AbstractEdge incomingEdge : incomingEdges)
+        {
+            try
+            {
+                String hash = incomingEdge.getChildVertex().bigHashCode() + incomingEdge.getParentVertex().bigHashCode();
+                DatabaseEntry key = new DatabaseEntry(hash.getBytes("UTF-8"));
+                edgeBinding.objectToEntry(incomingEdge, data);
+                myDatabase.put(null, key, data);
+                count++;
+            }
+            catch (UnsupportedEncodingException ex)
+            {
+                Logger.getLogger(BerkeleyDB.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * This function inserts the given vertices into the underlying storage.
+     * The class catalog and the binding are created once for the whole batch.
+     *
+     * @param incomingVertices vertices to insert into the storage
+     * @return returns the number of vertices inserted successfully
+     */
+    @Override
+    public int putVertices(List<AbstractVertex> incomingVertices)
+    {
+        int count = 0;
+        StoredClassCatalog vertexCatalog = new StoredClassCatalog(vertexDatabase);
+        EntryBinding<AbstractVertex> vertexBinding = new SerialBinding<>(vertexCatalog, AbstractVertex.class);
+        DatabaseEntry data = new DatabaseEntry();
+        for(AbstractVertex incomingVertex : incomingVertices)
+        {
+            try
+            {
+                DatabaseEntry key = new DatabaseEntry(incomingVertex.bigHashCode().getBytes("UTF-8"));
+                vertexBinding.objectToEntry(incomingVertex, data);
+                myDatabase.put(null, key, data);
+                count++;
+            }
+            catch (UnsupportedEncodingException ex)
+            {
+                Logger.getLogger(BerkeleyDB.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+
+        return count;
+    }
+
     @Override
     public ResultSet executeQuery(String query)
     {
@@ -1150,6 +1150,32 @@ public class CDM extends Kafka {
 		return true;
 	}
 	
+	/**
+	 * Elements are converted one at a time because CDM keeps state across them.
+	 * Overrides the batch publishing in the Kafka storage.
+	 */
+	@Override
+	public int putVertices(List<AbstractVertex> incomingVertices){
+		int count = 0;
+		for(AbstractVertex incomingVertex : incomingVertices){
+			if(putVertex(incomingVertex)){
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	@Override
+	public int putEdges(List<AbstractEdge> edges){
+		int count = 0;
+		for(AbstractEdge edge : edges){
+			if(putEdge(edge)){
+				count++;
+			}
+		}
+		return count;
+	}
+	
 	private boolean publishVertex(AbstractVertex incomingVertex) {
 		try{
 			if(incomingVertex != null){
@@ -20,18 +20,16 @@
 package spade.storage;
 
 import java.io.FileInputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.apache.commons.codec.binary.Hex;
-
 import spade.core.AbstractEdge;
 import spade.core.AbstractStorage;
 import spade.core.AbstractVertex;
 import spade.reporter.audit.OPMConstants;
+import spade.utility.AsyncFileWriter;
 import spade.utility.CommonFunctions;
 
 import static spade.core.Kernel.CONFIG_PATH;
@@ -40,14 +38,15 @@ import static spade.core.Kernel.FILE_SEPARATOR;
 /**
  * A storage implementation that writes data to a DOT file.
  *
+ * The file is written by an AsyncFileWriter configured from the config file and the
+ * arguments. Every rotated segment is a complete graph.
+ *
  * @author Dawood Tariq
  */
 public class Graphviz extends AbstractStorage
 {
 
-    private FileWriter outputFile;
-    private final int TRANSACTION_LIMIT = 1000;
-    private int transaction_count;
+    private AsyncFileWriter outputFile;
     private String output;
 
     public Graphviz()
@@ -73,12 +72,11 @@ public class Graphviz extends AbstractStorage
             output = (argsMap.get("output") != null) ? argsMap.get("output") :
                     databaseConfigs.getProperty("output");
 
-            outputFile = new FileWriter(output, false);
-            transaction_count = 0;
-            outputFile.write("digraph spade2dot {\n"
+            Map<String, String> settings = CommonFunctions.getGlobalsMapFromConfigAndArguments(Graphviz.class, arguments);
+            outputFile = AsyncFileWriter.create(output, false, "digraph spade2dot {\n"
                     + "graph [rankdir = \"RL\"];\n"
                     + "node [fontname=\"Helvetica\" fontsize=\"8\" style=\"filled\" margin=\"0.0,0.0\"];\n"
-                    + "edge [fontname=\"Helvetica\" fontsize=\"8\"];\n");
+                    + "edge [fontname=\"Helvetica\" fontsize=\"8\"];\n", "}\n", settings);
             return true;
         }
         catch(Exception exception)
@@ -88,36 +86,27 @@ public class Graphviz extends AbstractStorage
         }
     }
 
-    private void checkTransactions() {
-        transaction_count++;
-        if (transaction_count == TRANSACTION_LIMIT) {
-            try {
-                outputFile.flush();
-                outputFile.close();
-                outputFile = new FileWriter(output, true);
-                transaction_count = 0;
-            } catch (Exception exception) {
-                Logger.getLogger(Graphviz.class.getName()).log(Level.SEVERE, null, exception);
+    // Writes the annotations as 'key:value' lines, with double quotes replaced by single quotes
+    private void appendLabel(Map<String, String> annotations, String prefix, String suffix) throws IOException {
+        boolean first = true;
+        for (Map.Entry<String, String> currentEntry : annotations.entrySet()) {
+            String key = currentEntry.getKey();
+            String value = currentEntry.getValue();
+            if (key == null || value == null) {
+                continue;
             }
+            outputFile.append(first ? prefix : "\\n");
+            outputFile.append(key.replace('"', '\'')).append(':').append(value.replace('"', '\''));
+            first = false;
+        }
+        if (!first) {
+            outputFile.append(suffix);
         }
     }
 
     @Override
     public boolean putVertex(AbstractVertex incomingVertex) {
         try {
-            StringBuilder annotationString = new StringBuilder();
-            for (Map.Entry<String, String> currentEntry : incomingVertex.getAnnotations().entrySet()) {
-                String key = currentEntry.getKey();
-                String value = currentEntry.getValue();
-                if (key == null || value == null) {
-                    continue;
-                }
-                annotationString.append(key);
-                annotationString.append(":");
-                annotationString.append(value);
-                annotationString.append("\\n");
-            }
-            String vertexString = annotationString.substring(0, annotationString.length() - 2);
             String shape = "box";
             String color = "white";
             String type = incomingVertex.getAnnotation("type");
@@ -148,9 +137,10 @@ public class Graphviz extends AbstractStorage
                 }
             }
 
-            String key = Hex.encodeHexString(incomingVertex.bigHashCodeBytes());
-            outputFile.write("\"" + key + "\" [label=\"" + vertexString.replace("\"", "'") + "\" shape=\"" + shape + "\" fillcolor=\"" + color + "\"];\n");
-            checkTransactions();
+            outputFile.append('"').append(incomingVertex.bigHashCode()).append("\" [label=\"");
+            appendLabel(incomingVertex.getAnnotations(), "", "");
+            outputFile.append("\" shape=\"").append(shape).append("\" fillcolor=\"").append(color).append("\"];\n");
+            outputFile.endRecord();
             return true;
         } catch (Exception exception) {
             Logger.getLogger(Graphviz.class.getName()).log(Level.SEVERE, null, exception);
@@ -167,18 +157,6 @@ public class Graphviz extends AbstractStorage
     @Override
     public boolean putEdge(AbstractEdge incomingEdge) {
         try {
-            StringBuilder annotationString = new StringBuilder();
-            for (Map.Entry<String, String> currentEntry : incomingEdge.getAnnotations().entrySet()) {
-                String key = currentEntry.getKey();
-                String value = currentEntry.getValue();
-                if (key == null || value == null) {
-                    continue;
-                }
-                annotationString.append(key);
-                annotationString.append(":");
-                annotationString.append(value);
-                annotationString.append("\\n");
-            }
             String color = "black";
             String type = incomingEdge.getAnnotation("type");
             if (type.equalsIgnoreCase("Used")) {
@@ -251,16 +229,13 @@ public class Graphviz extends AbstractStorage
                 style = "dashed";
             }
 
-            String edgeString = annotationString.toString();
-            if (edgeString.length() > 0) {
-                edgeString = "(" + edgeString.substring(0, edgeString.length() - 2) + ")";
-            }
-
-            String srckey = Hex.encodeHexString(incomingEdge.getChildVertex().bigHashCodeBytes());
-            String dstkey = Hex.encodeHexString(incomingEdge.getParentVertex().bigHashCodeBytes());
+            String srckey = incomingEdge.getChildVertex().bigHashCode();
+            String dstkey = incomingEdge.getParentVertex().bigHashCode();
 
-            outputFile.write("\"" + srckey + "\" -> \"" + dstkey + "\" [label=\"" + edgeString.replace("\"", "'") + "\" color=\"" + color + "\" style=\"" + style + "\"];\n");
-            checkTransactions();
+            outputFile.append('"').append(srckey).append("\" -> \"").append(dstkey).append("\" [label=\"");
+            appendLabel(incomingEdge.getAnnotations(), "(", ")");
+            outputFile.append("\" color=\"").append(color).append("\" style=\"").append(style).append("\"];\n");
+            outputFile.endRecord();
             return true;
         } catch (Exception exception) {
             Logger.getLogger(Graphviz.class.getName()).log(Level.SEVERE, null, exception);
@@ -271,8 +246,8 @@ public class Graphviz extends AbstractStorage
     @Override
     public boolean shutdown() {
         try {
-            outputFile.write("}\n");
             outputFile.close();
+            Logger.getLogger(Graphviz.class.getName()).log(Level.INFO, outputFile.getStats());
             return true;
         } catch (Exception exception) {
             Logger.getLogger(Graphviz.class.getName()).log(Level.SEVERE, null, exception);
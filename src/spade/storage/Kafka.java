@@ -219,11 +219,7 @@ public class Kafka extends AbstractStorage{
 	public boolean putVertex(AbstractVertex vertex){
 		try{
 			List<GenericContainer> recordsToPublish = new ArrayList<GenericContainer>();
-			Vertex.Builder vertexBuilder = Vertex.newBuilder();
-			vertexBuilder.setAnnotations(vertex.getAnnotations());
-			vertexBuilder.setHash(String.valueOf(vertex.hashCode()));
-			Vertex kafkaVertex = vertexBuilder.build();
-			recordsToPublish.add(GraphElement.newBuilder().setElement(kafkaVertex).build());
+			recordsToPublish.add(createVertexRecord(vertex));
 			return publishRecords(recordsToPublish) > 0;
 		}catch(Exception e){
 			logger.log(Level.SEVERE, "Failed to publish vertex : " + vertex);
@@ -241,13 +237,7 @@ public class Kafka extends AbstractStorage{
 	public boolean putEdge(AbstractEdge edge){
 		try{
 			List<GenericContainer> recordsToPublish = new ArrayList<GenericContainer>();
-			Edge.Builder edgeBuilder = Edge.newBuilder();
-			edgeBuilder.setAnnotations(edge.getAnnotations());
-			edgeBuilder.setChildVertexHash(String.valueOf(edge.getChildVertex().hashCode()));
-			edgeBuilder.setParentVertexHash(String.valueOf(edge.getParentVertex().hashCode()));
-			edgeBuilder.setHash(String.valueOf(edge.hashCode()));
-			Edge kafkaEdge = edgeBuilder.build();
-			recordsToPublish.add(GraphElement.newBuilder().setElement(kafkaEdge).build());
+			recordsToPublish.add(createEdgeRecord(edge));
 			return publishRecords(recordsToPublish) > 0;	
 		}catch(Exception e){
 			logger.log(Level.SEVERE, "Failed to publish edge : " + edge);
@@ -255,6 +245,51 @@ public class Kafka extends AbstractStorage{
 		}
 	}
 	
+	//the whole batch is published with one call to publishRecords
+	@Override
+	public int putVertices(List<AbstractVertex> vertices){
+		List<GenericContainer> recordsToPublish = new ArrayList<GenericContainer>(vertices.size());
+		for(AbstractVertex vertex : vertices){
+			try{
+				recordsToPublish.add(createVertexRecord(vertex));
+			}catch(Exception e){
+				logger.log(Level.SEVERE, "Failed to publish vertex : " + vertex);
+			}
+		}
+		return publishRecords(recordsToPublish);
+	}
+	
+	@Override
+	public int putEdges(List<AbstractEdge> edges){
+		List<GenericContainer> recordsToPublish = new ArrayList<GenericContainer>(edges.size());
+		for(AbstractEdge edge : edges){
+			try{
+				recordsToPublish.add(createEdgeRecord(edge));
+			}catch(Exception e){
+				logger.log(Level.SEVERE, "Failed to publish edge : " + edge);
+			}
+		}
+		return publishRecords(recordsToPublish);
+	}
+	
+	private GenericContainer createVertexRecord(AbstractVertex vertex){
+		Vertex.Builder vertexBuilder = Vertex.newBuilder();
+		vertexBuilder.setAnnotations(vertex.getAnnotations());
+		vertexBuilder.setHash(String.valueOf(vertex.hashCode()));
+		Vertex kafkaVertex = vertexBuilder.build();
+		return GraphElement.newBuilder().setElement(kafkaVertex).build();
+	}
+	
+	private GenericContainer createEdgeRecord(AbstractEdge edge){
+		Edge.Builder edgeBuilder = Edge.newBuilder();
+		edgeBuilder.setAnnotations(edge.getAnnotations());
+		edgeBuilder.setChildVertexHash(String.valueOf(edge.getChildVertex().hashCode()));
+		edgeBuilder.setParentVertexHash(String.valueOf(edge.getParentVertex().hashCode()));
+		edgeBuilder.setHash(String.valueOf(edge.hashCode()));
+		Edge kafkaEdge = edgeBuilder.build();
+		return GraphElement.newBuilder().setElement(kafkaEdge).build();
+	}
+	
 	//function to call to save data to the storage
 	protected int publishRecords(List<GenericContainer> genericContainers) {
 		int recordCount = 0;
@@ -29,6 +29,7 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -52,6 +53,8 @@ public class MySQL extends SQL
             String msg  = "Loading H2 configurations from file unsuccessful! Unexpected behavior might follow";
             logger.log(Level.SEVERE, msg, ex);
         }
+        preparedInserts = Boolean.parseBoolean(databaseConfigs.getProperty("preparedInserts",
+                String.valueOf(preparedInserts)));
     }
 
     /**
@@ -160,6 +163,7 @@ public class MySQL extends SQL
         try
         {
             dbConnection.commit();
+            closeInsertStatements();
             dbConnection.close();
             return true;
         }
@@ -170,6 +174,24 @@ public class MySQL extends SQL
         }
     }
 
+    @Override
+    protected String quoteColumn(String column)
+    {
+        return "`" + column + "`";
+    }
+
+    @Override
+    protected String createAddColumnsString(String table, List<String> columns)
+    {
+        StringBuilder statement = new StringBuilder("ALTER TABLE ").append(table);
+        for(int i = 0; i < columns.size(); i++)
+        {
+            statement.append(i == 0 ? " " : ", ");
+            statement.append("ADD COLUMN `").append(columns.get(i)).append("` VARCHAR(256)");
+        }
+        return statement.toString();
+    }
+
     /**
      * adds a new column in the database table,
      * if it is not already present.
@@ -252,6 +274,74 @@ public class MySQL extends SQL
         if(Cache.isPresent(edgeHash))
             return true;
 
+        String insertString = createEdgeInsertString(incomingEdge, edgeHash);
+
+        try
+        {
+            Statement s = dbConnection.createStatement();
+            s.execute(insertString);
+            if(BUILD_SCAFFOLD)
+            {
+                insertScaffoldEntry(incomingEdge);
+            }
+            s.close();
+        }
+        catch (Exception e)
+        {
+            logger.log(Level.SEVERE, null, e);
+        }
+
+        return true;
+    }
+
+    /**
+     * This function inserts the given vertex into the underlying storage(s) and
+     * updates the cache(s) accordingly.
+     *
+     * @param incomingVertex vertex to insert into the storage
+     * @return returns true if the insertion is successful. Insertion is considered
+     * not successful if the vertex is already present in the storage.
+     */
+    @Override
+    public boolean putVertex(AbstractVertex incomingVertex)
+    {
+        String vertexHash = incomingVertex.bigHashCode();
+        if(Cache.isPresent(vertexHash))
+            return true;
+
+        String insertString = createVertexInsertString(incomingVertex, vertexHash);
+
+        try
+        {
+            dbConnection.commit();
+            Statement s = dbConnection.createStatement();
+            s.execute(insertString);
+            s.close();
+        }
+        catch (Exception e)
+        {
+            logger.log(Level.SEVERE, null, e);
+            return false;
+        }
+
+        // cache the vertex successfully inserted in the storage
+        Cache.addItem(incomingVertex);
+
+
+        return true;
+    }
+
+    /**
+     * This function builds the statement which inserts the given edge
+     * into the edge table. Missing columns are added to the table.
+     *
+     * @param incomingEdge edge to insert
+     * @param edgeHash hash of the edge
+     * @return returns the insert statement
+     */
+    @Override
+    protected String createEdgeInsertString(AbstractEdge incomingEdge, String edgeHash)
+    {
         String childVertexHash = incomingEdge.getChildVertex().bigHashCode();
         String parentVertexHash = incomingEdge.getParentVertex().bigHashCode();
 
@@ -323,39 +413,20 @@ public class MySQL extends SQL
         }
         insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2) + ")";
 
-        try
-        {
-            Statement s = dbConnection.createStatement();
-            s.execute(insertString);
-            if(BUILD_SCAFFOLD)
-            {
-                insertScaffoldEntry(incomingEdge);
-            }
-            s.close();
-        }
-        catch (Exception e)
-        {
-            logger.log(Level.SEVERE, null, e);
-        }
-
-        return true;
+        return insertString;
     }
 
     /**
-     * This function inserts the given vertex into the underlying storage(s) and
-     * updates the cache(s) accordingly.
+     * This function builds the statement which inserts the given vertex
+     * into the vertex table. Missing columns are added to the table.
      *
-     * @param incomingVertex vertex to insert into the storage
-     * @return returns true if the insertion is successful. Insertion is considered
-     * not successful if the vertex is already present in the storage.
+     * @param incomingVertex vertex to insert
+     * @param vertexHash hash of the vertex
+     * @return returns the insert statement
      */
     @Override
-    public boolean putVertex(AbstractVertex incomingVertex)
+    protected String createVertexInsertString(AbstractVertex incomingVertex, String vertexHash)
     {
-        String vertexHash = incomingVertex.bigHashCode();
-        if(Cache.isPresent(vertexHash))
-            return true;
-
         // Use StringBuilder to build the MySQL insert statement
         StringBuilder insertStringBuilder = new StringBuilder( 100);
         insertStringBuilder.append("INSERT INTO ");
@@ -405,24 +476,7 @@ public class MySQL extends SQL
         }
         insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2) + ")";
 
-        try
-        {
-            dbConnection.commit();
-            Statement s = dbConnection.createStatement();
-            s.execute(insertString);
-            s.close();
-        }
-        catch (Exception e)
-        {
-            logger.log(Level.SEVERE, null, e);
-            return false;
-        }
-
-        // cache the vertex successfully inserted in the storage
-        Cache.addItem(incomingVertex);
-
-
-        return true;
+        return insertString;
     }
 
     @Override
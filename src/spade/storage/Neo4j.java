@@ -21,14 +21,12 @@ package spade.storage;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
@@ -70,7 +68,7 @@ import spade.core.Edge;
 import spade.core.Graph;
 import spade.core.Settings;
 import spade.core.Vertex;
-import spade.core.BloomFilter;
+import spade.core.ConcurrentBloomFilter;
 import spade.utility.CommonFunctions;
 
 import static spade.core.Kernel.CONFIG_PATH;
@@ -109,8 +107,8 @@ public class Neo4j extends AbstractStorage
     // Performance tuning note: Set this to higher value (up to Integer.MAX_VALUE) to reduce db hit rate.
     // Downside: This would eat more heap at start time.
   	private int expectedNumberOfElements = 1000000;
-    private BloomFilter<String> nodeBloomFilter;
-    private BloomFilter<String> edgeBloomFilter;
+    private ConcurrentBloomFilter nodeBloomFilter;
+    private ConcurrentBloomFilter edgeBloomFilter;
     private LinkedList<String> localNodeHashQueue = new LinkedList<String>();
     private HashMap<String, Node> localNodeCache = new HashMap<String, Node>();
 
@@ -130,6 +128,8 @@ public class Neo4j extends AbstractStorage
 
     private Transaction globalTx;
   	private int globalTxCount=0;
+    // True while a batch of elements is being inserted in a single transaction
+    private boolean batchTxOpen = false;
 
     private Date lastFlushTime;
 
@@ -207,6 +207,10 @@ public class Neo4j extends AbstractStorage
 
             nodeBloomFilter = loadBloomFilter(NODE_BLOOMFILTER);
             edgeBloomFilter = loadBloomFilter(EDGE_BLOOMFILTER);
+            if (nodeBloomFilter == null || edgeBloomFilter == null)
+            {
+                rebuildBloomFilters();
+            }
 
             if (LOG_PERFORMANCE_STATS==true)
             {
@@ -224,42 +228,62 @@ public class Neo4j extends AbstractStorage
         }
     }
 
-    private BloomFilter loadBloomFilter(String fileName) {
-
-    	try {
-            File filePath = new File(database, fileName);
-            if (filePath.exists()) {
-	    		FileInputStream fileInputStream = new FileInputStream(
-	    			filePath.toString()
-				);
-	    		ObjectInputStream objectInputStream = new ObjectInputStream(fileInputStream);
-	    		BloomFilter bloomFilter = (BloomFilter<Integer>) objectInputStream.readObject();
-	    		objectInputStream.close();
-	    		fileInputStream.close();
-	    		return bloomFilter;
-	    	}
-    	} catch (IOException exception) {
-    		logger.log(Level.SEVERE, "Failed to load Bloom filter cache", exception);
-    	} catch(ClassNotFoundException exception) {
-        	exception.printStackTrace();
-      	}
-      	return new BloomFilter<Integer>(falsePositiveProbability, expectedNumberOfElements);
+    /**
+     * @return the Bloom filter saved in the database directory, or null if there is none
+     * in the current format. Filters saved by older versions with Java serialization
+     * cannot be converted, so null is returned for them too.
+     */
+    private ConcurrentBloomFilter loadBloomFilter(String fileName) {
+        File filePath = new File(database, fileName);
+        if (filePath.exists()) {
+            try {
+                return ConcurrentBloomFilter.load(filePath);
+            } catch (IOException exception) {
+                logger.log(Level.WARNING, "Unable to load Bloom filter cache: " + filePath, exception);
+            }
+        }
+        return null;
     }
 
-    private void saveBloomFilter(String fileName, BloomFilter bloomFilter) {
-
-    	try {
-    		FileOutputStream fileOutputStream = new FileOutputStream(
-                    new File(database, fileName).toString()
-            );
-    		ObjectOutputStream objectOutputStream = new ObjectOutputStream(fileOutputStream);
-    		objectOutputStream.writeObject(bloomFilter);
-    		objectOutputStream.close();
-    		fileOutputStream.close();
-    	} catch (IOException exception) {
-    		logger.log(Level.SEVERE, "Failed to save Bloom filter cache", exception);
-    	}
+    /**
+     * Creates both Bloom filters from the hashes of the vertices and the edges in the
+     * database. A Bloom filter that is empty while the database is not would let
+     * duplicate vertices and edges in.
+     */
+    private void rebuildBloomFilters() {
+        long start = System.currentTimeMillis();
+        nodeBloomFilter = new ConcurrentBloomFilter(falsePositiveProbability, expectedNumberOfElements);
+        edgeBloomFilter = new ConcurrentBloomFilter(falsePositiveProbability, expectedNumberOfElements);
+        try ( Transaction tx = graphDb.beginTx() )
+        {
+            for (Node node : graphDb.getAllNodes())
+            {
+                Object hash = node.getProperty(PRIMARY_KEY, null);
+                if (hash != null)
+                {
+                    nodeBloomFilter.add(hash.toString());
+                }
+            }
+            for (Relationship relationship : graphDb.getAllRelationships())
+            {
+                Object hash = relationship.getProperty(PRIMARY_KEY, null);
+                if (hash != null)
+                {
+                    edgeBloomFilter.add(hash.toString());
+                }
+            }
+            tx.success();
+        }
+        logger.log(Level.INFO, "Bloom filters rebuilt from the database in " + (System.currentTimeMillis() - start)
+                + " ms. Vertices: " + nodeBloomFilter.count() + ", edges: " + edgeBloomFilter.count());
+    }
 
+    private void saveBloomFilter(String fileName, ConcurrentBloomFilter bloomFilter) {
+        try {
+            bloomFilter.save(new File(database, fileName));
+        } catch (IOException exception) {
+            logger.log(Level.SEVERE, "Failed to save Bloom filter cache", exception);
+        }
     }
 
     @Override
@@ -436,17 +460,34 @@ public class Neo4j extends AbstractStorage
     }
 
     void globalTxCheckin() {
-        globalTxCheckin(false);
+        if (!batchTxOpen) {
+            globalTxCheckin(false);
+        }
     }
     
     void globalTxCheckin(boolean forcedFlush) {
-  		if ((globalTxCount % GLOBAL_TX_SIZE == 0) || (forcedFlush == true)) {
+  		if ((globalTxCount == 0) || (globalTxCount >= GLOBAL_TX_SIZE) || (forcedFlush == true)) {
             globalTxFinalize();
             globalTx = graphDb.beginTx();
   		}
   		globalTxCount++;
   	}
 
+    /**
+     * Makes sure that the whole batch is inserted in one transaction. The current
+     * transaction is committed first if the batch would make it exceed GLOBAL_TX_SIZE.
+     *
+     * @param batchSize number of elements in the batch
+     */
+    void batchTxCheckin(int batchSize) {
+        if ((globalTx == null) || (globalTxCount == 0) || (globalTxCount + batchSize >= GLOBAL_TX_SIZE)) {
+            globalTxFinalize();
+            globalTx = graphDb.beginTx();
+        }
+        globalTxCount += batchSize;
+        batchTxOpen = true;
+    }
+
   	void globalTxFinalize() {
   		if (globalTx != null) {
   			try {
@@ -454,6 +495,8 @@ public class Neo4j extends AbstractStorage
   			} finally {
   				globalTx.close();
   			}
+  			// the elements written in the transaction are visible to queries only now
+  			incrementIngestEpoch();
   		}
   		globalTxCount = 0;
   	}
@@ -596,6 +639,50 @@ public class Neo4j extends AbstractStorage
         return true;
     }
 
+    @Override
+    public int putVertices(List<AbstractVertex> incomingVertices)
+    {
+        batchTxCheckin(incomingVertices.size());
+        int count = 0;
+        try
+        {
+            for (AbstractVertex incomingVertex : incomingVertices)
+            {
+                if (putVertex(incomingVertex))
+                {
+                    count++;
+                }
+            }
+        }
+        finally
+        {
+            batchTxOpen = false;
+        }
+        return count;
+    }
+
+    @Override
+    public int putEdges(List<AbstractEdge> incomingEdges)
+    {
+        batchTxCheckin(incomingEdges.size());
+        int count = 0;
+        try
+        {
+            for (AbstractEdge incomingEdge : incomingEdges)
+            {
+                if (putEdge(incomingEdge))
+                {
+                    count++;
+                }
+            }
+        }
+        finally
+        {
+            batchTxOpen = false;
+        }
+        return count;
+    }
+
     public static AbstractVertex convertNodeToVertex(Node node)
     {
         AbstractVertex resultVertex = new Vertex();
@@ -23,18 +23,21 @@ import spade.core.AbstractEdge;
 import spade.core.AbstractVertex;
 import spade.core.Cache;
 
-import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
@@ -43,7 +46,8 @@ import java.util.logging.Logger;
 import static spade.core.Kernel.CONFIG_PATH;
 import static spade.core.Kernel.FILE_SEPARATOR;
 
-import au.com.bytecode.opencsv.CSVWriter;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
 import spade.utility.CommonFunctions;
 
 /**
@@ -68,8 +72,10 @@ public class PostgreSQL extends SQL
     private boolean buildSecondaryIndexes = false;
     private List<Map<String, String>> edgeList = new ArrayList<>();
     private List<Map<String, String>> vertexList = new ArrayList<>();
-    private ArrayList<String> edgeColumnNames = new ArrayList<>();
-    private ArrayList<String> vertexColumnNames = new ArrayList<>();
+    private LinkedHashSet<String> edgeColumnNames = new LinkedHashSet<>();
+    private LinkedHashSet<String> vertexColumnNames = new LinkedHashSet<>();
+    // Size of the chunks in which rows are streamed to the server in bulk upload mode
+    private static final int COPY_CHUNK_SIZE = 1 << 16;
 
 
     public PostgreSQL()
@@ -91,6 +97,8 @@ public class PostgreSQL extends SQL
         buildSecondaryIndexes = Boolean.parseBoolean(databaseConfigs.getProperty("buildSecondaryIndexes",
                 String.valueOf(buildSecondaryIndexes)));
         bulkUpload = Boolean.parseBoolean(databaseConfigs.getProperty("bulkUpload", String.valueOf(bulkUpload)));
+        preparedInserts = Boolean.parseBoolean(databaseConfigs.getProperty("preparedInserts",
+                String.valueOf(preparedInserts)));
         reportingEnabled = Boolean.parseBoolean(databaseConfigs.getProperty("reportingEnabled",
                 String.valueOf(reportingEnabled)));
         if(reportingEnabled)
@@ -102,6 +110,27 @@ public class PostgreSQL extends SQL
         }
     }
 
+    public boolean isBulkUpload()
+    {
+        return bulkUpload;
+    }
+
+    /**
+     * Switches between bulk upload (COPY FROM STDIN) and inserts. Pending bulk
+     * rows are flushed when switching off.
+     *
+     * @param bulkUpload true to enable bulk upload
+     */
+    public void setBulkUpload(boolean bulkUpload)
+    {
+        if(this.bulkUpload && !bulkUpload && dbConnection != null)
+        {
+            flushBulkEdges(true);
+            flushBulkVertices(true);
+        }
+        this.bulkUpload = bulkUpload;
+    }
+
     /**
      *  initializes the PostgreSQL database and creates the necessary tables
      * if not already present. The necessary tables include VERTEX and EDGE tables
@@ -227,6 +256,8 @@ public class PostgreSQL extends SQL
             {
                 dbConnection.commit();
                 globalTxCount = 0;
+                // includes the rows copied in bulk upload mode, which are visible to queries only now
+                incrementIngestEpoch();
             }
             catch(SQLException ex)
             {
@@ -256,6 +287,7 @@ public class PostgreSQL extends SQL
                 flushBulkEdges(true);
                 flushBulkVertices(true);
             }
+            closeInsertStatements();
             dbConnection.close();
         }
         catch (Exception ex)
@@ -266,6 +298,28 @@ public class PostgreSQL extends SQL
         return true;
     }
 
+    @Override
+    protected String getValuePlaceholder(String table, String column)
+    {
+        if(column.equals(PRIMARY_KEY) || column.equals(CHILD_VERTEX_KEY) || column.equals(PARENT_VERTEX_KEY))
+        {
+            return "CAST(? AS UUID)";
+        }
+        return "?";
+    }
+
+    @Override
+    protected String createAddColumnsString(String table, List<String> columns)
+    {
+        StringBuilder statement = new StringBuilder("ALTER TABLE ").append(table);
+        for(int i = 0; i < columns.size(); i++)
+        {
+            statement.append(i == 0 ? " " : ", ");
+            statement.append("ADD COLUMN \"").append(columns.get(i)).append("\" VARCHAR");
+        }
+        return statement.toString();
+    }
+
     /**
      *  adds a new column in the database table,
      * if it is not already present.
@@ -357,82 +411,7 @@ public class PostgreSQL extends SQL
         if(Cache.isPresent(edgeHash))
             return true;
 
-        String childVertexHash = incomingEdge.getChildVertex().bigHashCode();
-        String parentVertexHash = incomingEdge.getParentVertex().bigHashCode();
-
-        // Use StringBuilder to build the PostgreSQL insert statement
-        StringBuilder insertStringBuilder = new StringBuilder(200);
-        insertStringBuilder.append("INSERT INTO ");
-        insertStringBuilder.append(EDGE_TABLE);
-        insertStringBuilder.append(" (");
-        insertStringBuilder.append("\"");
-        insertStringBuilder.append(PRIMARY_KEY);
-        insertStringBuilder.append("\"");
-        insertStringBuilder.append(", ");
-        if(!incomingEdge.getAnnotations().containsKey(CHILD_VERTEX_KEY))
-        {
-            insertStringBuilder.append("\"");
-            insertStringBuilder.append(CHILD_VERTEX_KEY);
-            insertStringBuilder.append("\"");
-            insertStringBuilder.append(", ");
-        }
-        if(!incomingEdge.getAnnotations().containsKey(PARENT_VERTEX_KEY))
-        {
-            insertStringBuilder.append("\"");
-            insertStringBuilder.append(PARENT_VERTEX_KEY);
-            insertStringBuilder.append("\"");
-            insertStringBuilder.append(", ");
-        }
-        for (String annotationKey : incomingEdge.getAnnotations().keySet())
-        {
-            // Sanitize column name to remove special characters
-            String newAnnotationKey;
-            if(ENABLE_SANITIZATION)
-            {
-                newAnnotationKey = sanitizeColumn(annotationKey);
-            }
-            else
-                newAnnotationKey = annotationKey;
-
-            // As the annotation keys are being iterated, add them as new
-            // columns to the table_name if they do not already exist
-            addColumn(EDGE_TABLE, newAnnotationKey);
-
-            insertStringBuilder.append("\"");
-            insertStringBuilder.append(newAnnotationKey);
-            insertStringBuilder.append("\"");
-            insertStringBuilder.append(", ");
-        }
-
-        // Eliminate the last 2 characters from the string (", ") and begin adding values
-        String insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2);
-        insertStringBuilder = new StringBuilder(insertString + ") VALUES ('");
-        // Add the hash code, and source and destination vertex Ids
-        insertStringBuilder.append(edgeHash);
-        insertStringBuilder.append("', ");
-        if(!incomingEdge.getAnnotations().containsKey(CHILD_VERTEX_KEY))
-        {
-            insertStringBuilder.append("'");
-            insertStringBuilder.append(childVertexHash);
-            insertStringBuilder.append("', ");
-        }
-        if(!incomingEdge.getAnnotations().containsKey(PARENT_VERTEX_KEY))
-        {
-            insertStringBuilder.append("'");
-            insertStringBuilder.append(parentVertexHash);
-            insertStringBuilder.append("', ");
-        }
-
-        // Add the annotation values
-        for (String annotationValue : incomingEdge.getAnnotations().keySet())
-        {
-            String value = (ENABLE_SANITIZATION) ? incomingEdge.getAnnotation(annotationValue).replace("'", "\"") : incomingEdge.getAnnotation(annotationValue);
-
-            insertStringBuilder.append("'");
-            insertStringBuilder.append(value);
-            insertStringBuilder.append("', ");
-        }
-        insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2) + ")";
+        String insertString = createEdgeInsertString(incomingEdge, edgeHash);
 
         try
         {
@@ -465,75 +444,41 @@ public class PostgreSQL extends SQL
 
     private void processBulkEdges(AbstractEdge incomingEdge)
     {
-        Map<String, String> annotations = new HashMap<>(incomingEdge.getAnnotations());
+        bufferBulkEdge(incomingEdge);
+        flushBulkEdges(false);
+    }
+
+    private void bufferBulkEdge(AbstractEdge incomingEdge)
+    {
+        Map<String, String> annotations = createBulkRow(incomingEdge.getAnnotations());
         annotations.put(PRIMARY_KEY, incomingEdge.bigHashCode());
         annotations.put(CHILD_VERTEX_KEY, incomingEdge.getChildVertex().bigHashCode());
         annotations.put(PARENT_VERTEX_KEY, incomingEdge.getParentVertex().bigHashCode());
         edgeList.add(annotations);
-        for(String annotationKey: annotations.keySet())
-        {
-            if(!edgeColumnNames.contains(annotationKey))
-            {
-                edgeColumnNames.add(sanitizeColumn(annotationKey));
-                addColumn(EDGE_TABLE, annotationKey);
-            }
-        }
+        // New columns are added to the table in one statement before the rows are copied
+        edgeColumnNames.addAll(annotations.keySet());
 
         if(BUILD_SCAFFOLD)
         {
             insertScaffoldEntry(incomingEdge);
         }
-        flushBulkEdges(false);
     }
 
     private void flushBulkEdges(boolean forcedFlush)
     {
         if(( (edgeCount > 0) && (edgeCount % GLOBAL_TX_SIZE == 0) ) || forcedFlush)
         {
-            String edgeFileName = "/tmp/bulk_edges.csv";
-            try
+            if(edgeList.isEmpty())
             {
-                File file = new File(edgeFileName);
-                file.createNewFile();
-                if(!(file.setWritable(true, false)
-                    && file.setReadable(true, false)))
-                {
-                    logger.log(Level.SEVERE, "Permission denied to read/write from edge buffer files!");
-                    return;
-                }
-                FileWriter fileWriter = new FileWriter(file);
-
-                CSVWriter writer = new CSVWriter(fileWriter);
-                writer.writeNext(edgeColumnNames.toArray(new String[edgeColumnNames.size()]));
-                for(Map<String, String> edge: edgeList)
-                {
-                    ArrayList<String> annotationValues = new ArrayList<>();
-                    for(String edgeColumnName : edgeColumnNames)
-                    {
-                        annotationValues.add(edge.get(edgeColumnName));
-                    }
-                    writer.writeNext(annotationValues.toArray(new String[annotationValues.size()]));
-                }
-                writer.close();
+                return;
             }
-            catch(Exception ex)
-            {
-                logger.log(Level.SEVERE, "Error writing edges to file", ex);
-            }
-
-            String copyTableString = "COPY "
-                    + EDGE_TABLE
-                    + " FROM '"
-                    + edgeFileName
-                    + "' CSV HEADER";
             try
             {
-                Statement s = dbConnection.createStatement();
-                s.execute(copyTableString);
-                s.close();
+                int edgeListSize = edgeList.size();
+                copyRows(EDGE_TABLE, edgeColumnNames, edgeList);
                 globalTxCheckin(true);
                 edgeList.clear();
-                logger.log(Level.INFO, "Bulk uploaded " + GLOBAL_TX_SIZE + " edges to databases. Total edges: " + edgeCount);
+                logger.log(Level.INFO, "Bulk uploaded " + edgeListSize + " edges to databases. Total edges: " + edgeCount);
                 edgeBatches++;
                 long currentTime = System.currentTimeMillis();
                 if((currentTime - lastReportedTime) >= reportEveryMs)
@@ -545,74 +490,166 @@ public class PostgreSQL extends SQL
             }
             catch (Exception ex)
             {
-                logger.log(Level.SEVERE, null, ex);
+                logger.log(Level.WARNING, "Bulk upload of " + edgeList.size() + " edges failed. Inserting them one at a time", ex);
+                rollback();
+                int droppedCount = insertRowsOneAtATime(EDGE_TABLE, edgeList);
+                edgeList.clear();
+                if(droppedCount > 0)
+                {
+                    logger.log(Level.SEVERE, "Dropped " + droppedCount + " edges that could not be inserted");
+                }
             }
         }
     }
 
     private void processBulkVertices(AbstractVertex incomingVertex)
     {
-        Map<String, String> annotations = new HashMap<>(incomingVertex.getAnnotations());
+        bufferBulkVertex(incomingVertex);
+        flushBulkVertices(false);
+    }
+
+    private void bufferBulkVertex(AbstractVertex incomingVertex)
+    {
+        Map<String, String> annotations = createBulkRow(incomingVertex.getAnnotations());
         annotations.put(PRIMARY_KEY, incomingVertex.bigHashCode());
         vertexList.add(annotations);
-        for(String annotationKey: annotations.keySet())
+        // New columns are added to the table in one statement before the rows are copied
+        vertexColumnNames.addAll(annotations.keySet());
+    }
+
+    /**
+     * Returns the annotations keyed by their column names.
+     */
+    private Map<String, String> createBulkRow(Map<String, String> annotations)
+    {
+        Map<String, String> row = new HashMap<>();
+        for(Map.Entry<String, String> annotation : annotations.entrySet())
         {
-            if(!vertexColumnNames.contains(annotationKey))
-            {
-                vertexColumnNames.add(sanitizeColumn(annotationKey));
-                addColumn(VERTEX_TABLE, annotationKey);
-            }
+            String column = ENABLE_SANITIZATION ? sanitizeColumn(annotation.getKey()) : annotation.getKey();
+            row.put(column, annotation.getValue());
         }
-        flushBulkVertices(false);
+        return row;
     }
 
-    private void flushBulkVertices(boolean forcedFlush)
+    /**
+     * Streams the rows to the table with COPY FROM STDIN in CSV format. Columns
+     * missing in a row are copied as NULL.
+     *
+     * @param table name of the table
+     * @param columnNames columns to copy
+     * @param rows rows keyed by column name
+     */
+    private void copyRows(String table, LinkedHashSet<String> columnNames, List<Map<String, String>> rows)
+            throws SQLException
     {
-        if(( (vertexCount > 0) && (vertexCount % GLOBAL_TX_SIZE == 0) ) || forcedFlush)
+        addColumns(table, columnNames);
+        StringBuilder copyString = new StringBuilder("COPY ").append(table).append(" (");
+        boolean first = true;
+        for(String columnName : columnNames)
         {
-            String vertexFileName = "/tmp/bulk_vertices.csv";
-            try
+            if(!first)
             {
-                File file = new File(vertexFileName);
-                file.createNewFile();
-                if(!(file.setWritable(true, false)
-                        && file.setReadable(true, false)))
-                {
-                    logger.log(Level.SEVERE, "Permission denied to read/write from vertex buffer files!");
-                    return;
-                }
-                FileWriter fileWriter = new FileWriter(file);
-                CSVWriter writer = new CSVWriter(fileWriter);
-                writer.writeNext(vertexColumnNames.toArray(new String[vertexColumnNames.size()]));
-                for(Map<String, String> vertex: vertexList)
+                copyString.append(", ");
+            }
+            first = false;
+            copyString.append('"').append(columnName).append('"');
+        }
+        copyString.append(") FROM STDIN WITH CSV");
+
+        CopyIn copyIn = dbConnection.unwrap(PGConnection.class).getCopyAPI().copyIn(copyString.toString());
+        try
+        {
+            StringBuilder chunk = new StringBuilder(COPY_CHUNK_SIZE + 1024);
+            for(Map<String, String> row : rows)
+            {
+                first = true;
+                for(String columnName : columnNames)
                 {
-                    ArrayList<String> annotationValues = new ArrayList<>();
-                    for(String vertexColumnName : vertexColumnNames)
+                    if(!first)
+                    {
+                        chunk.append(',');
+                    }
+                    first = false;
+                    String value = row.get(columnName);
+                    if(value != null)
                     {
-                        annotationValues.add(vertex.get(vertexColumnName));
+                        // Quoted so that an empty string is not read as NULL
+                        chunk.append('"').append(value.replace("\"", "\"\"")).append('"');
                     }
-                    writer.writeNext(annotationValues.toArray(new String[annotationValues.size()]));
                 }
-                writer.close();
+                chunk.append('\n');
+                if(chunk.length() >= COPY_CHUNK_SIZE)
+                {
+                    byte[] bytes = chunk.toString().getBytes(StandardCharsets.UTF_8);
+                    copyIn.writeToCopy(bytes, 0, bytes.length);
+                    chunk.setLength(0);
+                }
             }
-            catch(Exception ex)
+            if(chunk.length() > 0)
             {
-                logger.log(Level.SEVERE, "Error writing vertices to file", ex);
+                byte[] bytes = chunk.toString().getBytes(StandardCharsets.UTF_8);
+                copyIn.writeToCopy(bytes, 0, bytes.length);
             }
+            copyIn.endCopy();
+        }
+        finally
+        {
+            if(copyIn.isActive())
+            {
+                copyIn.cancelCopy();
+            }
+        }
+    }
 
-            String copyTableString = "COPY "
-                    + VERTEX_TABLE
-                    + " FROM '"
-                    + vertexFileName
-                    + "' CSV HEADER";
+    /**
+     * Inserts the rows one at a time, each in its own transaction, after their
+     * COPY failed, so that a bad row does not keep the others out of the table.
+     *
+     * @param table name of the table
+     * @param rows rows keyed by column name
+     * @return number of rows that could not be inserted
+     */
+    private int insertRowsOneAtATime(String table, List<Map<String, String>> rows)
+    {
+        int droppedCount = 0;
+        for(Map<String, String> row : rows)
+        {
+            InsertRow insertRow = new InsertRow();
+            for(Map.Entry<String, String> column : row.entrySet())
+            {
+                insertRow.add(column.getKey(), column.getValue());
+            }
             try
             {
-                Statement s = dbConnection.createStatement();
-                s.execute(copyTableString);
-                s.close();
+                insertRows(table, Collections.singletonList(insertRow));
+                dbConnection.commit();
+            }
+            catch(SQLException ex)
+            {
+                logger.log(Level.FINE, "Row could not be inserted in " + table, ex);
+                rollback();
+                droppedCount++;
+            }
+        }
+        incrementIngestEpoch();
+        return droppedCount;
+    }
+
+    private void flushBulkVertices(boolean forcedFlush)
+    {
+        if(( (vertexCount > 0) && (vertexCount % GLOBAL_TX_SIZE == 0) ) || forcedFlush)
+        {
+            if(vertexList.isEmpty())
+            {
+                return;
+            }
+            try
+            {
+                int vertexListSize = vertexList.size();
+                copyRows(VERTEX_TABLE, vertexColumnNames, vertexList);
                 globalTxCheckin(true);
                 vertexList.clear();
-                logger.log(Level.INFO, "Bulk uploaded " + GLOBAL_TX_SIZE + " vertices to databases. Total vertices: " + vertexCount);
+                logger.log(Level.INFO, "Bulk uploaded " + vertexListSize + " vertices to databases. Total vertices: " + vertexCount);
                 vertexBatches++;
                 long currentTime = System.currentTimeMillis();
                 if((currentTime - lastReportedTime) >= reportEveryMs)
@@ -624,7 +661,14 @@ public class PostgreSQL extends SQL
             }
             catch (Exception ex)
             {
-                logger.log(Level.SEVERE, null, ex);
+                logger.log(Level.WARNING, "Bulk upload of " + vertexList.size() + " vertices failed. Inserting them one at a time", ex);
+                rollback();
+                int droppedCount = insertRowsOneAtATime(VERTEX_TABLE, vertexList);
+                vertexList.clear();
+                if(droppedCount > 0)
+                {
+                    logger.log(Level.SEVERE, "Dropped " + droppedCount + " vertices that could not be inserted");
+                }
             }
         }
     }
@@ -650,6 +694,135 @@ public class PostgreSQL extends SQL
         if(Cache.isPresent(vertexHash))
             return true;
 
+        String insertString = createVertexInsertString(incomingVertex, vertexHash);
+
+        try
+        {
+            Statement s = dbConnection.createStatement();
+            s.execute(insertString);
+            s.close();
+            globalTxCheckin(false);
+        }
+        catch (Exception e)
+        {
+            logger.log(Level.SEVERE, null, e);
+            return false;
+        }
+
+        if(reportingEnabled)
+        {
+            computeStats();
+        }
+
+        // cache the vertex successfully inserted in the storage
+        Cache.addItem(incomingVertex);
+
+
+        return true;
+    }
+
+    /**
+     * This function builds the statement which inserts the given edge
+     * into the edge table. Missing columns are added to the table.
+     *
+     * @param incomingEdge edge to insert
+     * @param edgeHash hash of the edge
+     * @return returns the insert statement
+     */
+    @Override
+    protected String createEdgeInsertString(AbstractEdge incomingEdge, String edgeHash)
+    {
+        String childVertexHash = incomingEdge.getChildVertex().bigHashCode();
+        String parentVertexHash = incomingEdge.getParentVertex().bigHashCode();
+
+        // Use StringBuilder to build the PostgreSQL insert statement
+        StringBuilder insertStringBuilder = new StringBuilder(200);
+        insertStringBuilder.append("INSERT INTO ");
+        insertStringBuilder.append(EDGE_TABLE);
+        insertStringBuilder.append(" (");
+        insertStringBuilder.append("\"");
+        insertStringBuilder.append(PRIMARY_KEY);
+        insertStringBuilder.append("\"");
+        insertStringBuilder.append(", ");
+        if(!incomingEdge.getAnnotations().containsKey(CHILD_VERTEX_KEY))
+        {
+            insertStringBuilder.append("\"");
+            insertStringBuilder.append(CHILD_VERTEX_KEY);
+            insertStringBuilder.append("\"");
+            insertStringBuilder.append(", ");
+        }
+        if(!incomingEdge.getAnnotations().containsKey(PARENT_VERTEX_KEY))
+        {
+            insertStringBuilder.append("\"");
+            insertStringBuilder.append(PARENT_VERTEX_KEY);
+            insertStringBuilder.append("\"");
+            insertStringBuilder.append(", ");
+        }
+        for (String annotationKey : incomingEdge.getAnnotations().keySet())
+        {
+            // Sanitize column name to remove special characters
+            String newAnnotationKey;
+            if(ENABLE_SANITIZATION)
+            {
+                newAnnotationKey = sanitizeColumn(annotationKey);
+            }
+            else
+                newAnnotationKey = annotationKey;
+
+            // As the annotation keys are being iterated, add them as new
+            // columns to the table_name if they do not already exist
+            addColumn(EDGE_TABLE, newAnnotationKey);
+
+            insertStringBuilder.append("\"");
+            insertStringBuilder.append(newAnnotationKey);
+            insertStringBuilder.append("\"");
+            insertStringBuilder.append(", ");
+        }
+
+        // Eliminate the last 2 characters from the string (", ") and begin adding values
+        String insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2);
+        insertStringBuilder = new StringBuilder(insertString + ") VALUES ('");
+        // Add the hash code, and source and destination vertex Ids
+        insertStringBuilder.append(edgeHash);
+        insertStringBuilder.append("', ");
+        if(!incomingEdge.getAnnotations().containsKey(CHILD_VERTEX_KEY))
+        {
+            insertStringBuilder.append("'");
+            insertStringBuilder.append(childVertexHash);
+            insertStringBuilder.append("', ");
+        }
+        if(!incomingEdge.getAnnotations().containsKey(PARENT_VERTEX_KEY))
+        {
+            insertStringBuilder.append("'");
+            insertStringBuilder.append(parentVertexHash);
+            insertStringBuilder.append("', ");
+        }
+
+        // Add the annotation values
+        for (String annotationValue : incomingEdge.getAnnotations().keySet())
+        {
+            String value = (ENABLE_SANITIZATION) ? incomingEdge.getAnnotation(annotationValue).replace("'", "\"") : incomingEdge.getAnnotation(annotationValue);
+
+            insertStringBuilder.append("'");
+            insertStringBuilder.append(value);
+            insertStringBuilder.append("', ");
+        }
+        insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2) + ")";
+
+        return insertString;
+    }
+
+    /**
+     * This function builds the statement which inserts the given vertex
+     * into the vertex table. Missing columns are added to the table.
+     *
+     * @param incomingVertex vertex to insert
+     * @param vertexHash hash of the vertex
+     * @return returns the insert statement
+     */
+    @Override
+    protected String createVertexInsertString(AbstractVertex incomingVertex, String vertexHash)
+    {
         // Use StringBuilder to build the PostgreSQL insert statement
         StringBuilder insertStringBuilder = new StringBuilder( 100);
         insertStringBuilder.append("INSERT INTO ");
@@ -701,29 +874,67 @@ public class PostgreSQL extends SQL
         }
         insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2) + ")";
 
-        try
+        return insertString;
+    }
+
+    /**
+     * This function inserts the given edges into the underlying storage.
+     * In bulk upload mode the edges are added to the pending bulk upload.
+     *
+     * @param incomingEdges edges to insert into the storage
+     * @return returns the number of edges inserted or already present
+     */
+    @Override
+    public int putEdges(List<AbstractEdge> incomingEdges)
+    {
+        if(bulkUpload)
         {
-            Statement s = dbConnection.createStatement();
-            s.execute(insertString);
-            s.close();
-            globalTxCheckin(false);
+            for(AbstractEdge incomingEdge : incomingEdges)
+            {
+                bufferBulkEdge(incomingEdge);
+            }
+            if(edgeList.size() >= GLOBAL_TX_SIZE)
+            {
+                flushBulkEdges(true);
+            }
+            return incomingEdges.size();
         }
-        catch (Exception e)
+        int count = super.putEdges(incomingEdges);
+        if(reportingEnabled)
         {
-            logger.log(Level.SEVERE, null, e);
-            return false;
+            computeStats();
         }
+        return count;
+    }
 
+    /**
+     * This function inserts the given vertices into the underlying storage.
+     * In bulk upload mode the vertices are added to the pending bulk upload.
+     *
+     * @param incomingVertices vertices to insert into the storage
+     * @return returns the number of vertices inserted or already present
+     */
+    @Override
+    public int putVertices(List<AbstractVertex> incomingVertices)
+    {
+        if(bulkUpload)
+        {
+            for(AbstractVertex incomingVertex : incomingVertices)
+            {
+                bufferBulkVertex(incomingVertex);
+            }
+            if(vertexList.size() >= GLOBAL_TX_SIZE)
+            {
+                flushBulkVertices(true);
+            }
+            return incomingVertices.size();
+        }
+        int count = super.putVertices(incomingVertices);
         if(reportingEnabled)
         {
             computeStats();
         }
-
-        // cache the vertex successfully inserted in the storage
-        Cache.addItem(incomingVertex);
-
-
-        return true;
+        return count;
     }
 
     @Override
@@ -745,4 +956,47 @@ public class PostgreSQL extends SQL
 
         return result;
     }
+
+    /**
+     * Executes a query with parameters. A collection parameter is bound as a text
+     * array so that a whole set of hashes can be matched with a single round trip,
+     * e.g. "SELECT * FROM vertex WHERE \"hash\" = ANY(?::uuid[])".
+     *
+     * @param query The query with one placeholder per parameter.
+     * @param parameters The values of the placeholders.
+     * @return The result of the query or null if the query failed. Closing the result
+     * closes the statement.
+     */
+    public ResultSet executeQuery(String query, Object... parameters)
+    {
+        ResultSet result = null;
+        try
+        {
+            globalTxCheckin(true);
+            PreparedStatement queryStatement = dbConnection.prepareStatement(query);
+            if(CURSOR_FETCH_SIZE > 0)
+                queryStatement.setFetchSize(CURSOR_FETCH_SIZE);
+            for(int i = 0; i < parameters.length; i++)
+            {
+                Object parameter = parameters[i];
+                if(parameter instanceof Collection)
+                {
+                    Object[] elements = ((Collection<?>) parameter).toArray();
+                    queryStatement.setArray(i + 1, dbConnection.createArrayOf("text", elements));
+                }
+                else
+                {
+                    queryStatement.setObject(i + 1, parameter);
+                }
+            }
+            queryStatement.closeOnCompletion();
+            result = queryStatement.executeQuery();
+        }
+        catch (SQLException ex)
+        {
+            logger.log(Level.SEVERE, "PostgreSQL query execution not successful!", ex);
+        }
+
+        return result;
+    }
 }
@@ -30,11 +30,11 @@ import spade.edge.prov.WasAssociatedWith;
 import spade.edge.prov.WasDerivedFrom;
 import spade.edge.prov.WasGeneratedBy;
 import spade.edge.prov.WasInformedBy;
+import spade.utility.AsyncFileWriter;
 import spade.vertex.prov.Activity;
 import spade.vertex.prov.Agent;
 import spade.vertex.prov.Entity;
 
-import java.io.FileWriter;
 import java.sql.ResultSet;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -58,9 +58,7 @@ public class Prov extends AbstractStorage{
 
 	private ProvFormat provOutputFormat;
 
-	private FileWriter outputFile;
-	private final int TRANSACTION_LIMIT = 1000;
-	private int transaction_count;
+	private AsyncFileWriter outputFile;
 	private String filePath;
 
 	private final String provNamespacePrefix = "prov";
@@ -118,6 +116,7 @@ public class Prov extends AbstractStorage{
 		Map<String, String> nsPrefixToFileMap = new HashMap<String, String>();
 		nsPrefixToFileMap.putAll(args);
 		nsPrefixToFileMap.remove(OUTFILE_KEY); //removing the key which contains the path of the output file as the key from this map which contains rdfs files to read from
+		nsPrefixToFileMap.keySet().removeAll(AsyncFileWriter.SETTING_KEYS); //and the settings of the writer
 		if(!nsPrefixToFileMap.containsKey(provNamespacePrefix) && !nsPrefixToFileMap.containsKey(defaultNamespacePrefix)){ //i.e. this prefix is reserved
 			if(loadAnnotationsFromRDFs(nsPrefixToFileMap)){
 				filePath = args.get(OUTFILE_KEY);
@@ -131,28 +130,31 @@ public class Prov extends AbstractStorage{
 					return false;
 				}else{
 					try {
-						outputFile = new FileWriter(filePath, false);
-						transaction_count = 0;
+						StringBuilder header = new StringBuilder();
+						String footer = null;
 						switch (provOutputFormat) {
 							case PROVN:
-								outputFile.write("document\n");
+								header.append("document\n");
 								for(String nsPrefix : namespacePrefixToURIMap.keySet()){
-									outputFile.write(TAB + "prefix "+nsPrefix+" <"+namespacePrefixToURIMap.get(nsPrefix)+">\n");
+									header.append(TAB + "prefix "+nsPrefix+" <"+namespacePrefixToURIMap.get(nsPrefix)+">\n");
 								}
-								outputFile.write(TAB + "prefix "+defaultNamespacePrefix+" <"+defaultNamespaceURI+">\n");
-								outputFile.write(NEWLINE);
+								header.append(TAB + "prefix "+defaultNamespacePrefix+" <"+defaultNamespaceURI+">\n");
+								header.append(NEWLINE);
+								footer = "\nendDocument\n";
 								break;
 							case PROVO:
 								for(String nsPrefix : namespacePrefixToURIMap.keySet()){
-									outputFile.write("@prefix "+nsPrefix+": <"+namespacePrefixToURIMap.get(nsPrefix)+"> .\n");
+									header.append("@prefix "+nsPrefix+": <"+namespacePrefixToURIMap.get(nsPrefix)+"> .\n");
 								}
-								outputFile.write("@prefix "+defaultNamespacePrefix+": <"+defaultNamespaceURI+"> .\n");
-								outputFile.write("@prefix "+provNamespacePrefix+": <"+provNamespaceURI+"> .\n");
-								outputFile.write(NEWLINE);
+								header.append("@prefix "+defaultNamespacePrefix+": <"+defaultNamespaceURI+"> .\n");
+								header.append("@prefix "+provNamespacePrefix+": <"+provNamespaceURI+"> .\n");
+								header.append(NEWLINE);
 								break;
 							default:
 								break;
 						}
+						// every rotated segment is a complete document
+						outputFile = AsyncFileWriter.create(filePath, false, header.toString(), footer, args);
 						iso8601TimeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
 						iso8601TimeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
 						return true;
@@ -170,36 +172,11 @@ public class Prov extends AbstractStorage{
 		}
 	}
 
-	private void checkTransactions() {
-		transaction_count++;
-		if (transaction_count == TRANSACTION_LIMIT) {
-			try {
-				outputFile.flush();
-				outputFile.close();
-				outputFile = new FileWriter(filePath, true);
-				transaction_count = 0;
-			} catch (Exception exception) {
-				logger.log(Level.SEVERE, null, exception);
-			}
-		}
-	}
-
 	@Override
 	public boolean shutdown() {
 		try {
-			switch (provOutputFormat) {
-				case PROVO:
-					//nothing
-					break;
-				case PROVN:
-					outputFile.write(
-							"\nendDocument\n"
-					);
-					break;
-				default:
-					break;
-			}
 			outputFile.close();
+			logger.log(Level.INFO, outputFile.getStats());
 			return true;
 		} catch (Exception exception) {
 			logger.log(Level.SEVERE, null, exception);
@@ -211,8 +188,7 @@ public class Prov extends AbstractStorage{
 	public boolean putVertex(AbstractVertex incomingVertex) {
 		try{
 			String serializedVertex = getSerializedVertex(incomingVertex);
-			outputFile.write(serializedVertex);
-			checkTransactions();
+			outputFile.append(serializedVertex).endRecord();
 			//vertexCount++; finalcommitfilter is doing this increment already
 			return true;
 		}catch(Exception e){
@@ -231,8 +207,7 @@ public class Prov extends AbstractStorage{
 	public boolean putEdge(AbstractEdge incomingEdge) {
 		try{
 			String serializedEdge = getSerializedEdge(incomingEdge);
-			outputFile.write(serializedEdge);
-			checkTransactions();
+			outputFile.append(serializedEdge).endRecord();
 			//edgeCount++; finalcommitfilter is doing this increment already
 			return true;
 		}catch(Exception e){
@@ -30,12 +30,17 @@ import spade.core.Vertex;
 import java.io.File;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
@@ -61,6 +66,51 @@ public abstract class SQL extends AbstractStorage
     protected String DUPLICATE_COLUMN_ERROR_CODE;
     protected int CURSOR_FETCH_SIZE = 0;
     public int MAX_COLUMN_VALUE_LENGTH = 256;
+    /**
+     * If true, batches are inserted with prepared statements cached per column set
+     * instead of one SQL string per element. Set with 'preparedInserts' in the config.
+     */
+    protected boolean preparedInserts = false;
+    private static final int MAX_CACHED_INSERT_STATEMENTS = 256;
+    private final Map<String, PreparedStatement> insertStatements =
+            new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest)
+                {
+                    if(size() > MAX_CACHED_INSERT_STATEMENTS)
+                    {
+                        closeQuietly(eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    /**
+     * A row to insert with a prepared statement. Columns are sanitized.
+     */
+    protected static class InsertRow
+    {
+        final List<String> columns = new ArrayList<>();
+        final List<String> values = new ArrayList<>();
+
+        void add(String column, String value)
+        {
+            columns.add(column);
+            values.add(value);
+        }
+
+        String getSignature()
+        {
+            StringBuilder signature = new StringBuilder();
+            for(String column : columns)
+            {
+                signature.append(column).append('\u0001');
+            }
+            return signature.toString();
+        }
+    }
 
     public SQL()
     {
@@ -78,6 +128,16 @@ public abstract class SQL extends AbstractStorage
     {
         CURSOR_FETCH_SIZE = cursorFetchSize;
     }
+
+    public boolean isPreparedInserts()
+    {
+        return preparedInserts;
+    }
+
+    public void setPreparedInserts(boolean preparedInserts)
+    {
+        this.preparedInserts = preparedInserts;
+    }
     /**
      *  initializes the database and creates the necessary tables
      * if not already present. The necessary tables include VERTEX and EDGE tables
@@ -110,6 +170,7 @@ public abstract class SQL extends AbstractStorage
     @Override
     public boolean shutdown()
     {
+        closeInsertStatements();
         return true;
     }
 
@@ -386,6 +447,449 @@ public abstract class SQL extends AbstractStorage
     @Override
     public abstract boolean putVertex(AbstractVertex incomingVertex);
 
+    /**
+     * This function builds the statement which inserts the given edge
+     * into the edge table. Missing columns are added to the table.
+     *
+     * @param incomingEdge edge to insert
+     * @param edgeHash hash of the edge
+     * @return returns the insert statement
+     */
+    protected abstract String createEdgeInsertString(AbstractEdge incomingEdge, String edgeHash);
+
+    /**
+     * This function builds the statement which inserts the given vertex
+     * into the vertex table. Missing columns are added to the table.
+     *
+     * @param incomingVertex vertex to insert
+     * @param vertexHash hash of the vertex
+     * @return returns the insert statement
+     */
+    protected abstract String createVertexInsertString(AbstractVertex incomingVertex, String vertexHash);
+
+    /**
+     * Quotes a column name for use in a statement.
+     *
+     * @param column name of the column
+     * @return returns the quoted column name
+     */
+    protected String quoteColumn(String column)
+    {
+        return "\"" + column + "\"";
+    }
+
+    /**
+     * Returns the placeholder for the value of the given column in a prepared
+     * insert statement. Overridden for columns that need a cast.
+     *
+     * @param table name of the table
+     * @param column name of the column
+     * @return returns the placeholder
+     */
+    protected String getValuePlaceholder(String table, String column)
+    {
+        return "?";
+    }
+
+    /**
+     * Returns a single statement which adds all the given columns to the table,
+     * or null if the database cannot do that and the columns have to be added
+     * one at a time.
+     *
+     * @param table name of the table
+     * @param columns names of the columns to add
+     * @return returns the statement or null
+     */
+    protected String createAddColumnsString(String table, List<String> columns)
+    {
+        return null;
+    }
+
+    /**
+     * Adds the columns, which are not already known, to the table with a single
+     * statement if possible.
+     *
+     * @param table name of the table
+     * @param columns names of the columns
+     */
+    protected void addColumns(String table, Set<String> columns)
+    {
+        Set<String> knownColumns = table.equalsIgnoreCase(VERTEX_TABLE) ? vertexAnnotations : edgeAnnotations;
+        List<String> newColumns = new ArrayList<>();
+        for(String column : columns)
+        {
+            if(!knownColumns.contains(column))
+            {
+                newColumns.add(column);
+            }
+        }
+        if(newColumns.isEmpty())
+        {
+            return;
+        }
+        String addColumnsString = newColumns.size() > 1 ? createAddColumnsString(table, newColumns) : null;
+        if(addColumnsString != null)
+        {
+            try
+            {
+                Statement columnStatement = dbConnection.createStatement();
+                columnStatement.execute(addColumnsString);
+                columnStatement.close();
+                dbConnection.commit();
+                knownColumns.addAll(newColumns);
+                return;
+            }
+            catch(SQLException ex)
+            {
+                // Some of the columns may already exist. Fall back to adding one at a time.
+                rollback();
+            }
+        }
+        for(String column : newColumns)
+        {
+            addColumn(table, column);
+        }
+    }
+
+    /**
+     * Creates the row with which the given vertex is inserted with a prepared statement.
+     *
+     * @param incomingVertex vertex to insert
+     * @param vertexHash hash of the vertex
+     * @return returns the row
+     */
+    protected InsertRow createVertexRow(AbstractVertex incomingVertex, String vertexHash)
+    {
+        InsertRow row = new InsertRow();
+        row.add(PRIMARY_KEY, vertexHash);
+        addAnnotationsToRow(row, incomingVertex.getAnnotations());
+        return row;
+    }
+
+    /**
+     * Creates the row with which the given edge is inserted with a prepared statement.
+     *
+     * @param incomingEdge edge to insert
+     * @param edgeHash hash of the edge
+     * @return returns the row
+     */
+    protected InsertRow createEdgeRow(AbstractEdge incomingEdge, String edgeHash)
+    {
+        InsertRow row = new InsertRow();
+        row.add(PRIMARY_KEY, edgeHash);
+        Map<String, String> annotations = incomingEdge.getAnnotations();
+        if(!annotations.containsKey(CHILD_VERTEX_KEY))
+        {
+            row.add(CHILD_VERTEX_KEY, incomingEdge.getChildVertex().bigHashCode());
+        }
+        if(!annotations.containsKey(PARENT_VERTEX_KEY))
+        {
+            row.add(PARENT_VERTEX_KEY, incomingEdge.getParentVertex().bigHashCode());
+        }
+        addAnnotationsToRow(row, annotations);
+        return row;
+    }
+
+    private void addAnnotationsToRow(InsertRow row, Map<String, String> annotations)
+    {
+        for(Map.Entry<String, String> annotation : annotations.entrySet())
+        {
+            // Sanitized the same way as the insert strings so that the stored data does not depend on the mode
+            String column = ENABLE_SANITIZATION ? sanitizeColumn(annotation.getKey()) : annotation.getKey();
+            String value = annotation.getValue();
+            if(ENABLE_SANITIZATION && value != null)
+            {
+                value = sanitizeString(value);
+            }
+            row.add(column, value);
+        }
+    }
+
+    /**
+     * Inserts the rows with JDBC batches of prepared statements, one statement
+     * per distinct column set. Missing columns are added first. Does not commit.
+     *
+     * @param table name of the table
+     * @param rows rows to insert
+     * @throws SQLException if the insertion fails
+     */
+    protected void insertRows(String table, List<InsertRow> rows) throws SQLException
+    {
+        Set<String> columns = new LinkedHashSet<>();
+        Map<String, List<InsertRow>> rowsBySignature = new LinkedHashMap<>();
+        for(InsertRow row : rows)
+        {
+            columns.addAll(row.columns);
+            String signature = row.getSignature();
+            List<InsertRow> signatureRows = rowsBySignature.get(signature);
+            if(signatureRows == null)
+            {
+                signatureRows = new ArrayList<>();
+                rowsBySignature.put(signature, signatureRows);
+            }
+            signatureRows.add(row);
+        }
+        addColumns(table, columns);
+
+        for(Map.Entry<String, List<InsertRow>> entry : rowsBySignature.entrySet())
+        {
+            List<InsertRow> signatureRows = entry.getValue();
+            PreparedStatement insertStatement = getInsertStatement(table, entry.getKey(), signatureRows.get(0).columns);
+            for(InsertRow row : signatureRows)
+            {
+                for(int i = 0; i < row.values.size(); i++)
+                {
+                    insertStatement.setString(i + 1, row.values.get(i));
+                }
+                insertStatement.addBatch();
+            }
+            insertStatement.executeBatch();
+        }
+    }
+
+    private PreparedStatement getInsertStatement(String table, String signature, List<String> columns) throws SQLException
+    {
+        String key = table + '\u0000' + signature;
+        PreparedStatement insertStatement = insertStatements.get(key);
+        if(insertStatement == null)
+        {
+            StringBuilder columnList = new StringBuilder();
+            StringBuilder valueList = new StringBuilder();
+            for(String column : columns)
+            {
+                if(columnList.length() > 0)
+                {
+                    columnList.append(", ");
+                    valueList.append(", ");
+                }
+                columnList.append(quoteColumn(column));
+                valueList.append(getValuePlaceholder(table, column));
+            }
+            insertStatement = dbConnection.prepareStatement("INSERT INTO " + table
+                    + " (" + columnList + ") VALUES (" + valueList + ")");
+            insertStatements.put(key, insertStatement);
+        }
+        return insertStatement;
+    }
+
+    /**
+     * Closes the cached prepared statements.
+     */
+    protected void closeInsertStatements()
+    {
+        for(PreparedStatement insertStatement : insertStatements.values())
+        {
+            closeQuietly(insertStatement);
+        }
+        insertStatements.clear();
+    }
+
+    private void closeQuietly(Statement statement)
+    {
+        try
+        {
+            statement.close();
+        }
+        catch(SQLException ex)
+        {
+            logger.log(Level.FINE, "Error closing statement", ex);
+        }
+    }
+
+    protected void commit()
+    {
+        try
+        {
+            dbConnection.commit();
+        }
+        catch(SQLException ex)
+        {
+            logger.log(Level.WARNING, "Error in commit!", ex);
+        }
+    }
+
+    protected void rollback()
+    {
+        try
+        {
+            dbConnection.rollback();
+        }
+        catch(SQLException ex)
+        {
+            logger.log(Level.WARNING, "Error in rollback!", ex);
+        }
+    }
+
+    /**
+     * This function inserts the given edges with a single JDBC batch
+     * and commits them in one transaction. If the batch fails then it is
+     * rolled back and the edges are inserted one at a time.
+     *
+     * @param incomingEdges edges to insert into the storage
+     * @return returns the number of edges inserted or already present
+     */
+    @Override
+    public int putEdges(List<AbstractEdge> incomingEdges)
+    {
+        int count = 0;
+        List<AbstractEdge> batchedEdges = new ArrayList<>(incomingEdges.size());
+        List<String> batchedHashes = new ArrayList<>(incomingEdges.size());
+        Set<String> uniqueHashes = new HashSet<>();
+        for(AbstractEdge incomingEdge : incomingEdges)
+        {
+            String edgeHash = incomingEdge.bigHashCode();
+            // a repeat in the batch would violate the primary key
+            if(Cache.isPresent(edgeHash) || !uniqueHashes.add(edgeHash))
+            {
+                count++;
+                continue;
+            }
+            batchedEdges.add(incomingEdge);
+            batchedHashes.add(edgeHash);
+        }
+        if(batchedEdges.isEmpty())
+        {
+            return count;
+        }
+
+        try
+        {
+            // so that a rollback of the batch drops nothing else
+            dbConnection.commit();
+            if(preparedInserts)
+            {
+                List<InsertRow> rows = new ArrayList<>(batchedEdges.size());
+                for(int i = 0; i < batchedEdges.size(); i++)
+                {
+                    rows.add(createEdgeRow(batchedEdges.get(i), batchedHashes.get(i)));
+                }
+                insertRows(EDGE_TABLE, rows);
+            }
+            else
+            {
+                try(Statement batchStatement = dbConnection.createStatement())
+                {
+                    for(int i = 0; i < batchedEdges.size(); i++)
+                    {
+                        batchStatement.addBatch(createEdgeInsertString(batchedEdges.get(i), batchedHashes.get(i)));
+                    }
+                    batchStatement.executeBatch();
+                }
+            }
+            dbConnection.commit();
+        }
+        catch(Exception ex)
+        {
+            logger.log(Level.WARNING, "Failed to insert batch of " + batchedEdges.size()
+                    + " edges. Inserting one at a time", ex);
+            rollback();
+            for(AbstractEdge incomingEdge : batchedEdges)
+            {
+                if(putEdge(incomingEdge))
+                {
+                    count++;
+                }
+            }
+            commit();
+            return count;
+        }
+
+        for(AbstractEdge incomingEdge : batchedEdges)
+        {
+            if(BUILD_SCAFFOLD)
+            {
+                insertScaffoldEntry(incomingEdge);
+            }
+            Cache.addItem(incomingEdge);
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * This function inserts the given vertices with a single JDBC batch
+     * and commits them in one transaction. If the batch fails then it is
+     * rolled back and the vertices are inserted one at a time.
+     *
+     * @param incomingVertices vertices to insert into the storage
+     * @return returns the number of vertices inserted or already present
+     */
+    @Override
+    public int putVertices(List<AbstractVertex> incomingVertices)
+    {
+        int count = 0;
+        List<AbstractVertex> batchedVertices = new ArrayList<>(incomingVertices.size());
+        List<String> batchedHashes = new ArrayList<>(incomingVertices.size());
+        Set<String> uniqueHashes = new HashSet<>();
+        for(AbstractVertex incomingVertex : incomingVertices)
+        {
+            String vertexHash = incomingVertex.bigHashCode();
+            // a repeat in the batch would violate the primary key
+            if(Cache.isPresent(vertexHash) || !uniqueHashes.add(vertexHash))
+            {
+                count++;
+                continue;
+            }
+            batchedVertices.add(incomingVertex);
+            batchedHashes.add(vertexHash);
+        }
+        if(batchedVertices.isEmpty())
+        {
+            return count;
+        }
+
+        try
+        {
+            // so that a rollback of the batch drops nothing else
+            dbConnection.commit();
+            if(preparedInserts)
+            {
+                List<InsertRow> rows = new ArrayList<>(batchedVertices.size());
+                for(int i = 0; i < batchedVertices.size(); i++)
+                {
+                    rows.add(createVertexRow(batchedVertices.get(i), batchedHashes.get(i)));
+                }
+                insertRows(VERTEX_TABLE, rows);
+            }
+            else
+            {
+                try(Statement batchStatement = dbConnection.createStatement())
+                {
+                    for(int i = 0; i < batchedVertices.size(); i++)
+                    {
+                        batchStatement.addBatch(createVertexInsertString(batchedVertices.get(i), batchedHashes.get(i)));
+                    }
+                    batchStatement.executeBatch();
+                }
+            }
+            dbConnection.commit();
+        }
+        catch(Exception ex)
+        {
+            logger.log(Level.WARNING, "Failed to insert batch of " + batchedVertices.size()
+                    + " vertices. Inserting one at a time", ex);
+            rollback();
+            for(AbstractVertex incomingVertex : batchedVertices)
+            {
+                if(putVertex(incomingVertex))
+                {
+                    count++;
+                }
+            }
+            commit();
+            return count;
+        }
+
+        for(AbstractVertex incomingVertex : batchedVertices)
+        {
+            Cache.addItem(incomingVertex);
+            count++;
+        }
+
+        return count;
+    }
+
     @Override
     public abstract ResultSet executeQuery(String query);
 
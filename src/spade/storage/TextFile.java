@@ -19,25 +19,31 @@
  */
 package spade.storage;
 
-import org.apache.commons.codec.digest.DigestUtils;
 import spade.core.AbstractEdge;
 import spade.core.AbstractStorage;
 import spade.core.AbstractVertex;
 import spade.core.Graph;
+import spade.utility.AsyncFileWriter;
+import spade.utility.CommonFunctions;
 
-import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * A storage implementation that simply outputs plain text to a file.
+ *
+ * Arguments: the path of the file, optionally followed by 'true' to append to it, and
+ * the settings of AsyncFileWriter as key=value pairs.
+ *
  * @author Armando Caro
  */
 public class TextFile extends AbstractStorage
 {
 
-    private FileWriter outputFile;
+    private AsyncFileWriter outputFile;
     private String filePath;
     private boolean appendMode = false;
 
@@ -56,11 +62,8 @@ public class TextFile extends AbstractStorage
             {
                 appendMode = Boolean.parseBoolean(tokens[1]);
             }
-            outputFile = new FileWriter(filePath, appendMode);
-            if(!appendMode)
-            {
-                outputFile.write("[BEGIN]\n");
-            }
+            Map<String, String> settings = CommonFunctions.getGlobalsMapFromConfigAndArguments(TextFile.class, arguments);
+            outputFile = AsyncFileWriter.create(filePath, appendMode, "[BEGIN]\n", "[END]\n", settings);
 
             return true;
         }
@@ -76,25 +79,7 @@ public class TextFile extends AbstractStorage
     {
         try
         {
-            String vertexHash = incomingVertex.bigHashCode();
-            StringBuilder annotationString = new StringBuilder();
-            annotationString.append("VERTEX (" + vertexHash + "): {");
-            for (Map.Entry<String, String> currentEntry : incomingVertex.getAnnotations().entrySet())
-            {
-                String key = currentEntry.getKey();
-                String value = currentEntry.getValue();
-                if (key == null || value == null)
-                {
-                    continue;
-                }
-                annotationString.append(key);
-                annotationString.append(":");
-                annotationString.append(value);
-                annotationString.append(",");
-            }
-            annotationString.append("}\n");
-            String vertexString = annotationString.toString();
-            outputFile.write(vertexString);
+            appendVertex(incomingVertex);
 
             return true;
         }
@@ -114,27 +99,9 @@ public class TextFile extends AbstractStorage
     @Override
     public boolean putEdge(AbstractEdge incomingEdge)
     {
-        try {
-            String childVertexHash = incomingEdge.getChildVertex().bigHashCode();
-            String parentVertexHash = incomingEdge.getParentVertex().bigHashCode();
-            StringBuilder annotationString = new StringBuilder();
-            annotationString.append("EDGE (" + childVertexHash + " -> " + parentVertexHash + "): {");
-            for (Map.Entry<String, String> currentEntry : incomingEdge.getAnnotations().entrySet())
-            {
-                String key = currentEntry.getKey();
-                String value = currentEntry.getValue();
-                if (key == null || value == null)
-                {
-                    continue;
-                }
-                annotationString.append(key);
-                annotationString.append(":");
-                annotationString.append(value);
-                annotationString.append(",");
-            }
-            annotationString.append("}\n");
-            String edgeString = annotationString.toString();
-            outputFile.write(edgeString);
+        try
+        {
+            appendEdge(incomingEdge);
 
             return true;
         }
@@ -145,13 +112,82 @@ public class TextFile extends AbstractStorage
         }
     }
 
+    // The records are encoded into the buffers of the writer, which writes them in batches
+    @Override
+    public int putVertices(List<AbstractVertex> incomingVertices)
+    {
+        int count = 0;
+        try
+        {
+            for (AbstractVertex incomingVertex : incomingVertices)
+            {
+                appendVertex(incomingVertex);
+                count++;
+            }
+        }
+        catch (Exception exception)
+        {
+            Logger.getLogger(TextFile.class.getName()).log(Level.SEVERE, null, exception);
+        }
+        return count;
+    }
+
+    @Override
+    public int putEdges(List<AbstractEdge> incomingEdges)
+    {
+        int count = 0;
+        try
+        {
+            for (AbstractEdge incomingEdge : incomingEdges)
+            {
+                appendEdge(incomingEdge);
+                count++;
+            }
+        }
+        catch (Exception exception)
+        {
+            Logger.getLogger(TextFile.class.getName()).log(Level.SEVERE, null, exception);
+        }
+        return count;
+    }
+
+    private void appendVertex(AbstractVertex incomingVertex) throws IOException
+    {
+        outputFile.append("VERTEX (").append(incomingVertex.bigHashCode()).append("): {");
+        appendAnnotations(incomingVertex.getAnnotations());
+        outputFile.append("}\n").endRecord();
+    }
+
+    private void appendEdge(AbstractEdge incomingEdge) throws IOException
+    {
+        String childVertexHash = incomingEdge.getChildVertex().bigHashCode();
+        String parentVertexHash = incomingEdge.getParentVertex().bigHashCode();
+        outputFile.append("EDGE (").append(childVertexHash).append(" -> ").append(parentVertexHash).append("): {");
+        appendAnnotations(incomingEdge.getAnnotations());
+        outputFile.append("}\n").endRecord();
+    }
+
+    private void appendAnnotations(Map<String, String> annotations) throws IOException
+    {
+        for (Map.Entry<String, String> currentEntry : annotations.entrySet())
+        {
+            String key = currentEntry.getKey();
+            String value = currentEntry.getValue();
+            if (key == null || value == null)
+            {
+                continue;
+            }
+            outputFile.append(key).append(':').append(value).append(',');
+        }
+    }
+
     @Override
     public boolean shutdown()
     {
         try
         {
-            outputFile.write("[END]\n");
             outputFile.close();
+            Logger.getLogger(TextFile.class.getName()).log(Level.INFO, outputFile.getStats());
 
             return true;
         }
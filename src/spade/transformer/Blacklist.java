@@ -23,7 +23,6 @@ import spade.client.QueryMetaData;
 import spade.core.AbstractEdge;
 import spade.core.AbstractTransformer;
 import spade.core.AbstractVertex;
-import spade.core.Graph;
 import spade.core.Settings;
 import spade.reporter.audit.OPMConstants;
 import spade.utility.FileUtility;
@@ -59,10 +58,15 @@ public class Blacklist extends AbstractTransformer
 		
 	}
 	
-	public Graph putGraph(Graph graph, QueryMetaData queryMetaData)
+	@Override
+	public Type getType()
+	{
+		return Type.FILTER;
+	}
+
+	@Override
+	public boolean transformEdge(AbstractEdge edge, QueryMetaData queryMetaData)
 	{
-		Graph resultGraph = new Graph();
-		
 		AbstractVertex queriedVertex = null;
 		
 		if(queryMetaData != null)
@@ -70,27 +74,17 @@ public class Blacklist extends AbstractTransformer
 			queriedVertex = queryMetaData.getRootVertex();
 		}
 		
-		for(AbstractEdge edge : graph.edgeSet())
+		String srcFilepath = getAnnotationSafe(edge.getChildVertex(), OPMConstants.ARTIFACT_PATH);
+		String dstFilepath = getAnnotationSafe(edge.getParentVertex(), OPMConstants.ARTIFACT_PATH);
+		if(!(fileEqualsVertex(srcFilepath, queriedVertex) || fileEqualsVertex(dstFilepath, queriedVertex)))
 		{
-			String srcFilepath = getAnnotationSafe(edge.getChildVertex(), OPMConstants.ARTIFACT_PATH);
-			String dstFilepath = getAnnotationSafe(edge.getParentVertex(), OPMConstants.ARTIFACT_PATH);
-			if(!(fileEqualsVertex(srcFilepath, queriedVertex) || fileEqualsVertex(dstFilepath, queriedVertex)))
-			{
-				if(isFileToBeRemoved(srcFilepath) || isFileToBeRemoved(dstFilepath))
-				{
-					continue;
-				}
-			}
-			AbstractEdge newEdge = createNewWithoutAnnotations(edge);
-			if(newEdge != null && newEdge.getChildVertex() != null && newEdge.getParentVertex() != null)
+			if(isFileToBeRemoved(srcFilepath) || isFileToBeRemoved(dstFilepath))
 			{
-				resultGraph.putVertex(newEdge.getChildVertex());
-				resultGraph.putVertex(newEdge.getParentVertex());
-				resultGraph.putEdge(newEdge);
+				return false;
 			}
 		}
 
-		return resultGraph;
+		return true;
 	}
 	
 	private boolean isFileToBeRemoved(String path)
@@ -25,7 +25,6 @@ import spade.client.QueryMetaData;
 import spade.core.AbstractEdge;
 import spade.core.AbstractTransformer;
 import spade.core.AbstractVertex;
-import spade.core.Graph;
 import spade.core.Settings;
 import spade.utility.CommonFunctions;
 
@@ -95,22 +94,28 @@ public class DropKeys extends AbstractTransformer
 		}
 	}
 
-	public Graph putGraph(Graph graph, QueryMetaData queryMetaData)
+	@Override
+	public Type getType()
 	{
-		Graph resultGraph = new Graph();
-	
-		for(AbstractVertex vertex : graph.vertexSet())
+		return Type.REWRITE;
+	}
+
+	@Override
+	public void transformVertex(AbstractVertex vertex, QueryMetaData queryMetaData)
+	{
+		for(String annotation : annotationsToRemove)
 		{
-			AbstractVertex newVertex = createNewWithoutAnnotations(vertex, annotationsToRemove);
-			resultGraph.putVertex(newVertex);
+			vertex.removeAnnotation(annotation);
 		}
-		
-		for(AbstractEdge edge : graph.edgeSet())
-		{
-			AbstractEdge newEdge = createNewWithoutAnnotations(edge, annotationsToRemove);
-			resultGraph.putEdge(newEdge);
-		}			
+	}
 
-		return resultGraph;
+	@Override
+	public boolean transformEdge(AbstractEdge edge, QueryMetaData queryMetaData)
+	{
+		for(String annotation : annotationsToRemove)
+		{
+			edge.removeAnnotation(annotation);
+		}
+		return true;
 	}
 }
@@ -22,30 +22,21 @@ package spade.transformer;
 import spade.client.QueryMetaData;
 import spade.core.AbstractEdge;
 import spade.core.AbstractTransformer;
-import spade.core.Graph;
 import spade.reporter.audit.OPMConstants;
 
 public class LastName extends AbstractTransformer
 {
 
-	public Graph putGraph(Graph graph, QueryMetaData queryMetaData)
+	@Override
+	public Type getType()
 	{
-		Graph resultGraph = new Graph();
-		for(AbstractEdge edge : graph.edgeSet())
-		{
-			String operation = getAnnotationSafe(edge, OPMConstants.EDGE_OPERATION);
-			if(OPMConstants.isMmapRenameLinkRead(operation) || OPMConstants.isMmapRenameLink(operation))
-			{
-				continue;
-			}
-			AbstractEdge newEdge = createNewWithoutAnnotations(edge);
-			if(newEdge != null && newEdge.getChildVertex() != null && newEdge.getParentVertex() != null)
-			{
-				resultGraph.putVertex(newEdge.getChildVertex());
-				resultGraph.putVertex(newEdge.getParentVertex());
-				resultGraph.putEdge(newEdge);
-			}
-		}
-		return resultGraph;
+		return Type.FILTER;
+	}
+
+	@Override
+	public boolean transformEdge(AbstractEdge edge, QueryMetaData queryMetaData)
+	{
+		String operation = getAnnotationSafe(edge, OPMConstants.EDGE_OPERATION);
+		return !(OPMConstants.isMmapRenameLinkRead(operation) || OPMConstants.isMmapRenameLink(operation));
 	}
 }
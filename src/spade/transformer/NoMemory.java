@@ -22,32 +22,23 @@ package spade.transformer;
 import spade.client.QueryMetaData;
 import spade.core.AbstractEdge;
 import spade.core.AbstractTransformer;
-import spade.core.Graph;
 import spade.reporter.audit.OPMConstants;
 
 //remove memory artifacts along with edges
 public class NoMemory extends AbstractTransformer
 {
 
-	public Graph putGraph(Graph graph, QueryMetaData queryMetaData)
+	@Override
+	public Type getType()
 	{
-		Graph resultGraph = new Graph();
-		for(AbstractEdge edge : graph.edgeSet())
-		{
-			if(getAnnotationSafe(edge.getChildVertex(), OPMConstants.ARTIFACT_SUBTYPE).equals(OPMConstants.SUBTYPE_MEMORY_ADDRESS)
-					|| getAnnotationSafe(edge.getParentVertex(),
-					OPMConstants.ARTIFACT_SUBTYPE).equals(OPMConstants.SUBTYPE_MEMORY_ADDRESS))
-			{
-				continue;
-			}
-			AbstractEdge newEdge = createNewWithoutAnnotations(edge);
-			if(newEdge != null && newEdge.getChildVertex() != null && newEdge.getParentVertex() != null)
-			{
-				resultGraph.putVertex(newEdge.getChildVertex());
-				resultGraph.putVertex(newEdge.getParentVertex());
-				resultGraph.putEdge(newEdge);	
-			}
-		}
-		return resultGraph;
+		return Type.FILTER;
+	}
+
+	@Override
+	public boolean transformEdge(AbstractEdge edge, QueryMetaData queryMetaData)
+	{
+		return !(getAnnotationSafe(edge.getChildVertex(), OPMConstants.ARTIFACT_SUBTYPE).equals(OPMConstants.SUBTYPE_MEMORY_ADDRESS)
+				|| getAnnotationSafe(edge.getParentVertex(),
+				OPMConstants.ARTIFACT_SUBTYPE).equals(OPMConstants.SUBTYPE_MEMORY_ADDRESS));
 	}
 }
@@ -22,29 +22,32 @@ package spade.transformer;
 import spade.client.QueryMetaData;
 import spade.core.AbstractEdge;
 import spade.core.AbstractTransformer;
-import spade.core.Graph;
+import spade.core.AbstractVertex;
 import spade.reporter.audit.OPMConstants;
 
 public class NoVersions extends AbstractTransformer
 {
 
-	public Graph putGraph(Graph graph, QueryMetaData queryMetaData)
+	@Override
+	public Type getType()
 	{
-		Graph resultGraph = new Graph();
-		for(AbstractEdge edge : graph.edgeSet())
+		return Type.FILTER;
+	}
+
+	@Override
+	public void transformVertex(AbstractVertex vertex, QueryMetaData queryMetaData)
+	{
+		vertex.removeAnnotation(OPMConstants.ARTIFACT_VERSION);
+	}
+
+	@Override
+	public boolean transformEdge(AbstractEdge edge, QueryMetaData queryMetaData)
+	{
+		if(getAnnotationSafe(edge, OPMConstants.EDGE_OPERATION).equals(OPMConstants.OPERATION_UPDATE))
 		{
-			if(getAnnotationSafe(edge, OPMConstants.EDGE_OPERATION).equals(OPMConstants.OPERATION_UPDATE))
-			{
-				continue;
-			}
-			AbstractEdge newEdge = createNewWithoutAnnotations(edge, OPMConstants.ARTIFACT_VERSION);
-			if(newEdge != null && newEdge.getChildVertex() != null && newEdge.getParentVertex() != null)
-			{
-				resultGraph.putVertex(newEdge.getChildVertex());
-				resultGraph.putVertex(newEdge.getParentVertex());
-				resultGraph.putEdge(newEdge);
-			}
+			return false;
 		}
-		return resultGraph;
+		edge.removeAnnotation(OPMConstants.ARTIFACT_VERSION);
+		return true;
 	}
 }
@@ -23,7 +23,7 @@ package spade.transformer;
 import spade.client.QueryMetaData;
 import spade.core.AbstractEdge;
 import spade.core.AbstractTransformer;
-import spade.core.Graph;
+import spade.core.AbstractVertex;
 import spade.reporter.audit.OPMConstants;
 
 import java.util.HashMap;
@@ -52,28 +52,24 @@ public class Prov2OPM extends AbstractTransformer
 		prov2OPMEdgeMappings.put("WasInformedBy",OPMConstants.WAS_TRIGGERED_BY);
 	}
 
-	public Graph putGraph(Graph graph, QueryMetaData queryMetaData)
+	@Override
+	public Type getType()
 	{
-		Graph resultGraph = new Graph();
-		
-		for(AbstractEdge edge : graph.edgeSet())
-		{
-			if(edge != null && edge.getChildVertex() != null && edge.getParentVertex() != null)
-			{
-				String edgeType = getAnnotationSafe(edge, "type");
-				String srcType = getAnnotationSafe(edge.getChildVertex(), "type");
-				String dstType = getAnnotationSafe(edge.getParentVertex(), "type");
-				AbstractEdge newEdge = createNewWithoutAnnotations(edge);
-				newEdge.addAnnotation("type", getOPMEdgeTypeEquivalentToProvEdgeType(edgeType));
-				newEdge.getChildVertex().addAnnotation("type", getOPMVertexTypeEquivalentToProvVertexType(srcType));
-				newEdge.getParentVertex().addAnnotation("type", getOPMVertexTypeEquivalentToProvVertexType(dstType));
-				resultGraph.putVertex(newEdge.getChildVertex());
-				resultGraph.putVertex(newEdge.getParentVertex());
-				resultGraph.putEdge(newEdge);
-			}
-		}
-		
-		return resultGraph;
+		// only the vertices on edges are kept
+		return Type.FILTER;
+	}
+
+	@Override
+	public void transformVertex(AbstractVertex vertex, QueryMetaData queryMetaData)
+	{
+		vertex.addAnnotation("type", getOPMVertexTypeEquivalentToProvVertexType(getAnnotationSafe(vertex, "type")));
+	}
+
+	@Override
+	public boolean transformEdge(AbstractEdge edge, QueryMetaData queryMetaData)
+	{
+		edge.addAnnotation("type", getOPMEdgeTypeEquivalentToProvEdgeType(getAnnotationSafe(edge, "type")));
+		return true;
 	}
 	
 	private String getOPMEdgeTypeEquivalentToProvEdgeType(String provEdgeType)
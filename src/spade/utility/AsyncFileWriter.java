@@ -0,0 +1,693 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.utility;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes text records to a file from a background thread, for the storages that
+ * write to files.
+ *
+ * Records are encoded as UTF-8 straight into a pool of direct buffers. A full buffer
+ * is handed to the writer thread, which writes all the buffers queued so far with a
+ * single gathering FileChannel write and then, if fsync is enabled, forces them to
+ * disk with a single call (group commit). The caller only blocks when all buffers
+ * are queued. A partially filled buffer is handed over when no record has been
+ * appended for flushIntervalMillis.
+ *
+ * The file can be rotated by size or time. Rotation happens between records: the
+ * footer is written to the current segment, which is renamed to
+ * '<path>.<yyyyMMdd-HHmmss>' and compressed in the background if requested, and a
+ * new segment is started at path with the header. The header is only written to
+ * empty segments so that appending to an existing file does not repeat it.
+ *
+ * Settings (read by create, from the config file of the storage or its arguments):
+ *
+ * bufferSize: size of each buffer in bytes. Default 1 MB.
+ * buffers: number of buffers. At least 2. Default 8.
+ * flushIntervalMillis: maximum time a record stays in a partially filled buffer. Default 1000.
+ * fsync: true to force the written buffers to disk after every write. Default false.
+ * rotateBytes: rotate when the segment reaches this size. 0 to never rotate by size. Default 0.
+ * rotateSeconds: rotate when the segment is this old. 0 to never rotate by time. Default 0.
+ * compression: 'none' or 'gzip' for the rotated segments. Default none.
+ *
+ * A record is appended with any number of append calls followed by endRecord.
+ * Records must be appended by one thread at a time.
+ */
+public class AsyncFileWriter{
+
+	private static final Logger logger = Logger.getLogger(AsyncFileWriter.class.getName());
+
+	public static final String KEY_BUFFER_SIZE = "bufferSize",
+			KEY_BUFFERS = "buffers",
+			KEY_FLUSH_INTERVAL_MILLIS = "flushIntervalMillis",
+			KEY_FSYNC = "fsync",
+			KEY_ROTATE_BYTES = "rotateBytes",
+			KEY_ROTATE_SECONDS = "rotateSeconds",
+			KEY_COMPRESSION = "compression";
+
+	/**
+	 * All the keys read by create.
+	 */
+	public static final Set<String> SETTING_KEYS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+			KEY_BUFFER_SIZE, KEY_BUFFERS, KEY_FLUSH_INTERVAL_MILLIS, KEY_FSYNC, KEY_ROTATE_BYTES, KEY_ROTATE_SECONDS,
+			KEY_COMPRESSION)));
+
+	public static enum Compression{ NONE, GZIP }
+
+	private static enum Type{ DATA, ROTATE, FLUSH, SYNC, CLOSE }
+
+	private static final class Item{
+		private final Type type;
+		private final ByteBuffer buffer;
+		private final CountDownLatch done;
+
+		private Item(Type type, ByteBuffer buffer, CountDownLatch done){
+			this.type = type;
+			this.buffer = buffer;
+			this.done = done;
+		}
+	}
+
+	private final Path path;
+	private final byte[] header, footer;
+	private final long flushIntervalMillis;
+	private final boolean fsync;
+	private final long rotateBytes, rotateMillis;
+	private final Compression compression;
+
+	private final ArrayBlockingQueue<ByteBuffer> freeBuffers;
+	private final LinkedBlockingQueue<Item> queue = new LinkedBlockingQueue<Item>();
+	// held by the thread appending a record, from its first append until endRecord, and
+	// by the writer thread when it takes a partially filled buffer
+	private final ReentrantLock recordLock = new ReentrantLock();
+	private final Thread writerThread;
+	private final ExecutorService compressor;
+
+	// guarded by recordLock
+	private ByteBuffer current;
+	private long handedOffBytes = 0, segmentStartBytes = 0, segmentStartMillis;
+	private boolean closed = false;
+
+	// only used by the writer thread
+	private FileChannel channel;
+
+	private volatile IOException failure;
+
+	private final AtomicLong records = new AtomicLong(), bytesWritten = new AtomicLong(), writes = new AtomicLong(),
+			forces = new AtomicLong(), rotations = new AtomicLong(), compressed = new AtomicLong();
+	private final LatencyHistogram bufferWaits = new LatencyHistogram(), writeLatencies = new LatencyHistogram();
+
+	private AsyncFileWriter(String path, boolean append, String header, String footer, int bufferSize, int buffers,
+			long flushIntervalMillis, boolean fsync, long rotateBytes, long rotateSeconds, Compression compression)
+			throws IOException{
+		this.path = new File(path).toPath();
+		this.header = header == null ? null : header.getBytes(StandardCharsets.UTF_8);
+		this.footer = footer == null ? null : footer.getBytes(StandardCharsets.UTF_8);
+		this.flushIntervalMillis = flushIntervalMillis;
+		this.fsync = fsync;
+		this.rotateBytes = rotateBytes;
+		this.rotateMillis = rotateSeconds * 1000;
+		this.compression = compression;
+
+		this.freeBuffers = new ArrayBlockingQueue<ByteBuffer>(buffers);
+		for(int i = 0; i < buffers; i++){
+			freeBuffers.add(ByteBuffer.allocateDirect(bufferSize));
+		}
+		this.current = freeBuffers.poll();
+
+		openSegment(append);
+		this.segmentStartMillis = System.currentTimeMillis();
+
+		if(compression != Compression.NONE){
+			compressor = Executors.newSingleThreadExecutor(new ThreadFactory(){
+				@Override
+				public Thread newThread(Runnable runnable){
+					Thread thread = new Thread(runnable, "AsyncFileWriter-compressor-" + AsyncFileWriter.this.path);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}else{
+			compressor = null;
+		}
+
+		writerThread = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				writeLoop();
+			}
+		}, "AsyncFileWriter-" + path);
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Creates a writer with the settings described in the class comment.
+	 *
+	 * @param path file to write to
+	 * @param append true to append to the file if it exists. False to truncate it
+	 * @param header written at the start of every segment. Null for none
+	 * @param footer written at the end of every segment. Null for none
+	 * @param settings the config and the arguments of the storage
+	 * @return the writer
+	 * @throws Exception if the settings are invalid or the file cannot be opened
+	 */
+	public static AsyncFileWriter create(String path, boolean append, String header, String footer,
+			Map<String, String> settings) throws Exception{
+		if(CommonFunctions.isNullOrEmpty(path)){
+			throw new Exception("No output file specified");
+		}
+		Integer bufferSize = CommonFunctions.parseInt(settings.get(KEY_BUFFER_SIZE), 1024 * 1024);
+		Integer buffers = CommonFunctions.parseInt(settings.get(KEY_BUFFERS), 8);
+		Long flushIntervalMillis = CommonFunctions.parseLong(settings.get(KEY_FLUSH_INTERVAL_MILLIS), 1000L);
+		Long rotateBytes = CommonFunctions.parseLong(settings.get(KEY_ROTATE_BYTES), 0L);
+		Long rotateSeconds = CommonFunctions.parseLong(settings.get(KEY_ROTATE_SECONDS), 0L);
+		boolean fsync = "true".equalsIgnoreCase(settings.get(KEY_FSYNC));
+		if(bufferSize == null || bufferSize < 4){
+			throw new Exception("Invalid '"+KEY_BUFFER_SIZE+"': " + settings.get(KEY_BUFFER_SIZE));
+		}
+		if(buffers == null || buffers < 2){
+			throw new Exception("Invalid '"+KEY_BUFFERS+"'. Must be at least 2: " + settings.get(KEY_BUFFERS));
+		}
+		if(flushIntervalMillis == null || flushIntervalMillis < 1){
+			throw new Exception("Invalid '"+KEY_FLUSH_INTERVAL_MILLIS+"': " + settings.get(KEY_FLUSH_INTERVAL_MILLIS));
+		}
+		if(rotateBytes == null || rotateBytes < 0){
+			throw new Exception("Invalid '"+KEY_ROTATE_BYTES+"': " + settings.get(KEY_ROTATE_BYTES));
+		}
+		if(rotateSeconds == null || rotateSeconds < 0){
+			throw new Exception("Invalid '"+KEY_ROTATE_SECONDS+"': " + settings.get(KEY_ROTATE_SECONDS));
+		}
+		Compression compression;
+		String compressionString = settings.get(KEY_COMPRESSION);
+		if(CommonFunctions.isNullOrEmpty(compressionString) || "none".equalsIgnoreCase(compressionString)){
+			compression = Compression.NONE;
+		}else if("gzip".equalsIgnoreCase(compressionString)){
+			compression = Compression.GZIP;
+		}else{
+			throw new Exception("Invalid '"+KEY_COMPRESSION+"'. Must be 'none' or 'gzip': " + compressionString);
+		}
+		AsyncFileWriter writer = new AsyncFileWriter(path, append, header, footer, bufferSize, buffers,
+				flushIntervalMillis, fsync, rotateBytes, rotateSeconds, compression);
+		logger.log(Level.INFO, "{0}: buffer size={1}, buffers={2}, flush interval millis={3}, fsync={4}, "
+				+ "rotate bytes={5}, rotate seconds={6}, compression={7}", new Object[]{path, bufferSize, buffers,
+				flushIntervalMillis, fsync, rotateBytes, rotateSeconds, compression});
+		return writer;
+	}
+
+	/**
+	 * Appends the string to the current record, encoded as UTF-8.
+	 */
+	public AsyncFileWriter append(CharSequence string) throws IOException{
+		beginRecord();
+		int length = string.length();
+		for(int i = 0; i < length; i++){
+			char c = string.charAt(i);
+			if(c < 0x80){
+				if(!current.hasRemaining()){
+					nextBuffer();
+				}
+				current.put((byte)c);
+			}else if(c < 0x800){
+				ensureRemaining(2);
+				current.put((byte)(0xc0 | (c >> 6)));
+				current.put((byte)(0x80 | (c & 0x3f)));
+			}else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))){
+				int codePoint = Character.toCodePoint(c, string.charAt(++i));
+				ensureRemaining(4);
+				current.put((byte)(0xf0 | (codePoint >> 18)));
+				current.put((byte)(0x80 | ((codePoint >> 12) & 0x3f)));
+				current.put((byte)(0x80 | ((codePoint >> 6) & 0x3f)));
+				current.put((byte)(0x80 | (codePoint & 0x3f)));
+			}else if(Character.isSurrogate(c)){
+				// unpaired, same as String.getBytes
+				if(!current.hasRemaining()){
+					nextBuffer();
+				}
+				current.put((byte)'?');
+			}else{
+				ensureRemaining(3);
+				current.put((byte)(0xe0 | (c >> 12)));
+				current.put((byte)(0x80 | ((c >> 6) & 0x3f)));
+				current.put((byte)(0x80 | (c & 0x3f)));
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Appends the character to the current record, encoded as UTF-8.
+	 */
+	public AsyncFileWriter append(char c) throws IOException{
+		if(c < 0x80){
+			beginRecord();
+			if(!current.hasRemaining()){
+				nextBuffer();
+			}
+			current.put((byte)c);
+			return this;
+		}
+		return append(String.valueOf(c));
+	}
+
+	/**
+	 * Ends the current record. The file is only rotated between records.
+	 */
+	public void endRecord() throws IOException{
+		if(!recordLock.isHeldByCurrentThread()){
+			recordLock.lock();
+		}
+		try{
+			if(closed){
+				throw new IOException("Closed: " + path);
+			}
+			checkFailure();
+			records.incrementAndGet();
+			if(rotateBytes > 0 || rotateMillis > 0){
+				long now = System.currentTimeMillis();
+				if((rotateBytes > 0 && handedOffBytes + current.position() - segmentStartBytes >= rotateBytes)
+						|| (rotateMillis > 0 && now - segmentStartMillis >= rotateMillis)){
+					handOff();
+					put(new Item(Type.ROTATE, null, null));
+					segmentStartBytes = handedOffBytes;
+					segmentStartMillis = now;
+				}
+			}
+		}finally{
+			recordLock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until everything appended so far has been written to the file.
+	 */
+	public void flush() throws IOException{
+		waitFor(Type.FLUSH);
+	}
+
+	/**
+	 * Waits until everything appended so far has been written to the file and forced to disk.
+	 */
+	public void sync() throws IOException{
+		waitFor(Type.SYNC);
+	}
+
+	/**
+	 * Writes everything appended so far and the footer, closes the file, and waits for
+	 * the compression of the rotated segments to finish.
+	 */
+	public void close() throws IOException{
+		recordLock.lock();
+		try{
+			if(closed){
+				return;
+			}
+		}finally{
+			recordLock.unlock();
+		}
+		waitFor(Type.CLOSE);
+		try{
+			writerThread.join();
+			if(compressor != null){
+				compressor.shutdown();
+				compressor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while closing " + path, e);
+		}
+		checkFailure();
+	}
+
+	/**
+	 * @return counts of records, bytes, writes, forces and rotations, and the time spent
+	 * waiting for a free buffer and writing
+	 */
+	public String getStats(){
+		return path + ": records=" + records.get() + ", bytes=" + bytesWritten.get() + ", writes=" + writes.get()
+				+ ", forces=" + forces.get() + ", rotations=" + rotations.get() + ", compressed=" + compressed.get()
+				+ ", buffer waits=[" + bufferWaits + "], writes=[" + writeLatencies + "]";
+	}
+
+	private void beginRecord() throws IOException{
+		checkFailure();
+		if(!recordLock.isHeldByCurrentThread()){
+			recordLock.lock();
+			if(closed){
+				recordLock.unlock();
+				throw new IOException("Closed: " + path);
+			}
+		}
+	}
+
+	private void ensureRemaining(int bytes) throws IOException{
+		if(current.remaining() < bytes){
+			nextBuffer();
+		}
+	}
+
+	// the current buffer is full
+	private void nextBuffer() throws IOException{
+		checkFailure();
+		handOff();
+	}
+
+	// called with recordLock held. Queues the current buffer if it is not empty
+	private void handOff() throws IOException{
+		if(current.position() == 0){
+			return;
+		}
+		ByteBuffer next = freeBuffers.poll();
+		if(next == null){
+			long start = System.nanoTime();
+			try{
+				next = freeBuffers.take();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for a buffer for " + path, e);
+			}
+			bufferWaits.record(System.nanoTime() - start);
+		}
+		queueCurrent(next);
+	}
+
+	private void queueCurrent(ByteBuffer next) throws IOException{
+		ByteBuffer full = current;
+		handedOffBytes += full.position();
+		full.flip();
+		current = next;
+		put(new Item(Type.DATA, full, null));
+	}
+
+	private void put(Item item) throws IOException{
+		try{
+			queue.put(item);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing to " + path, e);
+		}
+	}
+
+	private void waitFor(Type type) throws IOException{
+		CountDownLatch done = new CountDownLatch(1);
+		recordLock.lock();
+		try{
+			if(closed){
+				throw new IOException("Closed: " + path);
+			}
+			handOff();
+			put(new Item(type, null, done));
+			if(type == Type.CLOSE){
+				closed = true;
+			}
+		}finally{
+			recordLock.unlock();
+		}
+		try{
+			done.await();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing to " + path, e);
+		}
+		checkFailure();
+	}
+
+	private void checkFailure() throws IOException{
+		IOException exception = failure;
+		if(exception != null){
+			throw new IOException("Failed to write to " + path, exception);
+		}
+	}
+
+	// Writer thread
+
+	private void writeLoop(){
+		List<Item> batch = new ArrayList<Item>();
+		List<ByteBuffer> pending = new ArrayList<ByteBuffer>();
+		List<CountDownLatch> synced = new ArrayList<CountDownLatch>();
+		while(true){
+			Item first;
+			try{
+				first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+			}catch(InterruptedException e){
+				// only stopped by close
+				continue;
+			}
+			if(first == null){
+				takePartialBuffer();
+				continue;
+			}
+			batch.add(first);
+			queue.drainTo(batch);
+			boolean wrote = false;
+			CountDownLatch closeDone = null;
+			for(Item item : batch){
+				switch(item.type){
+					case DATA:
+						pending.add(item.buffer);
+						break;
+					case ROTATE:
+						wrote |= writePending(pending);
+						rotate();
+						break;
+					case FLUSH:
+						wrote |= writePending(pending);
+						item.done.countDown();
+						break;
+					case SYNC:
+						wrote |= writePending(pending);
+						synced.add(item.done);
+						break;
+					case CLOSE:
+						wrote |= writePending(pending);
+						closeDone = item.done;
+						break;
+				}
+			}
+			wrote |= writePending(pending);
+			batch.clear();
+			// one force for all the buffers and sync requests in the batch
+			if(!synced.isEmpty() || (fsync && wrote)){
+				force();
+			}
+			for(CountDownLatch done : synced){
+				done.countDown();
+			}
+			synced.clear();
+			if(closeDone != null){
+				closeSegment();
+				closeDone.countDown();
+				return;
+			}
+		}
+	}
+
+	// takes the buffer of the producer if no record is being appended and it has not been handed off
+	private void takePartialBuffer(){
+		if(recordLock.tryLock()){
+			try{
+				if(!closed && current.position() > 0){
+					ByteBuffer next = freeBuffers.poll();
+					if(next != null){
+						queueCurrent(next);
+					}
+				}
+			}catch(IOException e){
+				// not interrupted since it is only put in an unbounded queue
+			}finally{
+				recordLock.unlock();
+			}
+		}
+	}
+
+	private boolean writePending(List<ByteBuffer> pending){
+		if(pending.isEmpty()){
+			return false;
+		}
+		ByteBuffer[] buffers = pending.toArray(new ByteBuffer[pending.size()]);
+		if(failure == null){
+			long start = System.nanoTime();
+			try{
+				long bytes = 0;
+				for(ByteBuffer buffer : buffers){
+					bytes += buffer.remaining();
+				}
+				long written = 0;
+				while(written < bytes){
+					written += channel.write(buffers);
+				}
+				bytesWritten.addAndGet(bytes);
+				writes.incrementAndGet();
+			}catch(IOException e){
+				fail(e);
+			}
+			writeLatencies.record(System.nanoTime() - start);
+		}
+		for(ByteBuffer buffer : buffers){
+			buffer.clear();
+			freeBuffers.offer(buffer);
+		}
+		pending.clear();
+		return true;
+	}
+
+	private void force(){
+		if(failure == null){
+			try{
+				channel.force(false);
+				forces.incrementAndGet();
+			}catch(IOException e){
+				fail(e);
+			}
+		}
+	}
+
+	private void openSegment(boolean append) throws IOException{
+		if(append){
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND);
+		}else{
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+		}
+		if(header != null && channel.size() == 0){
+			writeFully(header);
+		}
+	}
+
+	private void closeSegment(){
+		if(channel == null){
+			return;
+		}
+		try{
+			if(failure == null){
+				if(footer != null){
+					writeFully(footer);
+				}
+				channel.force(false);
+				forces.incrementAndGet();
+			}
+		}catch(IOException e){
+			fail(e);
+		}
+		try{
+			channel.close();
+		}catch(IOException e){
+			fail(e);
+		}
+		channel = null;
+	}
+
+	private void rotate(){
+		if(failure != null){
+			return;
+		}
+		closeSegment();
+		try{
+			String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+			File segment = new File(path + "." + timestamp);
+			for(int i = 1; segment.exists() || new File(segment + ".gz").exists(); i++){
+				segment = new File(path + "." + timestamp + "." + i);
+			}
+			Files.move(path, segment.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			rotations.incrementAndGet();
+			if(compression == Compression.GZIP){
+				final File toCompress = segment;
+				compressor.execute(new Runnable(){
+					@Override
+					public void run(){
+						gzip(toCompress);
+					}
+				});
+			}
+			openSegment(false);
+		}catch(IOException e){
+			fail(e);
+		}
+	}
+
+	private void gzip(File segment){
+		File compressedFile = new File(segment + ".gz");
+		try(InputStream input = Files.newInputStream(segment.toPath());
+				OutputStream output = new GZIPOutputStream(Files.newOutputStream(compressedFile.toPath()), 64 * 1024)){
+			byte[] bytes = new byte[64 * 1024];
+			int read;
+			while((read = input.read(bytes)) != -1){
+				output.write(bytes, 0, read);
+			}
+		}catch(IOException e){
+			logger.log(Level.SEVERE, "Failed to compress " + segment + ". Left uncompressed", e);
+			compressedFile.delete();
+			return;
+		}
+		if(!segment.delete()){
+			logger.log(Level.WARNING, "Failed to delete " + segment + " after compressing it");
+		}
+		compressed.incrementAndGet();
+	}
+
+	private void writeFully(byte[] bytes) throws IOException{
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while(buffer.hasRemaining()){
+			channel.write(buffer);
+		}
+		bytesWritten.addAndGet(bytes.length);
+	}
+
+	// the rest of the data is dropped. The error is thrown to the producer on the next call
+	private void fail(IOException e){
+		if(failure == null){
+			logger.log(Level.SEVERE, "Failed to write to " + path, e);
+			failure = e;
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package spade.utility;
+
+/**
+ * Puts the records of an audit log stream in order by time and event id as they are read, keeping
+ * at most a window of records in memory. Used in place of sorting the log with {@link SortAuditLog SortAuditLog}
+ * before it is read when the records are out of order by less than the window.
+ *
+ * Records with the same time and event id are returned in the order they were added. A record without
+ * a key stays after the record added before it. A record that comes after a record with a greater key
+ * has already been returned is returned as soon as possible and counted as late.
+ *
+ * Not thread-safe.
+ */
+public class AuditLogReorderer{
+
+	private final int window;
+
+	// heap of (time, event id) keys, the order the records were added in, and the records
+	private final long[] keys;
+	private final long[] sequences;
+	private final String[] records;
+	private int size = 0;
+
+	private long sequence = 0;
+	private final long[] lastAddedKey = new long[2];
+	private final long[] lastReturnedKey = new long[2];
+	private boolean returned = false;
+	private long lateRecordCount = 0;
+
+	/**
+	 * @param window number of records to keep before returning the first one in order
+	 */
+	public AuditLogReorderer(int window){
+		if(window < 1){
+			throw new IllegalArgumentException("Window must be positive: " + window);
+		}
+		this.window = window;
+		this.keys = new long[2 * (window + 1)];
+		this.sequences = new long[window + 1];
+		this.records = new String[window + 1];
+	}
+
+	/**
+	 * Adds the record read from the stream. Must be followed by {@link #poll() poll} before the next record is
+	 * added if the window is full
+	 *
+	 * @param record audit record
+	 */
+	public void add(String record){
+		if(size > window){
+			throw new IllegalStateException("Window full. Poll before adding");
+		}
+		if(SortAuditLog.parseKey(record, keys, size)){
+			lastAddedKey[0] = keys[2 * size];
+			lastAddedKey[1] = keys[2 * size + 1];
+		}else{
+			// stays after the record before
+			keys[2 * size] = lastAddedKey[0];
+			keys[2 * size + 1] = lastAddedKey[1];
+		}
+		if(returned && SortAuditLog.compare(keys, size, lastReturnedKey, 0) < 0){
+			lateRecordCount++;
+		}
+		sequences[size] = sequence++;
+		records[size] = record;
+		siftUp(size++);
+	}
+
+	/**
+	 * Returns the first record in order if the window is full
+	 *
+	 * @return the first record or NULL if the window is not full
+	 */
+	public String poll(){
+		return size > window ? remove() : null;
+	}
+
+	/**
+	 * Returns the first record in order. Used at the end of the stream
+	 *
+	 * @return the first record or NULL if there are no records
+	 */
+	public String drain(){
+		return size > 0 ? remove() : null;
+	}
+
+	/**
+	 * @return number of records that came after a record with a greater key had been returned
+	 */
+	public long getLateRecordCount(){
+		return lateRecordCount;
+	}
+
+	private String remove(){
+		String record = records[0];
+		lastReturnedKey[0] = keys[0];
+		lastReturnedKey[1] = keys[1];
+		returned = true;
+		size--;
+		move(size, 0);
+		records[size] = null;
+		if(size > 0){
+			siftDown(0);
+		}
+		return record;
+	}
+
+	private boolean before(int index1, int index2){
+		int result = SortAuditLog.compare(keys, index1, keys, index2);
+		return result < 0 || (result == 0 && sequences[index1] < sequences[index2]);
+	}
+
+	private void siftUp(int index){
+		while(index > 0){
+			int parent = (index - 1) / 2;
+			if(!before(index, parent)){
+				break;
+			}
+			swap(index, parent);
+			index = parent;
+		}
+	}
+
+	private void siftDown(int index){
+		while(true){
+			int child = 2 * index + 1;
+			if(child >= size){
+				break;
+			}
+			if(child + 1 < size && before(child + 1, child)){
+				child++;
+			}
+			if(!before(child, index)){
+				break;
+			}
+			swap(index, child);
+			index = child;
+		}
+	}
+
+	private void move(int from, int to){
+		keys[2 * to] = keys[2 * from];
+		keys[2 * to + 1] = keys[2 * from + 1];
+		sequences[to] = sequences[from];
+		records[to] = records[from];
+	}
+
+	private void swap(int index1, int index2){
+		long time = keys[2 * index1], eventId = keys[2 * index1 + 1], added = sequences[index1];
+		String record = records[index1];
+		move(index2, index1);
+		keys[2 * index2] = time;
+		keys[2 * index2 + 1] = eventId;
+		sequences[index2] = added;
+		records[index2] = record;
+	}
+}
@@ -71,14 +71,7 @@ public class BerkeleyDB<V extends Serializable> implements ExternalStore<V> {
 		DatabaseEntry valueEntry = new DatabaseEntry();
 		
 	    if(database.get(null, keyEntry, valueEntry, LockMode.DEFAULT) == OperationStatus.SUCCESS){
-	    	byte[] valueBytes = valueEntry.getData();
-	    	if(converter == null){
-		        ByteArrayInputStream byteInputStream = new ByteArrayInputStream(valueBytes);
-				ObjectInputStream objectInputStream = new ObjectInputStream(byteInputStream);
-				return (V)objectInputStream.readObject();
-	    	}else{
-	    		return converter.deserialize(valueBytes);
-	    	}
+	    	return deserialize(valueEntry.getData());
 	    }else{
 	        return null;
 	    }
@@ -86,20 +79,38 @@ public class BerkeleyDB<V extends Serializable> implements ExternalStore<V> {
 
 	@Override
 	public void put(String key, V value) throws Exception{
-		byte[] valueBytes = null;
+		putSerialized(key, serialize(value));
+	}
+
+	@Override
+	public void putSerialized(String key, byte[] valueBytes) throws Exception{
+		DatabaseEntry keyEntry = new DatabaseEntry(key.getBytes());
+		DatabaseEntry valueEntry = new DatabaseEntry(valueBytes);
+		database.put(null, keyEntry, valueEntry);
+	}
+
+	@Override
+	public byte[] serialize(V value) throws Exception{
 		if(converter == null){
 			ByteArrayOutputStream byteOutputStream = new ByteArrayOutputStream();
 			ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteOutputStream);
 			objectOutputStream.writeObject(value);
 			objectOutputStream.flush();
-			valueBytes = byteOutputStream.toByteArray();
+			return byteOutputStream.toByteArray();
 		}else{
-			valueBytes = converter.serialize(value);
+			return converter.serialize(value);
+		}
+	}
+
+	@Override
+	public V deserialize(byte[] valueBytes) throws Exception{
+		if(converter == null){
+			ByteArrayInputStream byteInputStream = new ByteArrayInputStream(valueBytes);
+			ObjectInputStream objectInputStream = new ObjectInputStream(byteInputStream);
+			return (V)objectInputStream.readObject();
+		}else{
+			return converter.deserialize(valueBytes);
 		}
-		
-		DatabaseEntry keyEntry = new DatabaseEntry(key.getBytes());
-		DatabaseEntry valueEntry = new DatabaseEntry(valueBytes);
-		database.put(null, keyEntry, valueEntry);
 	}
 
 	@Override
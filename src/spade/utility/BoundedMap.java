@@ -0,0 +1,256 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.utility;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A map for the state of long running filters, with a bound on the number of entries
+ * kept in memory and an optional time window.
+ *
+ * When the map is full the least recently used entry is evicted. It is dropped, or
+ * if spilling is enabled, moved to an ExternalMemoryMap from where it is moved back
+ * on the next access. Entries that have not been used for longer than the window
+ * are dropped even if spilling is enabled.
+ *
+ * Values can be modified in place after get since an entry is never in memory and
+ * in the external map at the same time.
+ *
+ * Settings (read by create, from the config file of the filter or its arguments):
+ *
+ * maxEntries: maximum number of entries in memory. 0 for no limit.
+ * windowSeconds: entries not used for this long are dropped. 0 for no window.
+ * spill: true to move evicted entries to an ExternalMemoryMap. The map is created with
+ * the keys used by CommonFunctions.createExternalMemoryMapInstance: tempDir, dbName,
+ * cacheSize, bloomfilterFalsePositiveProbability, bloomFilterExpectedNumberOfElements,
+ * and reportingIntervalSeconds.
+ *
+ * Not thread-safe except for getStats.
+ *
+ * @param <V> Type of the values. Must be serializable to be spilled.
+ */
+public class BoundedMap<V extends Serializable>{
+
+	private static final Logger logger = Logger.getLogger(BoundedMap.class.getName());
+
+	public static final String KEY_MAX_ENTRIES = "maxEntries",
+			KEY_WINDOW_SECONDS = "windowSeconds",
+			KEY_SPILL = "spill";
+
+	private static final String KEY_TEMP_DIR = "tempDir",
+			KEY_DB_NAME = "dbName",
+			KEY_CACHE_SIZE = "cacheSize",
+			KEY_FALSE_POSITIVE_PROBABILITY = "bloomfilterFalsePositiveProbability",
+			KEY_EXPECTED_NUMBER_OF_ELEMENTS = "bloomFilterExpectedNumberOfElements",
+			KEY_REPORTING_INTERVAL_SECONDS = "reportingIntervalSeconds";
+
+	/**
+	 * All the keys read by create.
+	 */
+	public static final Set<String> SETTING_KEYS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+			KEY_MAX_ENTRIES, KEY_WINDOW_SECONDS, KEY_SPILL, KEY_TEMP_DIR, KEY_DB_NAME, KEY_CACHE_SIZE,
+			KEY_FALSE_POSITIVE_PROBABILITY, KEY_EXPECTED_NUMBER_OF_ELEMENTS, KEY_REPORTING_INTERVAL_SECONDS)));
+
+	private static class Entry<V>{
+		private V value;
+		private long lastAccessMillis;
+
+		private Entry(V value, long lastAccessMillis){
+			this.value = value;
+			this.lastAccessMillis = lastAccessMillis;
+		}
+	}
+
+	private final String id;
+	private final int maxEntries;
+	private final long windowMillis;
+	// in access order so that the first entry is the least recently used, and also the oldest
+	private final LinkedHashMap<String, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final ExternalMemoryMap<String, V> spilled;
+
+	private volatile int size = 0;
+	private volatile long evicted = 0, expired = 0, spills = 0, restores = 0;
+
+	/**
+	 * @param id name of the map in the log and in the stats
+	 * @param maxEntries maximum number of entries in memory. 0 for no limit
+	 * @param windowSeconds entries not used for this long are dropped. 0 for no window
+	 * @param spilled map to move evicted entries to. Null to drop them
+	 */
+	public BoundedMap(String id, int maxEntries, long windowSeconds, ExternalMemoryMap<String, V> spilled){
+		this.id = id;
+		this.maxEntries = maxEntries;
+		this.windowMillis = windowSeconds * 1000;
+		this.spilled = spilled;
+	}
+
+	/**
+	 * Creates a map with the settings described in the class comment.
+	 *
+	 * @param id name of the map. Also used as the name of the external map
+	 * @param settings the config and the arguments of the filter
+	 * @return the map
+	 * @throws Exception if the settings are invalid or the external map cannot be created
+	 */
+	public static <V extends Serializable> BoundedMap<V> create(String id, Map<String, String> settings) throws Exception{
+		Integer maxEntries = CommonFunctions.parseInt(settings.get(KEY_MAX_ENTRIES), 0);
+		Long windowSeconds = CommonFunctions.parseLong(settings.get(KEY_WINDOW_SECONDS), 0L);
+		if(maxEntries == null || maxEntries < 0){
+			throw new Exception(id + ": Invalid '"+KEY_MAX_ENTRIES+"': " + settings.get(KEY_MAX_ENTRIES));
+		}
+		if(windowSeconds == null || windowSeconds < 0){
+			throw new Exception(id + ": Invalid '"+KEY_WINDOW_SECONDS+"': " + settings.get(KEY_WINDOW_SECONDS));
+		}
+		ExternalMemoryMap<String, V> spilled = null;
+		if("true".equalsIgnoreCase(settings.get(KEY_SPILL))){
+			if(maxEntries == 0){
+				throw new Exception(id + ": '"+KEY_SPILL+"' requires '"+KEY_MAX_ENTRIES+"' to be greater than 0");
+			}
+			spilled = CommonFunctions.createExternalMemoryMapInstance(id,
+					settings.get(KEY_CACHE_SIZE), settings.get(KEY_FALSE_POSITIVE_PROBABILITY),
+					settings.get(KEY_EXPECTED_NUMBER_OF_ELEMENTS), settings.get(KEY_TEMP_DIR),
+					settings.get(KEY_DB_NAME) + "_" + id, settings.get(KEY_REPORTING_INTERVAL_SECONDS),
+					new Hasher<String>(){
+						@Override
+						public String getHash(String t){
+							return t;
+						}
+					});
+		}
+		logger.log(Level.INFO, id + ": max entries={0}, window seconds={1}, spill={2}",
+				new Object[]{maxEntries, windowSeconds, spilled != null});
+		return new BoundedMap<V>(id, maxEntries, windowSeconds, spilled);
+	}
+
+	/**
+	 * @return the value, or null if the key is not in the map or has been dropped
+	 */
+	public V get(String key){
+		long now = System.currentTimeMillis();
+		Entry<V> entry = entries.get(key);
+		if(entry != null){
+			if(isExpired(entry, now)){
+				entries.remove(key);
+				size = entries.size();
+				expired++;
+				return null;
+			}
+			entry.lastAccessMillis = now;
+			return entry.value;
+		}
+		if(spilled != null){
+			V value = spilled.remove(key);
+			if(value != null){
+				restores++;
+				put(key, value);
+				return value;
+			}
+		}
+		return null;
+	}
+
+	public boolean containsKey(String key){
+		return get(key) != null;
+	}
+
+	public void put(String key, V value){
+		long now = System.currentTimeMillis();
+		Entry<V> entry = entries.get(key);
+		if(entry != null){
+			entry.value = value;
+			entry.lastAccessMillis = now;
+		}else{
+			entries.put(key, new Entry<V>(value, now));
+		}
+		evict(now);
+		size = entries.size();
+	}
+
+	public V remove(String key){
+		Entry<V> entry = entries.remove(key);
+		size = entries.size();
+		if(entry != null){
+			return entry.value;
+		}
+		if(spilled != null){
+			return spilled.remove(key);
+		}
+		return null;
+	}
+
+	/**
+	 * @return number of entries in memory
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * @return the counts of the entries in memory, evicted, expired, and moved to and from the external map
+	 */
+	public String getStats(){
+		String stats = id + ": entries=" + size + ", evicted=" + evicted + ", expired=" + expired;
+		if(spilled != null){
+			stats += ", spilled=" + spills + ", restored=" + restores;
+		}
+		return stats;
+	}
+
+	public void close(){
+		entries.clear();
+		size = 0;
+		if(spilled != null){
+			CommonFunctions.closePrintSizeAndDeleteExternalMemoryMap(id, spilled);
+		}
+	}
+
+	private boolean isExpired(Entry<V> entry, long now){
+		return windowMillis > 0 && now - entry.lastAccessMillis > windowMillis;
+	}
+
+	private void evict(long now){
+		Iterator<Map.Entry<String, Entry<V>>> iterator = entries.entrySet().iterator();
+		while(iterator.hasNext()){
+			Map.Entry<String, Entry<V>> eldest = iterator.next();
+			if(isExpired(eldest.getValue(), now)){
+				iterator.remove();
+				expired++;
+			}else if(maxEntries > 0 && entries.size() > maxEntries){
+				iterator.remove();
+				evicted++;
+				if(spilled != null){
+					spilled.put(eldest.getKey(), eldest.getValue().value);
+					spills++;
+				}
+			}else{
+				break;
+			}
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.utility;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read from a stream, to report the progress of a reader. The count
+ * can be read from another thread.
+ */
+public class CountingInputStream extends FilterInputStream{
+
+	private volatile long count = 0;
+
+	public CountingInputStream(InputStream in){
+		super(in);
+	}
+
+	/**
+	 * @return number of bytes read or skipped so far
+	 */
+	public long getCount(){
+		return count;
+	}
+
+	@Override
+	public int read() throws IOException{
+		int result = super.read();
+		if(result != -1){
+			count++;
+		}
+		return result;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) throws IOException{
+		int result = super.read(bytes, offset, length);
+		if(result > 0){
+			count += result;
+		}
+		return result;
+	}
+
+	@Override
+	public long skip(long n) throws IOException{
+		long result = super.skip(n);
+		count += result;
+		return result;
+	}
+
+	@Override
+	public boolean markSupported(){
+		return false;
+	}
+}
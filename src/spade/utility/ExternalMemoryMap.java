@@ -22,19 +22,36 @@ package spade.utility;
 
 import java.io.Serializable;
 import java.math.BigInteger;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import spade.core.BloomFilter;
+import spade.core.ConcurrentBloomFilter;
 
 /**
  * A map that keeps specified number of elements in memory and kicks out the least recently
  * used ones to a external storage and pulls back the element from disk to memory
  * when specified.
  *
- * This class uses a bloomfilter to keep a track of elements that have been added. This avoids
+ * The in-memory elements are split into shards by the hash code of the key, each with its own
+ * lock and its own least recently used order, so threads using different shards do not wait for
+ * each other. Evicted elements are serialized on the caller's thread and written to the external
+ * storage in batches by a background thread. Until written, they are served from the queue.
+ * Reading from the external storage is done without holding the lock of the shard.
+ *
+ * This class uses a bloomfilter to keep a track of elements that have been evicted. This avoids
  * the expensive calls to disk to get an element if the element wasn't found in memory.
  * 
  * @params <K> Any object type
@@ -46,9 +63,9 @@ public class ExternalMemoryMap<K, V extends Serializable>{
 	
 	private Logger logger = Logger.getLogger(ExternalMemoryMap.class.getName());
 
-	//bloomfilter to check if the element exists in memory and/or external storage
-	private BloomFilter<K> bloomFilter;
-	
+	private static final int WRITE_QUEUE_SIZE = 100000;
+	private static final int WRITE_BATCH_SIZE = 1000;
+
 	//default hasher using the hashCode function.
 	private Hasher<K> keyHasher = new Hasher<K>(){
 		public String getHash(K k){
@@ -56,36 +73,63 @@ public class ExternalMemoryMap<K, V extends Serializable>{
 		}
 	};
 	
-	//main in-memory map to keep items that have been used recently
-	private Map<K, Node<K, V>> leastRecentlyUsedCache;
+	private static class Shard<K, V>{
+		private final ReentrantLock lock = new ReentrantLock();
+		//in access order so that the first element is the least recently used
+		private final LinkedHashMap<K, V> elements = new LinkedHashMap<>(16, 0.75f, true);
+		private final int maxSize;
+		//incremented on every eviction so that a reader can tell if the element has been evicted while loading
+		private long evictions = 0;
+		private volatile int size = 0;
+
+		private Shard(int maxSize){
+			this.maxSize = maxSize;
+		}
+	}
+
+	/**
+	 * An element waiting to be written to the external storage. Null value bytes for a removal.
+	 */
+	private static class PendingWrite{
+		private final String hash;
+		private final byte[] valueBytes;
+
+		private PendingWrite(String hash, byte[] valueBytes){
+			this.hash = hash;
+			this.valueBytes = valueBytes;
+		}
+	}
+
+	private final Shard<K, V>[] shards;
+	private final int shardMask;
+
+	//bloomfilter to check if the element has been evicted to external storage
+	private final ConcurrentBloomFilter bloomFilter;
+
+	//latest pending write for each hash. Removed by the writer only if not replaced in the meantime
+	private final ConcurrentHashMap<String, PendingWrite> pendingWrites = new ConcurrentHashMap<>();
+	private final LinkedBlockingQueue<PendingWrite> writeQueue = new LinkedBlockingQueue<>(WRITE_QUEUE_SIZE);
+	private final AtomicLong unwrittenCount = new AtomicLong();
+	private final Object flushLock = new Object();
+	private final Thread writer;
+	private volatile boolean closed = false;
+	private ExecutorService prefetcher;
 
-	//data structure to keep track of least recently and most recently used elements
-	private Node<K, V> head, tail;
-	
 	//external storage for least recently used elements
 	private ExternalStore<V> cacheStore;
 	
 	// Max in-memory map size
 	private int cacheMaxSize = 0;
 	
-	// Print stats variables
-	private boolean printStats = false;
-	private long printStatsAfterMillis = 2 * 60 * 1000; // 2 minutes
-	private long lastRecordedTimeMillis = 0;
-	private long mapAccessesTotal = 0,
-			mapAccessesInterval = 0;
-	private long bloomfilterFalsePositivesTotal = 0,
-			bloomfilterFalsePositivesInterval = 0;
-	private long lruCacheMissesTotal = 0,
-			lruCacheMissesInterval = 0;
-	private long lruCacheHitsTotal = 0,
-			lruCacheHitsInterval = 0;
-	private long successfulDatabaseHitsTotal = 0,
-			successfulDatabaseHitsInterval = 0;
-	private long failedDatabaseHitsTotal = 0,
-			failedDatabaseHitsInterval = 0;
-	private long databaseInsertionsTotal = 0,
-			databaseInsertionsInterval = 0;
+	// Stats
+	private final LatencyHistogram hitLatencies = new LatencyHistogram(),
+			missLatencies = new LatencyHistogram(),
+			evictionLatencies = new LatencyHistogram(),
+			writeLatencies = new LatencyHistogram();
+	private final AtomicLong bloomfilterFalsePositives = new AtomicLong(),
+			writeFailures = new AtomicLong();
+	private volatile long printStatsAfterMillis = 0;
+	private volatile long lastRecordedTimeMillis = 0;
 	
 	private final String mapId;
 	
@@ -97,18 +141,35 @@ public class ExternalMemoryMap<K, V extends Serializable>{
      * @param expectedNumberOfElements is the expected number of elements in the Bloom filter. Must be greater than 0
 	 */
 	
+	@SuppressWarnings("unchecked")
 	protected ExternalMemoryMap(String mapId, int cacheMaxSize, ExternalStore<V> cacheStore, 
 			double falsePositiveProbability, int expectedNumberOfElements) throws Exception{
 		this.mapId = mapId;
-		leastRecentlyUsedCache = new HashMap<>();
-		bloomFilter = new BloomFilter<>(falsePositiveProbability, expectedNumberOfElements);
 		this.cacheMaxSize = cacheMaxSize;
 		this.cacheStore = cacheStore;
-		
-		head = new Node<K, V>(null, null);
-		tail = new Node<K, V>(null, null);
-		head.next = tail;
-		tail.previous = head;
+
+		// power of two number of shards, with at least one element each
+		int shardCount = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 4));
+		while(shardCount > 1 && shardCount > cacheMaxSize){
+			shardCount >>>= 1;
+		}
+		shards = (Shard<K, V>[]) new Shard<?, ?>[shardCount];
+		shardMask = shardCount - 1;
+		int shardMaxSize = Math.max(1, (cacheMaxSize + shardCount - 1) / shardCount);
+		for(int i = 0; i < shardCount; i++){
+			shards[i] = new Shard<K, V>(shardMaxSize);
+		}
+
+		bloomFilter = new ConcurrentBloomFilter(falsePositiveProbability, expectedNumberOfElements);
+
+		writer = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				writeLoop();
+			}
+		}, mapId + "-writer");
+		writer.setDaemon(true);
+		writer.start();
 	}
 	
 	/**
@@ -137,31 +198,13 @@ public class ExternalMemoryMap<K, V extends Serializable>{
 	 * @return current number of key value pairs in the in-memory map
 	 */	
 	public int size() {
-		return leastRecentlyUsedCache.size();
-	}
-	
-	/**
-	 * Checks if the current number of elements exceed the max size of the in-memory map and
-	 * evicts the least recently used one from in-memory map to the external storage.
-	 * 
-	 */
-	private void evictLeastRecentlyUsed(){
-		if(size() >= getCacheMaxSize()){ //evict tail from cache if cache full. 
-			leastRecentlyUsedCache.remove(tail.previous.key);
-			Node<K, V> node = Node.removeNode(tail.previous);
-			try{
-				cacheStore.put(keyHasher.getHash(node.key), node.value); //update in db before pushing it out of memory
-				
-				if(printStats){
-					databaseInsertionsInterval++;
-				}
-				
-			}catch(Exception e){
-				logger.log(Level.WARNING, mapId + ": Failed to update cache element in cachestore", e);
-			}
+		int size = 0;
+		for(Shard<K, V> shard : shards){
+			size += shard.size;
 		}
+		return size;
 	}
-
+	
 	/**
 	 * Function to turn on or off statistics printing
 	 * 
@@ -169,78 +212,36 @@ public class ExternalMemoryMap<K, V extends Serializable>{
 	 * less than or equal to 0 then stats printing turned off
 	 */
 	public void printStats(long printStatsIntervalInMillis){
-		if(printStatsIntervalInMillis > 0){
-			printStatsAfterMillis = printStatsIntervalInMillis;
-			printStats = true;
-			lastRecordedTimeMillis = System.currentTimeMillis();
-			resetTotalStats();
-			resetIntervalStats();
-		}else{
-			printStats = false;
-		}
-	} 
-	
-	/**
-	 * Sets all interval count variables for the stats to 0
-	 */
-	private void resetIntervalStats(){
-		mapAccessesInterval = 0;
-		bloomfilterFalsePositivesInterval = 0;
-		lruCacheHitsInterval = 0;
-		lruCacheMissesInterval = 0;
-		successfulDatabaseHitsInterval = 0;
-		failedDatabaseHitsInterval = 0;
-		databaseInsertionsInterval = 0;
+		lastRecordedTimeMillis = System.currentTimeMillis();
+		printStatsAfterMillis = printStatsIntervalInMillis > 0 ? printStatsIntervalInMillis : 0;
 	}
-	
+
 	/**
-	 * Sets all total count variables for the stats to 0
+	 * Returns the latency histograms of the in-memory hits, of the misses that went to the
+	 * queue or the external storage, of the evictions, and of the writes to the external storage.
+	 * 
+	 * @return stats
 	 */
-	private void resetTotalStats(){
-		mapAccessesTotal = 0;
-		bloomfilterFalsePositivesTotal = 0;
-		lruCacheHitsTotal = 0;
-		lruCacheMissesTotal = 0;
-		successfulDatabaseHitsTotal = 0;
-		failedDatabaseHitsTotal = 0;
-		databaseInsertionsTotal = 0;
+	public String getStats(){
+		return mapId + ": in-memory elements=" + size() + ", pending writes=" + unwrittenCount.get()
+				+ ", Bloom filter false positives=" + bloomfilterFalsePositives.get()
+				+ ", failed writes=" + writeFailures.get()
+				+ ", hits=[" + hitLatencies + "], misses=[" + missLatencies + "]"
+				+ ", evictions=[" + evictionLatencies + "], writes=[" + writeLatencies + "]";
 	}
-	
+
 	/**
-	 * Prints the current count of stats variables and resets the interval counts after printing
+	 * Logs the stats if the interval has passed since they were last logged
 	 */
 	private void printStats(){
-		if(System.currentTimeMillis() - lastRecordedTimeMillis >= printStatsAfterMillis){
-			lastRecordedTimeMillis = System.currentTimeMillis();
-			
-			mapAccessesTotal += mapAccessesInterval;
-			bloomfilterFalsePositivesTotal += bloomfilterFalsePositivesInterval;
-			lruCacheHitsTotal += lruCacheHitsInterval;
-			lruCacheMissesTotal += lruCacheMissesInterval;
-			successfulDatabaseHitsTotal += successfulDatabaseHitsInterval;
-			failedDatabaseHitsTotal += failedDatabaseHitsInterval;
-			databaseInsertionsTotal += databaseInsertionsInterval;
-			
-			int inMemoryMapSize = leastRecentlyUsedCache != null ? leastRecentlyUsedCache.size() : 0;
-			
-			logger.log(Level.INFO, mapId + ": Total map accesses = {0}, Interval map accesses = {1}, "
-					+ "Total Bloom filter false positives = {2}, Interval Bloom filter false positives = {3}, "
-					+ "Total LRU cache hits = {4}, Interval LRU cache hits = {5}, "
-					+ "Total LRU cache misses = {6}, Interval LRU cache misses = {7}, "
-					+ "Total successful database hits = {8}, Interval successful database hits = {9}, "
-					+ "Total failed database hits = {10}, Interval failed database hits = {11}, "
-					+ "Total database insertions = {12}, Interval database insertions = {13}, "
-					+ "Current in-memory element count = {14}",
-					new Object[]{mapAccessesTotal, mapAccessesInterval,
-							bloomfilterFalsePositivesTotal, bloomfilterFalsePositivesInterval,
-							lruCacheHitsTotal, lruCacheHitsInterval,
-							lruCacheMissesTotal, lruCacheMissesInterval,
-							successfulDatabaseHitsTotal, successfulDatabaseHitsInterval,
-							failedDatabaseHitsTotal, failedDatabaseHitsInterval,
-							databaseInsertionsTotal, databaseInsertionsInterval,
-							inMemoryMapSize});
-			
-			resetIntervalStats();
+		long intervalMillis = printStatsAfterMillis;
+		if(intervalMillis > 0){
+			long now = System.currentTimeMillis();
+			long last = lastRecordedTimeMillis;
+			if(now - last >= intervalMillis){
+				lastRecordedTimeMillis = now;
+				logger.log(Level.INFO, getStats());
+			}
 		}
 	}
 	
@@ -249,68 +250,66 @@ public class ExternalMemoryMap<K, V extends Serializable>{
 	 * 
 	 * Pseudocode 
 	 * 
-	 * 1) exists in bloomfilter
-	 * 2) exists in in-memory map then return
-	 * 3) doesn't exist in in-memory map then check in external storage
-	 * 4) exists in external storage then return
-	 * 5) doesn't exist in external storage so a false positive. return null 
-	 * 6) doesn't exist in bloomfilter then return null
+	 * 1) exists in in-memory map then return
+	 * 2) doesn't exist in bloomfilter then return null
+	 * 3) exists in the write queue or in external storage then put in in-memory map and return
+	 * 4) doesn't exist in the write queue or external storage so a false positive. return null 
 	 * 
 	 * @param Object to get
 	 * @return Value paired against the provided key. Null if doesn't exist
 	 */
+	@SuppressWarnings("unchecked")
 	public V get(Object key) {
-		
-		if(printStats){
-			printStats();
-			mapAccessesInterval++;
-		}
-		
+		printStats();
+		long start = System.nanoTime();
 		try{
 			K k = (K)key;
-			if(bloomFilter.contains(k)){ //bloomfilter contains the key
-				if(leastRecentlyUsedCache.get(k) != null){ //exists in cache
-					
-					if(printStats){
-						lruCacheHitsInterval++;
+			Shard<K, V> shard = getShard(k);
+			String hash = null;
+			while(true){
+				long evictions;
+				shard.lock.lock();
+				try{
+					V value = shard.elements.get(k);
+					if(value != null){
+						hitLatencies.record(System.nanoTime() - start);
+						return value;
 					}
-					
-					Node<K, V> node = leastRecentlyUsedCache.get(k); //get from cache
-					Node.makeNodeHead(node, head); //make this node the head
-					return node.value; //return the value
-				}else{ //doesn't exist in cache
-					
-					if(printStats){
-						lruCacheMissesInterval++;
+					evictions = shard.evictions;
+				}finally{
+					shard.lock.unlock();
+				}
+
+				if(hash == null){
+					hash = keyHasher.getHash(k);
+				}
+				if(!bloomFilter.contains(hash)){ //not in bloomfilter so not anywhere since no false negative
+					return null;
+				}
+				V value = load(hash);
+				if(value == null){
+					bloomfilterFalsePositives.incrementAndGet();
+					missLatencies.record(System.nanoTime() - start);
+					return null;
+				}
+
+				shard.lock.lock();
+				try{
+					V existing = shard.elements.get(k);
+					if(existing != null){
+						missLatencies.record(System.nanoTime() - start);
+						return existing;
 					}
-					
-					String hash = keyHasher.getHash(k);
-					V value = cacheStore.get(hash); //get from db
-					if(value == null){ //if not in DB
-						
-						if(printStats){
-							bloomfilterFalsePositivesInterval++;
-							failedDatabaseHitsInterval++;
-						}
-						
-						return null; //was false positive
-					}else{ //if in DB
-						
-						if(printStats){
-							successfulDatabaseHitsInterval++;
-						}
-						
-						evictLeastRecentlyUsed(); //if need be
-						
-						Node<K, V> node = new Node<>(k, value);
-						Node.makeNodeHead(node, head); //make this node the head
-						
-						leastRecentlyUsedCache.put(k, node); //put in cache
+					if(shard.evictions == evictions){
+						shard.elements.put(k, value);
+						evict(shard);
+						missLatencies.record(System.nanoTime() - start);
 						return value;
 					}
+					//an element of the shard was evicted while loading. Could have been this one, so load again
+				}finally{
+					shard.lock.unlock();
 				}
-			}else{ //not in bloomfilter so not anywhere since no false negative
-				return null;
 			}
 		}catch(Exception e){
 			logger.log(Level.SEVERE, mapId + ": Failed to get value for key: " + key, e);
@@ -319,39 +318,60 @@ public class ExternalMemoryMap<K, V extends Serializable>{
 	}
 
 	/**
-	 * Inserts/Updates a key-value pair in the in-memory map as well as the external storage 
-	 * Pseudocode:
+	 * Loads the given keys into the in-memory map in the background, so that the following
+	 * calls to get for them do not wait for the external storage.
 	 * 
-	 * 1) add in bloomfilter
-	 * 2) if doesn't exists in in-memory map
-	 * 3) if exists in map then compare values. if same then nothing. if different then update in in-memory map
+	 * @param keys keys to load
+	 */
+	public void prefetch(final Collection<? extends K> keys){
+		if(keys == null || keys.isEmpty() || closed){
+			return;
+		}
+		final List<K> copy = new ArrayList<K>(keys);
+		synchronized(this){
+			if(prefetcher == null){
+				prefetcher = Executors.newSingleThreadExecutor(new java.util.concurrent.ThreadFactory(){
+					@Override
+					public Thread newThread(Runnable runnable){
+						Thread thread = new Thread(runnable, mapId + "-prefetcher");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			prefetcher.execute(new Runnable(){
+				@Override
+				public void run(){
+					for(K key : copy){
+						if(closed){
+							return;
+						}
+						get(key);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Inserts/Updates a key-value pair in the in-memory map. The least recently used element of the shard
+	 * is evicted if it is full.
 	 *  
 	 * @param Object to be used as key
 	 * @param Object to be inserted against the key
 	 * @return Inserted object
 	 */	
 	public V put(K key, V value) {
-		if(printStats){
-			printStats();
-		}
+		printStats();
 		try{
-			bloomFilter.add(key);
-			Node<K, V> node = leastRecentlyUsedCache.get(key);
-//			String hash = keyHasher.getHash((K)key);
-			if(node == null){ //if not in cache
-				
-				evictLeastRecentlyUsed(); //if need be
-				
-				node = new Node<K, V>(key, value); //create the node
-				leastRecentlyUsedCache.put(key, node); //put in cache
-				//cacheStore.put(hash, value); //no need to put in db. will be put in when evicted
-			}else{ //if node exists in cache
-				if(!node.value.equals(value)){ //i.e. new value for the same key. so, update.
-					node.value = value;
-//					cacheStore.put(hash, value); //no need to put in db. will be put in when evicted
-				}
+			Shard<K, V> shard = getShard(key);
+			shard.lock.lock();
+			try{
+				shard.elements.put(key, value);
+				evict(shard);
+			}finally{
+				shard.lock.unlock();
 			}
-			Node.makeNodeHead(node, head);
 			return value;
 		}catch(Exception e){
 			logger.log(Level.SEVERE, mapId + ": Failed to put " + value + " for " + key, e);
@@ -362,33 +382,29 @@ public class ExternalMemoryMap<K, V extends Serializable>{
 	/**
 	 * Removes the key and the value paired against it from the in-memory map and the external storage
 	 * 
-	 * Pseudocode:
-	 * 
-	 * 1) If exists in bloomfilter then remove from in-memory map and from external storage
-	 * 
 	 * @param Object to be removed
 	 * @return Removed value paired against the provided key
 	 * 
 	 */
+	@SuppressWarnings("unchecked")
 	public V remove(Object key) {
 		try{
 			K k = (K)key;
-			String hash = keyHasher.getHash(k);
-			if(bloomFilter.contains(k)){
-				V value = null;
-				if(leastRecentlyUsedCache.get(k) != null){
-					Node<K, V> node = leastRecentlyUsedCache.get(k);
-					Node.removeNode(node);
-					value = node.value;
-				}else{
-					value = cacheStore.get(hash); //get from DB
+			Shard<K, V> shard = getShard(k);
+			shard.lock.lock();
+			try{
+				V value = shard.elements.remove(k);
+				shard.size = shard.elements.size();
+				String hash = keyHasher.getHash(k);
+				if(bloomFilter.contains(hash)){
+					if(value == null){
+						value = load(hash);
+					}
+					enqueue(new PendingWrite(hash, null));
 				}
-				leastRecentlyUsedCache.remove(key);
-				//remove value from DB
-				cacheStore.remove(hash);
 				return value;
-			}else{
-				return null;
+			}finally{
+				shard.lock.unlock();
 			}
 		}catch(Exception e){
 			logger.log(Level.SEVERE, mapId + ": Failed to remove key: " + key, e);
@@ -400,21 +416,62 @@ public class ExternalMemoryMap<K, V extends Serializable>{
 	 * Removes all key-value pairing from the bloomfilter, in-memory map and the external storage
 	 */
 	public void clear() {
-		leastRecentlyUsedCache.clear();
-		bloomFilter.clear();
+		for(Shard<K, V> shard : shards){
+			shard.lock.lock();
+		}
 		try{
-			cacheStore.clear();
-		}catch(Exception e){
-			logger.log(Level.SEVERE, mapId + ": Failed to clear map", e);
+			for(Shard<K, V> shard : shards){
+				shard.elements.clear();
+				shard.size = 0;
+			}
+			flush();
+			pendingWrites.clear();
+			bloomFilter.clear();
+			try{
+				cacheStore.clear();
+			}catch(Exception e){
+				logger.log(Level.SEVERE, mapId + ": Failed to clear map", e);
+			}
+		}finally{
+			for(Shard<K, V> shard : shards){
+				shard.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Waits until all the evicted elements have been written to the external storage
+	 */
+	public void flush(){
+		synchronized(flushLock){
+			while(unwrittenCount.get() > 0 && writer.isAlive()){
+				try{
+					flushLock.wait(100);
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
 		}
-		head = new Node<K, V>(null, null);
-		tail = new Node<K, V>(null, null);
 	}
 	
 	/**
-	 * A function to close the external store being used
+	 * A function to close the external store being used. Waits for the pending writes first.
 	 */
 	public void close(){
+		synchronized(this){
+			if(prefetcher != null){
+				prefetcher.shutdownNow();
+			}
+		}
+		flush();
+		closed = true;
+		try{
+			writer.join(1000);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		logger.log(Level.INFO, getStats());
 		try{
 			if(cacheStore != null){
 				cacheStore.close();
@@ -444,62 +501,90 @@ public class ExternalMemoryMap<K, V extends Serializable>{
 			logger.log(Level.SEVERE, mapId + ": Failed to delete cache store", e);
 		}
 	}
-}
 
-/**
- * Basic node class to build a doubly linked list along with a few utility functions to act on nodes of doubly linked list
- * 
- * Note: Doubly linked list assumes that the head and tail of the linked list are dummy nodes
- *
- * @param Object key in the key-value pair
- * @param Object value in the key-value pair
- */
-
-class Node<K, V>{
-	
-	public K key;
-	public V value;
-	public Node<K, V> next, previous;
-	
-	public Node(K key, V value){
-		this.key = key;
-		this.value = value;
+	private Shard<K, V> getShard(K key){
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		return shards[h & shardMask];
 	}
-		
+
 	/**
-	 * Removes the given node from the doubly linked list
-	 * @param node to remove
-	 * @return removed node with null next and previous pointers
-	 */	
-	public static <K, V> Node<K, V> removeNode(Node<K, V> node){
-		if(node != null){
-			if(node.previous != null){
-				node.previous.next = node.next;
-			}
-			if(node.next != null){
-				node.next.previous = node.previous;
-			}
-			node.previous = null;
-			node.next = null;
-			return node;
+	 * Evicts the least recently used elements of the shard while it is full. Must hold the lock of the shard.
+	 */
+	private void evict(Shard<K, V> shard) throws Exception{
+		Iterator<Map.Entry<K, V>> iterator = shard.elements.entrySet().iterator();
+		while(shard.elements.size() > shard.maxSize && iterator.hasNext()){
+			long start = System.nanoTime();
+			Map.Entry<K, V> eldest = iterator.next();
+			String hash = keyHasher.getHash(eldest.getKey());
+			// serialized now so that later changes to the value by the caller do not race with the writer
+			byte[] valueBytes = cacheStore.serialize(eldest.getValue());
+			iterator.remove();
+			shard.evictions++;
+			bloomFilter.add(hash);
+			enqueue(new PendingWrite(hash, valueBytes));
+			evictionLatencies.record(System.nanoTime() - start);
 		}
-		return null;
+		shard.size = shard.elements.size();
 	}
-	
+
+	private void enqueue(PendingWrite write) throws InterruptedException{
+		pendingWrites.put(write.hash, write);
+		unwrittenCount.incrementAndGet();
+		writeQueue.put(write);
+	}
+
 	/**
-	 * Given the head of the doubly linked list, this function makes the given node the head of the list.
-	 * 
-	 * Note: Head is a dummy node and never tinkered with.
-	 * 
-	 * @param node node to move to head
-	 * @param head the dummy head node
+	 * @return the value from the write queue if it is pending, otherwise from the external storage
 	 */
-	public static <K, V> void makeNodeHead(Node<K, V> node, Node<K, V> head){
-		removeNode(node);
-		node.next = head.next;
-		node.previous = head;
-		head.next.previous = node;
-		head.next = node;
+	private V load(String hash) throws Exception{
+		PendingWrite pending = pendingWrites.get(hash);
+		if(pending != null){
+			return pending.valueBytes == null ? null : cacheStore.deserialize(pending.valueBytes);
+		}
+		return cacheStore.get(hash);
+	}
+
+	private void writeLoop(){
+		List<PendingWrite> batch = new ArrayList<PendingWrite>(WRITE_BATCH_SIZE);
+		while(!closed || !writeQueue.isEmpty()){
+			try{
+				PendingWrite first = writeQueue.poll(100, TimeUnit.MILLISECONDS);
+				if(first == null){
+					continue;
+				}
+				batch.add(first);
+				writeQueue.drainTo(batch, WRITE_BATCH_SIZE - 1);
+				for(PendingWrite write : batch){
+					long start = System.nanoTime();
+					try{
+						if(write.valueBytes == null){
+							cacheStore.remove(write.hash);
+						}else{
+							cacheStore.putSerialized(write.hash, write.valueBytes);
+						}
+						writeLatencies.record(System.nanoTime() - start);
+					}catch(Exception e){
+						writeFailures.incrementAndGet();
+						logger.log(Level.WARNING, mapId + ": Failed to update cache element in cachestore", e);
+					}
+					// only if not replaced by a later write of the same hash
+					pendingWrites.remove(write.hash, write);
+				}
+				unwrittenCount.addAndGet(-batch.size());
+				batch.clear();
+				synchronized(flushLock){
+					flushLock.notifyAll();
+				}
+			}catch(InterruptedException e){
+				if(closed){
+					return;
+				}
+			}catch(Throwable t){
+				logger.log(Level.SEVERE, mapId + ": Writer failed", t);
+			}
+		}
 	}
-	
 }
@@ -46,6 +46,27 @@ public interface ExternalStore<V extends Serializable>{
 	 * @throws Exception Any implementation dependent exception
 	 */
 	public void put(String key, V value) throws Exception;
+	/**
+	 * A function to add a key value pair where the value has been serialized with serialize
+	 * @param key
+	 * @param valueBytes
+	 * @throws Exception Any implementation dependent exception
+	 */
+	public void putSerialized(String key, byte[] valueBytes) throws Exception;
+	/**
+	 * Converts the value to the bytes stored by put
+	 * @param value
+	 * @return bytes
+	 * @throws Exception Any implementation dependent exception
+	 */
+	public byte[] serialize(V value) throws Exception;
+	/**
+	 * Converts the bytes returned by serialize back to a value
+	 * @param valueBytes
+	 * @return value
+	 * @throws Exception Any implementation dependent exception
+	 */
+	public V deserialize(byte[] valueBytes) throws Exception;
 	/**
 	 * A function to remove the key value if it exists
 	 * @param key
@@ -0,0 +1,190 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.utility;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves the endpoints of edges for reporters that read vertices and edges from one
+ * stream, where the endpoints are referred to by ids and an edge can come before its
+ * vertices.
+ *
+ * Vertices are remembered by id. An edge whose endpoints have both been seen is given
+ * to the resolver at once. Otherwise it is pending until they have, and then given to
+ * the resolver. At most maxPending edges are pending: when another one arrives, the
+ * oldest pending edge is dropped.
+ *
+ * Not thread-safe.
+ *
+ * @param <V> Type of the vertices
+ * @param <E> Type of the edges as read, before their endpoints are resolved
+ */
+public class ForwardReferences<V, E>{
+
+	public static interface Resolver<V, E>{
+		/**
+		 * Called once for every edge that was not dropped, when both of its endpoints have been seen.
+		 */
+		public void resolved(E edge, V from, V to);
+	}
+
+	private static final class Pending<E>{
+		private final E edge;
+		private final String from, to;
+
+		private Pending(E edge, String from, String to){
+			this.edge = edge;
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	private final int maxPending;
+	private final Resolver<V, E> resolver;
+	private final Map<String, V> vertices = new HashMap<String, V>();
+	// pending edges by the id of a missing endpoint. An edge is in the lists of both if both are missing
+	private final Map<String, List<Pending<E>>> waiting = new HashMap<String, List<Pending<E>>>();
+	// in arrival order so that the first is the oldest
+	private final LinkedHashSet<Pending<E>> pending = new LinkedHashSet<Pending<E>>();
+
+	private long forwardEdges = 0, dropped = 0;
+
+	/**
+	 * @param maxPending maximum number of pending edges. 0 for no limit
+	 * @param resolver called with the edges when their endpoints are known
+	 */
+	public ForwardReferences(int maxPending, Resolver<V, E> resolver){
+		this.maxPending = maxPending;
+		this.resolver = resolver;
+	}
+
+	/**
+	 * Remembers the vertex, replacing the one seen before with the same id, and resolves
+	 * the pending edges that were waiting for it.
+	 */
+	public void putVertex(String id, V vertex){
+		vertices.put(id, vertex);
+		List<Pending<E>> waitingEdges = waiting.remove(id);
+		if(waitingEdges != null){
+			for(Pending<E> edge : waitingEdges){
+				V from = vertices.get(edge.from);
+				V to = vertices.get(edge.to);
+				// still pending if the other endpoint is missing. It is in the list of the other one too
+				if(from != null && to != null && pending.remove(edge)){
+					resolver.resolved(edge.edge, from, to);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the vertex with the id, or null if not seen yet
+	 */
+	public V getVertex(String id){
+		return vertices.get(id);
+	}
+
+	/**
+	 * Gives the edge to the resolver if both endpoints have been seen, or else keeps it pending.
+	 */
+	public void putEdge(String fromId, String toId, E edge){
+		V from = vertices.get(fromId);
+		V to = vertices.get(toId);
+		if(from != null && to != null){
+			resolver.resolved(edge, from, to);
+			return;
+		}
+		forwardEdges++;
+		Pending<E> pendingEdge = new Pending<E>(edge, fromId, toId);
+		pending.add(pendingEdge);
+		if(from == null){
+			addWaiting(fromId, pendingEdge);
+		}
+		if(to == null && !toId.equals(fromId)){
+			addWaiting(toId, pendingEdge);
+		}
+		if(maxPending > 0 && pending.size() > maxPending){
+			Iterator<Pending<E>> iterator = pending.iterator();
+			Pending<E> oldest = iterator.next();
+			iterator.remove();
+			removeWaiting(oldest.from, oldest);
+			removeWaiting(oldest.to, oldest);
+			dropped++;
+		}
+	}
+
+	/**
+	 * @return number of edges waiting for an endpoint
+	 */
+	public int getPendingCount(){
+		return pending.size();
+	}
+
+	/**
+	 * @return number of edges that came before one of their endpoints
+	 */
+	public long getForwardEdgeCount(){
+		return forwardEdges;
+	}
+
+	/**
+	 * @return number of pending edges dropped because there were more than maxPending
+	 */
+	public long getDroppedCount(){
+		return dropped;
+	}
+
+	/**
+	 * @return number of vertices remembered
+	 */
+	public int getVertexCount(){
+		return vertices.size();
+	}
+
+	public void clear(){
+		vertices.clear();
+		waiting.clear();
+		pending.clear();
+	}
+
+	private void addWaiting(String id, Pending<E> edge){
+		List<Pending<E>> edges = waiting.get(id);
+		if(edges == null){
+			edges = new ArrayList<Pending<E>>(1);
+			waiting.put(id, edges);
+		}
+		edges.add(edge);
+	}
+
+	private void removeWaiting(String id, Pending<E> edge){
+		List<Pending<E>> edges = waiting.get(id);
+		if(edges != null){
+			edges.remove(edge);
+			if(edges.isEmpty()){
+				waiting.remove(id);
+			}
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.utility;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds with power of two buckets. Recording is
+ * thread-safe and lock-free. The percentiles are the upper bounds of the buckets
+ * so they are within a factor of two of the exact values.
+ */
+public class LatencyHistogram{
+
+	// bucket i counts the latencies in [2^i, 2^(i+1)) nanoseconds. 0 is in bucket 0
+	private final AtomicLongArray buckets = new AtomicLongArray(64);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos){
+		if(nanos < 0){
+			nanos = 0;
+		}
+		buckets.incrementAndGet(nanos == 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos));
+		count.increment();
+		sum.add(nanos);
+		long currentMax;
+		while(nanos > (currentMax = max.get()) && !max.compareAndSet(currentMax, nanos)){
+		}
+	}
+
+	public long getCount(){
+		return count.sum();
+	}
+
+	/**
+	 * @param percentile in the range [0-100]
+	 * @return upper bound of the bucket that contains the percentile, in nanoseconds. 0 if nothing has been recorded
+	 */
+	public long getPercentile(double percentile){
+		long total = 0;
+		long[] counts = new long[buckets.length()];
+		for(int i = 0; i < counts.length; i++){
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if(total == 0){
+			return 0;
+		}
+		long rank = (long)Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for(int i = 0; i < counts.length; i++){
+			seen += counts[i];
+			if(seen >= rank && counts[i] > 0){
+				return Math.min(i == 63 ? Long.MAX_VALUE : (1L << (i + 1)) - 1, max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public void reset(){
+		for(int i = 0; i < buckets.length(); i++){
+			buckets.set(i, 0);
+		}
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+
+	/**
+	 * @return count, mean, percentiles and maximum in microseconds
+	 */
+	@Override
+	public String toString(){
+		long n = count.sum();
+		if(n == 0){
+			return "count=0";
+		}
+		return String.format("count=%d, mean=%.1fus, p50=%.1fus, p99=%.1fus, p999=%.1fus, max=%.1fus",
+				n, sum.sum() / 1000.0 / n, getPercentile(50) / 1000.0, getPercentile(99) / 1000.0,
+				getPercentile(99.9) / 1000.0, max.get() / 1000.0);
+	}
+}
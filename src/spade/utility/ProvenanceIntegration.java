@@ -24,7 +24,9 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
@@ -39,6 +41,7 @@ public class ProvenanceIntegration {
     public static void main(String[] args) {
         String inputPath1 = null, inputPath2 = null, outputPath = null;
         int vertexThreshold = 0, edgeThreshold = 0, tolerance = 0;
+        SimilarityClustering clustering;
         try {
             inputPath1 = args[0];
             inputPath2 = args[1];
@@ -46,17 +49,54 @@ public class ProvenanceIntegration {
             edgeThreshold = Integer.parseInt(args[3]);
             tolerance = Integer.parseInt(args[4]);
             outputPath = args[5];
+            StringBuilder options = new StringBuilder();
+            for (int i = 6; i < args.length; i++) {
+                options.append(args[i]).append(" ");
+            }
+            clustering = createClustering(CommonFunctions.parseKeyValPairs(options.toString()));
         } catch (Exception ex) {
             System.out.println("Program arguments:");
             System.out.println("  <input file 1> <input file 2> <vertex threshold> <edge threshold> <tolerance> <output file>");
+            System.out.println("  [candidates=prefix|keys|minhash|all] [keys=<annotation key>,...] [bands=<n>] [rows=<n>]");
+            System.out.println("  [merge=greedy|transitive] [threads=<n>]");
             return;
         }
 
         Graph graph1 = Graph.importGraph(inputPath1);
         Graph graph2 = Graph.importGraph(inputPath2);
-        Graph output = Graph.integrate(graph1, graph2, vertexThreshold, edgeThreshold, tolerance);
+        Graph output = Graph.integrate(graph1, graph2, vertexThreshold, edgeThreshold, tolerance, clustering);
         output.exportGraph(outputPath);
     }
+
+    /**
+     * Candidates are found by PREFIX, which finds the same vertices and edges to integrate
+     * as comparing every pair, unless the options say otherwise. KEYS and MINHASH find
+     * fewer candidates, and can miss some.
+     */
+    static SimilarityClustering createClustering(Map<String, String> options) {
+        SimilarityClustering.Candidates candidates = SimilarityClustering.Candidates.PREFIX;
+        if (options.get("candidates") != null) {
+            candidates = SimilarityClustering.Candidates.valueOf(options.get("candidates").toUpperCase());
+        }
+        SimilarityClustering.Merge merge = SimilarityClustering.Merge.GREEDY;
+        if (options.get("merge") != null) {
+            merge = SimilarityClustering.Merge.valueOf(options.get("merge").toUpperCase());
+        }
+        Set<String> keys = new HashSet<>();
+        if (options.get("keys") != null) {
+            keys.addAll(Arrays.asList(options.get("keys").split(",")));
+        }
+        if (candidates == SimilarityClustering.Candidates.KEYS && keys.isEmpty()) {
+            throw new IllegalArgumentException("No blocking keys");
+        }
+        int bands = CommonFunctions.parseInt(options.get("bands"), 32);
+        int rows = CommonFunctions.parseInt(options.get("rows"), 3);
+        int threads = CommonFunctions.parseInt(options.get("threads"), Runtime.getRuntime().availableProcessors());
+        if (bands < 1 || rows < 1 || threads < 1) {
+            throw new IllegalArgumentException("Invalid bands, rows or threads");
+        }
+        return new SimilarityClustering(candidates, merge, keys, bands, rows, threads);
+    }
 }
 
 class Graph {
@@ -82,24 +122,6 @@ class Graph {
     public int regularEdges = 0;
     public int vertexCost = 0;
 
-    private static int countCommonAnnotations(Vertex v1, Vertex v2) {
-        Set<Map.Entry<String, String>> e1 = v1.getAnnotations().entrySet();
-        Set<Map.Entry<String, String>> e2 = v2.getAnnotations().entrySet();
-        Set<Map.Entry<String, String>> results = new HashSet<>();
-        results.addAll(e1);
-        results.retainAll(e2);
-        return results.size();
-    }
-
-    private static int countCommonAnnotations(Edge edge1, Edge edge2) {
-        Set<Map.Entry<String, String>> e1 = edge1.getAnnotations().entrySet();
-        Set<Map.Entry<String, String>> e2 = edge2.getAnnotations().entrySet();
-        Set<Map.Entry<String, String>> results = new HashSet<>();
-        results.addAll(e1);
-        results.retainAll(e2);
-        return results.size();
-    }
-
     private static Vertex integrateVertices(Graph g, List<Vertex> vertices, int tolerance) {
         Vertex vertex = new Vertex();
         int cost = 0;
@@ -114,7 +136,7 @@ class Graph {
             String newGID = v.getAnnotation("gid");
             String newTGID = v.getAnnotation("tgid");
 
-            vertex.getAnnotations().putAll(v.getAnnotations());
+            vertex.addAnnotations(v.getAnnotations());
             if (currentUID == null || currentGID == null || currentTGID == null
                     || newUID == null || newGID == null || newTGID == null) {
                 continue;
@@ -157,16 +179,26 @@ class Graph {
         Vertex dst = edges.iterator().next().getParentVertex();
         Edge edge = new Edge(src, dst);
         for (Edge e : edges) {
-            edge.getAnnotations().putAll(e.getAnnotations());
+            edge.addAnnotations(e.getAnnotations());
         }
         return edge;
     }
 
     public static Graph integrate(Graph graph1, Graph graph2, int vthreshold, int ethreshold, int tolerance) {
+        return integrate(graph1, graph2, vthreshold, ethreshold, tolerance,
+                ProvenanceIntegration.createClustering(new HashMap<String, String>()));
+    }
+
+    /**
+     * Integrates each vertex with the later vertices, not integrated yet, that have at
+     * least vthreshold annotations in common with it. Then does the same with edges
+     * between the same vertices, with ethreshold. The clustering finds these groups
+     * without comparing every pair.
+     */
+    public static Graph integrate(Graph graph1, Graph graph2, int vthreshold, int ethreshold, int tolerance,
+            SimilarityClustering clustering) {
         Map<Vertex, Vertex> integratedVertexMap = new HashMap<>();
         Map<Edge, Edge> integratedEdgeMap = new HashMap<>();
-        Set<Integer> vertexIndices = new HashSet<>();
-        Set<Integer> edgeIndices = new HashSet<>();
 
         List<Vertex> allVertices = new ArrayList<>();
         allVertices.addAll(graph1.vertexSet());
@@ -178,33 +210,23 @@ class Graph {
 
         Graph result = new Graph();
 
-        for (int i = 0; i < allVertices.size() - 1; i++) {
-            Vertex v1 = allVertices.get(i);
-            List<Vertex> commonSet = new ArrayList<>();
-            Set<Integer> tempIndices = new HashSet<>();
-            commonSet.add(v1);
-            tempIndices.add(i);
-            for (int j = i + 1; j < allVertices.size(); j++) {
-                if (vertexIndices.contains(i) || vertexIndices.contains(j)) {
-                    continue;
-                }
-                Vertex v2 = allVertices.get(j);
-                if (countCommonAnnotations(v1, v2) >= vthreshold) {
-                    commonSet.add(v2);
-                    tempIndices.add(j);
-                }
+        List<Map<String, String>> vertexAnnotations = new ArrayList<>(allVertices.size());
+        for (Vertex v : allVertices) {
+            vertexAnnotations.add(v.getAnnotations());
+        }
+        for (int[] group : clustering.cluster(vertexAnnotations, null, vthreshold)) {
+            List<Vertex> commonSet = new ArrayList<>(group.length);
+            for (int index : group) {
+                commonSet.add(allVertices.get(index));
             }
-            if (commonSet.size() > 1) {
-                vertexIndices.addAll(tempIndices);
-                Vertex integrated = integrateVertices(result, commonSet, tolerance);
-                if (integrated == null) {
-                    continue;
-                }
-                for (Vertex tempV : commonSet) {
-                    integratedVertexMap.put(tempV, integrated);
-                }
-                result.unintegratedVertices += commonSet.size();
+            Vertex integrated = integrateVertices(result, commonSet, tolerance);
+            if (integrated == null) {
+                continue;
+            }
+            for (Vertex tempV : commonSet) {
+                integratedVertexMap.put(tempV, integrated);
             }
+            result.unintegratedVertices += commonSet.size();
         }
         for (Vertex v : allVertices) {
             if (integratedVertexMap.containsKey(v)) {
@@ -221,7 +243,7 @@ class Graph {
             Vertex newSrc = e.getChildVertex();
             Vertex newDst = e.getParentVertex();
             Edge newEdge = new Edge(newSrc, newDst);
-            newEdge.getAnnotations().putAll(e.getAnnotations());
+            newEdge.addAnnotations(e.getAnnotations());
             if (integratedVertexMap.containsKey(newSrc)) {
                 newEdge.setChildVertex(integratedVertexMap.get(newSrc));
             }
@@ -230,35 +252,35 @@ class Graph {
             }
             tempEdges.add(newEdge);
         }
-        for (int i = 0; i < tempEdges.size() - 1; i++) {
-            Edge e1 = tempEdges.get(i);
-            List<Edge> commonSet = new ArrayList<>();
-            Set<Integer> tempIndices = new HashSet<>();
-            commonSet.add(e1);
-            tempIndices.add(i);
-            for (int j = i + 1; j < tempEdges.size() - 1; j++) {
-                if (edgeIndices.contains(i) || edgeIndices.contains(j)) {
-                    continue;
-                }
-                Edge e2 = tempEdges.get(j);
-                if (e1.getChildVertex().equals(e2.getChildVertex())
-                        && e1.getParentVertex().equals(e2.getParentVertex())
-                        && countCommonAnnotations(e1, e2) >= ethreshold) {
-                    commonSet.add(e2);
-                    tempIndices.add(j);
-                }
+        // only edges between the same vertices are integrated
+        Map<Map.Entry<Vertex, Vertex>, Integer> endpointBlocks = new HashMap<>();
+        List<Map<String, String>> edgeAnnotations = new ArrayList<>(tempEdges.size());
+        int[] edgeBlocks = new int[tempEdges.size()];
+        for (int i = 0; i < tempEdges.size(); i++) {
+            Edge e = tempEdges.get(i);
+            Map.Entry<Vertex, Vertex> endpoints = new AbstractMap.SimpleImmutableEntry<>(e.getChildVertex(),
+                    e.getParentVertex());
+            Integer block = endpointBlocks.get(endpoints);
+            if (block == null) {
+                block = endpointBlocks.size();
+                endpointBlocks.put(endpoints, block);
             }
-            if (commonSet.size() > 1) {
-                edgeIndices.addAll(tempIndices);
-                Edge integrated = integrateEdges(result, commonSet);
-                if (integrated == null) {
-                    continue;
-                }
-                for (Edge tempE : commonSet) {
-                    integratedEdgeMap.put(tempE, integrated);
-                }
-                result.unintegratedEdges += commonSet.size();
+            edgeBlocks[i] = block;
+            edgeAnnotations.add(e.getAnnotations());
+        }
+        for (int[] group : clustering.cluster(edgeAnnotations, edgeBlocks, ethreshold)) {
+            List<Edge> commonSet = new ArrayList<>(group.length);
+            for (int index : group) {
+                commonSet.add(tempEdges.get(index));
+            }
+            Edge integrated = integrateEdges(result, commonSet);
+            if (integrated == null) {
+                continue;
+            }
+            for (Edge tempE : commonSet) {
+                integratedEdgeMap.put(tempE, integrated);
             }
+            result.unintegratedEdges += commonSet.size();
         }
         for (Edge e : tempEdges) {
             if (integratedEdgeMap.containsKey(e)) {
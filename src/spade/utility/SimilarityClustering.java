@@ -0,0 +1,614 @@
+/*
+ -------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2014 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------------
+ */
+package spade.utility;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Groups records, each a map of annotations, that have at least a threshold number of
+ * annotations (key and value) in common, as ProvenanceIntegration does with vertices
+ * and edges. Only records in the same block are grouped.
+ *
+ * Instead of comparing every pair of records, the records that can be similar to a
+ * record are looked up in an index, by one of the Candidates methods. The candidates
+ * are compared on a fork-join pool, and the groups are kept in a union-find.
+ *
+ * With Merge.GREEDY the records are taken in order, and each record that is not in a
+ * group yet starts a group with the later records, not in a group yet, that are similar
+ * to it. With Merge.TRANSITIVE records are in the same group if there is a chain of
+ * similar records between them.
+ */
+public class SimilarityClustering {
+
+    public static enum Candidates {
+        /** Every pair of records in the same block. Exact */
+        ALL,
+        /**
+         * Records that share an annotation among the rarest (size - threshold + 1) of
+         * each. Two records with threshold annotations in common always do. Exact
+         */
+        PREFIX,
+        /** Records that share the value of one of the blocking keys */
+        KEYS,
+        /**
+         * Records that agree on all the MinHash values of one of the bands. The
+         * annotations of more than 1% of the records are left out, as they would make
+         * most records candidates
+         */
+        MINHASH
+    }
+
+    public static enum Merge {
+        GREEDY, TRANSITIVE
+    }
+
+    // number of records whose candidates are compared in parallel before they are merged
+    private static final int BATCH_SIZE = 4096;
+    // an annotation that more records have is frequent in any number of records
+    private static final int MIN_FREQUENT = 16;
+    // smallest range of records that a fork-join task splits
+    private static final int MIN_TASK_SIZE = 16;
+
+    private final Candidates candidates;
+    private final Merge merge;
+    private final Set<String> blockingKeys;
+    private final int bands, rows;
+    private final int parallelism;
+
+    private final AtomicLong candidatePairs = new AtomicLong(), similarPairs = new AtomicLong();
+
+    /**
+     * @param candidates method of finding the records that can be similar
+     * @param merge how similar records are grouped
+     * @param blockingKeys the annotation keys for Candidates.KEYS
+     * @param bands number of MinHash bands for Candidates.MINHASH
+     * @param rows number of MinHash values in a band for Candidates.MINHASH
+     * @param parallelism number of threads comparing records
+     */
+    public SimilarityClustering(Candidates candidates, Merge merge, Set<String> blockingKeys, int bands, int rows,
+            int parallelism) {
+        this.candidates = candidates;
+        this.merge = merge;
+        this.blockingKeys = blockingKeys == null ? Collections.<String>emptySet() : blockingKeys;
+        this.bands = bands;
+        this.rows = rows;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return number of pairs of records compared, in all calls to cluster
+     */
+    public long getCandidatePairCount() {
+        return candidatePairs.get();
+    }
+
+    /**
+     * @return number of pairs of records found similar, in all calls to cluster
+     */
+    public long getSimilarPairCount() {
+        return similarPairs.get();
+    }
+
+    /**
+     * @param records the annotations of the records
+     * @param blocks the block of each record, or null if all are in one block
+     * @param threshold minimum number of annotations in common of similar records
+     * @return the groups of more than one record, as the indices of the records in
+     * increasing order, ordered by their first record
+     */
+    public List<int[]> cluster(List<? extends Map<String, String>> records, int[] blocks, final int threshold) {
+        final int count = records.size();
+        final int[] recordBlocks = blocks == null ? new int[count] : blocks;
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            final Tokens tokens = new Tokens(records);
+            final Index index = new Index(pool, tokens, recordBlocks, threshold);
+            final boolean greedy = merge == Merge.GREEDY;
+            final boolean[] grouped = new boolean[count];
+            final ThreadLocal<int[]> seen = new ThreadLocal<int[]>() {
+                @Override
+                protected int[] initialValue() {
+                    return new int[count];
+                }
+            };
+            UnionFind groups = new UnionFind(count);
+            long deadSinceCompaction = 0;
+            long liveAtCompaction = count;
+
+            for (int from = 0; from < count; from += BATCH_SIZE) {
+                final int batchStart = from;
+                final int batchEnd = Math.min(count, from + BATCH_SIZE);
+                final int[][] similar = new int[batchEnd - batchStart][];
+                pool.invoke(new RangeTask(new RangeBody() {
+                    @Override
+                    protected void compute(int record) {
+                        if (greedy && grouped[record]) {
+                            return;
+                        }
+                        similar[record - batchStart] = index.similar(record, tokens.tokens, grouped, greedy,
+                                threshold, seen.get());
+                    }
+                }, batchStart, batchEnd));
+
+                for (int record = batchStart; record < batchEnd; record++) {
+                    int[] similarRecords = similar[record - batchStart];
+                    if (similarRecords == null) {
+                        continue;
+                    }
+                    similarPairs.addAndGet(similarRecords.length);
+                    if (!greedy) {
+                        for (int other : similarRecords) {
+                            groups.union(record, other);
+                        }
+                        continue;
+                    }
+                    if (grouped[record]) {
+                        continue;
+                    }
+                    for (int other : similarRecords) {
+                        if (!grouped[other]) {
+                            groups.union(record, other);
+                            grouped[other] = true;
+                            grouped[record] = true;
+                            deadSinceCompaction++;
+                        }
+                    }
+                }
+
+                // the records up to batchEnd are no longer candidates, and neither are the grouped ones
+                deadSinceCompaction += batchEnd - batchStart;
+                if (deadSinceCompaction * 4 > liveAtCompaction) {
+                    liveAtCompaction = index.compact(pool, grouped, greedy, batchEnd);
+                    deadSinceCompaction = 0;
+                }
+            }
+            return groups.groups();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static abstract class RangeBody {
+
+        protected abstract void compute(int index);
+    }
+
+    /**
+     * Calls the body for every index in the range, splitting the range between the threads
+     * of the pool.
+     */
+    private static final class RangeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 4785248667721093790L;
+
+        private final RangeBody body;
+        private final int from, to;
+
+        private RangeTask(RangeBody body, int from, int to) {
+            this.body = body;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= MIN_TASK_SIZE) {
+                for (int i = from; i < to; i++) {
+                    body.compute(i);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RangeTask(body, from, middle), new RangeTask(body, middle, to));
+        }
+    }
+
+    /**
+     * The annotations of each record as token numbers in increasing order. Tokens are
+     * numbered from the rarest to the most common.
+     */
+    private final class Tokens {
+
+        private final int[][] tokens;
+        // whether the key of the annotation of the token is a blocking key
+        private final boolean[] blocking;
+        // tokens from this one on are left out of MinHash
+        private final int firstFrequent;
+
+        private Tokens(List<? extends Map<String, String>> records) {
+            Map<String, Map<String, Integer>> ids = new HashMap<>();
+            List<String> tokenKeys = new ArrayList<>();
+            int[] frequencies = new int[1024];
+            int[][] recordTokens = new int[records.size()][];
+            for (int i = 0; i < recordTokens.length; i++) {
+                Map<String, String> annotations = records.get(i);
+                int[] current = new int[annotations.size()];
+                int size = 0;
+                for (Map.Entry<String, String> annotation : annotations.entrySet()) {
+                    Map<String, Integer> values = ids.get(annotation.getKey());
+                    if (values == null) {
+                        values = new HashMap<>();
+                        ids.put(annotation.getKey(), values);
+                    }
+                    Integer id = values.get(annotation.getValue());
+                    if (id == null) {
+                        id = tokenKeys.size();
+                        values.put(annotation.getValue(), id);
+                        tokenKeys.add(annotation.getKey());
+                        if (id == frequencies.length) {
+                            frequencies = Arrays.copyOf(frequencies, id * 2);
+                        }
+                    }
+                    frequencies[id]++;
+                    current[size++] = id;
+                }
+                recordTokens[i] = current;
+            }
+
+            int tokenCount = tokenKeys.size();
+            Integer[] byFrequency = new Integer[tokenCount];
+            for (int i = 0; i < tokenCount; i++) {
+                byFrequency[i] = i;
+            }
+            final int[] tokenFrequencies = frequencies;
+            Arrays.sort(byFrequency, new java.util.Comparator<Integer>() {
+                @Override
+                public int compare(Integer token1, Integer token2) {
+                    int result = Integer.compare(tokenFrequencies[token1], tokenFrequencies[token2]);
+                    return result != 0 ? result : Integer.compare(token1, token2);
+                }
+            });
+            int[] rank = new int[tokenCount];
+            blocking = new boolean[tokenCount];
+            int frequent = Math.max(MIN_FREQUENT, records.size() / 100);
+            int firstFrequentRank = tokenCount;
+            for (int i = 0; i < tokenCount; i++) {
+                rank[byFrequency[i]] = i;
+                blocking[i] = blockingKeys.contains(tokenKeys.get(byFrequency[i]));
+                if (firstFrequentRank == tokenCount && tokenFrequencies[byFrequency[i]] > frequent) {
+                    firstFrequentRank = i;
+                }
+            }
+            firstFrequent = firstFrequentRank;
+            for (int[] current : recordTokens) {
+                for (int i = 0; i < current.length; i++) {
+                    current[i] = rank[current[i]];
+                }
+                Arrays.sort(current);
+            }
+            tokens = recordTokens;
+        }
+    }
+
+    /**
+     * The records by candidate key. Records with a key in common are candidates. The
+     * records of a key are in increasing order, in postings from offsets[key] to
+     * offsets[key] + lengths[key].
+     */
+    private final class Index {
+
+        private final int[][] recordKeys;
+        private final int[] offsets, lengths;
+        private final int[] postings;
+
+        private Index(ForkJoinPool pool, final Tokens tokens, final int[] blocks, final int threshold) {
+            final int count = tokens.tokens.length;
+            final long[][] rawKeys = new long[count][];
+            pool.invoke(new RangeTask(new RangeBody() {
+                @Override
+                protected void compute(int record) {
+                    rawKeys[record] = candidateKeys(tokens, tokens.tokens[record], blocks[record], threshold);
+                }
+            }, 0, count));
+
+            Map<Long, Integer> keyIds = new HashMap<>();
+            int[] keyLengths = new int[1024];
+            recordKeys = new int[count][];
+            for (int record = 0; record < count; record++) {
+                long[] keys = rawKeys[record];
+                int[] ids = new int[keys.length];
+                for (int i = 0; i < keys.length; i++) {
+                    Integer id = keyIds.get(keys[i]);
+                    if (id == null) {
+                        id = keyIds.size();
+                        keyIds.put(keys[i], id);
+                        if (id == keyLengths.length) {
+                            keyLengths = Arrays.copyOf(keyLengths, id * 2);
+                        }
+                    }
+                    ids[i] = id;
+                    keyLengths[id]++;
+                }
+                recordKeys[record] = ids;
+                rawKeys[record] = null;
+            }
+
+            int keyCount = keyIds.size();
+            offsets = new int[keyCount];
+            lengths = new int[keyCount];
+            int total = 0;
+            for (int key = 0; key < keyCount; key++) {
+                offsets[key] = total;
+                total += keyLengths[key];
+            }
+            postings = new int[total];
+            for (int record = 0; record < count; record++) {
+                for (int key : recordKeys[record]) {
+                    postings[offsets[key] + lengths[key]++] = record;
+                }
+            }
+        }
+
+        private long[] candidateKeys(Tokens tokens, int[] recordTokens, int block, int threshold) {
+            if (threshold <= 0 || candidates == Candidates.ALL) {
+                return new long[]{block};
+            }
+            if (recordTokens.length < threshold) {
+                // cannot have threshold annotations in common with any record
+                return new long[0];
+            }
+            switch (candidates) {
+                case PREFIX: {
+                    long[] keys = new long[recordTokens.length - threshold + 1];
+                    for (int i = 0; i < keys.length; i++) {
+                        keys[i] = key(block, recordTokens[i]);
+                    }
+                    return keys;
+                }
+                case KEYS: {
+                    long[] keys = new long[recordTokens.length];
+                    int size = 0;
+                    for (int token : recordTokens) {
+                        if (tokens.blocking[token]) {
+                            keys[size++] = key(block, token);
+                        }
+                    }
+                    return Arrays.copyOf(keys, size);
+                }
+                default: {
+                    int length = 0;
+                    while (length < recordTokens.length && recordTokens[length] < tokens.firstFrequent) {
+                        length++;
+                    }
+                    if (length == 0) {
+                        return new long[0];
+                    }
+                    long[] keys = new long[bands];
+                    for (int band = 0; band < bands; band++) {
+                        long key = mix(((long) block << 32) | band);
+                        for (int row = 0; row < rows; row++) {
+                            long seed = mix(band * rows + row + 1);
+                            long minimum = Long.MAX_VALUE;
+                            for (int i = 0; i < length; i++) {
+                                minimum = Math.min(minimum, mix(seed ^ recordTokens[i]));
+                            }
+                            key = mix(key ^ minimum);
+                        }
+                        keys[band] = key;
+                    }
+                    return keys;
+                }
+            }
+        }
+
+        /**
+         * @return the records after the record, with a key in common, not grouped if greedy,
+         * and with at least threshold tokens in common, in increasing order
+         */
+        private int[] similar(int record, int[][] tokens, boolean[] grouped, boolean greedy, int threshold,
+                int[] seen) {
+            int[] result = null;
+            int size = 0;
+            long compared = 0;
+            // unique for the record. seen is reused for all records
+            int stamp = record + 1;
+            for (int key : recordKeys[record]) {
+                int start = offsets[key], end = start + lengths[key];
+                for (int i = firstAfter(record, start, end); i < end; i++) {
+                    int other = postings[i];
+                    if (seen[other] == stamp || (greedy && grouped[other])) {
+                        continue;
+                    }
+                    seen[other] = stamp;
+                    compared++;
+                    if (threshold > 0 && !haveInCommon(tokens[record], tokens[other], threshold)) {
+                        continue;
+                    }
+                    if (threshold <= 0 && !greedy) {
+                        // all the records of the block are similar. The next one links the record to the rest
+                        candidatePairs.addAndGet(compared);
+                        return new int[]{other};
+                    }
+                    if (result == null) {
+                        result = new int[4];
+                    } else if (size == result.length) {
+                        result = Arrays.copyOf(result, size * 2);
+                    }
+                    result[size++] = other;
+                }
+            }
+            candidatePairs.addAndGet(compared);
+            if (result == null) {
+                return null;
+            }
+            result = Arrays.copyOf(result, size);
+            Arrays.sort(result);
+            return result;
+        }
+
+        private int firstAfter(int record, int start, int end) {
+            int low = start, high = end;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (postings[middle] <= record) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Removes the records before the given one, and the grouped records if greedy.
+         *
+         * @return number of records left
+         */
+        private long compact(ForkJoinPool pool, final boolean[] grouped, final boolean greedy, final int before) {
+            pool.invoke(new RangeTask(new RangeBody() {
+                @Override
+                protected void compute(int key) {
+                    int start = offsets[key], end = start + lengths[key];
+                    int size = 0;
+                    for (int i = start; i < end; i++) {
+                        int record = postings[i];
+                        if (record >= before && !(greedy && grouped[record])) {
+                            postings[start + size++] = record;
+                        }
+                    }
+                    lengths[key] = size;
+                }
+            }, 0, offsets.length));
+            long live = 0;
+            for (int record = before; record < grouped.length; record++) {
+                if (!(greedy && grouped[record])) {
+                    live++;
+                }
+            }
+            return live;
+        }
+    }
+
+    private static long key(int block, int token) {
+        return ((long) block << 32) | (token & 0xffffffffL);
+    }
+
+    // the finalizer of MurmurHash3
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    /**
+     * @return true if the sorted arrays have at least threshold values in common
+     */
+    static boolean haveInCommon(int[] tokens1, int[] tokens2, int threshold) {
+        int i = 0, j = 0, common = 0;
+        while (i < tokens1.length && j < tokens2.length) {
+            // not enough left to reach the threshold
+            if (common + Math.min(tokens1.length - i, tokens2.length - j) < threshold) {
+                return false;
+            }
+            if (tokens1[i] < tokens2[j]) {
+                i++;
+            } else if (tokens1[i] > tokens2[j]) {
+                j++;
+            } else {
+                if (++common >= threshold) {
+                    return true;
+                }
+                i++;
+                j++;
+            }
+        }
+        return common >= threshold;
+    }
+
+    private static final class UnionFind {
+
+        private final int[] parents;
+        private final byte[] ranks;
+
+        private UnionFind(int count) {
+            parents = new int[count];
+            ranks = new byte[count];
+            for (int i = 0; i < count; i++) {
+                parents[i] = i;
+            }
+        }
+
+        private int find(int element) {
+            int root = element;
+            while (parents[root] != root) {
+                root = parents[root];
+            }
+            while (parents[element] != root) {
+                int next = parents[element];
+                parents[element] = root;
+                element = next;
+            }
+            return root;
+        }
+
+        private void union(int element1, int element2) {
+            int root1 = find(element1), root2 = find(element2);
+            if (root1 == root2) {
+                return;
+            }
+            if (ranks[root1] < ranks[root2]) {
+                parents[root1] = root2;
+            } else if (ranks[root1] > ranks[root2]) {
+                parents[root2] = root1;
+            } else {
+                parents[root2] = root1;
+                ranks[root1]++;
+            }
+        }
+
+        // the sets of more than one element, ordered by their smallest element
+        private List<int[]> groups() {
+            int count = parents.length;
+            int[] roots = new int[count];
+            int[] sizes = new int[count];
+            for (int i = 0; i < count; i++) {
+                roots[i] = find(i);
+                sizes[roots[i]]++;
+            }
+            int[][] byRoot = new int[count][];
+            int[] filled = new int[count];
+            List<int[]> result = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                int root = roots[i];
+                if (sizes[root] < 2) {
+                    continue;
+                }
+                if (byRoot[root] == null) {
+                    byRoot[root] = new int[sizes[root]];
+                    result.add(byRoot[root]);
+                }
+                byRoot[root][filled[root]++] = i;
+            }
+            return result;
+        }
+    }
+}
@@ -20,17 +20,48 @@
 
 package spade.utility;
 
-import com.google.code.externalsorting.ExternalSort;
 import spade.core.Settings;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.nio.charset.Charset;
-import java.util.Comparator;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
+/**
+ * Sorts an audit log by the time and the event id of its records.
+ *
+ * The key of a record is parsed once from 'msg=audit(1443402415.959:2435):' into two longs, the time in
+ * milliseconds and the event id. The log is split into chunks which are sorted in parallel and written
+ * to temporary files with the keys, and the chunks are then merged with a heap reading the memory-mapped
+ * chunk files. The sort is stable so the records of an event stay in the order they were in the log.
+ *
+ * A record without a key stays after the record before it. Records without a key at the start of the log
+ * are written first, as {@link AuditLogReorderer AuditLogReorderer} returns them.
+ */
 public class SortAuditLog {
 
+	private static final int BUFFER_SIZE = 1 << 16;
+	// Insertion sorted runs before merging. Audit logs are mostly in order already
+	private static final int RUN = 32;
+
 	public static void main(String[] args){
 		if(args.length < 2){
 			//temp directory is optional. if not given then read from config file and otherwise use the system temp directory
@@ -40,6 +71,32 @@ public class SortAuditLog {
 		File inputAuditLogFile = new File(args[0]);
 		File sortedOutputLogFile = new File(args[1]);
 		File tempDirectory = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int chunkSizeMB = 64;
+		boolean distinct = true;
+		try{
+			File configFile = new File(Settings.getDefaultConfigFilePath(SortAuditLog.class));
+			if(configFile.exists()){
+				Map<String, String> configProperties = FileUtility.readConfigFileAsKeyValueMap(configFile.getAbsolutePath(), "=");
+				String tempDirectoryPath = configProperties.get("tempSortingDirectory");
+				if(tempDirectoryPath != null){
+					tempDirectory = new File(tempDirectoryPath);
+				}
+				threads = CommonFunctions.parseInt(configProperties.get("threads"), threads);
+				chunkSizeMB = CommonFunctions.parseInt(configProperties.get("chunkSizeMB"), chunkSizeMB);
+				String distinctValue = configProperties.get("removeDuplicateRecords");
+				if(distinctValue != null){
+					distinct = Boolean.parseBoolean(distinctValue.trim());
+				}
+			}
+		}catch(Exception e){
+			System.err.println("Failed to read config file. Exited");
+			return;
+		}
+		if(threads < 1 || chunkSizeMB < 1 || chunkSizeMB > 1024){
+			System.err.println("Invalid 'threads' or 'chunkSizeMB' in config file. 'threads' must be positive and 'chunkSizeMB' between 1 and 1024. Exited.");
+			return;
+		}
 		if(args.length >= 3){ //passed in temp dir
 			if(args[2].trim().isEmpty()){
 				System.err.println("Invalid temp directory path in arguments");
@@ -47,29 +104,14 @@ public class SortAuditLog {
 			}else{
 				tempDirectory = new File(args[2]);
 			}
-		}else{ //didn't pass in temp directory. use the one in config file
-			try{
-				File configFile = new File(Settings.getDefaultConfigFilePath(SortAuditLog.class));
-				if(configFile.exists()){
-					Map<String, String> configProperties = FileUtility.readConfigFileAsKeyValueMap(configFile.getAbsolutePath(), "=");
-					String tempDirectoryPath = configProperties.get("tempSortingDirectory");
-					if(tempDirectoryPath != null){
-						tempDirectory = new File(tempDirectoryPath);
-					}
-				}
-			}catch(Exception e){
-				System.err.println("Failed to read config file. Exited");
+		}
+		if(tempDirectory == null){ //not in arguments or config file. Use the system temp
+			String systemTempDirectoryPath = System.getProperty("java.io.tmpdir");
+			if(systemTempDirectoryPath != null){
+				tempDirectory = new File(systemTempDirectoryPath);
+			}else{
+				System.err.println("Failed to locate a system temp directory. Exited.");
 				return;
-			}finally{
-				if(tempDirectory == null){ //failed to read the config file too. Use the system temp 
-					String systemTempDirectoryPath = System.getProperty("java.io.tmpdir");
-					if(systemTempDirectoryPath != null){
-						tempDirectory = new File(systemTempDirectoryPath);
-					}else{
-						System.err.println("Failed to locate a system temp directory. Exited.");
-						return;
-					}
-				}
 			}
 		}
 		if(!inputAuditLogFile.exists()){
@@ -84,37 +126,553 @@ public class SortAuditLog {
 				return;
 			}
 		}
-		
-		Comparator<String> comparator = new Comparator<String>(){
-			@Override
-			public int compare(String record1, String record2) {
+
+		try{
+			sort(inputAuditLogFile, sortedOutputLogFile, tempDirectory, threads, chunkSizeMB << 20, distinct);
+		}catch(Exception e){
+			System.err.print("Failed to sort log file");
+			e.printStackTrace(System.err);
+		}
+	}
+
+	/**
+	 * Sorts the records of the input log by time and event id into the output log
+	 *
+	 * @param inputAuditLogFile log to sort
+	 * @param sortedOutputLogFile file to write the sorted log to
+	 * @param tempDirectory directory for the sorted chunks
+	 * @param threads number of chunks sorted at the same time
+	 * @param chunkSize bytes of the log in a chunk. At most 'threads' chunks are in memory at a time
+	 * @param distinct true if a record is to be written only once when repeated
+	 * @return number of records written
+	 * @throws Exception IOException or InterruptedException
+	 */
+	public static long sort(File inputAuditLogFile, File sortedOutputLogFile, File tempDirectory,
+			int threads, int chunkSize, boolean distinct) throws Exception{
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		Semaphore chunksInMemory = new Semaphore(threads);
+		List<Future<File>> chunkFiles = new ArrayList<Future<File>>();
+		try(InputStream input = new FileInputStream(inputAuditLogFile);
+				SortedOutput output = new SortedOutput(new FileOutputStream(sortedOutputLogFile), distinct)){
+			// the part of the last line of the previous chunk that was read
+			byte[] previous = null;
+			int carryStart = 0, carryEnd = 0;
+			// key of the last record with a key in the previous chunks
+			long[] previousKey = null;
+			while(true){
+				chunksInMemory.acquire();
+				int length = carryEnd - carryStart;
+				byte[] data = new byte[Math.max(chunkSize, length * 2)];
+				if(previous != null){
+					System.arraycopy(previous, carryStart, data, 0, length);
+				}
+				boolean eof = false;
+				int lastNewline = -1;
+				while(true){
+					int read = input.read(data, length, data.length - length);
+					if(read < 0){
+						eof = true;
+						break;
+					}
+					length += read;
+					if(length == data.length){
+						lastNewline = lastIndexOf(data, length, (byte)'\n');
+						if(lastNewline >= 0){
+							break;
+						}
+						data = Arrays.copyOf(data, data.length * 2); // a record longer than the chunk
+					}
+				}
+				int chunkLength = eof ? length : lastNewline + 1;
+				Chunk chunk = new Chunk(data, chunkLength, previousKey, tempDirectory, chunksInMemory);
+				previousKey = lastKey(data, chunkLength, previousKey);
+				if(eof && chunkFiles.isEmpty()){
+					// the whole log fits in one chunk. No temporary file
+					chunk.sortRecords();
+					chunk.writeTo(output);
+					chunksInMemory.release();
+					return output.getRecordCount();
+				}
+				chunkFiles.add(executor.submit(chunk));
+				if(eof){
+					break;
+				}
+				previous = data;
+				carryStart = lastNewline + 1;
+				carryEnd = length;
+			}
+			List<File> files = new ArrayList<File>(chunkFiles.size());
+			for(Future<File> chunkFile : chunkFiles){
 				try{
-					//example -> type=DAEMON_START msg=audit(1443402415.959:2435):
-					int record1ColonIndex = record1.indexOf(":");
-					int record1CloseBracketIndex = record1.indexOf(")");
-					int record2ColonIndex = record2.indexOf(":");
-					int record2CloseBracketIndex = record2.indexOf(")");
-					String record1EventId = record1.substring(record1ColonIndex+1, record1CloseBracketIndex);
-					String record2EventId = record2.substring(record2ColonIndex+1, record2CloseBracketIndex);
-					Long record1EventIdLong = Long.parseLong(record1EventId);
-					Long record2EventIdLong = Long.parseLong(record2EventId);
-					return (int)(record1EventIdLong - record2EventIdLong);
+					files.add(chunkFile.get());
+				}catch(ExecutionException e){
+					throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+				}
+			}
+			merge(files, output);
+			return output.getRecordCount();
+		}finally{
+			executor.shutdown();
+			for(Future<File> chunkFile : chunkFiles){
+				try{
+					chunkFile.get().delete();
 				}catch(Exception e){
-					e.printStackTrace(System.err);
+					// failed chunk. Nothing to delete
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parses the time and the event id of the record into keys[2*index] and keys[2*index+1]
+	 *
+	 * Expected format of the record -> "type='TYPE' msg=audit('time':'eventid'):"
+	 *
+	 * @param record bytes of the record
+	 * @param start index of the first byte of the record
+	 * @param end index after the last byte of the record
+	 * @param keys array to put the key in
+	 * @param index index of the key in keys
+	 * @return true if the record has a time and an event id
+	 */
+	public static boolean parseKey(byte[] record, int start, int end, long[] keys, int index){
+		int i = start;
+		while(i < end && record[i] != '('){
+			i++;
+		}
+		i++;
+		long seconds = 0;
+		int digits = 0;
+		for(; i < end && record[i] >= '0' && record[i] <= '9'; i++, digits++){
+			seconds = seconds * 10 + (record[i] - '0');
+		}
+		if(digits == 0 || digits > 12){
+			return false;
+		}
+		long millis = 0;
+		digits = 0;
+		if(i < end && record[i] == '.'){
+			for(i++; i < end && record[i] >= '0' && record[i] <= '9'; i++){
+				if(digits < 3){
+					millis = millis * 10 + (record[i] - '0');
+					digits++;
+				}
+			}
+		}
+		for(; digits < 3; digits++){
+			millis *= 10;
+		}
+		if(i >= end || record[i] != ':'){
+			return false;
+		}
+		long eventId = 0;
+		digits = 0;
+		for(i++; i < end && record[i] >= '0' && record[i] <= '9'; i++, digits++){
+			eventId = eventId * 10 + (record[i] - '0');
+		}
+		if(digits == 0 || digits > 18 || i >= end || record[i] != ')'){
+			return false;
+		}
+		keys[2 * index] = seconds * 1000 + millis;
+		keys[2 * index + 1] = eventId;
+		return true;
+	}
+
+	/**
+	 * Same as {@link #parseKey(byte[], int, int, long[], int) parseKey} for a record that has been read as a string
+	 */
+	public static boolean parseKey(String record, long[] keys, int index){
+		int end = record.length();
+		int i = record.indexOf('(');
+		if(i < 0){
+			return false;
+		}
+		i++;
+		long seconds = 0;
+		int digits = 0;
+		for(; i < end && record.charAt(i) >= '0' && record.charAt(i) <= '9'; i++, digits++){
+			seconds = seconds * 10 + (record.charAt(i) - '0');
+		}
+		if(digits == 0 || digits > 12){
+			return false;
+		}
+		long millis = 0;
+		digits = 0;
+		if(i < end && record.charAt(i) == '.'){
+			for(i++; i < end && record.charAt(i) >= '0' && record.charAt(i) <= '9'; i++){
+				if(digits < 3){
+					millis = millis * 10 + (record.charAt(i) - '0');
+					digits++;
+				}
+			}
+		}
+		for(; digits < 3; digits++){
+			millis *= 10;
+		}
+		if(i >= end || record.charAt(i) != ':'){
+			return false;
+		}
+		long eventId = 0;
+		digits = 0;
+		for(i++; i < end && record.charAt(i) >= '0' && record.charAt(i) <= '9'; i++, digits++){
+			eventId = eventId * 10 + (record.charAt(i) - '0');
+		}
+		if(digits == 0 || digits > 18 || i >= end || record.charAt(i) != ')'){
+			return false;
+		}
+		keys[2 * index] = seconds * 1000 + millis;
+		keys[2 * index + 1] = eventId;
+		return true;
+	}
+
+	/**
+	 * Compares two keys parsed by parseKey. By time and then by event id
+	 */
+	public static int compare(long[] keys1, int index1, long[] keys2, int index2){
+		int result = Long.compare(keys1[2 * index1], keys2[2 * index2]);
+		if(result == 0){
+			result = Long.compare(keys1[2 * index1 + 1], keys2[2 * index2 + 1]);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the key of the last record with a key in the data or the given key if none
+	 */
+	private static long[] lastKey(byte[] data, int length, long[] previousKey){
+		int end = length;
+		while(end > 0){
+			int start = lastIndexOf(data, end - 1, (byte)'\n') + 1;
+			long[] key = new long[2];
+			if(parseKey(data, start, end, key, 0)){
+				return key;
+			}
+			end = start - 1;
+		}
+		return previousKey;
+	}
+
+	private static int lastIndexOf(byte[] data, int length, byte value){
+		for(int i = length - 1; i >= 0; i--){
+			if(data[i] == value){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Stable sort of the record indices in order by their keys
+	 *
+	 * Runs are sorted by insertion and then merged, skipping the merge of two runs that are already in order
+	 */
+	private static void sort(int[] order, int count, long[] keys){
+		for(int from = 0; from < count; from += RUN){
+			int to = Math.min(from + RUN, count);
+			for(int i = from + 1; i < to; i++){
+				int record = order[i];
+				int j = i - 1;
+				for(; j >= from && compare(keys, order[j], keys, record) > 0; j--){
+					order[j + 1] = order[j];
+				}
+				order[j + 1] = record;
+			}
+		}
+		int[] left = null;
+		for(int width = RUN; width < count; width *= 2){
+			for(int from = 0; from < count - width; from += 2 * width){
+				int middle = from + width;
+				int to = Math.min(from + 2 * width, count);
+				if(compare(keys, order[middle - 1], keys, order[middle]) <= 0){
+					continue;
+				}
+				if(left == null){
+					left = new int[count];
+				}
+				System.arraycopy(order, from, left, 0, width);
+				int i = 0, j = middle, k = from;
+				while(i < width && j < to){
+					order[k++] = compare(keys, left[i], keys, order[j]) <= 0 ? left[i++] : order[j++];
+				}
+				while(i < width){
+					order[k++] = left[i++];
 				}
-				return 0;
 			}
-		};
-		
-		// https://github.com/lemire/externalsortinginjava
-		
+		}
+	}
+
+	/**
+	 * Merges the sorted chunk files into the output. Records with the same key are taken from the earlier chunk first
+	 */
+	private static void merge(List<File> files, SortedOutput output) throws IOException{
+		int count = files.size();
+		ChunkReader[] readers = new ChunkReader[count];
+		int[] heap = new int[count];
+		int size = 0;
 		try{
-			List<File> l = ExternalSort.sortInBatch(inputAuditLogFile, comparator, ExternalSort.DEFAULTMAXTEMPFILES, Charset.defaultCharset(), tempDirectory, true);
-	        ExternalSort.mergeSortedFiles(l, sortedOutputLogFile, comparator);
-		}catch(Exception e){
-			System.err.print("Failed to sort log file");
-			e.printStackTrace(System.err);
+			for(int i = 0; i < count; i++){
+				readers[i] = new ChunkReader(files.get(i));
+				if(readers[i].next()){
+					heap[size++] = i;
+				}
+			}
+			for(int i = size / 2 - 1; i >= 0; i--){
+				siftDown(heap, size, i, readers);
+			}
+			while(size > 0){
+				ChunkReader first = readers[heap[0]];
+				output.write(first.key, first.record, 0, first.length);
+				if(!first.next()){
+					heap[0] = heap[--size];
+				}
+				siftDown(heap, size, 0, readers);
+			}
+		}finally{
+			for(ChunkReader reader : readers){
+				if(reader != null){
+					reader.close();
+				}
+			}
+		}
+	}
+
+	private static void siftDown(int[] heap, int size, int index, ChunkReader[] readers){
+		int chunk = heap[index];
+		while(true){
+			int child = 2 * index + 1;
+			if(child >= size){
+				break;
+			}
+			if(child + 1 < size && before(heap[child + 1], heap[child], readers)){
+				child++;
+			}
+			if(!before(heap[child], chunk, readers)){
+				break;
+			}
+			heap[index] = heap[child];
+			index = child;
+		}
+		heap[index] = chunk;
+	}
+
+	private static boolean before(int chunk1, int chunk2, ChunkReader[] readers){
+		int result = compare(readers[chunk1].key, 0, readers[chunk2].key, 0);
+		return result < 0 || (result == 0 && chunk1 < chunk2);
+	}
+
+	/**
+	 * A part of the log that ends at the end of a record. Sorted and written to a temporary file as
+	 * (time, event id, length, record) entries
+	 */
+	private static final class Chunk implements Callable<File>{
+		private final byte[] data;
+		private final int length;
+		private final long[] previousKey;
+		private final File tempDirectory;
+		private final Semaphore chunksInMemory;
+
+		private int count;
+		private int[] starts, ends;
+		private long[] keys;
+		private int[] order;
+
+		private Chunk(byte[] data, int length, long[] previousKey, File tempDirectory, Semaphore chunksInMemory){
+			this.data = data;
+			this.length = length;
+			this.previousKey = previousKey;
+			this.tempDirectory = tempDirectory;
+			this.chunksInMemory = chunksInMemory;
+		}
+
+		@Override
+		public File call() throws Exception{
+			try{
+				sortRecords();
+				File file = File.createTempFile("auditlog", ".chunk", tempDirectory);
+				try(DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE))){
+					for(int i = 0; i < count; i++){
+						int record = order[i];
+						output.writeLong(keys[2 * record]);
+						output.writeLong(keys[2 * record + 1]);
+						output.writeInt(ends[record] - starts[record]);
+						output.write(data, starts[record], ends[record] - starts[record]);
+					}
+				}catch(IOException e){
+					file.delete();
+					throw e;
+				}
+				return file;
+			}finally{
+				chunksInMemory.release();
+			}
+		}
+
+		private void sortRecords(){
+			int capacity = Math.max(16, length / 128);
+			starts = new int[capacity];
+			ends = new int[capacity];
+			keys = new long[2 * capacity];
+			count = 0;
+			int start = 0;
+			for(int i = 0; i <= length; i++){
+				if(i < length && data[i] != '\n'){
+					continue;
+				}
+				int end = i > start && data[i - 1] == '\r' ? i - 1 : i;
+				int recordStart = start;
+				start = i + 1;
+				if(end <= recordStart){
+					continue; // empty line
+				}
+				if(count == starts.length){
+					starts = Arrays.copyOf(starts, count * 2);
+					ends = Arrays.copyOf(ends, count * 2);
+					keys = Arrays.copyOf(keys, count * 4);
+				}
+				starts[count] = recordStart;
+				ends[count] = end;
+				if(!parseKey(data, recordStart, end, keys, count)){
+					if(count > 0){
+						keys[2 * count] = keys[2 * count - 2];
+						keys[2 * count + 1] = keys[2 * count - 1];
+					}else if(previousKey != null){
+						keys[0] = previousKey[0];
+						keys[1] = previousKey[1];
+					}else{
+						// records without a key at the start of the log are written first, in any number of chunks
+						keys[0] = 0;
+						keys[1] = 0;
+					}
+				}
+				count++;
+			}
+			order = new int[count];
+			for(int i = 0; i < count; i++){
+				order[i] = i;
+			}
+			sort(order, count, keys);
+		}
+
+		private void writeTo(SortedOutput output) throws IOException{
+			long[] key = new long[2];
+			for(int i = 0; i < count; i++){
+				int record = order[i];
+				key[0] = keys[2 * record];
+				key[1] = keys[2 * record + 1];
+				output.write(key, data, starts[record], ends[record] - starts[record]);
+			}
+		}
+	}
+
+	/**
+	 * Reads the entries of a chunk file through a memory-mapped window of the file
+	 */
+	private static final class ChunkReader implements Closeable{
+		private static final int WINDOW = 64 << 20;
+
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final long size;
+		private MappedByteBuffer buffer;
+		private long bufferEnd;
+		private long position;
+
+		private final long[] key = new long[2];
+		private byte[] record = new byte[512];
+		private int length;
+
+		private ChunkReader(File chunkFile) throws IOException{
+			file = new RandomAccessFile(chunkFile, "r");
+			channel = file.getChannel();
+			size = channel.size();
+		}
+
+		private boolean next() throws IOException{
+			if(position >= size){
+				return false;
+			}
+			map(20);
+			key[0] = buffer.getLong();
+			key[1] = buffer.getLong();
+			length = buffer.getInt();
+			position += 20;
+			map(length);
+			if(record.length < length){
+				record = new byte[Math.max(length, record.length * 2)];
+			}
+			buffer.get(record, 0, length);
+			position += length;
+			return true;
+		}
+
+		private void map(int bytes) throws IOException{
+			if(buffer == null || position + bytes > bufferEnd){
+				long mapSize = Math.min(size - position, Math.max(WINDOW, bytes));
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, mapSize);
+				bufferEnd = position + mapSize;
+			}
+		}
+
+		@Override
+		public void close() throws IOException{
+			buffer = null;
+			file.close();
+		}
+	}
+
+	/**
+	 * Writes the sorted records, skipping a record that is the same as the one written just before it if distinct
+	 */
+	private static final class SortedOutput implements Closeable{
+		private final OutputStream output;
+		private final boolean distinct;
+		private final long[] lastKey = new long[2];
+		private byte[] lastRecord = new byte[512];
+		private int lastLength = -1;
+		private long recordCount;
+
+		private SortedOutput(OutputStream output, boolean distinct){
+			this.output = new BufferedOutputStream(output, BUFFER_SIZE);
+			this.distinct = distinct;
+		}
+
+		private void write(long[] key, byte[] record, int offset, int length) throws IOException{
+			if(distinct){
+				if(isLast(key, record, offset, length)){
+					return;
+				}
+				if(lastRecord.length < length){
+					lastRecord = new byte[Math.max(length, lastRecord.length * 2)];
+				}
+				System.arraycopy(record, offset, lastRecord, 0, length);
+				lastLength = length;
+				lastKey[0] = key[0];
+				lastKey[1] = key[1];
+			}
+			output.write(record, offset, length);
+			output.write('\n');
+			recordCount++;
+		}
+
+		private boolean isLast(long[] key, byte[] record, int offset, int length){
+			if(length != lastLength || key[0] != lastKey[0] || key[1] != lastKey[1]){
+				return false;
+			}
+			for(int i = 0; i < length; i++){
+				if(record[offset + i] != lastRecord[i]){
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private long getRecordCount(){
+			return recordCount;
+		}
+
+		@Override
+		public void close() throws IOException{
+			output.close();
 		}
 	}
-	
 }
@@ -0,0 +1,113 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package core;
+
+import spade.core.AnnotationMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Measures the heap used per element by the annotations of Audit-like vertices
+ * and edges, with a TreeMap (the previous representation) and with AnnotationMap.
+ *
+ * Usage: java core.AnnotationFootprint [element count]
+ * Run from the SPADE root so that the Kernel config is found.
+ */
+public class AnnotationFootprint
+{
+    private static final String[] OPERATIONS = {"read", "write", "open", "close", "mmap", "connect", "send", "recv"};
+    private static final String[] SUBTYPES = {"file", "network socket", "memory", "unnamed pipe"};
+
+    public static void main(String[] args)
+    {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        long treeMapBytes = measure(count, false);
+        long annotationMapBytes = measure(count, true);
+
+        System.out.println("Elements: " + count);
+        System.out.println("TreeMap bytes per element: " + (treeMapBytes / count));
+        System.out.println("AnnotationMap bytes per element: " + (annotationMapBytes / count));
+    }
+
+    private static long measure(int count, boolean compact)
+    {
+        Random random = new Random(42);
+        long before = usedMemory();
+        List<Map<String, String>> elements = new ArrayList<>(count);
+        for(int i = 0; i < count; i++)
+        {
+            Map<String, String> map = compact ? new AnnotationMap() : new TreeMap<String, String>();
+            // Values are new String instances, as they would be when parsed from a log
+            if(i % 2 == 0)
+            {
+                map.put("type", copy("Artifact"));
+                map.put("subtype", copy(SUBTYPES[random.nextInt(SUBTYPES.length)]));
+                map.put("path", copy("/home/user/file" + random.nextInt(10000)));
+                map.put("epoch", copy(String.valueOf(random.nextInt(10))));
+                map.put("version", copy(String.valueOf(random.nextInt(100))));
+                map.put("permissions", copy("0644"));
+                map.put("source", copy("syscall"));
+            }
+            else
+            {
+                map.put("type", copy("Used"));
+                map.put("operation", copy(OPERATIONS[random.nextInt(OPERATIONS.length)]));
+                map.put("event id", copy(String.valueOf(i)));
+                map.put("time", copy("1500000000." + random.nextInt(1000)));
+                map.put("size", copy(String.valueOf(random.nextInt(4096))));
+                map.put("source", copy("syscall"));
+            }
+            if(compact)
+            {
+                ((AnnotationMap) map).trimToSize();
+            }
+            elements.add(map);
+        }
+        long after = usedMemory();
+        // Keep the elements reachable until after the measurement
+        System.out.println((compact ? "AnnotationMap" : "TreeMap") + " elements created: " + elements.size());
+        return after - before;
+    }
+
+    private static String copy(String string)
+    {
+        return new String(string.toCharArray());
+    }
+
+    private static long usedMemory()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 4; i++)
+        {
+            System.gc();
+            try
+            {
+                Thread.sleep(100);
+            }
+            catch(InterruptedException exception)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
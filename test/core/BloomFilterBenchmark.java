@@ -0,0 +1,182 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package core;
+
+import spade.core.BloomFilter;
+import spade.core.ConcurrentBloomFilter;
+import spade.core.Vertex;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares BloomFilter and ConcurrentBloomFilter on vertex hashes, as used by the
+ * Neo4j storage: time to add and to look up, measured false positive rate, and
+ * time to save and load. Then adds from several threads to ConcurrentBloomFilter
+ * and checks that nothing was lost.
+ *
+ * Usage: java core.BloomFilterBenchmark [elements] [threads]
+ */
+public class BloomFilterBenchmark
+{
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.0001;
+
+    public static void main(String[] args) throws Exception
+    {
+        int elementCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int threadCount = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        List<String> added = hashes(elementCount, "added");
+        List<String> absent = hashes(elementCount, "absent");
+
+        BloomFilter<String> oldFilter = new BloomFilter<>(FALSE_POSITIVE_PROBABILITY, elementCount);
+        long start = System.nanoTime();
+        for(String hash : added)
+        {
+            oldFilter.add(hash);
+        }
+        long addNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        int oldFalsePositives = 0;
+        for(String hash : absent)
+        {
+            if(oldFilter.contains(hash))
+            {
+                oldFalsePositives++;
+            }
+        }
+        long containsNanos = System.nanoTime() - start;
+        File oldFile = File.createTempFile("bloomfilter-old", null);
+        start = System.nanoTime();
+        try(ObjectOutputStream output = new ObjectOutputStream(new FileOutputStream(oldFile)))
+        {
+            output.writeObject(oldFilter);
+        }
+        long saveNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        try(ObjectInputStream input = new ObjectInputStream(new FileInputStream(oldFile)))
+        {
+            input.readObject();
+        }
+        long loadNanos = System.nanoTime() - start;
+        report("BloomFilter          ", elementCount, addNanos, containsNanos, oldFalsePositives, saveNanos, loadNanos,
+                oldFile.length());
+        oldFile.delete();
+
+        ConcurrentBloomFilter newFilter = new ConcurrentBloomFilter(FALSE_POSITIVE_PROBABILITY, elementCount);
+        start = System.nanoTime();
+        for(String hash : added)
+        {
+            newFilter.add(hash);
+        }
+        addNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        int newFalsePositives = 0;
+        for(String hash : absent)
+        {
+            if(newFilter.contains(hash))
+            {
+                newFalsePositives++;
+            }
+        }
+        containsNanos = System.nanoTime() - start;
+        File newFile = File.createTempFile("bloomfilter-new", null);
+        start = System.nanoTime();
+        newFilter.save(newFile);
+        saveNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        ConcurrentBloomFilter loaded = ConcurrentBloomFilter.load(newFile);
+        loadNanos = System.nanoTime() - start;
+        report("ConcurrentBloomFilter", elementCount, addNanos, containsNanos, newFalsePositives, saveNanos, loadNanos,
+                newFile.length());
+        newFile.delete();
+        int missing = 0;
+        for(String hash : added)
+        {
+            if(!loaded.contains(hash))
+            {
+                missing++;
+            }
+        }
+        System.out.println("Loaded filter: " + loaded.count() + " elements, missing after load: " + missing);
+
+        final ConcurrentBloomFilter sharedFilter = new ConcurrentBloomFilter(FALSE_POSITIVE_PROBABILITY, elementCount);
+        final List<List<String>> slices = new ArrayList<>();
+        for(int i = 0; i < threadCount; i++)
+        {
+            slices.add(added.subList(i * elementCount / threadCount, (i + 1) * elementCount / threadCount));
+        }
+        List<Thread> threads = new ArrayList<>();
+        start = System.nanoTime();
+        for(final List<String> slice : slices)
+        {
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for(String hash : slice)
+                    {
+                        sharedFilter.add(hash);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for(Thread thread : threads)
+        {
+            thread.join();
+        }
+        addNanos = System.nanoTime() - start;
+        missing = 0;
+        for(String hash : added)
+        {
+            if(!sharedFilter.contains(hash))
+            {
+                missing++;
+            }
+        }
+        System.out.println(threadCount + " threads: " + addNanos / elementCount + " ns per add, missing: " + missing);
+    }
+
+    private static void report(String name, int elementCount, long addNanos, long containsNanos, int falsePositives,
+                               long saveNanos, long loadNanos, long fileSize)
+    {
+        System.out.println(String.format("%s: add %d ns, contains %d ns, false positive rate %.5f, "
+                        + "save %d ms, load %d ms, file %d KB", name, addNanos / elementCount,
+                containsNanos / elementCount, (double) falsePositives / elementCount, saveNanos / 1000000,
+                loadNanos / 1000000, fileSize / 1024));
+    }
+
+    private static List<String> hashes(int count, String prefix)
+    {
+        List<String> hashes = new ArrayList<>(count);
+        for(int i = 0; i < count; i++)
+        {
+            Vertex vertex = new Vertex();
+            vertex.addAnnotation("name", prefix + i);
+            hashes.add(vertex.bigHashCode());
+        }
+        return hashes;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package core;
+
+import org.junit.jupiter.api.Test;
+import spade.core.ConcurrentBloomFilter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests spade.core.ConcurrentBloomFilter: no false negatives, a false positive rate
+ * close to the one asked for, adds from several threads, save and load, and the
+ * MurmurHash3 x64 128-bit hash of byte arrays against its reference values.
+ */
+class ConcurrentBloomFilterTest {
+
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.001;
+
+    @Test
+    void addedElementsAreFoundAndOthersRarelyAre() {
+        int count = 20000;
+        ConcurrentBloomFilter filter = new ConcurrentBloomFilter(FALSE_POSITIVE_PROBABILITY, 2 * count);
+        for (int i = 0; i < count; i++) {
+            filter.add("added" + i);
+            filter.add(("bytes" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        for (int i = 0; i < count; i++) {
+            assertTrue(filter.contains("added" + i), "added" + i);
+            assertTrue(filter.contains(("bytes" + i).getBytes(StandardCharsets.UTF_8)), "bytes" + i);
+            // adding again changes no bit
+            assertFalse(filter.add("added" + i), "added" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < count; i++) {
+            if (filter.contains("absent" + i)) {
+                falsePositives++;
+            }
+            if (filter.contains(("absent" + i).getBytes(StandardCharsets.UTF_8))) {
+                falsePositives++;
+            }
+        }
+        double rate = falsePositives / (2.0 * count);
+        assertTrue(rate < 2 * FALSE_POSITIVE_PROBABILITY, "false positive rate " + rate);
+        // adds that hit a false positive set no bit and are not counted
+        assertTrue(filter.count() > 2 * count * (1 - 2 * FALSE_POSITIVE_PROBABILITY), "count " + filter.count());
+        assertTrue(filter.getFalsePositiveProbability() < 2 * FALSE_POSITIVE_PROBABILITY);
+
+        filter.clear();
+        assertEquals(0, filter.count());
+        assertFalse(filter.contains("added0"));
+    }
+
+    @Test
+    void addsFromSeveralThreadsAreKept() throws InterruptedException {
+        final int perThread = 50000;
+        final ConcurrentBloomFilter filter = new ConcurrentBloomFilter(FALSE_POSITIVE_PROBABILITY, 4 * perThread);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    filter.add(thread + ":" + i);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int t = 0; t < 4; t++) {
+            for (int i = 0; i < perThread; i++) {
+                assertTrue(filter.contains(t + ":" + i), t + ":" + i);
+            }
+        }
+    }
+
+    @Test
+    void savedFilterLoadsTheSame() throws IOException {
+        ConcurrentBloomFilter filter = new ConcurrentBloomFilter(FALSE_POSITIVE_PROBABILITY, 1000);
+        for (int i = 0; i < 1000; i++) {
+            filter.add("added" + i);
+        }
+        File file = File.createTempFile("bloomfilter", null);
+        try {
+            filter.save(file);
+            ConcurrentBloomFilter loaded = ConcurrentBloomFilter.load(file);
+            assertEquals(filter.getBitCount(), loaded.getBitCount());
+            assertEquals(filter.getHashCount(), loaded.getHashCount());
+            assertEquals(filter.count(), loaded.count());
+            for (int i = 0; i < 2000; i++) {
+                assertEquals(filter.contains("added" + i), loaded.contains("added" + i), "added" + i);
+            }
+
+            try (FileOutputStream output = new FileOutputStream(file)) {
+                output.write("not a Bloom filter, but longer than the header".getBytes(StandardCharsets.UTF_8));
+            }
+            assertThrows(IOException.class, () -> ConcurrentBloomFilter.load(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    void bytesAreHashedWithMurmur3() {
+        // MurmurHash3_x64_128 with seed 0 from the reference implementation, as h1 and h2
+        String[] inputs = {"", "hello", "The quick brown fox jumps over the lazy dog"};
+        long[][] hashes = {
+                {0L, 0L},
+                {0xcbd8a7b341bd9b02L, 0x5b1e906a48ae1d19L},
+                {0xe34bbc7bbc071b6cL, 0x7a433ca9c49a9347L}};
+        for (int i = 0; i < inputs.length; i++) {
+            byte[] bytes = inputs[i].getBytes(StandardCharsets.UTF_8);
+            ConcurrentBloomFilter byBytes = new ConcurrentBloomFilter(FALSE_POSITIVE_PROBABILITY, 1);
+            byBytes.add(bytes);
+            assertTrue(byBytes.contains(hashes[i][0], hashes[i][1]), inputs[i]);
+            ConcurrentBloomFilter byHash = new ConcurrentBloomFilter(FALSE_POSITIVE_PROBABILITY, 1);
+            byHash.add(hashes[i][0], hashes[i][1]);
+            assertTrue(byHash.contains(bytes), inputs[i]);
+            // and nothing else in such a small filter
+            assertFalse(byHash.contains((inputs[i] + ".").getBytes(StandardCharsets.UTF_8)), inputs[i]);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package core;
+
+import org.junit.jupiter.api.Test;
+import spade.core.AbstractVertex;
+import spade.core.MatrixFilter;
+import spade.core.Vertex;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that the copy of a spade.core.MatrixFilter kept up to date with writeDelta and
+ * readDelta is the same as the filter, and that deltas which do not apply to a copy
+ * are rejected or left out.
+ */
+class MatrixFilterDeltaTest {
+
+    @Test
+    void fullDeltaCopiesTheFilter() throws IOException {
+        MatrixFilter filter = filter(0, 50);
+        MatrixFilter copy = readDelta(delta(filter, 0, 0), null);
+        assertSameFilter(filter, copy);
+        assertTrue(isFull(delta(filter, 0, 0)));
+    }
+
+    @Test
+    void partialDeltaSendsOnlyTheChanges() throws IOException {
+        MatrixFilter filter = filter(0, 50);
+        MatrixFilter copy = readDelta(delta(filter, 0, 0), null);
+        long knownVersion = copy.getVersion();
+        add(filter, 50, 55);
+
+        byte[] delta = delta(filter, copy.getInstanceId(), knownVersion);
+        assertFalse(isFull(delta));
+        assertTrue(delta.length < delta(filter, 0, 0).length);
+        assertSame(copy, readDelta(delta, copy));
+        assertSameFilter(filter, copy);
+
+        // nothing changed since
+        byte[] empty = delta(filter, copy.getInstanceId(), copy.getVersion());
+        assertFalse(isFull(empty));
+        assertEquals(0, filterCount(empty));
+        readDelta(empty, copy);
+        assertSameFilter(filter, copy);
+    }
+
+    @Test
+    void deltaAfterClearIsFull() throws IOException {
+        MatrixFilter filter = filter(0, 50);
+        MatrixFilter copy = readDelta(delta(filter, 0, 0), null);
+        filter.clear();
+        add(filter, 100, 105);
+
+        byte[] delta = delta(filter, copy.getInstanceId(), copy.getVersion());
+        assertTrue(isFull(delta));
+        readDelta(delta, copy);
+        // the bits set before clear() are gone from the copy too
+        assertSameFilter(filter, copy);
+        assertFalse(hasAncestor(copy, 0));
+        assertTrue(hasAncestor(copy, 100));
+    }
+
+    @Test
+    void partialDeltaOfUnknownFilterIsRejected() throws IOException {
+        MatrixFilter filter = filter(0, 50);
+        final MatrixFilter other = filter(0, 10);
+        MatrixFilter copy = readDelta(delta(filter, 0, 0), null);
+        long knownVersion = copy.getVersion();
+        add(filter, 50, 55);
+        final byte[] delta = delta(filter, copy.getInstanceId(), knownVersion);
+
+        assertThrows(IOException.class, () -> readDelta(delta, null));
+        // a copy of another filter
+        assertThrows(IOException.class, () -> readDelta(delta, other));
+    }
+
+    @Test
+    void staleRelayedDeltaIsNotApplied() throws IOException {
+        MatrixFilter filter = filter(0, 50);
+        // a copy that another host received and relays later
+        byte[] stale = delta(filter, 0, 0);
+        add(filter, 50, 55);
+        MatrixFilter copy = readDelta(delta(filter, 0, 0), null);
+        long version = copy.getVersion();
+
+        assertSame(copy, readDelta(stale, copy));
+        assertEquals(version, copy.getVersion());
+        assertSameFilter(filter, copy);
+        assertTrue(hasAncestor(copy, 54));
+        assertFalse(hasAncestor(readDelta(stale, null), 54));
+    }
+
+    private static MatrixFilter filter(int from, int to) {
+        MatrixFilter filter = new MatrixFilter(0.1, 100);
+        add(filter, from, to);
+        return filter;
+    }
+
+    private static void add(MatrixFilter filter, int from, int to) {
+        for (int i = from; i < to; i++) {
+            filter.add(vertex(i), vertex(i + 1000));
+        }
+    }
+
+    private static boolean hasAncestor(MatrixFilter filter, int id) {
+        return filter.get(vertex(id)).contains(vertex(id + 1000));
+    }
+
+    // a network vertex, as the filter is keyed by the hosts and ports of a connection
+    private static AbstractVertex vertex(int id) {
+        AbstractVertex vertex = new Vertex();
+        vertex.addAnnotation("subtype", "network socket");
+        vertex.addAnnotation("source host", "10.0.0.1");
+        vertex.addAnnotation("source port", String.valueOf(id));
+        vertex.addAnnotation("destination host", "10.0.0.2");
+        vertex.addAnnotation("destination port", "80");
+        return vertex;
+    }
+
+    private static void assertSameFilter(MatrixFilter expected, MatrixFilter actual) {
+        assertEquals(expected, actual);
+        assertEquals(expected.getInstanceId(), actual.getInstanceId());
+        assertEquals(expected.getVersion(), actual.getVersion());
+        assertEquals(expected.count(), actual.count());
+        assertNotEquals(0L, expected.getVersion());
+    }
+
+    private static byte[] delta(MatrixFilter filter, long knownInstanceId, long knownVersion) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        filter.writeDelta(out, knownInstanceId, knownVersion);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static DataInputStream in(byte[] delta) {
+        return new DataInputStream(new ByteArrayInputStream(delta));
+    }
+
+    private static MatrixFilter readDelta(byte[] delta, MatrixFilter copy) throws IOException {
+        return MatrixFilter.readDelta(in(delta), copy);
+    }
+
+    // instance id, version, filters per element, expected elements, k, added elements, full, filter count
+    private static boolean isFull(byte[] delta) throws IOException {
+        DataInputStream in = in(delta);
+        in.skipBytes(8 + 8 + 8 + 4 + 4 + 4);
+        return in.readBoolean();
+    }
+
+    private static int filterCount(byte[] delta) throws IOException {
+        DataInputStream in = in(delta);
+        in.skipBytes(8 + 8 + 8 + 4 + 4 + 4 + 1);
+        return in.readInt();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package core;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractTransformer;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Graph;
+import spade.core.Vertex;
+import spade.reporter.audit.OPMConstants;
+import spade.transformer.DropKeys;
+import spade.transformer.LastName;
+import spade.transformer.NoMemory;
+import spade.transformer.NoUnits;
+import spade.transformer.NoVersions;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares a typical transformer chain applied one transformer at a time, with a
+ * new graph per transformer, against the same chain applied in one pass. Prints
+ * the time and the bytes allocated by each, and checks that the results are equal.
+ *
+ * Usage: java core.TransformerBenchmark [process count] [repetitions]
+ */
+public class TransformerBenchmark
+{
+    public static void main(String[] args)
+    {
+        int processCount = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        List<AbstractTransformer> transformers = new ArrayList<>();
+        transformers.add(new NoUnits());
+        transformers.add(new NoVersions());
+        transformers.add(new NoMemory());
+        transformers.add(new LastName());
+        DropKeys dropKeys = new DropKeys();
+        dropKeys.initialize("keys=" + OPMConstants.EDGE_TIME + "," + OPMConstants.EDGE_SIZE);
+        transformers.add(dropKeys);
+
+        Graph graph = createGraph(processCount);
+        System.out.println("Graph: " + graph.vertexSet().size() + " vertices and " + graph.edgeSet().size()
+                + " edges. Transformers: " + transformers.size());
+
+        Graph chained = null;
+        Graph fused = null;
+        for(int i = 0; i < repetitions; i++)
+        {
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            chained = graph;
+            for(AbstractTransformer transformer : transformers)
+            {
+                chained = transformer.putGraph(chained, null);
+            }
+            report("one at a time", start, bytes);
+
+            bytes = allocatedBytes();
+            start = System.nanoTime();
+            fused = AbstractTransformer.transformElements(transformers, graph, null);
+            report("one pass     ", start, bytes);
+        }
+        boolean equal = chained.vertexSet().equals(fused.vertexSet()) && chained.edgeSet().equals(fused.edgeSet());
+        System.out.println("Results: " + fused.vertexSet().size() + " vertices and " + fused.edgeSet().size()
+                + " edges. Equal: " + equal);
+    }
+
+    private static void report(String mode, long start, long bytes)
+    {
+        long millis = (System.nanoTime() - start) / 1000000;
+        long megabytes = (allocatedBytes() - bytes) / (1024 * 1024);
+        System.out.println(mode + ": " + millis + " ms, " + megabytes + " MB allocated");
+    }
+
+    private static long allocatedBytes()
+    {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Every process reads a shared library, writes a file twice (the second write
+     * creates a new version), maps memory and has a unit.
+     */
+    private static Graph createGraph(int processCount)
+    {
+        Graph graph = new Graph();
+        AbstractVertex library = artifact(OPMConstants.SUBTYPE_FILE, "/lib/libc.so", "0");
+        graph.putVertex(library);
+        for(int i = 0; i < processCount; i++)
+        {
+            AbstractVertex process = new Vertex();
+            process.addAnnotation(OPMConstants.TYPE, OPMConstants.PROCESS);
+            process.addAnnotation(OPMConstants.PROCESS_PID, String.valueOf(i));
+            process.addAnnotation(OPMConstants.PROCESS_NAME, "worker");
+            process.addAnnotation(OPMConstants.PROCESS_UNIT, "0");
+            AbstractVertex unit = new Vertex();
+            unit.addAnnotations(process.getAnnotations());
+            unit.addAnnotation(OPMConstants.PROCESS_UNIT, "1");
+            AbstractVertex file = artifact(OPMConstants.SUBTYPE_FILE, "/tmp/out" + i, "0");
+            AbstractVertex newFile = artifact(OPMConstants.SUBTYPE_FILE, "/tmp/out" + i, "1");
+            AbstractVertex memory = artifact(OPMConstants.SUBTYPE_MEMORY_ADDRESS, null, "0");
+            memory.addAnnotation(OPMConstants.ARTIFACT_MEMORY_ADDRESS, Integer.toHexString(i));
+            graph.putVertex(process);
+            graph.putVertex(unit);
+            graph.putVertex(file);
+            graph.putVertex(newFile);
+            graph.putVertex(memory);
+            graph.putEdge(edge(process, library, OPMConstants.USED, OPMConstants.OPERATION_READ, i));
+            graph.putEdge(edge(file, process, OPMConstants.WAS_GENERATED_BY, OPMConstants.OPERATION_WRITE, i));
+            graph.putEdge(edge(newFile, file, OPMConstants.WAS_DERIVED_FROM, OPMConstants.OPERATION_UPDATE, i));
+            graph.putEdge(edge(memory, process, OPMConstants.WAS_GENERATED_BY, OPMConstants.OPERATION_MMAP, i));
+            graph.putEdge(edge(unit, process, OPMConstants.WAS_TRIGGERED_BY, OPMConstants.OPERATION_UNIT, i));
+        }
+        return graph;
+    }
+
+    private static AbstractVertex artifact(String subtype, String path, String version)
+    {
+        AbstractVertex artifact = new Vertex();
+        artifact.addAnnotation(OPMConstants.TYPE, OPMConstants.ARTIFACT);
+        artifact.addAnnotation(OPMConstants.ARTIFACT_SUBTYPE, subtype);
+        if(path != null)
+        {
+            artifact.addAnnotation(OPMConstants.ARTIFACT_PATH, path);
+        }
+        artifact.addAnnotation(OPMConstants.ARTIFACT_VERSION, version);
+        return artifact;
+    }
+
+    private static AbstractEdge edge(AbstractVertex child, AbstractVertex parent, String type, String operation, int i)
+    {
+        AbstractEdge edge = new Edge(child, parent);
+        edge.addAnnotation(OPMConstants.TYPE, type);
+        edge.addAnnotation(OPMConstants.EDGE_OPERATION, operation);
+        edge.addAnnotation(OPMConstants.EDGE_TIME, String.valueOf(1500000000 + i));
+        edge.addAnnotation(OPMConstants.EDGE_SIZE, String.valueOf(i % 4096));
+        return edge;
+    }
+}
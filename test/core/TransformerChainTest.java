@@ -0,0 +1,225 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package core;
+
+import org.junit.jupiter.api.Test;
+import spade.core.AbstractEdge;
+import spade.core.AbstractTransformer;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Graph;
+import spade.core.Vertex;
+import spade.reporter.audit.OPMConstants;
+import spade.transformer.DropKeys;
+import spade.transformer.LastName;
+import spade.transformer.NoMemory;
+import spade.transformer.NoUnits;
+import spade.transformer.NoVersions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests that AbstractTransformer.transformElements applies a chain of element-wise
+ * transformers in one pass with the same result as applying them one at a time, and
+ * that the input graph is left as it was.
+ */
+class TransformerChainTest {
+
+    @Test
+    void chainRemovesAndRewritesElements() {
+        Graph graph = new Graph();
+        AbstractVertex process = process("0");
+        AbstractVertex unit = process("1");
+        AbstractVertex file = artifact(OPMConstants.SUBTYPE_FILE, "/tmp/out", "0");
+        AbstractVertex newFile = artifact(OPMConstants.SUBTYPE_FILE, "/tmp/out", "1");
+        AbstractVertex memory = artifact(OPMConstants.SUBTYPE_MEMORY_ADDRESS, null, "0");
+        AbstractVertex library = artifact(OPMConstants.SUBTYPE_FILE, "/lib/libc.so", "0");
+        AbstractVertex isolated = artifact(OPMConstants.SUBTYPE_FILE, "/etc/passwd", "0");
+        for (AbstractVertex vertex : Arrays.asList(process, unit, file, newFile, memory, library, isolated)) {
+            graph.putVertex(vertex);
+        }
+        graph.putEdge(edge(unit, process, OPMConstants.WAS_TRIGGERED_BY, OPMConstants.OPERATION_UNIT));
+        graph.putEdge(edge(file, process, OPMConstants.WAS_GENERATED_BY, OPMConstants.OPERATION_WRITE));
+        graph.putEdge(edge(newFile, file, OPMConstants.WAS_DERIVED_FROM, OPMConstants.OPERATION_UPDATE));
+        graph.putEdge(edge(memory, process, OPMConstants.WAS_GENERATED_BY, OPMConstants.OPERATION_MMAP));
+        graph.putEdge(edge(process, library, OPMConstants.USED,
+                OPMConstants.buildOperation(OPMConstants.OPERATION_MMAP, OPMConstants.OPERATION_READ)));
+        Set<String> before = describe(graph);
+
+        Graph result = AbstractTransformer.transformElements(chain(), graph, null);
+
+        AbstractVertex expectedProcess = process(null);
+        AbstractVertex expectedFile = artifact(OPMConstants.SUBTYPE_FILE, "/tmp/out", null);
+        AbstractEdge expectedEdge = new Edge(expectedFile, expectedProcess);
+        expectedEdge.addAnnotation(OPMConstants.TYPE, OPMConstants.WAS_GENERATED_BY);
+        expectedEdge.addAnnotation(OPMConstants.EDGE_OPERATION, OPMConstants.OPERATION_WRITE);
+        assertEquals(new HashSet<>(Arrays.asList(expectedProcess, expectedFile)), result.vertexSet());
+        assertEquals(new HashSet<>(Arrays.asList(expectedEdge)), result.edgeSet());
+        assertEquals(before, describe(graph));
+
+        // a chain that only rewrites keeps every vertex, even those without edges
+        Graph rewritten = AbstractTransformer.transformElements(
+                Arrays.<AbstractTransformer>asList(dropKeys()), graph, null);
+        assertEquals(graph.vertexSet(), rewritten.vertexSet());
+        assertEquals(graph.edgeSet().size(), rewritten.edgeSet().size());
+        for (AbstractEdge edge : rewritten.edgeSet()) {
+            assertEquals(null, edge.getAnnotation(OPMConstants.EDGE_TIME));
+            assertEquals(null, edge.getAnnotation(OPMConstants.EDGE_SIZE));
+        }
+        assertEquals(before, describe(graph));
+    }
+
+    @Test
+    void onePassMatchesOneAtATimeInEveryOrder() {
+        Graph graph = graph(50);
+        Set<String> before = describe(graph);
+        List<List<AbstractTransformer>> orders = new ArrayList<>();
+        permutations(chain(), 0, orders);
+        assertEquals(120, orders.size());
+        for (List<AbstractTransformer> order : orders) {
+            Graph expected = graph;
+            for (AbstractTransformer transformer : order) {
+                expected = transformer.putGraph(expected, null);
+            }
+            Graph actual = AbstractTransformer.transformElements(order, graph, null);
+            assertEquals(describe(expected), describe(actual), order.toString());
+            assertEquals(expected.vertexSet(), actual.vertexSet(), order.toString());
+            assertEquals(expected.edgeSet(), actual.edgeSet(), order.toString());
+        }
+        assertEquals(before, describe(graph));
+    }
+
+    private static List<AbstractTransformer> chain() {
+        return new ArrayList<>(Arrays.asList(new NoUnits(), new NoVersions(), new NoMemory(), new LastName(),
+                dropKeys()));
+    }
+
+    private static AbstractTransformer dropKeys() {
+        DropKeys dropKeys = new DropKeys();
+        dropKeys.initialize("keys=" + OPMConstants.EDGE_TIME + "," + OPMConstants.EDGE_SIZE);
+        return dropKeys;
+    }
+
+    private static void permutations(List<AbstractTransformer> transformers, int from,
+                                     List<List<AbstractTransformer>> orders) {
+        if (from == transformers.size()) {
+            orders.add(new ArrayList<>(transformers));
+            return;
+        }
+        for (int i = from; i < transformers.size(); i++) {
+            AbstractTransformer swap = transformers.get(from);
+            transformers.set(from, transformers.get(i));
+            transformers.set(i, swap);
+            permutations(transformers, from + 1, orders);
+            transformers.set(i, transformers.get(from));
+            transformers.set(from, swap);
+        }
+    }
+
+    // the shape of TransformerBenchmark's graph, plus processes without edges
+    private static Graph graph(int processCount) {
+        Graph graph = new Graph();
+        AbstractVertex library = artifact(OPMConstants.SUBTYPE_FILE, "/lib/libc.so", "0");
+        graph.putVertex(library);
+        for (int i = 0; i < processCount; i++) {
+            AbstractVertex process = process("0");
+            process.addAnnotation(OPMConstants.PROCESS_PID, String.valueOf(i));
+            AbstractVertex unit = new Vertex();
+            unit.addAnnotations(process.getAnnotations());
+            unit.addAnnotation(OPMConstants.PROCESS_UNIT, "1");
+            AbstractVertex file = artifact(OPMConstants.SUBTYPE_FILE, "/tmp/out" + i % 7, "0");
+            AbstractVertex newFile = artifact(OPMConstants.SUBTYPE_FILE, "/tmp/out" + i % 7, String.valueOf(i));
+            AbstractVertex memory = artifact(OPMConstants.SUBTYPE_MEMORY_ADDRESS, null, "0");
+            memory.addAnnotation(OPMConstants.ARTIFACT_MEMORY_ADDRESS, Integer.toHexString(i));
+            for (AbstractVertex vertex : Arrays.asList(process, unit, file, newFile, memory)) {
+                graph.putVertex(vertex);
+            }
+            String[] operations = {OPMConstants.OPERATION_READ, OPMConstants.OPERATION_MMAP,
+                    OPMConstants.buildOperation(OPMConstants.OPERATION_MMAP, OPMConstants.OPERATION_READ)};
+            graph.putEdge(edge(process, library, OPMConstants.USED, operations[i % operations.length]));
+            graph.putEdge(edge(file, process, OPMConstants.WAS_GENERATED_BY, OPMConstants.OPERATION_WRITE));
+            graph.putEdge(edge(newFile, file, OPMConstants.WAS_DERIVED_FROM, OPMConstants.OPERATION_UPDATE));
+            graph.putEdge(edge(memory, process, OPMConstants.WAS_GENERATED_BY, OPMConstants.OPERATION_MMAP));
+            graph.putEdge(edge(unit, process, OPMConstants.WAS_TRIGGERED_BY, OPMConstants.OPERATION_UNIT));
+            graph.putEdge(edge(newFile, unit, OPMConstants.WAS_GENERATED_BY, OPMConstants.OPERATION_WRITE));
+            if (i % 5 == 0) {
+                AbstractVertex idle = process("0");
+                idle.addAnnotation(OPMConstants.PROCESS_PID, String.valueOf(-i));
+                graph.putVertex(idle);
+            }
+        }
+        return graph;
+    }
+
+    private static AbstractVertex process(String unit) {
+        AbstractVertex process = new Vertex();
+        process.addAnnotation(OPMConstants.TYPE, OPMConstants.PROCESS);
+        process.addAnnotation(OPMConstants.PROCESS_PID, "1");
+        if (unit != null) {
+            process.addAnnotation(OPMConstants.PROCESS_UNIT, unit);
+        }
+        return process;
+    }
+
+    private static AbstractVertex artifact(String subtype, String path, String version) {
+        AbstractVertex artifact = new Vertex();
+        artifact.addAnnotation(OPMConstants.TYPE, OPMConstants.ARTIFACT);
+        artifact.addAnnotation(OPMConstants.ARTIFACT_SUBTYPE, subtype);
+        if (path != null) {
+            artifact.addAnnotation(OPMConstants.ARTIFACT_PATH, path);
+        }
+        if (version != null) {
+            artifact.addAnnotation(OPMConstants.ARTIFACT_VERSION, version);
+        }
+        return artifact;
+    }
+
+    private static AbstractEdge edge(AbstractVertex child, AbstractVertex parent, String type, String operation) {
+        AbstractEdge edge = new Edge(child, parent);
+        edge.addAnnotation(OPMConstants.TYPE, type);
+        edge.addAnnotation(OPMConstants.EDGE_OPERATION, operation);
+        edge.addAnnotation(OPMConstants.EDGE_TIME, "1500000000");
+        edge.addAnnotation(OPMConstants.EDGE_SIZE, "4096");
+        return edge;
+    }
+
+    // the annotations of every vertex, and of every edge with its end points
+    private static Set<String> describe(Graph graph) {
+        Set<String> description = new HashSet<>();
+        for (AbstractVertex vertex : graph.vertexSet()) {
+            description.add(new HashMap<>(vertex.getAnnotations()).toString());
+        }
+        for (AbstractEdge edge : graph.edgeSet()) {
+            Map<String, String> child = new HashMap<>(edge.getChildVertex().getAnnotations());
+            Map<String, String> parent = new HashMap<>(edge.getParentVertex().getAnnotations());
+            description.add(child + " -" + new HashMap<>(edge.getAnnotations()) + "-> " + parent);
+        }
+        return description;
+    }
+}
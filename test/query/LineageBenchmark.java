@@ -0,0 +1,125 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package query;
+
+import spade.core.AbstractAnalyzer;
+import spade.core.AbstractEdge;
+import spade.core.AbstractQuery;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Graph;
+import spade.core.Vertex;
+import spade.query.common.GetLineage;
+import spade.storage.PostgreSQL;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the time taken by GetLineage in its different modes on a synthetic
+ * process tree stored in PostgreSQL:
+ *
+ * vertex    - one query per vertex and one per edge
+ * frontier  - one query for the edges and one for the vertices per depth
+ * recursive - one recursive query for the whole lineage
+ *
+ * The tree has the given number of edges and every process has 'fanout' children,
+ * so the descendants of the root up to the given depth are a fan-out lineage.
+ *
+ * Usage: java query.LineageBenchmark [edge count] [fanout] [depth] [modes] [storage arguments]
+ */
+public class LineageBenchmark
+{
+    private static final int BATCH_SIZE = 10000;
+
+    public static void main(String[] args)
+    {
+        int edgeCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int fanout = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int depth = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        String[] modes = (args.length > 3 ? args[3] : "recursive,frontier,vertex").split(",");
+        String arguments = args.length > 4 ? args[4] : "";
+
+        PostgreSQL storage = new PostgreSQL();
+        if(!storage.initialize(arguments))
+        {
+            System.err.println("Unable to initialize PostgreSQL");
+            return;
+        }
+        String run = "lineage" + System.nanoTime();
+        long start = System.nanoTime();
+        populate(storage, run, edgeCount, fanout);
+        System.out.println("Stored " + (edgeCount + 1) + " vertices and " + edgeCount + " edges in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+
+        AbstractQuery.setCurrentStorage(storage);
+        GetLineage getLineage = new GetLineage();
+        for(String mode : modes)
+        {
+            AbstractAnalyzer.LINEAGE_MODE = mode.trim();
+            start = System.nanoTime();
+            Graph lineage = getLineage.execute("name = " + run + "-0, " + depth + ", descendants");
+            long millis = (System.nanoTime() - start) / 1000000;
+            if(lineage == null)
+            {
+                System.out.println(mode + ": failed");
+                continue;
+            }
+            System.out.println(mode + ": " + lineage.vertexSet().size() + " vertices and "
+                    + lineage.edgeSet().size() + " edges in " + millis + " ms");
+        }
+        storage.shutdown();
+    }
+
+    /**
+     * Stores a tree in which the parent of process i is process (i - 1) / fanout.
+     */
+    private static void populate(PostgreSQL storage, String run, int edgeCount, int fanout)
+    {
+        storage.setBulkUpload(true);
+        List<AbstractVertex> vertices = new ArrayList<>(BATCH_SIZE);
+        List<AbstractEdge> edges = new ArrayList<>(BATCH_SIZE);
+        List<AbstractVertex> processes = new ArrayList<>(edgeCount + 1);
+        for(int i = 0; i <= edgeCount; i++)
+        {
+            AbstractVertex vertex = new Vertex();
+            vertex.addAnnotation("type", "Process");
+            vertex.addAnnotation("name", run + "-" + i);
+            vertex.addAnnotation("pid", String.valueOf(i));
+            processes.add(vertex);
+            vertices.add(vertex);
+            if(i > 0)
+            {
+                AbstractEdge edge = new Edge(vertex, processes.get((i - 1) / fanout));
+                edge.addAnnotation("type", "WasTriggeredBy");
+                edge.addAnnotation("operation", "fork");
+                edges.add(edge);
+            }
+            if(vertices.size() == BATCH_SIZE)
+            {
+                storage.putVertices(vertices);
+                storage.putEdges(edges);
+                vertices.clear();
+                edges.clear();
+            }
+        }
+        storage.putVertices(vertices);
+        storage.putEdges(edges);
+        // Flushes the pending rows
+        storage.setBulkUpload(false);
+    }
+}
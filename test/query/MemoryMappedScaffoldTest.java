@@ -0,0 +1,279 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package query;
+
+import org.junit.jupiter.api.Test;
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Vertex;
+import spade.query.scaffold.MemoryMapped;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static spade.core.AbstractStorage.DIRECTION_ANCESTORS;
+import static spade.core.AbstractStorage.DIRECTION_DESCENDANTS;
+
+/**
+ * Differential test of the spade.query.scaffold.MemoryMapped scaffold against
+ * adjacency maps of the same random graphs, before and after the scaffold is
+ * closed and opened again.
+ */
+class MemoryMappedScaffoldTest {
+
+    @Test
+    void queriesMatchTheGraph() throws Exception {
+        for (int seed = 0; seed < 5; seed++) {
+            Random random = new Random(seed);
+            List<AbstractVertex> vertices = vertices(200);
+            List<AbstractEdge> edges = new ArrayList<>();
+            for (int i = 0; i < 600; i++) {
+                // child after parent, so the graph is a DAG
+                int parent = random.nextInt(vertices.size() - 1);
+                int child = parent + 1 + random.nextInt(vertices.size() - parent - 1);
+                edges.add(edge(vertices.get(child), vertices.get(parent)));
+            }
+            // a vertex with more neighbors than a block holds
+            edges.addAll(manyChildren(vertices.get(0), 3000));
+            File directory = Files.createTempDirectory("scaffold").toFile();
+            try {
+                MemoryMapped scaffold = new MemoryMapped();
+                assertTrue(scaffold.initialize(directory.getPath()));
+                for (AbstractEdge edge : edges) {
+                    assertTrue(scaffold.insertEntry(edge));
+                }
+                assertMatches(scaffold, vertices, edges, random, "seed=" + seed);
+                assertTrue(scaffold.shutdown());
+
+                MemoryMapped reopened = new MemoryMapped();
+                assertTrue(reopened.initialize(directory.getPath()));
+                try {
+                    assertMatches(reopened, vertices, edges, random, "reopened, seed=" + seed);
+                } finally {
+                    reopened.shutdown();
+                }
+            } finally {
+                delete(directory);
+            }
+        }
+    }
+
+    @Test
+    void unknownVerticesAreNotFound() throws Exception {
+        File directory = Files.createTempDirectory("scaffold").toFile();
+        try {
+            MemoryMapped scaffold = new MemoryMapped();
+            assertTrue(scaffold.initialize(directory.getPath()));
+            List<AbstractVertex> vertices = vertices(3);
+            scaffold.insertEntry(edge(vertices.get(1), vertices.get(0)));
+            String unknown = vertices.get(2).bigHashCode();
+            assertNull(scaffold.getChildren(unknown));
+            assertNull(scaffold.getParents(unknown));
+            assertNull(scaffold.getLineage(unknown, DIRECTION_ANCESTORS, 5));
+            assertNull(scaffold.getPaths(unknown, vertices.get(0).bigHashCode(), 5));
+            assertNull(scaffold.getChildren("not a hash"));
+            assertEquals(new HashSet<String>(), scaffold.getParents(vertices.get(0).bigHashCode()));
+            scaffold.shutdown();
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    void indexGrowsAndIsRebuilt() throws Exception {
+        File directory = Files.createTempDirectory("scaffold").toFile();
+        try {
+            // more vertices than the initial index holds
+            List<AbstractVertex> chain = vertices(40000);
+            MemoryMapped scaffold = new MemoryMapped();
+            assertTrue(scaffold.initialize(directory.getPath()));
+            for (int i = 1; i < chain.size(); i++) {
+                assertTrue(scaffold.insertEntry(edge(chain.get(i), chain.get(i - 1))));
+            }
+            scaffold.shutdown();
+            MemoryMapped reopened = new MemoryMapped();
+            assertTrue(reopened.initialize(directory.getPath()));
+            try {
+                for (int i = 1; i < chain.size(); i += 997) {
+                    Set<String> parents = reopened.getParents(chain.get(i).bigHashCode());
+                    assertEquals(1, parents.size());
+                    assertTrue(parents.contains(chain.get(i - 1).bigHashCode()));
+                }
+                Map<String, Set<String>> ancestors = reopened.getLineage(chain.get(chain.size() - 1).bigHashCode(),
+                        DIRECTION_ANCESTORS, 100);
+                assertEquals(100, ancestors.size());
+            } finally {
+                reopened.shutdown();
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static void assertMatches(MemoryMapped scaffold, List<AbstractVertex> vertices, List<AbstractEdge> edges,
+                                      Random random, String message) {
+        Map<String, Set<String>> parents = new HashMap<>();
+        Map<String, Set<String>> children = new HashMap<>();
+        for (AbstractEdge edge : edges) {
+            String child = edge.getChildVertex().bigHashCode();
+            String parent = edge.getParentVertex().bigHashCode();
+            neighbors(parents, child).add(parent);
+            neighbors(children, parent).add(child);
+            neighbors(parents, parent);
+            neighbors(children, child);
+        }
+        for (String hash : parents.keySet()) {
+            assertEquals(parents.get(hash), scaffold.getParents(hash), message);
+            assertEquals(children.get(hash), scaffold.getChildren(hash), message);
+            Set<String> both = new HashSet<>(parents.get(hash));
+            both.addAll(children.get(hash));
+            assertEquals(both, scaffold.getNeighbors(hash), message);
+        }
+        for (int i = 0; i < 20; i++) {
+            String hash = vertices.get(random.nextInt(vertices.size())).bigHashCode();
+            int depth = random.nextInt(5);
+            if (!parents.containsKey(hash)) {
+                // not on any edge
+                assertNull(scaffold.getLineage(hash, DIRECTION_ANCESTORS, depth), message);
+                continue;
+            }
+            assertEquals(lineage(parents, hash, depth), scaffold.getLineage(hash, DIRECTION_ANCESTORS, depth),
+                    message + " ancestors of " + hash + " depth=" + depth);
+            assertEquals(lineage(children, hash, depth), scaffold.getLineage(hash, DIRECTION_DESCENDANTS, depth),
+                    message + " descendants of " + hash + " depth=" + depth);
+            String destination = vertices.get(random.nextInt(vertices.size())).bigHashCode();
+            if (!parents.containsKey(destination)) {
+                assertNull(scaffold.getPaths(hash, destination, depth), message);
+                continue;
+            }
+            assertEquals(paths(parents, children, hash, destination, depth),
+                    scaffold.getPaths(hash, destination, depth),
+                    message + " paths from " + hash + " to " + destination + " length=" + depth);
+        }
+    }
+
+    // every vertex less than maxDepth steps away, with neighbors, mapped to its neighbors
+    private static Map<String, Set<String>> lineage(Map<String, Set<String>> adjacency, String hash, int maxDepth) {
+        Map<String, Set<String>> lineage = new HashMap<>();
+        Map<String, Integer> distances = distances(adjacency, hash, maxDepth);
+        for (Map.Entry<String, Integer> vertex : distances.entrySet()) {
+            Set<String> neighbors = adjacency.get(vertex.getKey());
+            if (vertex.getValue() < maxDepth && !neighbors.isEmpty()) {
+                lineage.put(vertex.getKey(), neighbors);
+            }
+        }
+        return lineage;
+    }
+
+    // every vertex on a path of at most maxLength edges from the source up to the destination,
+    // mapped to its parents on such paths
+    private static Map<String, Set<String>> paths(Map<String, Set<String>> parents, Map<String, Set<String>> children,
+                                                  String source, String destination, int maxLength) {
+        Map<String, Integer> fromSource = distances(parents, source, maxLength);
+        Map<String, Integer> toDestination = distances(children, destination, maxLength);
+        Map<String, Set<String>> paths = new HashMap<>();
+        for (Map.Entry<String, Integer> vertex : fromSource.entrySet()) {
+            for (String parent : parents.get(vertex.getKey())) {
+                Integer remaining = toDestination.get(parent);
+                if (remaining != null && vertex.getValue() + 1 + remaining <= maxLength) {
+                    neighbors(paths, vertex.getKey()).add(parent);
+                }
+            }
+        }
+        return paths;
+    }
+
+    private static Map<String, Integer> distances(Map<String, Set<String>> adjacency, String hash, int maxDepth) {
+        Map<String, Integer> distances = new HashMap<>();
+        distances.put(hash, 0);
+        List<String> frontier = new ArrayList<>();
+        frontier.add(hash);
+        for (int depth = 1; depth <= maxDepth && !frontier.isEmpty(); depth++) {
+            List<String> next = new ArrayList<>();
+            for (String vertex : frontier) {
+                for (String neighbor : adjacency.get(vertex)) {
+                    if (!distances.containsKey(neighbor)) {
+                        distances.put(neighbor, depth);
+                        next.add(neighbor);
+                    }
+                }
+            }
+            frontier = next;
+        }
+        return distances;
+    }
+
+    private static Set<String> neighbors(Map<String, Set<String>> adjacency, String hash) {
+        Set<String> neighbors = adjacency.get(hash);
+        if (neighbors == null) {
+            neighbors = new HashSet<>();
+            adjacency.put(hash, neighbors);
+        }
+        return neighbors;
+    }
+
+    private static List<AbstractEdge> manyChildren(AbstractVertex parent, int count) {
+        List<AbstractEdge> edges = new ArrayList<>();
+        for (AbstractVertex child : vertices(count)) {
+            child.addAnnotation("name", "child");
+            edges.add(edge(child, parent));
+        }
+        return edges;
+    }
+
+    private static List<AbstractVertex> vertices(int count) {
+        List<AbstractVertex> vertices = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            AbstractVertex vertex = new Vertex();
+            vertex.addAnnotation("type", "Process");
+            vertex.addAnnotation("pid", String.valueOf(i));
+            vertices.add(vertex);
+        }
+        return vertices;
+    }
+
+    private static AbstractEdge edge(AbstractVertex child, AbstractVertex parent) {
+        AbstractEdge edge = new Edge(child, parent);
+        edge.addAnnotation("type", "WasTriggeredBy");
+        return edge;
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package query;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Vertex;
+import spade.query.scaffold.Scaffold;
+import spade.query.scaffold.ScaffoldFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static spade.core.AbstractStorage.DIRECTION_ANCESTORS;
+import static spade.core.AbstractStorage.DIRECTION_DESCENDANTS;
+
+/**
+ * Compares the scaffolds on the insert rate and on the latency of the lineage
+ * queries, using a synthetic process tree in which every process has 'fanout'
+ * children. Every scaffold is created in its own new directory.
+ *
+ * The descendants query starts at the root and the ancestors query at the last
+ * process, so they measure a fan-out and a chain lineage respectively.
+ *
+ * Usage: java query.ScaffoldBenchmark [edge count] [fanout] [depth] [scaffolds] [directory]
+ */
+public class ScaffoldBenchmark
+{
+    private static final int QUERY_REPETITIONS = 10;
+
+    public static void main(String[] args)
+    {
+        int edgeCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int fanout = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int depth = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        String[] names = (args.length > 3 ? args[3] : "MemoryMapped,BerkeleyDB,LevelDB").split(",");
+        String directory = args.length > 4 ? args[4] : System.getProperty("java.io.tmpdir");
+
+        List<AbstractEdge> edges = createTree(edgeCount, fanout);
+        String root = edges.get(0).getParentVertex().bigHashCode();
+        String leaf = edges.get(edges.size() - 1).getChildVertex().bigHashCode();
+        for(String name : names)
+        {
+            name = name.trim();
+            String path = directory + File.separator + "scaffold-" + name + "-" + System.nanoTime() + File.separator;
+            new File(path).mkdirs();
+            Scaffold scaffold = ScaffoldFactory.createScaffold(name);
+            if(!scaffold.initialize(path))
+            {
+                System.out.println(name + ": unable to initialize in " + path);
+                continue;
+            }
+            try
+            {
+                long start = System.nanoTime();
+                for(AbstractEdge edge : edges)
+                {
+                    scaffold.insertEntry(edge);
+                }
+                long nanos = System.nanoTime() - start;
+                System.out.println(name + ": inserted " + edges.size() + " edges in " + nanos / 1000000 + " ms ("
+                        + (long) (edges.size() / (nanos / 1000000000.0)) + " edges/s)");
+                query(name, scaffold, root, DIRECTION_DESCENDANTS, depth);
+                query(name, scaffold, leaf, DIRECTION_ANCESTORS, depth);
+            }
+            catch(Exception ex)
+            {
+                System.out.println(name + ": failed with " + ex);
+            }
+            finally
+            {
+                try
+                {
+                    scaffold.shutdown();
+                }
+                catch(Exception ex)
+                {
+                    System.out.println(name + ": shutdown failed with " + ex);
+                }
+            }
+        }
+    }
+
+    private static void query(String name, Scaffold scaffold, String hash, String direction, int depth)
+    {
+        Map<String, Set<String>> lineage = null;
+        long bestNanos = Long.MAX_VALUE;
+        for(int i = 0; i < QUERY_REPETITIONS; i++)
+        {
+            long start = System.nanoTime();
+            lineage = scaffold.getLineage(hash, direction, depth);
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+        }
+        if(lineage == null)
+        {
+            System.out.println(name + ": " + direction + " not supported");
+            return;
+        }
+        long edges = 0;
+        for(Set<String> neighbors : lineage.values())
+        {
+            edges += neighbors.size();
+        }
+        System.out.println(name + ": " + direction + " with " + edges + " edges in "
+                + bestNanos / 1000 + " us (best of " + QUERY_REPETITIONS + ")");
+    }
+
+    /**
+     * @return edges of a tree in which the parent of process i is process (i - 1) / fanout
+     */
+    private static List<AbstractEdge> createTree(int edgeCount, int fanout)
+    {
+        List<AbstractVertex> processes = new ArrayList<>(edgeCount + 1);
+        List<AbstractEdge> edges = new ArrayList<>(edgeCount);
+        for(int i = 0; i <= edgeCount; i++)
+        {
+            AbstractVertex vertex = new Vertex();
+            vertex.addAnnotation("type", "Process");
+            vertex.addAnnotation("pid", String.valueOf(i));
+            processes.add(vertex);
+            if(i > 0)
+            {
+                AbstractEdge edge = new Edge(vertex, processes.get((i - 1) / fanout));
+                edge.addAnnotation("type", "WasTriggeredBy");
+                edges.add(edge);
+            }
+        }
+        // hashes are computed before the timing starts
+        for(AbstractVertex process : processes)
+        {
+            process.bigHashCode();
+        }
+        return edges;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package reporter;
+
+import spade.reporter.audit.AuditRecordParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the records parsed per second by AuditRecordParser and by the regular
+ * expression based parser that it replaced, over recorded audit logs.
+ *
+ * Usage: java reporter.AuditParserBenchmark [rounds] [audit log files or directories]
+ * Run from the SPADE root to use the logs in test/linux/audit_cdm/checksum/input.
+ */
+public class AuditParserBenchmark
+{
+    private static final int WARMUP_ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException
+    {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        List<String> lines = new ArrayList<>();
+        if(args.length > 1)
+        {
+            for(int i = 1; i < args.length; i++)
+            {
+                readLogs(new File(args[i]), lines);
+            }
+        }
+        else
+        {
+            readLogs(new File(AuditRecordParserTest.RECORDED_LOGS), lines);
+        }
+        if(lines.isEmpty())
+        {
+            System.err.println("No audit records found");
+            return;
+        }
+
+        AuditRecordParser parser = new AuditRecordParser();
+        AuditRecordParserTest.RegexAuditParser regexParser = new AuditRecordParserTest.RegexAuditParser();
+        for(int i = 0; i < WARMUP_ROUNDS; i++)
+        {
+            runRegex(regexParser, lines);
+            runParser(parser, lines);
+        }
+
+        long regexNanos = 0;
+        long parserNanos = 0;
+        long checksum = 0;
+        for(int i = 0; i < rounds; i++)
+        {
+            long start = System.nanoTime();
+            checksum += runRegex(regexParser, lines);
+            regexNanos += System.nanoTime() - start;
+            start = System.nanoTime();
+            checksum += runParser(parser, lines);
+            parserNanos += System.nanoTime() - start;
+        }
+
+        long records = (long) lines.size() * rounds;
+        System.out.println("Records: " + lines.size() + " x " + rounds + " rounds (checksum " + checksum + ")");
+        System.out.println("regex: " + (long) (records / (regexNanos / 1e9)) + " records/sec");
+        System.out.println("AuditRecordParser: " + (long) (records / (parserNanos / 1e9)) + " records/sec");
+    }
+
+    private static long runRegex(AuditRecordParserTest.RegexAuditParser regexParser, List<String> lines)
+    {
+        long size = 0;
+        for(String line : lines)
+        {
+            size += regexParser.parseEventLine(line).size();
+        }
+        return size;
+    }
+
+    private static long runParser(AuditRecordParser parser, List<String> lines)
+    {
+        long size = 0;
+        Map<String, String> map = new HashMap<>();
+        for(String line : lines)
+        {
+            map.clear();
+            parser.parseRecord(line, map);
+            size += map.size();
+        }
+        return size;
+    }
+
+    private static void readLogs(File file, List<String> lines) throws IOException
+    {
+        if(file.isDirectory())
+        {
+            File[] files = file.listFiles();
+            if(files != null)
+            {
+                for(File child : files)
+                {
+                    if(child.getName().endsWith(".log"))
+                    {
+                        readLogs(child, lines);
+                    }
+                }
+            }
+        }
+        else if(file.isFile())
+        {
+            lines.addAll(Files.readAllLines(file.toPath(), StandardCharsets.ISO_8859_1));
+        }
+    }
+}
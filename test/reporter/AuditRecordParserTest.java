@@ -0,0 +1,310 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package reporter;
+
+import org.junit.jupiter.api.Test;
+import spade.reporter.audit.AuditEventReader;
+import spade.reporter.audit.AuditRecordParser;
+import spade.utility.CommonFunctions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Differential test of spade.reporter.audit.AuditRecordParser against the regular
+ * expression based parser that it replaced in AuditEventReader.
+ */
+class AuditRecordParserTest {
+
+    static final String RECORDED_LOGS = "test/linux/audit_cdm/checksum/input";
+
+    private static final String[] SYNTHETIC_RECORDS = {
+            "node=host1 type=SYSCALL msg=audit(1465585945.676:672946): arch=c000003e syscall=2 success=yes exit=3 a0=4009dd items=1 ppid=1209 pid=3648 comm=6D6D61702074657374 exe=\"/a b/c\" key=(null)",
+            "type=SYSCALL msg=audit(1.5:7): a0=\"\" a1=\"x\" a2=\"\" key=\"\"",
+            "type=SYSCALL msg=audit(1.5:7): empty= a1=\"unterminated a2=b\"\"c\" a3=d\"\"",
+            "type=SYSCALL msg=audit(1.5:7):   comm=\" padded \" x=\"\"\"y\"\"\" -=z _a-b=c",
+            "type=CWD msg=audit(1.5:7): cwd=2F746D702F6120622F",
+            "type=PATH msg=audit(1.5:7): item=1 name=(null) inode=34 nametype=PARENT",
+            "type=PATH msg=audit(1.5:7): item=0 name=\"/tmp/a b\" nametype=CREATE",
+            "type=EXECVE msg=audit(1.5:7): argc=3 a0=\"ls\" a1=2D6C61 a2=\"/tmp\"",
+            "type=FD_PAIR msg=audit(1.5:7): fd0=3 fd1=4",
+            "type=SOCKETCALL msg=audit(1.5:7): nargs=3 a0=2 a1=1",
+            "type=SOCKADDR msg=audit(1.5:7): saddr=02000035C0A80001000000000000000",
+            "type=MMAP msg=audit(1.5:7): fd=3 flags=0x2",
+            "type=NETFILTER_PKT msg=audit(1.5:7): mark=0x0 saddr=10.0.0.1 daddr=10.0.0.2 proto=6 hook=1",
+            "type=USER msg=audit(1.5:7): pid=1 uid=0 msg='netio_intercepted=\"syscall=42 exit=0 success=1 fd=3 pid=7 comm=6C73 sock_type=1\"'",
+            "type=USER msg=audit(1.5:7): pid=1 uid=0 msg='ubsi_intercepted=\"syscall=62 pid=7 comm=6C73 a0=1\"'",
+            "type=USER msg=audit(1.5:7): pid=1 uid=0 syscall=62 comm=6C73 a0=1",
+            "type=DAEMON_START msg=audit(1.5:7): auditd start, ver=2.4.5",
+            "type=UBSI_ENTRY msg=audit(1.5:7): (pid=10 thread_time=1.5 unitid=2 iteration=3 time=4.25 count=5) ppid=1 pid=10 comm=\"vim\"",
+            "type=UBSI_ENTRY msg=audit(1.5:7): (pid=10 thread_time=1.5 unitid=2 iteration=3 time=4.25 count=5)(pid=11 thread_time=1.5 unitid=2 iteration=3 time=4.25 count=5) ppid=1 comm=6C73",
+            "type=UBSI_EXIT msg=audit(1.5:7): ppid=1 pid=10 comm=\"vim\"",
+            "type=UBSI_DEP msg=audit(1.5:7): dep=(pid=10 thread_time=1.5 unitid=2 iteration=3 time=4.25 count=5), (pid=x thread_time=1.5), (pid=11 thread_time=2.5 unitid=6 iteration=7 time=8.25 count=9) ppid=1 comm=\"vim\"",
+            "type=UBSI_DEP msg=audit(1.5:7): ppid=1 comm=\"vim\"",
+            "type=CONFIG_CHANGE msg=audit(1465585942.492:672939): auid=1000 op=\"add rule\" key=(null)",
+            "type=SYSCALL msg=audit(1.5:7): x=1 msg=audit(2.5:8): y=2",
+            "type=SYSCALL msg=audit(1.5:7) z=1",
+            "garbage line without a header"
+    };
+
+    private final AuditRecordParser parser = new AuditRecordParser();
+    private final RegexAuditParser regexParser = new RegexAuditParser();
+
+    @Test
+    void recordedLogsParseTheSame() throws IOException {
+        List<String> lines = readRecordedLogs();
+        assertTrue(lines.size() > 0, "No recorded audit logs in " + RECORDED_LOGS);
+        for (String line : lines) {
+            assertSameRecord(line);
+        }
+    }
+
+    @Test
+    void syntheticRecordsParseTheSame() {
+        for (String line : SYNTHETIC_RECORDS) {
+            assertSameRecord(line);
+        }
+    }
+
+    @Test
+    void keyValuesParseTheSame() {
+        for (String line : SYNTHETIC_RECORDS) {
+            Map<String, String> keyValues = new HashMap<>();
+            parser.parseKeyValues(line, 0, keyValues, null, true);
+            assertEquals(CommonFunctions.parseKeyValPairs(line), keyValues, line);
+        }
+    }
+
+    private void assertSameRecord(String line) {
+        Map<String, String> expected = regexParser.parseEventLine(line);
+        Map<String, String> actual = new HashMap<>();
+        parser.parseRecord(line, actual);
+        assertEquals(expected, actual, line);
+    }
+
+    static List<String> readRecordedLogs() throws IOException {
+        List<String> lines = new ArrayList<>();
+        File[] logs = new File(RECORDED_LOGS).listFiles();
+        if (logs != null) {
+            for (File log : logs) {
+                if (log.getName().endsWith(".log")) {
+                    lines.addAll(Files.readAllLines(log.toPath(), StandardCharsets.ISO_8859_1));
+                }
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * The record parser of AuditEventReader before it was replaced by AuditRecordParser.
+     */
+    static class RegexAuditParser {
+
+        private final Pattern pattern_unit =
+                Pattern.compile("\\(pid=(\\d+) thread_time=(\\d+\\.\\d+) unitid=(\\d+) iteration=(\\d+) time=(\\d+\\.\\d+) count=(\\d+)\\)");
+
+        private final Pattern pattern_key_value = Pattern.compile("(\\w+)=\"*((?<=\")[^\"]+(?=\")|([^\\s]+))\"*");
+
+        private final Pattern pattern_message_start = Pattern.compile("(?:node=(\\S+) )?type=(.+) msg=audit\\(([0-9\\.]+)\\:([0-9]+)\\):\\s*");
+
+        private Long getEventId(String line) {
+            try {
+                return Long.parseLong(line.substring(line.indexOf(':') + 1, line.indexOf(')')));
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        private String getEventTime(String line) {
+            try {
+                String timeStr = line.substring(line.indexOf('(') + 1, line.indexOf(':'));
+                Double.parseDouble(timeStr);
+                return timeStr;
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        private List<Map<String, String>> parseUnitsKeyValues(String line) {
+            List<Map<String, String>> unitsKeyValues = new ArrayList<>();
+            Matcher matcher = pattern_unit.matcher(line);
+            while (matcher.find()) {
+                Map<String, String> unitKeyValues = new HashMap<>();
+                unitKeyValues.put(AuditEventReader.UNIT_PID, matcher.group(1));
+                unitKeyValues.put(AuditEventReader.UNIT_THREAD_START_TIME, matcher.group(2));
+                unitKeyValues.put(AuditEventReader.UNIT_UNITID, matcher.group(3));
+                unitKeyValues.put(AuditEventReader.UNIT_ITERATION, matcher.group(4));
+                unitKeyValues.put(AuditEventReader.UNIT_TIME, matcher.group(5));
+                unitKeyValues.put(AuditEventReader.UNIT_COUNT, matcher.group(6));
+                unitsKeyValues.add(unitKeyValues);
+            }
+            return unitsKeyValues;
+        }
+
+        private String parseAuditString(String originalRecord, String key) {
+            int keyStartIndex = originalRecord.indexOf(key);
+            if (keyStartIndex < 0) {
+                return null;
+            }
+            int valueStartIndex = keyStartIndex + key.length();
+            if (valueStartIndex >= originalRecord.length()) {
+                return null;
+            }
+            if (originalRecord.charAt(valueStartIndex) == '"') {
+                int valueEndIndex = originalRecord.indexOf('"', valueStartIndex + 1);
+                return valueEndIndex < 0 ? null : originalRecord.substring(valueStartIndex + 1, valueEndIndex);
+            }
+            int valueEndIndex = originalRecord.indexOf(' ', valueStartIndex + 1);
+            if (valueEndIndex < 0) {
+                valueEndIndex = originalRecord.length();
+            }
+            return CommonFunctions.decodeHex(originalRecord.substring(valueStartIndex, valueEndIndex));
+        }
+
+        private void putKeyValues(String data, Map<String, String> map, String keyPrefix) {
+            Matcher matcher = pattern_key_value.matcher(data);
+            while (matcher.find()) {
+                map.put(keyPrefix + matcher.group(1), matcher.group(2));
+            }
+        }
+
+        private Map<String, String> parseUserData(String data, String type, String time) {
+            Map<String, String> eventData = CommonFunctions.parseKeyValPairs(data);
+            eventData.put(AuditEventReader.RECORD_TYPE_KEY, type);
+            eventData.put(AuditEventReader.COMM, CommonFunctions.decodeHex(eventData.get(AuditEventReader.COMM)));
+            eventData.put(AuditEventReader.TIME, time);
+            return eventData;
+        }
+
+        Map<String, String> parseEventLine(String line) {
+            Map<String, String> auditRecordKeyValues = new HashMap<>();
+            if (line.contains("type=" + AuditEventReader.RECORD_TYPE_DAEMON_START)) {
+                auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, AuditEventReader.RECORD_TYPE_DAEMON_START);
+                return auditRecordKeyValues;
+            }
+
+            boolean isUBSIEvent = true;
+            if (line.contains("type=" + AuditEventReader.RECORD_TYPE_UBSI_ENTRY)) {
+                List<Map<String, String>> unitsKeyValues = parseUnitsKeyValues(line);
+                if (unitsKeyValues.size() == 1) {
+                    auditRecordKeyValues.putAll(unitsKeyValues.get(0));
+                }
+                auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, AuditEventReader.RECORD_TYPE_UBSI_ENTRY);
+            } else if (line.contains("type=" + AuditEventReader.RECORD_TYPE_UBSI_EXIT)) {
+                auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, AuditEventReader.RECORD_TYPE_UBSI_EXIT);
+            } else if (line.contains("type=" + AuditEventReader.RECORD_TYPE_UBSI_DEP)) {
+                List<Map<String, String>> unitsKeyValues = parseUnitsKeyValues(line);
+                if (unitsKeyValues.size() > 0) {
+                    auditRecordKeyValues.putAll(unitsKeyValues.remove(unitsKeyValues.size() - 1));
+                    for (int a = 0; a < unitsKeyValues.size(); a++) {
+                        for (Map.Entry<String, String> entry : unitsKeyValues.get(a).entrySet()) {
+                            auditRecordKeyValues.put(entry.getKey() + a, entry.getValue());
+                        }
+                    }
+                    auditRecordKeyValues.put(AuditEventReader.UNIT_DEPS_COUNT, String.valueOf(unitsKeyValues.size()));
+                }
+                auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, AuditEventReader.RECORD_TYPE_UBSI_DEP);
+            } else {
+                isUBSIEvent = false;
+            }
+
+            if (isUBSIEvent) {
+                auditRecordKeyValues.put(AuditEventReader.TIME, getEventTime(line));
+                auditRecordKeyValues.put(AuditEventReader.EVENT_ID, String.valueOf(getEventId(line)));
+                auditRecordKeyValues.putAll(CommonFunctions.parseKeyValPairs(line.substring(line.indexOf(" ppid="))));
+                auditRecordKeyValues.put(AuditEventReader.COMM, parseAuditString(line, " comm="));
+                return auditRecordKeyValues;
+            }
+
+            Matcher matcher = pattern_message_start.matcher(line);
+            if (!matcher.find()) {
+                return auditRecordKeyValues;
+            }
+            String type = matcher.group(2);
+            String time = matcher.group(3);
+            String messageData = line.substring(matcher.end());
+            auditRecordKeyValues.put(AuditEventReader.EVENT_ID, matcher.group(4));
+            auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, type);
+
+            if (type.equals(AuditEventReader.RECORD_TYPE_USER)) {
+                int indexOfData = messageData.indexOf(AuditEventReader.KMODULE_DATA_KEY);
+                if (indexOfData != -1) {
+                    String data = messageData.substring(indexOfData + AuditEventReader.KMODULE_DATA_KEY.length() + 1);
+                    data = data.substring(1, data.length() - 1);
+                    auditRecordKeyValues.putAll(parseUserData(data, AuditEventReader.KMODULE_RECORD_TYPE, time));
+                } else {
+                    indexOfData = messageData.indexOf(AuditEventReader.UBSI_INTERCEPTED_DATA_KEY);
+                    if (indexOfData != -1) {
+                        String data = messageData.substring(indexOfData + AuditEventReader.UBSI_INTERCEPTED_DATA_KEY.length() + 1);
+                        data = data.substring(1, data.length() - 1);
+                        auditRecordKeyValues.putAll(parseUserData(data, AuditEventReader.RECORD_TYPE_SYSCALL, time));
+                    } else {
+                        auditRecordKeyValues.putAll(parseUserData(messageData, AuditEventReader.RECORD_TYPE_SYSCALL, time));
+                    }
+                }
+            } else if (type.equals(AuditEventReader.RECORD_TYPE_SYSCALL)) {
+                Map<String, String> eventData = CommonFunctions.parseKeyValPairs(messageData);
+                eventData.put(AuditEventReader.COMM, parseAuditString(line, " comm="));
+                eventData.put(AuditEventReader.TIME, time);
+                auditRecordKeyValues.putAll(eventData);
+            } else if (type.equals(AuditEventReader.RECORD_TYPE_CWD)) {
+                auditRecordKeyValues.put(AuditEventReader.CWD, parseAuditString(line, " cwd="));
+            } else if (type.equals(AuditEventReader.RECORD_TYPE_PATH)) {
+                Map<String, String> pathKeyValues = CommonFunctions.parseKeyValPairs(messageData);
+                String itemNumber = pathKeyValues.get("item");
+                String mode = pathKeyValues.get("mode");
+                auditRecordKeyValues.put(AuditEventReader.PATH_PREFIX + itemNumber, parseAuditString(line, " name="));
+                auditRecordKeyValues.put(AuditEventReader.NAMETYPE_PREFIX + itemNumber, pathKeyValues.get("nametype"));
+                auditRecordKeyValues.put(AuditEventReader.MODE_PREFIX + itemNumber, mode == null ? "0" : mode);
+            } else if (type.equals(AuditEventReader.RECORD_TYPE_EXECVE)) {
+                String argcString = CommonFunctions.parseKeyValPairs(line).get("argc");
+                auditRecordKeyValues.put(AuditEventReader.EXECVE_ARGC, argcString);
+                Integer argc = CommonFunctions.parseInt(argcString, null);
+                if (argc != null) {
+                    for (int i = 0; i < argc; i++) {
+                        auditRecordKeyValues.put(AuditEventReader.EXECVE_PREFIX + "a" + i, parseAuditString(line, " a" + i + "="));
+                    }
+                }
+            } else if (type.equals(AuditEventReader.RECORD_TYPE_SOCKETCALL)) {
+                putKeyValues(messageData, auditRecordKeyValues, "socketcall_");
+            } else if (type.equals(AuditEventReader.RECORD_TYPE_NETFILTER_PKT)) {
+                auditRecordKeyValues.put(AuditEventReader.TIME, time);
+                putKeyValues(messageData, auditRecordKeyValues, "");
+            } else if (type.equals(AuditEventReader.RECORD_TYPE_FD_PAIR)
+                    || type.equals(AuditEventReader.RECORD_TYPE_SOCKADDR)
+                    || type.equals(AuditEventReader.RECORD_TYPE_MMAP)) {
+                putKeyValues(messageData, auditRecordKeyValues, "");
+            }
+            return auditRecordKeyValues;
+        }
+    }
+}
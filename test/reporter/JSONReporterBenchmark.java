@@ -0,0 +1,173 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package reporter;
+
+import org.json.JSONArray;
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Buffer;
+import spade.reporter.JSON;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a JSON file of activities, entities and the edges between them, where every
+ * tenth edge comes before its vertices. Then compares the time to the first element
+ * and the heap used by parsing the whole file into a JSONArray, as the JSON reporter
+ * did, and by the JSON reporter, and checks that the reporter reports every element.
+ *
+ * Usage: java reporter.JSONReporterBenchmark [activity count] [file]
+ */
+public class JSONReporterBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        File file = args.length > 1 ? new File(args[1]) : File.createTempFile("jsonreporter", ".json");
+        long expectedVertices = 2L * count;
+        long expectedEdges = 2L * count - 1;
+        writeFile(file, count);
+        System.out.println("File: " + (file.length() / 1024 / 1024) + " MB, " + expectedVertices + " vertices, "
+                + expectedEdges + " edges");
+
+        System.gc();
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        StringBuffer jsonString = new StringBuffer();
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                StandardCharsets.UTF_8)))
+        {
+            String line;
+            while((line = reader.readLine()) != null)
+            {
+                jsonString.append(line);
+            }
+        }
+        JSONArray array = new JSONArray(jsonString.toString());
+        long firstMillis = (System.nanoTime() - start) / 1000000;
+        long heap = usedHeap() - heapBefore;
+        System.out.println("JSONArray: first element after " + firstMillis + " ms, " + array.length()
+                + " objects, heap " + (heap / 1024 / 1024) + " MB");
+        jsonString = null;
+        array = null;
+
+        System.gc();
+        heapBefore = usedHeap();
+        long maxHeap = 0;
+        Buffer buffer = new Buffer();
+        JSON reporter = new JSON();
+        reporter.setBuffer(buffer);
+        start = System.nanoTime();
+        if(!reporter.launch(file.getAbsolutePath()))
+        {
+            System.err.println("Unable to launch the JSON reporter");
+            return;
+        }
+        long vertices = 0, edges = 0, incomplete = 0;
+        firstMillis = -1;
+        long idleSince = System.currentTimeMillis();
+        while(System.currentTimeMillis() - idleSince < 3000)
+        {
+            Object element = buffer.getBufferElement();
+            if(element == null)
+            {
+                maxHeap = Math.max(maxHeap, usedHeap() - heapBefore);
+                Thread.sleep(1);
+                continue;
+            }
+            idleSince = System.currentTimeMillis();
+            if(firstMillis < 0)
+            {
+                firstMillis = (System.nanoTime() - start) / 1000000;
+            }
+            if(element instanceof AbstractVertex)
+            {
+                vertices++;
+            }
+            else if(element instanceof AbstractEdge)
+            {
+                edges++;
+                AbstractEdge edge = (AbstractEdge) element;
+                if(edge.getChildVertex() == null || edge.getParentVertex() == null)
+                {
+                    incomplete++;
+                }
+            }
+            if(vertices == expectedVertices && edges == expectedEdges)
+            {
+                break;
+            }
+        }
+        long totalMillis = (System.nanoTime() - start) / 1000000;
+        reporter.shutdown();
+        System.out.println("JSON reporter: first element after " + firstMillis + " ms, all after " + totalMillis
+                + " ms, vertices " + vertices + "/" + expectedVertices + ", edges " + edges + "/" + expectedEdges
+                + ", incomplete edges " + incomplete + ", heap at most " + (maxHeap / 1024 / 1024) + " MB");
+        if(args.length < 2)
+        {
+            file.delete();
+        }
+    }
+
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // activity i used entity i and was informed by activity i - 1. Every tenth Used edge is before its vertices
+    private static void writeFile(File file, int count) throws Exception
+    {
+        try(Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8)))
+        {
+            writer.write("[\n");
+            for(int i = 0; i < count; i++)
+            {
+                String used = "{\"type\":\"Used\",\"from\":\"a" + i + "\",\"to\":\"e" + i
+                        + "\",\"annotations\":{\"operation\":\"read\",\"time\":\"" + i + "\"}},\n";
+                if(i % 10 == 0)
+                {
+                    writer.write(used);
+                }
+                writer.write("{\"type\":\"Activity\",\"id\":\"a" + i + "\",\"annotations\":{\"pid\":\"" + i
+                        + "\",\"name\":\"process " + (i % 100) + "\"}},\n");
+                writer.write("{\"type\":\"Entity\",\"id\":\"e" + i + "\",\"annotations\":{\"path\":\"/tmp/file"
+                        + i + "\",\"version\":\"1\"}},\n");
+                if(i % 10 != 0)
+                {
+                    writer.write(used);
+                }
+                if(i > 0)
+                {
+                    writer.write("{\"type\":\"WasInformedBy\",\"from\":\"a" + i + "\",\"to\":\"a" + (i - 1)
+                            + "\",\"annotations\":{\"operation\":\"fork\"}}" + (i + 1 < count ? ",\n" : "\n"));
+                }
+            }
+            writer.write("]\n");
+        }
+    }
+}
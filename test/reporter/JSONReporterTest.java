@@ -0,0 +1,169 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package reporter;
+
+import org.junit.jupiter.api.Test;
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Buffer;
+import spade.reporter.JSON;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that the spade.reporter.JSON reporter reads a JSON array or a sequence of
+ * objects as it goes, reports edges that come before their vertices once the
+ * vertices have been read, and drops the oldest of them beyond maxPendingEdges.
+ */
+class JSONReporterTest {
+
+    private static final String[] OBJECTS = {
+            "{\"type\":\"Used\",\"from\":\"a1\",\"to\":\"e1\",\"annotations\":{\"operation\":\"read\"}}",
+            "{\"type\":\"WasGeneratedBy\",\"from\":\"e2\",\"to\":\"a1\",\"annotations\":{\"operation\":\"write\"}}",
+            "{\"type\":\"Activity\",\"id\":\"a1\",\"annotations\":{\"pid\":\"1\"}}",
+            "{\"type\":\"Entity\",\"id\":\"e1\",\"annotations\":{\"path\":\"/tmp/in\"}}",
+            "{\"type\":\"Entity\",\"id\":\"e2\",\"annotations\":{\"path\":\"/tmp/out\"}}",
+            "{\"type\":\"Activity\",\"id\":\"a2\",\"annotations\":{\"pid\":\"2\"}}",
+            "{\"type\":\"WasInformedBy\",\"from\":\"a2\",\"to\":\"a1\",\"annotations\":{\"operation\":\"fork\"}}",
+            "{\"type\":\"Used\",\"from\":\"a2\",\"to\":\"missing\"}"};
+
+    private static final Set<String> EDGES = new HashSet<>(Arrays.asList(
+            "{pid=1} -{operation=read, type=Used}-> {path=/tmp/in}",
+            "{path=/tmp/out} -{operation=write, type=WasGeneratedBy}-> {pid=1}",
+            "{pid=2} -{operation=fork, type=WasInformedBy}-> {pid=1}"));
+
+    @Test
+    void arrayAndObjectSequenceAreReportedAlike() throws Exception {
+        File file = File.createTempFile("jsonreporter", ".json");
+        try {
+            write(file, "[\n" + String.join(",\n", OBJECTS) + "\n]\n");
+            List<Object> elements = report(file.getPath());
+            assertEquals(4, count(elements, AbstractVertex.class));
+            assertEquals(EDGES, edges(elements));
+
+            write(file, String.join("\n", OBJECTS) + "\n");
+            elements = report("input=" + file.getPath());
+            assertEquals(4, count(elements, AbstractVertex.class));
+            assertEquals(EDGES, edges(elements));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    void oldestForwardEdgesAreDropped() throws Exception {
+        File file = File.createTempFile("jsonreporter", ".json");
+        try {
+            write(file, "[\n" + String.join(",\n", OBJECTS) + "\n]\n");
+            // the Used edge is dropped when the WasGeneratedBy edge arrives before a1
+            Set<String> edges = edges(report("input=" + file.getPath() + " maxPendingEdges=1"));
+            Set<String> expected = new HashSet<>(EDGES);
+            expected.remove("{pid=1} -{operation=read, type=Used}-> {path=/tmp/in}");
+            assertEquals(expected, edges);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    void invalidArgumentsAreRejected() {
+        JSON reporter = new JSON();
+        reporter.setBuffer(new Buffer());
+        assertFalse(reporter.launch("input=/tmp/file.json maxPendingEdges=-1"));
+        assertFalse(reporter.launch("maxPendingEdges=1"));
+    }
+
+    // every element the reporter put in its buffer, once it has read the whole file
+    private static List<Object> report(String arguments) throws InterruptedException {
+        Buffer buffer = new Buffer();
+        JSON reporter = new JSON();
+        reporter.setBuffer(buffer);
+        assertTrue(reporter.launch(arguments));
+        List<Object> elements = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + 30000;
+        while (System.currentTimeMillis() < deadline) {
+            Object element = buffer.getBufferElement();
+            if (element != null) {
+                elements.add(element);
+            } else if (readerRunning()) {
+                Thread.sleep(1);
+            } else {
+                break;
+            }
+        }
+        reporter.shutdown();
+        return elements;
+    }
+
+    private static boolean readerRunning() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("JsonReporter-Thread") && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int count(List<Object> elements, Class<?> type) {
+        int count = 0;
+        for (Object element : elements) {
+            if (type.isInstance(element)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // each edge with the annotations of its end points, without their types
+    private static Set<String> edges(List<Object> elements) {
+        Set<String> edges = new HashSet<>();
+        for (Object element : elements) {
+            if (element instanceof AbstractEdge) {
+                AbstractEdge edge = (AbstractEdge) element;
+                edges.add(annotations(edge.getChildVertex()) + " -" + new TreeMap<>(edge.getAnnotations())
+                        + "-> " + annotations(edge.getParentVertex()));
+            }
+        }
+        return edges;
+    }
+
+    private static String annotations(AbstractVertex vertex) {
+        TreeMap<String, String> annotations = new TreeMap<>(vertex.getAnnotations());
+        annotations.remove("type");
+        return annotations.toString();
+    }
+
+    private static void write(File file, String content) throws Exception {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
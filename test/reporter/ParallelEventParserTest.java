@@ -0,0 +1,88 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package reporter;
+
+import org.junit.jupiter.api.Test;
+import spade.reporter.audit.AuditEventReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Plays back the recorded audit logs with one and with several parser shards
+ * (playbackShards) and checks that AuditEventReader returns the same events in the
+ * same order.
+ */
+class ParallelEventParserTest {
+
+    @Test
+    void shardedPlaybackReturnsTheSameEvents() throws Exception {
+        byte[] log = recordedLog();
+        List<Map<String, String>> expected = playback(log, 1, 256);
+        assertTrue(expected.size() > 100, "Too few events in " + AuditRecordParserTest.RECORDED_LOGS);
+        for (int shards : new int[]{4, 2, 3}) {
+            // batches smaller than the log so that every shard parses several of them
+            for (int batchSize : new int[]{256, 7, 1}) {
+                assertEquals(expected, playback(log, shards, batchSize),
+                        "playbackShards=" + shards + " batchSize=" + batchSize);
+            }
+        }
+    }
+
+    @Test
+    void emptyLogEndsWithAllShards() throws Exception {
+        for (int shards : new int[]{1, 4}) {
+            assertEquals(new ArrayList<Map<String, String>>(), playback(new byte[0], shards, 256),
+                    "playbackShards=" + shards);
+        }
+    }
+
+    private static List<Map<String, String>> playback(byte[] log, int shards, int batchSize) throws Exception {
+        AuditEventReader reader = new AuditEventReader("test", new ByteArrayInputStream(log), false);
+        try {
+            reader.setParserThreads(shards, batchSize);
+            List<Map<String, String>> events = new ArrayList<>();
+            Map<String, String> event;
+            while ((event = reader.readEventData()) != null) {
+                events.add(new HashMap<>(event));
+            }
+            return events;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static byte[] recordedLog() throws IOException {
+        StringBuilder log = new StringBuilder();
+        for (String line : AuditRecordParserTest.readRecordedLogs()) {
+            log.append(line).append('\n');
+        }
+        return log.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package sketch;
+
+import spade.core.AbstractSketch;
+import spade.core.AbstractVertex;
+import spade.core.Kernel;
+import spade.core.MatrixFilter;
+import spade.core.Vertex;
+import spade.sketch.RemoteSketches;
+import spade.sketch.Sketch;
+
+import javax.net.SocketFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * Compares the size of a sketch serialized, as the sketch server sends it, with its
+ * binary encoding in full and after one change. Then exchanges sketches with the
+ * sketch server over one kept open connection, with both encodings, and checks that
+ * the copies follow the changes. Then measures how long the callers of
+ * RemoteSketches.whenFresh wait while the remote host accepts the connection but
+ * never answers, which is how long the ingest thread waited before.
+ *
+ * Usage: java sketch.SketchExchangeBenchmark [connections in the sketch] [calls]
+ */
+public class SketchExchangeBenchmark
+{
+    private static final Executor CALLER = new Executor()
+    {
+        @Override
+        public void execute(Runnable command)
+        {
+            command.run();
+        }
+    };
+
+    public static void main(String[] args) throws Exception
+    {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int calls = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+        MatrixFilter serverFilter = new MatrixFilter(0.1, 20);
+        for (int i = 0; i < connections; i++)
+        {
+            serverFilter.add(networkVertex(i), networkVertex(i + 1));
+        }
+        Kernel.sketches = Collections.synchronizedSet(new HashSet<AbstractSketch>());
+        Kernel.sketches.add(Sketch.remoteCopy(serverFilter));
+        Kernel.remoteSketches = Collections.synchronizedMap(new HashMap<String, AbstractSketch>());
+        Kernel.remoteSketches.put("relayed", Sketch.remoteCopy(new MatrixFilter(0.1, 20)));
+
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        ObjectOutputStream objectOutput = new ObjectOutputStream(serialized);
+        objectOutput.writeObject(Kernel.sketches.iterator().next());
+        objectOutput.writeObject(Kernel.remoteSketches);
+        objectOutput.close();
+        ByteArrayOutputStream full = new ByteArrayOutputStream();
+        serverFilter.writeDelta(new DataOutputStream(full), 0, 0);
+        long version = serverFilter.getVersion();
+        serverFilter.add(networkVertex(-1), networkVertex(-2));
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        serverFilter.writeDelta(new DataOutputStream(delta), serverFilter.getInstanceId(), version);
+        System.out.println("Sketch with " + connections + " connections: serialized " + serialized.size()
+                + " bytes, binary " + full.size() + " bytes, binary after one change " + delta.size() + " bytes");
+
+        final ServerSocket sketchServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    while (true)
+                    {
+                        Socket socket = sketchServer.accept();
+                        new Thread(new spade.resolver.Sketch(null, null, 0, null, socket)).start();
+                    }
+                }
+                catch (Exception exception)
+                {
+                    // closed
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (boolean deltaExchange : new boolean[]{true, false})
+        {
+            RemoteSketches remoteSketches = new RemoteSketches(sketchServer.getLocalPort(),
+                    SocketFactory.getDefault(), deltaExchange, 100, 50, 60000, 1000, 5000, 1, 1000, CALLER);
+            long start = System.nanoTime();
+            whenFreshAndWait(remoteSketches, "127.0.0.1");
+            long firstMillis = (System.nanoTime() - start) / 1000000;
+            boolean same = serverFilter.equals(remoteSketches.get("127.0.0.1").matrixFilter);
+            serverFilter.add(networkVertex(connections + 1), networkVertex(connections + 2));
+            Thread.sleep(300);
+            boolean sameAfterChange = serverFilter.equals(remoteSketches.get("127.0.0.1").matrixFilter);
+            System.out.println((deltaExchange ? "Binary delta" : "Serialized") + " exchange: first after "
+                    + firstMillis + " ms, " + remoteSketches.getExchangeCount() + " exchange(s), "
+                    + remoteSketches.getFailureCount() + " failed, copy same: " + same + ", same after a change: "
+                    + sameAfterChange + ", relayed copy received: " + (remoteSketches.get("relayed") != null));
+            remoteSketches.shutdown();
+        }
+        sketchServer.close();
+
+        // accepts connections and never answers
+        final ServerSocket silentServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final List<Socket> silentSockets = new ArrayList<>();
+        Thread silentAcceptor = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    while (true)
+                    {
+                        silentSockets.add(silentServer.accept());
+                    }
+                }
+                catch (Exception exception)
+                {
+                    // closed
+                }
+            }
+        });
+        silentAcceptor.setDaemon(true);
+        silentAcceptor.start();
+        int readTimeoutMillis = 2000;
+        RemoteSketches remoteSketches = new RemoteSketches(silentServer.getLocalPort(), SocketFactory.getDefault(),
+                true, 60000, 60000, 60000, 1000, readTimeoutMillis, 1, calls, CALLER);
+        final CountDownLatch ran = new CountDownLatch(calls);
+        Runnable task = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                ran.countDown();
+            }
+        };
+        long maxNanos = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < calls; i++)
+        {
+            long callStart = System.nanoTime();
+            remoteSketches.whenFresh("127.0.0.1", "client", task);
+            maxNanos = Math.max(maxNanos, System.nanoTime() - callStart);
+        }
+        long callMillis = (System.nanoTime() - start) / 1000000;
+        ran.await();
+        long ranMillis = (System.nanoTime() - start) / 1000000;
+        System.out.println("Silent remote host, read timeout " + readTimeoutMillis + " ms: " + calls
+                + " calls in " + callMillis + " ms, longest " + (maxNanos / 1000) + " us, tasks ran after "
+                + ranMillis + " ms, " + remoteSketches.getFailureCount() + " failed exchange(s)");
+        remoteSketches.shutdown();
+        silentServer.close();
+    }
+
+    private static AbstractVertex networkVertex(int i)
+    {
+        AbstractVertex vertex = new Vertex();
+        vertex.addAnnotation("network", "true");
+        vertex.addAnnotation("source host", "10.0.0.1");
+        vertex.addAnnotation("source port", String.valueOf(40000 + i));
+        vertex.addAnnotation("destination host", "10.0.0.2");
+        vertex.addAnnotation("destination port", "80");
+        return vertex;
+    }
+
+    private static void whenFreshAndWait(RemoteSketches remoteSketches, String host) throws InterruptedException
+    {
+        final CountDownLatch ran = new CountDownLatch(1);
+        remoteSketches.whenFresh(host, "client", new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                ran.countDown();
+            }
+        });
+        ran.await();
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package storage;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Vertex;
+import spade.storage.Graphviz;
+import spade.storage.TextFile;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compares the TextFile storage with the FileWriter it used before, one write call
+ * per element, and checks that both files are the same. Then writes with the
+ * Graphviz storage rotating by size with gzip, and checks that every segment is a
+ * complete graph and that no element is lost.
+ *
+ * Usage: java storage.FileStorageBenchmark [element count] [directory]
+ */
+public class FileStorageBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        File directory = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+
+        List<AbstractVertex> vertices = new ArrayList<>(count);
+        List<AbstractEdge> edges = new ArrayList<>(count);
+        for(int i = 0; i < count; i++)
+        {
+            Vertex vertex = new Vertex();
+            vertex.addAnnotation("type", "Process");
+            vertex.addAnnotation("pid", String.valueOf(i));
+            vertex.addAnnotation("ppid", String.valueOf(i / 2));
+            vertex.addAnnotation("name", "process-" + (i % 100));
+            vertex.addAnnotation("commandline", "/usr/bin/process-" + (i % 100) + " --option \"" + i + "\" é");
+            vertex.addAnnotation("start time", "1500000000." + i);
+            vertices.add(vertex);
+            if(i > 0)
+            {
+                Edge edge = new Edge(vertex, vertices.get(i / 2));
+                edge.addAnnotation("type", "WasTriggeredBy");
+                edge.addAnnotation("operation", "fork");
+                edge.addAnnotation("time", "1500000000." + i);
+                edge.addAnnotation("event id", String.valueOf(i));
+                edges.add(edge);
+            }
+        }
+        for(AbstractEdge edge : edges)
+        {
+            edge.getChildVertex().bigHashCode();
+        }
+
+        File oldFile = new File(directory, "filestorage-old.txt");
+        long start = System.nanoTime();
+        // FileWriter with the default charset replaced by UTF-8, which AsyncFileWriter always uses
+        Writer writer = new OutputStreamWriter(new FileOutputStream(oldFile), StandardCharsets.UTF_8);
+        writer.write("[BEGIN]\n");
+        for(int i = 0; i < count; i++)
+        {
+            writer.write(oldVertex(vertices.get(i)));
+            if(i > 0)
+            {
+                writer.write(oldEdge(edges.get(i - 1)));
+            }
+        }
+        writer.write("[END]\n");
+        writer.close();
+        long oldMillis = (System.nanoTime() - start) / 1000000;
+
+        File newFile = new File(directory, "filestorage-new.txt");
+        start = System.nanoTime();
+        TextFile textFile = new TextFile();
+        if(!textFile.initialize(newFile.getAbsolutePath()))
+        {
+            System.err.println("Unable to initialize TextFile");
+            return;
+        }
+        for(int i = 0; i < count; i++)
+        {
+            textFile.putVertex(vertices.get(i));
+            if(i > 0)
+            {
+                textFile.putEdge(edges.get(i - 1));
+            }
+        }
+        textFile.shutdown();
+        long newMillis = (System.nanoTime() - start) / 1000000;
+
+        boolean same = oldFile.length() == newFile.length()
+                && Arrays.equals(Files.readAllBytes(oldFile.toPath()), Files.readAllBytes(newFile.toPath()));
+        System.out.println("FileWriter: " + oldMillis + " ms, TextFile: " + newMillis + " ms, "
+                + (oldFile.length() / 1024) + " KB, same output: " + same);
+        oldFile.delete();
+        newFile.delete();
+
+        File graphvizDirectory = Files.createTempDirectory(directory.toPath(), "filestorage-graphviz").toFile();
+        File dotFile = new File(graphvizDirectory, "graph.dot");
+        start = System.nanoTime();
+        Graphviz graphviz = new Graphviz();
+        if(!graphviz.initialize("output=" + dotFile.getAbsolutePath()
+                + " rotateBytes=10000000 compression=gzip bufferSize=262144"))
+        {
+            System.err.println("Unable to initialize Graphviz");
+            return;
+        }
+        for(int i = 0; i < count; i++)
+        {
+            graphviz.putVertex(vertices.get(i));
+            if(i > 0)
+            {
+                graphviz.putEdge(edges.get(i - 1));
+            }
+        }
+        graphviz.shutdown();
+        long graphvizMillis = (System.nanoTime() - start) / 1000000;
+
+        int segments = 0, incomplete = 0;
+        long vertexLines = 0, edgeLines = 0;
+        for(File segment : graphvizDirectory.listFiles())
+        {
+            segments++;
+            InputStream input = new FileInputStream(segment);
+            if(segment.getName().endsWith(".gz"))
+            {
+                input = new GZIPInputStream(input);
+            }
+            try(BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8)))
+            {
+                String line, first = reader.readLine(), last = first;
+                while((line = reader.readLine()) != null)
+                {
+                    if(line.contains(" -> "))
+                    {
+                        edgeLines++;
+                    }
+                    else if(line.contains(" shape="))
+                    {
+                        vertexLines++;
+                    }
+                    last = line;
+                }
+                if(!"digraph spade2dot {".equals(first) || !"}".equals(last))
+                {
+                    incomplete++;
+                }
+            }
+            segment.delete();
+        }
+        graphvizDirectory.delete();
+        System.out.println("Graphviz with rotation and gzip: " + graphvizMillis + " ms, " + segments + " segments, "
+                + incomplete + " incomplete, vertices " + vertexLines + "/" + count + ", edges " + edgeLines + "/"
+                + edges.size());
+    }
+
+    // TextFile before AsyncFileWriter
+    private static String oldVertex(AbstractVertex vertex)
+    {
+        StringBuilder annotationString = new StringBuilder();
+        annotationString.append("VERTEX (").append(vertex.bigHashCode()).append("): {");
+        appendAnnotations(annotationString, vertex.getAnnotations());
+        annotationString.append("}\n");
+        return annotationString.toString();
+    }
+
+    private static String oldEdge(AbstractEdge edge)
+    {
+        StringBuilder annotationString = new StringBuilder();
+        annotationString.append("EDGE (").append(edge.getChildVertex().bigHashCode()).append(" -> ")
+                .append(edge.getParentVertex().bigHashCode()).append("): {");
+        appendAnnotations(annotationString, edge.getAnnotations());
+        annotationString.append("}\n");
+        return annotationString.toString();
+    }
+
+    private static void appendAnnotations(StringBuilder annotationString, Map<String, String> annotations)
+    {
+        for(Map.Entry<String, String> currentEntry : annotations.entrySet())
+        {
+            if(currentEntry.getKey() == null || currentEntry.getValue() == null)
+            {
+                continue;
+            }
+            annotationString.append(currentEntry.getKey()).append(":").append(currentEntry.getValue()).append(",");
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package storage;
+
+import org.junit.jupiter.api.Test;
+import spade.core.AbstractEdge;
+import spade.core.AbstractStorage;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Vertex;
+import spade.storage.H2;
+import spade.storage.SQL;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the batch inserts of spade.storage.SQL on an in-memory H2 database, with both
+ * SQL strings and prepared statements: an element repeated in a batch is inserted once,
+ * and a batch that fails is inserted one element at a time without losing the others.
+ */
+class SQLBatchTest {
+
+    private static final String VERTEX_TABLE = "vertex";
+    private static final String EDGE_TABLE = "edge";
+
+    private static int databases = 0;
+
+    @Test
+    void repeatsInBatchAreInsertedOnce() throws Exception {
+        for (boolean preparedInserts : new boolean[]{false, true}) {
+            String database = newDatabase();
+            SQL storage = open(database, preparedInserts);
+            try (Connection connection = connect(database)) {
+                AbstractVertex vertex1 = vertex("repeat-1-" + database);
+                AbstractVertex vertex2 = vertex("repeat-2-" + database);
+                AbstractVertex vertex1Copy = vertex("repeat-1-" + database);
+                assertEquals(4, storage.putVertices(Arrays.asList(vertex1, vertex1Copy, vertex2, vertex1)));
+                assertEquals(2, count(connection, VERTEX_TABLE), "vertices, preparedInserts=" + preparedInserts);
+
+                AbstractEdge edge = edge(vertex1, vertex2, "repeat-" + database);
+                AbstractEdge edgeCopy = edge(vertex1, vertex2, "repeat-" + database);
+                assertEquals(2, storage.putEdges(Arrays.asList(edge, edgeCopy)));
+                assertEquals(1, count(connection, EDGE_TABLE), "edges, preparedInserts=" + preparedInserts);
+            } finally {
+                storage.shutdown();
+            }
+        }
+    }
+
+    @Test
+    void failedBatchIsInsertedOneAtATime() throws Exception {
+        for (boolean preparedInserts : new boolean[]{false, true}) {
+            String database = newDatabase();
+            SQL storage = open(database, preparedInserts);
+            try (Connection connection = connect(database)) {
+                AbstractVertex existing = vertex("existing-" + database);
+                // in the table but not in the cache of the storage, so the batch fails on its primary key
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("INSERT INTO " + VERTEX_TABLE + " (\"" + AbstractStorage.PRIMARY_KEY + "\", \"type\") VALUES ('"
+                            + existing.bigHashCode() + "', 'Process')");
+                }
+                List<AbstractVertex> vertices = new ArrayList<>();
+                for (int i = 0; i < 10; i++) {
+                    vertices.add(vertex("new-" + i + "-" + database));
+                }
+                vertices.add(5, existing);
+                assertEquals(10, storage.putVertices(vertices), "preparedInserts=" + preparedInserts);
+                assertEquals(11, count(connection, VERTEX_TABLE), "preparedInserts=" + preparedInserts);
+                // and the storage can still insert
+                assertEquals(1, storage.putVertices(Arrays.asList(vertex("after-" + database))));
+                assertEquals(12, count(connection, VERTEX_TABLE));
+            } finally {
+                storage.shutdown();
+            }
+        }
+    }
+
+    private static synchronized String newDatabase() {
+        return "mem:sqlbatchtest" + (databases++);
+    }
+
+    private static SQL open(String database, boolean preparedInserts) {
+        H2 storage = new H2();
+        assertTrue(storage.initialize("database=" + database + ";DB_CLOSE_DELAY=-1"));
+        storage.setPreparedInserts(preparedInserts);
+        return storage;
+    }
+
+    private static Connection connect(String database) throws Exception {
+        return DriverManager.getConnection("jdbc:h2:" + database, "spade", "12345");
+    }
+
+    private static int count(Connection connection, String table) throws Exception {
+        try (Statement statement = connection.createStatement();
+             ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            result.next();
+            return result.getInt(1);
+        }
+    }
+
+    private static AbstractVertex vertex(String name) {
+        AbstractVertex vertex = new Vertex();
+        vertex.addAnnotation("type", "Process");
+        vertex.addAnnotation("name", name);
+        return vertex;
+    }
+
+    private static AbstractEdge edge(AbstractVertex child, AbstractVertex parent, String name) {
+        AbstractEdge edge = new Edge(child, parent);
+        edge.addAnnotation("type", "WasTriggeredBy");
+        edge.addAnnotation("name", name);
+        return edge;
+    }
+}
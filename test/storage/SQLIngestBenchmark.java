@@ -0,0 +1,162 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package storage;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Vertex;
+import spade.storage.H2;
+import spade.storage.MySQL;
+import spade.storage.PostgreSQL;
+import spade.storage.SQL;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the ingestion rate, in rows per second, of the SQL storages in their
+ * different write modes:
+ *
+ * element  - putVertex/putEdge with one insert string per element
+ * batch    - putVertices/putEdges with one JDBC batch of insert strings
+ * prepared - putVertices/putEdges with prepared statements per column set
+ * copy     - PostgreSQL only, COPY FROM STDIN
+ *
+ * Usage: java storage.SQLIngestBenchmark H2|MySQL|PostgreSQL [element count] [storage arguments]
+ */
+public class SQLIngestBenchmark
+{
+    private static final int BATCH_SIZE = 10000;
+
+    public static void main(String[] args)
+    {
+        String storageName = args.length > 0 ? args[0] : "H2";
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        String arguments = args.length > 2 ? args[2] : "";
+
+        SQL storage;
+        if(storageName.equalsIgnoreCase("PostgreSQL"))
+        {
+            storage = new PostgreSQL();
+        }
+        else if(storageName.equalsIgnoreCase("MySQL"))
+        {
+            storage = new MySQL();
+        }
+        else
+        {
+            storage = new H2();
+        }
+        if(!storage.initialize(arguments))
+        {
+            System.err.println("Unable to initialize " + storageName);
+            return;
+        }
+
+        List<String> modes = new ArrayList<>();
+        modes.add("element");
+        modes.add("batch");
+        modes.add("prepared");
+        if(storage instanceof PostgreSQL)
+        {
+            modes.add("copy");
+        }
+        for(String mode : modes)
+        {
+            storage.setPreparedInserts(mode.equals("prepared"));
+            if(storage instanceof PostgreSQL)
+            {
+                ((PostgreSQL) storage).setBulkUpload(mode.equals("copy"));
+            }
+            double rate = run(storage, mode, count);
+            System.out.println(storageName + " " + mode + ": " + (long) rate + " rows/sec");
+        }
+        storage.shutdown();
+    }
+
+    private static double run(SQL storage, String mode, int count)
+    {
+        // A distinct run id keeps the elements of every mode unique
+        String run = mode + "-" + System.nanoTime();
+        long start = System.nanoTime();
+        List<AbstractVertex> vertices = new ArrayList<>(BATCH_SIZE);
+        List<AbstractEdge> edges = new ArrayList<>(BATCH_SIZE);
+        AbstractVertex previous = null;
+        for(int i = 0; i < count; i++)
+        {
+            AbstractVertex vertex = new Vertex();
+            vertex.addAnnotation("type", "Process");
+            vertex.addAnnotation("run", run);
+            vertex.addAnnotation("pid", String.valueOf(i));
+            vertex.addAnnotation("name", "process" + (i % 100));
+            if(i % 10 == 0)
+            {
+                // Elements with a different column set
+                vertex.addAnnotation("cwd", "/home/user");
+            }
+            vertices.add(vertex);
+            if(previous != null)
+            {
+                AbstractEdge edge = new Edge(vertex, previous);
+                edge.addAnnotation("type", "WasTriggeredBy");
+                edge.addAnnotation("operation", "fork");
+                edge.addAnnotation("time", String.valueOf(i));
+                edges.add(edge);
+            }
+            previous = vertex;
+            if(vertices.size() == BATCH_SIZE)
+            {
+                write(storage, mode, vertices, edges);
+            }
+        }
+        write(storage, mode, vertices, edges);
+        if(storage instanceof PostgreSQL && mode.equals("copy"))
+        {
+            // Flushes the pending rows
+            ((PostgreSQL) storage).setBulkUpload(false);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return (2.0 * count - 1) / seconds;
+    }
+
+    private static void write(SQL storage, String mode, List<AbstractVertex> vertices, List<AbstractEdge> edges)
+    {
+        if(mode.equals("element"))
+        {
+            for(AbstractVertex vertex : vertices)
+            {
+                storage.putVertex(vertex);
+            }
+            for(AbstractEdge edge : edges)
+            {
+                storage.putEdge(edge);
+            }
+        }
+        else
+        {
+            storage.putVertices(vertices);
+            storage.putEdges(edges);
+        }
+        vertices.clear();
+        edges.clear();
+    }
+}
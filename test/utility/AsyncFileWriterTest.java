@@ -0,0 +1,266 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package utility;
+
+import org.junit.jupiter.api.Test;
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Vertex;
+import spade.storage.TextFile;
+import spade.utility.AsyncFileWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that spade.utility.AsyncFileWriter writes the records appended to it in order
+ * and encoded as UTF-8 with buffers much smaller than the records, that rotated
+ * segments are complete files that together hold every record, and that TextFile
+ * writes the same lines through it as it did with a FileWriter.
+ */
+class AsyncFileWriterTest {
+
+    private static final String[] RECORDS = {
+            "plain ascii\n",
+            "two bytes é and three bytes 中\n",
+            "four bytes 😀 and an unpaired surrogate \ud800 in one record\n",
+            "a record much longer than a buffer " + repeat("0123456789", 20) + "\n",
+            "\n"};
+
+    @Test
+    void recordsAreWrittenInOrderAsUtf8() throws Exception {
+        File directory = Files.createTempDirectory("asyncfilewriter").toFile();
+        try {
+            File file = new File(directory, "out.txt");
+            AsyncFileWriter writer = AsyncFileWriter.create(file.getPath(), false, "[BEGIN]\n", "[END]\n",
+                    settings("bufferSize", "16", "buffers", "2"));
+            StringBuilder expected = new StringBuilder("[BEGIN]\n");
+            for (int i = 0; i < 200; i++) {
+                String record = RECORDS[i % RECORDS.length];
+                if (i % 2 == 0) {
+                    writer.append(record);
+                } else {
+                    // a record made of several appends
+                    String[] words = record.split(" ");
+                    for (int w = 0; w < words.length; w++) {
+                        if (w > 0) {
+                            writer.append(' ');
+                        }
+                        writer.append(words[w]);
+                    }
+                }
+                writer.endRecord();
+                expected.append(record);
+                if (i == 100) {
+                    writer.flush();
+                    assertEquals(utf8(expected.toString()).length, file.length());
+                }
+            }
+            writer.close();
+            expected.append("[END]\n");
+            assertEquals(decoded(expected.toString()), read(file));
+            assertThrows(IOException.class, () -> writer.append("after close"));
+
+            // appending to the file does not repeat the header
+            AsyncFileWriter appender = AsyncFileWriter.create(file.getPath(), true, "[BEGIN]\n", "[END]\n",
+                    settings());
+            appender.append(RECORDS[0]).endRecord();
+            appender.close();
+            assertEquals(decoded(expected + RECORDS[0] + "[END]\n"), read(file));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    void rotatedSegmentsAreCompleteAndHoldEveryRecord() throws Exception {
+        File directory = Files.createTempDirectory("asyncfilewriter").toFile();
+        try {
+            File file = new File(directory, "graph.dot");
+            AsyncFileWriter writer = AsyncFileWriter.create(file.getPath(), false, "digraph {\n", "}\n",
+                    settings("bufferSize", "64", "rotateBytes", "500", "compression", "gzip"));
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < 300; i++) {
+                String record = "record " + i + " " + RECORDS[i % RECORDS.length];
+                writer.append(record).endRecord();
+                expected.add(record);
+            }
+            writer.close();
+
+            File[] segments = directory.listFiles();
+            Arrays.sort(segments, (a, b) -> compareSegments(file.getName(), a.getName(), b.getName()));
+            assertTrue(segments.length > 10, segments.length + " segments");
+            StringBuilder records = new StringBuilder();
+            for (int i = 0; i < segments.length; i++) {
+                File segment = segments[i];
+                // every closed segment is compressed, the last one is the file itself
+                assertEquals(i < segments.length - 1, segment.getName().endsWith(".gz"), segment.getName());
+                String content = read(segment);
+                assertTrue(content.startsWith("digraph {\n") && content.endsWith("}\n"), segment.getName());
+                String body = content.substring("digraph {\n".length(), content.length() - "}\n".length());
+                // segments only end between records
+                assertTrue(body.isEmpty() || body.startsWith("record "), segment.getName());
+                records.append(body);
+            }
+            assertEquals(decoded(String.join("", expected)), records.toString());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    void invalidSettingsAreRejected() throws Exception {
+        File directory = Files.createTempDirectory("asyncfilewriter").toFile();
+        try {
+            String path = new File(directory, "out.txt").getPath();
+            assertThrows(Exception.class, () -> AsyncFileWriter.create(path, false, null, null,
+                    settings("buffers", "1")));
+            assertThrows(Exception.class, () -> AsyncFileWriter.create(path, false, null, null,
+                    settings("compression", "zstd")));
+            assertThrows(Exception.class, () -> AsyncFileWriter.create(path, false, null, null,
+                    settings("rotateBytes", "-1")));
+            assertThrows(Exception.class, () -> AsyncFileWriter.create("", false, null, null, settings()));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    void textFileWritesTheSameLinesAsBefore() throws Exception {
+        File directory = Files.createTempDirectory("asyncfilewriter").toFile();
+        try {
+            File file = new File(directory, "out.txt");
+            TextFile textFile = new TextFile();
+            assertTrue(textFile.initialize(file.getPath() + " false bufferSize=32"));
+            // what TextFile wrote with a FileWriter, one string per element
+            StringBuilder expected = new StringBuilder("[BEGIN]\n");
+            AbstractVertex previous = null;
+            for (int i = 0; i < 100; i++) {
+                AbstractVertex vertex = new Vertex();
+                vertex.addAnnotation("type", "Process");
+                vertex.addAnnotation("pid", String.valueOf(i));
+                vertex.addAnnotation("commandline", RECORDS[i % RECORDS.length].trim());
+                textFile.putVertex(vertex);
+                expected.append("VERTEX (").append(vertex.bigHashCode()).append("): {")
+                        .append(annotations(vertex.getAnnotations())).append("}\n");
+                if (previous != null) {
+                    AbstractEdge edge = new Edge(vertex, previous);
+                    edge.addAnnotation("type", "WasTriggeredBy");
+                    textFile.putEdge(edge);
+                    expected.append("EDGE (").append(vertex.bigHashCode()).append(" -> ")
+                            .append(previous.bigHashCode()).append("): {")
+                            .append(annotations(edge.getAnnotations())).append("}\n");
+                }
+                previous = vertex;
+            }
+            assertTrue(textFile.shutdown());
+            expected.append("[END]\n");
+            assertEquals(decoded(expected.toString()), read(file));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    // <name>, then <name>.<timestamp> and <name>.<timestamp>.<n>, compressed or not, with the file itself last
+    private static int compareSegments(String name, String a, String b) {
+        return Arrays.compare(segmentOrder(name, a), segmentOrder(name, b));
+    }
+
+    private static long[] segmentOrder(String name, String segment) {
+        if (segment.equals(name)) {
+            return new long[]{Long.MAX_VALUE, 0};
+        }
+        String[] parts = segment.substring(name.length() + 1).replace(".gz", "").split("[.-]");
+        return new long[]{Long.parseLong(parts[0] + parts[1]), parts.length > 2 ? Long.parseLong(parts[2]) : 0};
+    }
+
+    private static String annotations(Map<String, String> annotations) {
+        StringBuilder string = new StringBuilder();
+        for (Map.Entry<String, String> entry : annotations.entrySet()) {
+            string.append(entry.getKey()).append(":").append(entry.getValue()).append(",");
+        }
+        return string.toString();
+    }
+
+    private static Map<String, String> settings(String... keysAndValues) {
+        Map<String, String> settings = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            settings.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return settings;
+    }
+
+    private static String read(File file) throws IOException {
+        try (InputStream input = file.getName().endsWith(".gz")
+                ? new GZIPInputStream(Files.newInputStream(file.toPath()))
+                : Files.newInputStream(file.toPath())) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static byte[] utf8(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // as read back from the file, with unpaired surrogates replaced by '?'
+    private static String decoded(String string) {
+        return new String(utf8(string), StandardCharsets.UTF_8);
+    }
+
+    private static String repeat(String string, int count) {
+        StringBuilder repeated = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            repeated.append(string);
+        }
+        return repeated.toString();
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
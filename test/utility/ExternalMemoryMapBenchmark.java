@@ -0,0 +1,108 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package utility;
+
+import spade.utility.CommonFunctions;
+import spade.utility.ExternalMemoryMap;
+import spade.utility.Hasher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Updates keys from several threads, with more keys than fit in memory so that most
+ * updates evict an element and load another one from the external storage. Every
+ * thread updates its own keys, and at the end checks that each key has its last value.
+ *
+ * Usage: java utility.ExternalMemoryMapBenchmark [threads] [keys per thread] [updates per thread] [cache size] [directory]
+ */
+public class ExternalMemoryMapBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        final int threadCount = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final int keysPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+        final int updatesPerThread = args.length > 2 ? Integer.parseInt(args[2]) : 500000;
+        String cacheSize = args.length > 3 ? args[3] : "20000";
+        String directory = args.length > 4 ? args[4] : System.getProperty("java.io.tmpdir");
+
+        final ExternalMemoryMap<String, Long> map = CommonFunctions.createExternalMemoryMapInstance("benchmark",
+                cacheSize, "0.0001", String.valueOf(threadCount * keysPerThread), directory, "emmbenchmark", null,
+                new Hasher<String>()
+                {
+                    @Override
+                    public String getHash(String key)
+                    {
+                        return key;
+                    }
+                });
+
+        final AtomicLong wrongValues = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        long start = System.nanoTime();
+        for(int t = 0; t < threadCount; t++)
+        {
+            final int thread = t;
+            Thread worker = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    long[] expected = new long[keysPerThread];
+                    // a cheap generator so that the accesses are spread over all the keys
+                    long random = thread + 1;
+                    for(int i = 0; i < updatesPerThread; i++)
+                    {
+                        random ^= random << 13;
+                        random ^= random >>> 7;
+                        random ^= random << 17;
+                        int index = (int) ((random >>> 1) % keysPerThread);
+                        String key = thread + ":" + index;
+                        Long value = map.get(key);
+                        if(value == null ? expected[index] != 0 : value != expected[index])
+                        {
+                            wrongValues.incrementAndGet();
+                        }
+                        expected[index]++;
+                        map.put(key, expected[index]);
+                    }
+                    for(int index = 0; index < keysPerThread; index++)
+                    {
+                        Long value = map.get(thread + ":" + index);
+                        if(value == null ? expected[index] != 0 : value != expected[index])
+                        {
+                            wrongValues.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads.add(worker);
+            worker.start();
+        }
+        for(Thread worker : threads)
+        {
+            worker.join();
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        long operations = 2L * threadCount * updatesPerThread;
+        System.out.println(threadCount + " threads: " + operations + " operations in " + millis + " ms ("
+                + (operations * 1000 / Math.max(1, millis)) + " operations/s). Wrong values: " + wrongValues.get());
+        System.out.println(map.getStats());
+        CommonFunctions.closePrintSizeAndDeleteExternalMemoryMap("benchmark", map);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package utility;
+
+import org.junit.jupiter.api.Test;
+import spade.utility.CommonFunctions;
+import spade.utility.ExternalMemoryMap;
+import spade.utility.Hasher;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Differential test of spade.utility.ExternalMemoryMap against a HashMap, with far more
+ * keys than the in-memory part holds so that most operations evict elements to
+ * BerkeleyDB or read them back from the write queue or from BerkeleyDB.
+ */
+class ExternalMemoryMapTest {
+
+    @Test
+    void operationsMatchHashMap() throws Exception {
+        File directory = Files.createTempDirectory("emm").toFile();
+        ExternalMemoryMap<String, Long> map = map(directory, 16);
+        try {
+            Map<String, Long> expected = new HashMap<>();
+            Random random = new Random(1);
+            for (int i = 0; i < 20000; i++) {
+                String key = "key" + random.nextInt(500);
+                int operation = random.nextInt(10);
+                if (operation < 5) {
+                    assertEquals(expected.get(key), map.get(key), "get " + key + " at " + i);
+                } else if (operation < 9) {
+                    long value = random.nextLong();
+                    expected.put(key, value);
+                    map.put(key, value);
+                } else {
+                    assertEquals(expected.remove(key), map.remove(key), "remove " + key + " at " + i);
+                }
+                if (i % 5000 == 0) {
+                    map.flush();
+                }
+            }
+            assertTrue(map.size() <= 16 + 16, "in-memory elements: " + map.size());
+            map.flush();
+            for (int k = 0; k < 500; k++) {
+                assertEquals(expected.get("key" + k), map.get("key" + k), "key" + k);
+            }
+
+            map.clear();
+            for (int k = 0; k < 500; k++) {
+                assertNull(map.get("key" + k), "key" + k + " after clear");
+            }
+        } finally {
+            CommonFunctions.closePrintSizeAndDeleteExternalMemoryMap("test", map);
+            delete(directory);
+        }
+    }
+
+    @Test
+    void threadsReadTheirLastWrites() throws Exception {
+        File directory = Files.createTempDirectory("emm").toFile();
+        final ExternalMemoryMap<String, Long> map = map(directory, 64);
+        try {
+            final AtomicReference<String> failure = new AtomicReference<>();
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final int thread = t;
+                threads.add(new Thread(() -> {
+                    long[] expected = new long[300];
+                    Random random = new Random(thread);
+                    for (int i = 0; i < 20000; i++) {
+                        int index = random.nextInt(expected.length);
+                        String key = thread + ":" + index;
+                        Long value = map.get(key);
+                        if (value == null ? expected[index] != 0 : value != expected[index]) {
+                            failure.compareAndSet(null, key + " is " + value + " instead of " + expected[index]);
+                        }
+                        expected[index]++;
+                        map.put(key, expected[index]);
+                        if (random.nextInt(100) == 0) {
+                            map.remove(key);
+                            expected[index] = 0;
+                        }
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertNull(failure.get());
+        } finally {
+            CommonFunctions.closePrintSizeAndDeleteExternalMemoryMap("test", map);
+            delete(directory);
+        }
+    }
+
+    private static ExternalMemoryMap<String, Long> map(File directory, int cacheSize) throws Exception {
+        return CommonFunctions.createExternalMemoryMapInstance("test", String.valueOf(cacheSize), "0.01", "2000",
+                directory.getPath(), "emmtest", null, new Hasher<String>() {
+                    @Override
+                    public String getHash(String key) {
+                        return key;
+                    }
+                });
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
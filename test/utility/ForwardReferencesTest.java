@@ -0,0 +1,170 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package utility;
+
+import org.junit.jupiter.api.Test;
+import spade.utility.ForwardReferences;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests that spade.utility.ForwardReferences resolves every edge once both of its
+ * endpoints have been seen, in the order a simple list of pending edges would, and
+ * drops the oldest pending edges beyond its limit.
+ */
+class ForwardReferencesTest {
+
+    @Test
+    void edgesAreResolvedWhenTheirVerticesArrive() {
+        final List<String> resolved = new ArrayList<>();
+        ForwardReferences<String, String> references = references(0, resolved);
+        references.putEdge("a", "b", "e1");
+        references.putEdge("b", "b", "e2");
+        references.putVertex("a", "A");
+        assertEquals(new ArrayList<String>(), resolved);
+        assertEquals(2, references.getPendingCount());
+        references.putVertex("b", "B");
+        assertEquals(list("e1 A->B", "e2 B->B"), resolved);
+        references.putEdge("b", "a", "e3");
+        assertEquals(list("e1 A->B", "e2 B->B", "e3 B->A"), resolved);
+        // the vertex seen last is used
+        references.putVertex("a", "A2");
+        references.putEdge("a", "c", "e4");
+        references.putVertex("c", "C");
+        assertEquals("e4 A2->C", resolved.get(3));
+        assertEquals(0, references.getPendingCount());
+        assertEquals(3, references.getForwardEdgeCount());
+        assertEquals(0, references.getDroppedCount());
+        assertEquals(3, references.getVertexCount());
+        assertNull(references.getVertex("d"));
+
+        references.clear();
+        assertEquals(0, references.getVertexCount());
+        references.putEdge("a", "b", "e5");
+        assertEquals(4, resolved.size());
+    }
+
+    @Test
+    void oldestPendingEdgesAreDropped() {
+        List<String> resolved = new ArrayList<>();
+        ForwardReferences<String, String> references = references(2, resolved);
+        references.putEdge("a", "x", "e1");
+        references.putEdge("b", "x", "e2");
+        references.putEdge("c", "x", "e3");
+        assertEquals(2, references.getPendingCount());
+        assertEquals(1, references.getDroppedCount());
+        for (String id : new String[]{"a", "b", "c", "x"}) {
+            references.putVertex(id, id.toUpperCase());
+        }
+        assertEquals(list("e2 B->X", "e3 C->X"), resolved);
+        assertEquals(0, references.getPendingCount());
+    }
+
+    @Test
+    void randomStreamsMatchAListOfPendingEdges() {
+        for (int maxPending : new int[]{0, 1, 5, 50}) {
+            for (int seed = 0; seed < 20; seed++) {
+                Random random = new Random(seed);
+                List<String> resolved = new ArrayList<>();
+                ForwardReferences<String, String> references = references(maxPending, resolved);
+                Model model = new Model(maxPending);
+                String message = "maxPending=" + maxPending + " seed=" + seed;
+                for (int i = 0; i < 2000; i++) {
+                    String from = "v" + random.nextInt(100);
+                    String to = "v" + random.nextInt(100);
+                    if (random.nextInt(3) == 0) {
+                        String vertex = from + "#" + i;
+                        references.putVertex(from, vertex);
+                        model.putVertex(from, vertex);
+                    } else {
+                        references.putEdge(from, to, "e" + i);
+                        model.putEdge(from, to, "e" + i);
+                    }
+                    assertEquals(model.pending.size(), references.getPendingCount(), message + " at " + i);
+                }
+                assertEquals(model.resolved, resolved, message);
+                assertEquals(model.forwardEdges, references.getForwardEdgeCount(), message);
+                assertEquals(model.dropped, references.getDroppedCount(), message);
+                assertEquals(model.vertices.size(), references.getVertexCount(), message);
+            }
+        }
+    }
+
+    // pending edges in one list, searched in full for every vertex
+    private static final class Model {
+        private final int maxPending;
+        private final Map<String, String> vertices = new HashMap<>();
+        private final List<String[]> pending = new ArrayList<>();
+        private final List<String> resolved = new ArrayList<>();
+        private long forwardEdges, dropped;
+
+        private Model(int maxPending) {
+            this.maxPending = maxPending;
+        }
+
+        private void putVertex(String id, String vertex) {
+            vertices.put(id, vertex);
+            for (Iterator<String[]> iterator = pending.iterator(); iterator.hasNext(); ) {
+                String[] edge = iterator.next();
+                if ((edge[0].equals(id) || edge[1].equals(id))
+                        && vertices.containsKey(edge[0]) && vertices.containsKey(edge[1])) {
+                    iterator.remove();
+                    resolved.add(edge[2] + " " + vertices.get(edge[0]) + "->" + vertices.get(edge[1]));
+                }
+            }
+        }
+
+        private void putEdge(String from, String to, String edge) {
+            if (vertices.containsKey(from) && vertices.containsKey(to)) {
+                resolved.add(edge + " " + vertices.get(from) + "->" + vertices.get(to));
+                return;
+            }
+            forwardEdges++;
+            pending.add(new String[]{from, to, edge});
+            if (maxPending > 0 && pending.size() > maxPending) {
+                pending.remove(0);
+                dropped++;
+            }
+        }
+    }
+
+    private static ForwardReferences<String, String> references(int maxPending, final List<String> resolved) {
+        return new ForwardReferences<>(maxPending, new ForwardReferences.Resolver<String, String>() {
+            @Override
+            public void resolved(String edge, String from, String to) {
+                resolved.add(edge + " " + from + "->" + to);
+            }
+        });
+    }
+
+    private static List<String> list(String... strings) {
+        return new ArrayList<>(Arrays.asList(strings));
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package utility;
+
+import spade.utility.SimilarityClustering;
+import spade.utility.SimilarityClustering.Candidates;
+import spade.utility.SimilarityClustering.Merge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Groups the processes of two hosts that have at least a threshold number of
+ * annotations in common, as ProvenanceIntegration does, where most processes of one
+ * host are also on the other with some annotations different. Compares every pair,
+ * as ProvenanceIntegration did, with the candidate methods of SimilarityClustering,
+ * checks that PREFIX finds the same groups, and measures how the time grows with the
+ * number of vertices.
+ *
+ * Usage: java utility.ProvenanceIntegrationBenchmark [largest vertex count] [threshold] [threads]
+ */
+public class ProvenanceIntegrationBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int largest = args.length > 0 ? Integer.parseInt(args[0]) : 640000;
+        int threshold = args.length > 1 ? Integer.parseInt(args[1]) : 6;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        HashSet<String> blockingKeys = new HashSet<>(Arrays.asList("pid", "commandline"));
+
+        for (int count = 5000; count <= largest; count *= 2)
+        {
+            List<Map<String, String>> records = records(count);
+            List<int[]> exact = null;
+            StringBuilder line = new StringBuilder(count + " vertices:");
+            for (Candidates candidates : Candidates.values())
+            {
+                // comparing every pair is quadratic
+                if (candidates == Candidates.ALL && count > 10000)
+                {
+                    continue;
+                }
+                SimilarityClustering clustering = new SimilarityClustering(candidates, Merge.GREEDY, blockingKeys,
+                        32, 3, threads);
+                long start = System.nanoTime();
+                List<int[]> groups = clustering.cluster(records, null, threshold);
+                long millis = (System.nanoTime() - start) / 1000000;
+                line.append(" ").append(candidates).append(" ").append(millis).append(" ms, ")
+                        .append(clustering.getCandidatePairCount()).append(" compared, ")
+                        .append(groups.size()).append(" groups");
+                if (candidates == Candidates.ALL)
+                {
+                    exact = groups;
+                }
+                else if (candidates == Candidates.PREFIX)
+                {
+                    if (exact != null)
+                    {
+                        line.append(" (same as ALL: ").append(same(exact, groups)).append(")");
+                    }
+                    // exact too
+                    exact = groups;
+                }
+                else
+                {
+                    line.append(" (").append(grouped(groups)).append("/").append(grouped(exact))
+                            .append(" vertices grouped)");
+                }
+                line.append(";");
+            }
+            System.out.println(line);
+        }
+    }
+
+    // processes of two hosts. Three in four processes of the first host are also on the second
+    private static List<Map<String, String>> records(int count)
+    {
+        Random random = new Random(count);
+        List<Map<String, String>> records = new ArrayList<>(count);
+        int perHost = count / 2;
+        for (int host = 0; host < 2; host++)
+        {
+            for (int i = 0; i < perHost; i++)
+            {
+                int process = host == 1 && i % 4 != 0 ? i : perHost * host + i;
+                Map<String, String> annotations = new HashMap<>();
+                annotations.put("type", "Process");
+                annotations.put("pid", String.valueOf(process % 32768));
+                annotations.put("name", "process-" + (process % 500));
+                annotations.put("commandline", "/usr/bin/process-" + (process % 500) + " " + process);
+                annotations.put("uid", String.valueOf(process % 20));
+                annotations.put("gid", String.valueOf(process % 20));
+                annotations.put("tgid", String.valueOf(process % 32768));
+                annotations.put("host", "host-" + host);
+                annotations.put("start time", String.valueOf(1500000000L + random.nextInt(1000000)));
+                if (random.nextInt(10) == 0)
+                {
+                    annotations.put("uid", String.valueOf(random.nextInt(20)));
+                }
+                records.add(annotations);
+            }
+        }
+        return records;
+    }
+
+    private static boolean same(List<int[]> groups1, List<int[]> groups2)
+    {
+        if (groups1.size() != groups2.size())
+        {
+            return false;
+        }
+        for (int i = 0; i < groups1.size(); i++)
+        {
+            if (!Arrays.equals(groups1.get(i), groups2.get(i)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long grouped(List<int[]> groups)
+    {
+        long result = 0;
+        for (int[] group : groups)
+        {
+            result += group.length;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package utility;
+
+import org.junit.jupiter.api.Test;
+import spade.utility.SimilarityClustering;
+import spade.utility.SimilarityClustering.Candidates;
+import spade.utility.SimilarityClustering.Merge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Differential test of spade.utility.SimilarityClustering against the comparison of all
+ * pairs of records that ProvenanceIntegration did before, on small random records with
+ * and without blocks.
+ */
+class SimilarityClusteringTest {
+
+    private static final int[] THRESHOLDS = {0, 1, 2, 3, 5, 9};
+
+    @Test
+    void exactCandidatesGroupAsAllPairs() {
+        for (int seed = 0; seed < 40; seed++) {
+            Random random = new Random(seed);
+            List<Map<String, String>> records = records(random, 1 + random.nextInt(60));
+            int[] blocks = seed % 2 == 0 ? null : blocks(random, records.size());
+            for (int threshold : THRESHOLDS) {
+                for (Merge merge : Merge.values()) {
+                    List<int[]> expected = merge == Merge.GREEDY
+                            ? greedyGroups(records, blocks, threshold)
+                            : transitiveGroups(records, blocks, threshold);
+                    for (Candidates candidates : new Candidates[]{Candidates.PREFIX, Candidates.ALL}) {
+                        SimilarityClustering clustering = new SimilarityClustering(candidates, merge, null, 0, 0,
+                                1 + seed % 3);
+                        List<int[]> groups = clustering.cluster(records, blocks, threshold);
+                        assertGroupsEqual(expected, groups, "seed=" + seed + " threshold=" + threshold
+                                + " merge=" + merge + " candidates=" + candidates);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void recordsWithFewerAnnotationsThanThresholdAreNotGrouped() {
+        List<Map<String, String>> records = new ArrayList<>();
+        records.add(record("type", "Process", "pid", "1"));
+        records.add(record("type", "Process", "pid", "1"));
+        records.add(record("type", "Process", "pid", "1", "name", "a"));
+        records.add(record("type", "Process", "pid", "1", "name", "a"));
+        records.add(record());
+        records.add(record());
+        for (Candidates candidates : new Candidates[]{Candidates.PREFIX, Candidates.ALL}) {
+            for (Merge merge : Merge.values()) {
+                SimilarityClustering clustering = new SimilarityClustering(candidates, merge, null, 0, 0, 1);
+                String message = "candidates=" + candidates + " merge=" + merge;
+                assertGroupsEqual(groups(new int[]{2, 3}), clustering.cluster(records, null, 3), message);
+                assertGroupsEqual(groups(), clustering.cluster(records, null, 4), message);
+                // every pair has no annotations in common at least
+                assertGroupsEqual(groups(new int[]{0, 1, 2, 3, 4, 5}), clustering.cluster(records, null, 0), message);
+            }
+        }
+    }
+
+    @Test
+    void transitiveMergeFollowsChains() {
+        // a is similar to b and b to c, but a is not similar to c
+        List<Map<String, String>> records = new ArrayList<>();
+        records.add(record("k1", "1", "k2", "2", "k3", "3"));
+        records.add(record("k1", "1", "k2", "2", "k3", "x", "k4", "4"));
+        records.add(record("k1", "y", "k2", "z", "k3", "x", "k4", "4"));
+        records.add(record("k1", "1", "k2", "2", "k3", "3"));
+        for (Candidates candidates : new Candidates[]{Candidates.PREFIX, Candidates.ALL}) {
+            SimilarityClustering greedy = new SimilarityClustering(candidates, Merge.GREEDY, null, 0, 0, 1);
+            assertGroupsEqual(groups(new int[]{0, 1, 3}), greedy.cluster(records, null, 2), "candidates=" + candidates);
+            SimilarityClustering transitive = new SimilarityClustering(candidates, Merge.TRANSITIVE, null, 0, 0, 1);
+            assertGroupsEqual(groups(new int[]{0, 1, 2, 3}), transitive.cluster(records, null, 2),
+                    "candidates=" + candidates);
+        }
+    }
+
+    // what ProvenanceIntegration did: each record not in a group takes the later ones not in a group
+    private static List<int[]> greedyGroups(List<Map<String, String>> records, int[] blocks, int threshold) {
+        List<int[]> groups = new ArrayList<>();
+        boolean[] grouped = new boolean[records.size()];
+        for (int i = 0; i < records.size(); i++) {
+            if (grouped[i]) {
+                continue;
+            }
+            List<Integer> group = new ArrayList<>();
+            group.add(i);
+            for (int j = i + 1; j < records.size(); j++) {
+                if (!grouped[j] && similar(records, blocks, i, j, threshold)) {
+                    group.add(j);
+                }
+            }
+            if (group.size() > 1) {
+                int[] indices = new int[group.size()];
+                for (int k = 0; k < indices.length; k++) {
+                    indices[k] = group.get(k);
+                    grouped[indices[k]] = true;
+                }
+                groups.add(indices);
+            }
+        }
+        return groups;
+    }
+
+    private static List<int[]> transitiveGroups(List<Map<String, String>> records, int[] blocks, int threshold) {
+        int[] components = new int[records.size()];
+        for (int i = 0; i < components.length; i++) {
+            components[i] = i;
+        }
+        for (int i = 0; i < records.size(); i++) {
+            for (int j = i + 1; j < records.size(); j++) {
+                if (similar(records, blocks, i, j, threshold)) {
+                    int from = components[j], to = components[i];
+                    for (int k = 0; k < components.length; k++) {
+                        if (components[k] == from) {
+                            components[k] = to;
+                        }
+                    }
+                }
+            }
+        }
+        // ordered by first record
+        Map<Integer, List<Integer>> byFirst = new TreeMap<>();
+        Map<Integer, Integer> firsts = new HashMap<>();
+        for (int i = 0; i < components.length; i++) {
+            Integer first = firsts.get(components[i]);
+            if (first == null) {
+                first = i;
+                firsts.put(components[i], first);
+                byFirst.put(first, new ArrayList<Integer>());
+            }
+            byFirst.get(first).add(i);
+        }
+        List<int[]> groups = new ArrayList<>();
+        for (List<Integer> group : byFirst.values()) {
+            if (group.size() > 1) {
+                int[] indices = new int[group.size()];
+                for (int k = 0; k < indices.length; k++) {
+                    indices[k] = group.get(k);
+                }
+                groups.add(indices);
+            }
+        }
+        return groups;
+    }
+
+    private static boolean similar(List<Map<String, String>> records, int[] blocks, int i, int j, int threshold) {
+        if (blocks != null && blocks[i] != blocks[j]) {
+            return false;
+        }
+        Set<Map.Entry<String, String>> common = new HashSet<>(records.get(i).entrySet());
+        common.retainAll(records.get(j).entrySet());
+        return common.size() >= threshold;
+    }
+
+    private static List<Map<String, String>> records(Random random, int count) {
+        List<Map<String, String>> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Map<String, String> annotations = new HashMap<>();
+            int size = random.nextInt(8);
+            for (int k = 0; k < size; k++) {
+                // few keys and values so that many records have annotations in common
+                annotations.put("key" + random.nextInt(6), "value" + random.nextInt(3));
+            }
+            records.add(annotations);
+        }
+        return records;
+    }
+
+    private static int[] blocks(Random random, int count) {
+        int[] blocks = new int[count];
+        for (int i = 0; i < count; i++) {
+            blocks[i] = random.nextInt(3);
+        }
+        return blocks;
+    }
+
+    private static Map<String, String> record(String... keysAndValues) {
+        Map<String, String> annotations = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            annotations.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return annotations;
+    }
+
+    private static List<int[]> groups(int[]... groups) {
+        return Arrays.asList(groups);
+    }
+
+    private static void assertGroupsEqual(List<int[]> expected, List<int[]> actual, String message) {
+        List<String> expectedStrings = new ArrayList<>();
+        for (int[] group : expected) {
+            expectedStrings.add(Arrays.toString(group));
+        }
+        List<String> actualStrings = new ArrayList<>();
+        for (int[] group : actual) {
+            actualStrings.add(Arrays.toString(group));
+        }
+        assertEquals(expectedStrings, actualStrings, message);
+    }
+}
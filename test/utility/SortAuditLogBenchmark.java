@@ -0,0 +1,187 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package utility;
+
+import com.google.code.externalsorting.ExternalSort;
+import spade.utility.AuditLogReorderer;
+import spade.utility.SortAuditLog;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes an audit log whose events are out of order by up to about a hundred and fifty records, with
+ * the records of an event together and some records repeated, as a log of several hosts
+ * or of a restarted audit daemon can be. Sorts it with ExternalSort and the comparator
+ * SortAuditLog had, and with SortAuditLog in chunks with one and more threads, and checks
+ * that the records are in order by time and event id with each event's records in the
+ * order they were logged. Then puts the log in order with AuditLogReorderer as it is read.
+ *
+ * Usage: java utility.SortAuditLogBenchmark [events] [threads] [directory]
+ */
+public class SortAuditLogBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        File directory = new File(args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir"));
+
+        File log = File.createTempFile("audit", ".log", directory);
+        File sorted = File.createTempFile("audit", ".sorted", directory);
+        try
+        {
+            List<String> expected = writeLog(log, events);
+            System.out.println(expected.size() + " records, " + (log.length() >> 20) + " MB");
+
+            Comparator<String> oldComparator = new Comparator<String>()
+            {
+                @Override
+                public int compare(String record1, String record2)
+                {
+                    long id1 = Long.parseLong(record1.substring(record1.indexOf(":") + 1, record1.indexOf(")")));
+                    long id2 = Long.parseLong(record2.substring(record2.indexOf(":") + 1, record2.indexOf(")")));
+                    return (int) (id1 - id2);
+                }
+            };
+            long start = System.nanoTime();
+            List<File> files = ExternalSort.sortInBatch(log, oldComparator, ExternalSort.DEFAULTMAXTEMPFILES,
+                    Charset.defaultCharset(), directory, true);
+            ExternalSort.mergeSortedFiles(files, sorted, oldComparator);
+            System.out.println("ExternalSort: " + (System.nanoTime() - start) / 1000000 + " ms, in order: "
+                    + expected.equals(Files.readAllLines(sorted.toPath())));
+
+            for (int chunkSizeMB : new int[]{1024, 16})
+            {
+                for (int threadCount : new int[]{1, threads})
+                {
+                    start = System.nanoTime();
+                    long records = SortAuditLog.sort(log, sorted, directory, threadCount, chunkSizeMB << 20, true);
+                    System.out.println("SortAuditLog, " + chunkSizeMB + " MB chunks, " + threadCount + " thread(s): "
+                            + (System.nanoTime() - start) / 1000000 + " ms, " + records + " records, in order: "
+                            + expected.equals(Files.readAllLines(sorted.toPath())));
+                }
+            }
+
+            for (int window : new int[]{100, 1000})
+            {
+                AuditLogReorderer reorderer = new AuditLogReorderer(window);
+                List<String> reordered = new ArrayList<>(expected.size());
+                start = System.nanoTime();
+                try (BufferedReader reader = new BufferedReader(new FileReader(log)))
+                {
+                    String line;
+                    while ((line = reader.readLine()) != null)
+                    {
+                        reorderer.add(line);
+                        String next = reorderer.poll();
+                        if (next != null)
+                        {
+                            addDistinct(reordered, next);
+                        }
+                    }
+                    String next;
+                    while ((next = reorderer.drain()) != null)
+                    {
+                        addDistinct(reordered, next);
+                    }
+                }
+                System.out.println("AuditLogReorderer, window of " + window + " records: "
+                        + (System.nanoTime() - start) / 1000000 + " ms, " + reorderer.getLateRecordCount()
+                        + " late, in order: " + expected.equals(reordered));
+            }
+        }
+        finally
+        {
+            log.delete();
+            sorted.delete();
+        }
+    }
+
+    // returns the records in order
+    private static List<String> writeLog(File log, int events) throws Exception
+    {
+        Random random = new Random(events);
+        List<List<String>> inOrder = new ArrayList<>(events);
+        long time = 1443402415000L;
+        for (int event = 0; event < events; event++)
+        {
+            time += random.nextInt(3);
+            String header = "msg=audit(" + (time / 1000) + "." + String.format("%03d", time % 1000) + ":" + (1000 + event) + "): ";
+            List<String> records = new ArrayList<>();
+            records.add("type=SYSCALL " + header + "arch=c000003e syscall=" + random.nextInt(300)
+                    + " success=yes exit=3 a0=7ffd a1=0 a2=1b6 a3=0 items=1 ppid=" + random.nextInt(32768)
+                    + " pid=" + random.nextInt(32768) + " auid=1000 uid=1000 comm=\"cat\" exe=\"/bin/cat\"");
+            if (random.nextBoolean())
+            {
+                records.add("type=CWD " + header + "cwd=\"/home/user\"");
+                records.add("type=PATH " + header + "item=0 name=\"/etc/passwd\" inode=" + random.nextInt(1000000)
+                        + " dev=08:01 mode=0100644 ouid=0 ogid=0 rdev=00:00 nametype=NORMAL");
+            }
+            records.add("type=EOE " + header);
+            inOrder.add(records);
+        }
+        // events out of order within every 50 events
+        List<List<String>> shuffled = new ArrayList<>(inOrder);
+        for (int i = 0; i < shuffled.size(); i += 50)
+        {
+            Collections.shuffle(shuffled.subList(i, Math.min(i + 50, shuffled.size())), random);
+        }
+        List<String> expected = new ArrayList<>();
+        for (List<String> records : inOrder)
+        {
+            expected.addAll(records);
+        }
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(log)))
+        {
+            for (List<String> records : shuffled)
+            {
+                for (String record : records)
+                {
+                    writer.write(record);
+                    writer.newLine();
+                    // a few records logged twice
+                    if (random.nextInt(1000) == 0)
+                    {
+                        writer.write(record);
+                        writer.newLine();
+                    }
+                }
+            }
+        }
+        return expected;
+    }
+
+    private static void addDistinct(List<String> records, String record)
+    {
+        if (records.isEmpty() || !records.get(records.size() - 1).equals(record))
+        {
+            records.add(record);
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package utility;
+
+import org.junit.jupiter.api.Test;
+import spade.utility.AuditLogReorderer;
+import spade.utility.SortAuditLog;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the keys that spade.utility.SortAuditLog parses from audit records, the order
+ * of its output with small chunks, and the order of spade.utility.AuditLogReorderer.
+ */
+class SortAuditLogTest {
+
+    @Test
+    void parsesKeys() {
+        assertKey("type=SYSCALL msg=audit(1443402415.123:100): arch=c000003e", 1443402415123L, 100);
+        assertKey("node=host1 type=PATH msg=audit(1465585945.676:672946): item=0", 1465585945676L, 672946);
+        assertKey("type=EOE msg=audit(1.5:7): ", 1500, 7);
+        assertKey("type=EOE msg=audit(1.05:7): ", 1050, 7);
+        // only milliseconds are kept
+        assertKey("type=EOE msg=audit(1.123456:7): ", 1123, 7);
+        assertKey("type=EOE msg=audit(15:7): ", 15000, 7);
+        assertKey("type=EOE msg=audit(999999999999.999:999999999999999999): ", 999999999999999L,
+                999999999999999999L);
+    }
+
+    @Test
+    void recordsWithoutKeyAreNotParsed() {
+        String[] records = {
+                "",
+                "type=EOE",
+                "type=EOE msg=audit",
+                "type=EOE msg=audit(",
+                "type=EOE msg=audit(:7): ",
+                "type=EOE msg=audit(abc:7): ",
+                "type=EOE msg=audit(1.5): ",
+                "type=EOE msg=audit(1.5:): ",
+                "type=EOE msg=audit(1.5:7",
+                "type=EOE msg=audit(1.5:7x): ",
+                "type=EOE msg=audit(1.5;7): ",
+                // more digits than fit in the key
+                "type=EOE msg=audit(1000000000000.5:7): ",
+                "type=EOE msg=audit(1.5:1000000000000000000): ",
+        };
+        for (String record : records) {
+            long[] keys = {-1, -2};
+            assertFalse(SortAuditLog.parseKey(record, keys, 0), record);
+            assertArrayEquals(new long[]{-1, -2}, keys, record);
+            byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+            assertFalse(SortAuditLog.parseKey(bytes, 0, bytes.length, keys, 0), record);
+            assertArrayEquals(new long[]{-1, -2}, keys, record);
+        }
+    }
+
+    @Test
+    void parsesKeyBetweenOffsets() {
+        String record = "type=SYSCALL msg=audit(10.250:42): a0=(1.5:7)";
+        byte[] bytes = ("type=EOE msg=audit(1.5:7):\n" + record + "\ntype=EOE msg=audit(2.5:8):\n")
+                .getBytes(StandardCharsets.UTF_8);
+        int start = bytes.length - record.length() - "\ntype=EOE msg=audit(2.5:8):\n".length();
+        long[] keys = new long[6];
+        assertTrue(SortAuditLog.parseKey(bytes, start, start + record.length(), keys, 1));
+        assertArrayEquals(new long[]{0, 0, 10250, 42, 0, 0}, keys);
+        // the end cuts the key off
+        int cut = start + record.indexOf(')');
+        assertFalse(SortAuditLog.parseKey(bytes, start, cut, new long[2], 0));
+    }
+
+    @Test
+    void comparesByTimeThenEventId() {
+        long[] keys = {5, 9, 5, 10, 6, 1, 5, 9};
+        assertTrue(SortAuditLog.compare(keys, 0, keys, 1) < 0);
+        assertTrue(SortAuditLog.compare(keys, 2, keys, 1) > 0);
+        assertTrue(SortAuditLog.compare(keys, 1, keys, 2) < 0);
+        assertEquals(0, SortAuditLog.compare(keys, 0, keys, 3));
+    }
+
+    @Test
+    void sortsStablyAcrossChunks() throws Exception {
+        for (int seed = 0; seed < 10; seed++) {
+            Random random = new Random(seed);
+            List<String> log = log(random, 200);
+            for (boolean distinct : new boolean[]{false, true}) {
+                List<String> expected = sorted(log, distinct);
+                // chunks of a few records, so the records of an event are in different chunks
+                for (int chunkSize : new int[]{1 << 20, 512, 100}) {
+                    for (int threads : new int[]{1, 3}) {
+                        String message = "seed=" + seed + " distinct=" + distinct + " chunkSize=" + chunkSize
+                                + " threads=" + threads;
+                        assertEquals(expected, sort(log, chunkSize, threads, distinct), message);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void eventInTwoChunksKeepsItsOrder() throws Exception {
+        List<String> log = Arrays.asList(
+                "type=SYSCALL msg=audit(1.000:2): syscall=2",
+                "type=SYSCALL msg=audit(1.000:1): syscall=1",
+                "type=CWD msg=audit(1.000:1): cwd=\"/\"",
+                "type=PATH msg=audit(1.000:2): item=0 name=\"/a\"",
+                "type=PATH msg=audit(1.000:1): item=0 name=\"/b\"",
+                "type=EOE msg=audit(1.000:2): ",
+                "type=EOE msg=audit(1.000:1): ");
+        List<String> expected = Arrays.asList(
+                "type=SYSCALL msg=audit(1.000:1): syscall=1",
+                "type=CWD msg=audit(1.000:1): cwd=\"/\"",
+                "type=PATH msg=audit(1.000:1): item=0 name=\"/b\"",
+                "type=EOE msg=audit(1.000:1): ",
+                "type=SYSCALL msg=audit(1.000:2): syscall=2",
+                "type=PATH msg=audit(1.000:2): item=0 name=\"/a\"",
+                "type=EOE msg=audit(1.000:2): ");
+        for (int chunkSize : new int[]{1 << 20, 96, 50, 1}) {
+            assertEquals(expected, sort(log, chunkSize, 2, true), "chunkSize=" + chunkSize);
+        }
+    }
+
+    @Test
+    void recordsWithoutKeyStayAfterTheRecordBefore() throws Exception {
+        List<String> log = Arrays.asList(
+                "no key before the first record with a key",
+                "type=SYSCALL msg=audit(2.000:5): syscall=2",
+                "continued record of event 5",
+                "type=SYSCALL msg=audit(1.000:4): syscall=1",
+                "continued record of event 4",
+                "type=EOE msg=audit(2.000:5): ",
+                "type=EOE msg=audit(1.000:4): ");
+        // the records at the start of the log without a key are written first, as the reorderer returns them
+        List<String> expected = Arrays.asList(
+                "no key before the first record with a key",
+                "type=SYSCALL msg=audit(1.000:4): syscall=1",
+                "continued record of event 4",
+                "type=EOE msg=audit(1.000:4): ",
+                "type=SYSCALL msg=audit(2.000:5): syscall=2",
+                "continued record of event 5",
+                "type=EOE msg=audit(2.000:5): ");
+        for (int chunkSize : new int[]{1 << 20, 64, 1}) {
+            assertEquals(expected, sort(log, chunkSize, 2, false), "chunkSize=" + chunkSize);
+        }
+        assertEquals(expected, reorder(log, 10));
+    }
+
+    @Test
+    void removesDuplicateRecords() throws Exception {
+        List<String> log = Arrays.asList(
+                "type=EOE msg=audit(2.000:5): ",
+                "type=SYSCALL msg=audit(1.000:4): syscall=1",
+                "type=SYSCALL msg=audit(1.000:4): syscall=1",
+                "type=EOE msg=audit(2.000:5): ",
+                // not a repeat: same key, different record
+                "type=SYSCALL msg=audit(1.000:4): syscall=2",
+                "type=EOE msg=audit(1.000:4): ");
+        for (int chunkSize : new int[]{1 << 20, 64}) {
+            // a record is removed when it is the same as the record written before it
+            assertEquals(Arrays.asList(
+                    "type=SYSCALL msg=audit(1.000:4): syscall=1",
+                    "type=SYSCALL msg=audit(1.000:4): syscall=2",
+                    "type=EOE msg=audit(1.000:4): ",
+                    "type=EOE msg=audit(2.000:5): "),
+                    sort(log, chunkSize, 2, true), "chunkSize=" + chunkSize);
+            assertEquals(Arrays.asList(
+                    "type=SYSCALL msg=audit(1.000:4): syscall=1",
+                    "type=SYSCALL msg=audit(1.000:4): syscall=1",
+                    "type=SYSCALL msg=audit(1.000:4): syscall=2",
+                    "type=EOE msg=audit(1.000:4): ",
+                    "type=EOE msg=audit(2.000:5): ",
+                    "type=EOE msg=audit(2.000:5): "),
+                    sort(log, chunkSize, 2, false), "chunkSize=" + chunkSize);
+        }
+    }
+
+    @Test
+    void reordererReturnsRecordsInOrderWithinWindow() {
+        for (int seed = 0; seed < 10; seed++) {
+            Random random = new Random(seed);
+            List<String> log = log(random, 200);
+            // the log is out of order by less than 10 events of at most 5 records
+            List<String> reordered = reorder(log, 50);
+            assertEquals(sorted(log, false), reordered, "seed=" + seed);
+        }
+    }
+
+    @Test
+    void reordererCountsLateRecords() {
+        AuditLogReorderer reorderer = new AuditLogReorderer(2);
+        List<String> returned = new ArrayList<>();
+        for (String record : new String[]{
+                "type=EOE msg=audit(5.000:5): ",
+                "type=EOE msg=audit(6.000:6): ",
+                "type=EOE msg=audit(7.000:7): ",
+                "type=EOE msg=audit(1.000:1): ",
+                "record without key",
+                "type=EOE msg=audit(8.000:8): "}) {
+            reorderer.add(record);
+            String next = reorderer.poll();
+            if (next != null) {
+                returned.add(next);
+            }
+        }
+        String next;
+        while ((next = reorderer.drain()) != null) {
+            returned.add(next);
+        }
+        // event 1 came after event 5 was returned. The record without a key after it takes its key
+        // and is not late, as event 1 had been returned too
+        assertEquals(1, reorderer.getLateRecordCount());
+        assertEquals(Arrays.asList(
+                "type=EOE msg=audit(5.000:5): ",
+                "type=EOE msg=audit(1.000:1): ",
+                "record without key",
+                "type=EOE msg=audit(6.000:6): ",
+                "type=EOE msg=audit(7.000:7): ",
+                "type=EOE msg=audit(8.000:8): "), returned);
+        assertNull(reorderer.drain());
+    }
+
+    private static void assertKey(String record, long time, long eventId) {
+        long[] keys = new long[4];
+        assertTrue(SortAuditLog.parseKey(record, keys, 1), record);
+        assertArrayEquals(new long[]{0, 0, time, eventId}, keys, record);
+        byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+        keys = new long[4];
+        assertTrue(SortAuditLog.parseKey(bytes, 0, bytes.length, keys, 1), record);
+        assertArrayEquals(new long[]{0, 0, time, eventId}, keys, record);
+    }
+
+    // events of up to 5 records, out of order within every 10 events, with some records repeated
+    private static List<String> log(Random random, int events) {
+        List<List<String>> inOrder = new ArrayList<>();
+        long time = 1443402415000L;
+        for (int event = 0; event < events; event++) {
+            time += random.nextInt(3);
+            String header = "msg=audit(" + (time / 1000) + "." + String.format("%03d", time % 1000) + ":"
+                    + (1000 + event) + "): ";
+            List<String> records = new ArrayList<>();
+            records.add("type=SYSCALL " + header + "syscall=" + random.nextInt(300));
+            for (int i = random.nextInt(4); i > 0; i--) {
+                records.add("type=PATH " + header + "item=" + i);
+            }
+            records.add("type=EOE " + header);
+            inOrder.add(records);
+        }
+        for (int i = 0; i < inOrder.size(); i += 10) {
+            Collections.shuffle(inOrder.subList(i, Math.min(i + 10, inOrder.size())), random);
+        }
+        List<String> log = new ArrayList<>();
+        for (List<String> records : inOrder) {
+            for (String record : records) {
+                log.add(record);
+                if (random.nextInt(20) == 0) {
+                    log.add(record);
+                }
+            }
+        }
+        return log;
+    }
+
+    // a stable sort of the records by key. Records without a key take the key of the record before,
+    // or come first at the start of the log
+    private static List<String> sorted(List<String> log, boolean distinct) {
+        final List<long[]> keys = new ArrayList<>();
+        List<Integer> order = new ArrayList<>();
+        long[] last = new long[2];
+        for (int i = 0; i < log.size(); i++) {
+            long[] key = new long[2];
+            if (SortAuditLog.parseKey(log.get(i), key, 0)) {
+                last = key;
+            }
+            keys.add(last);
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer index1, Integer index2) {
+                return SortAuditLog.compare(keys.get(index1), 0, keys.get(index2), 0);
+            }
+        });
+        List<String> sorted = new ArrayList<>();
+        for (int index : order) {
+            String record = log.get(index);
+            if (!distinct || sorted.isEmpty() || !sorted.get(sorted.size() - 1).equals(record)) {
+                sorted.add(record);
+            }
+        }
+        return sorted;
+    }
+
+    private static List<String> sort(List<String> log, int chunkSize, int threads, boolean distinct)
+            throws Exception {
+        File input = File.createTempFile("audit", ".log");
+        File output = File.createTempFile("audit", ".sorted");
+        try {
+            Files.write(input.toPath(), log, StandardCharsets.UTF_8);
+            long count = SortAuditLog.sort(input, output, input.getParentFile(), threads, chunkSize, distinct);
+            List<String> sorted = Files.readAllLines(output.toPath(), StandardCharsets.UTF_8);
+            assertEquals(sorted.size(), count);
+            return sorted;
+        } finally {
+            input.delete();
+            output.delete();
+        }
+    }
+
+    private static List<String> reorder(List<String> log, int window) {
+        AuditLogReorderer reorderer = new AuditLogReorderer(window);
+        List<String> reordered = new ArrayList<>();
+        for (String record : log) {
+            reorderer.add(record);
+            String next = reorderer.poll();
+            if (next != null) {
+                reordered.add(next);
+            }
+        }
+        String next;
+        while ((next = reorderer.drain()) != null) {
+            reordered.add(next);
+        }
+        assertEquals(0, reorderer.getLateRecordCount());
+        return reordered;
+    }
+}